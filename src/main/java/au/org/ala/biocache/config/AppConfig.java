@@ -1,11 +1,14 @@
 package au.org.ala.biocache.config;
 
+import au.org.ala.biocache.dto.LegendItem;
 import au.org.ala.biocache.index.IndexDAO;
 import au.org.ala.biocache.index.SolrIndexDAO;
 import au.org.ala.biocache.service.RestartDataService;
 import au.org.ala.biocache.service.SpeciesLookupIndexService;
 import au.org.ala.biocache.service.SpeciesLookupRestService;
 import au.org.ala.biocache.service.SpeciesLookupService;
+import au.org.ala.biocache.util.CacheRegistry;
+import au.org.ala.biocache.util.VersionedCache;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrClient;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -16,6 +19,7 @@ import org.springframework.context.support.AbstractMessageSource;
 import org.springframework.web.client.RestOperations;
 
 import javax.inject.Inject;
+import java.util.List;
 
 /**
  * This class handles the switching between implementations of interfaces based on
@@ -32,6 +36,9 @@ public class AppConfig {
     @Value("${name.index.dir:/data/lucene/namematching}")
     protected String nameIndexLocation;
 
+    @Inject
+    private CacheRegistry cacheRegistry;
+
     @Inject
     @Qualifier("restTemplate")
     private RestOperations restTemplate; // NB MappingJacksonHttpMessageConverter() injected by Spring
@@ -56,6 +63,12 @@ public class AppConfig {
     @Value("${facet.default:true}")
     protected Boolean facetDefault;
 
+    // Max entries of the SearchDAOImpl legend and colour caches
+    @Value("${legend.cache.size:2000}")
+    protected Integer legendCacheSize;
+    @Value("${colours.cache.size:2000}")
+    protected Integer coloursCacheSize;
+
 
     //Set RestartDataService.dir before classes using RestartDataService are instantiated.
     @Value("${restart.data.dir:/tmp}")
@@ -127,4 +140,18 @@ public class AppConfig {
         return result;
 
     }
+
+    public @Bean(name = "legendCache")
+    VersionedCache<String, List<LegendItem>> legendCacheBean() {
+        VersionedCache<String, List<LegendItem>> cache = new VersionedCache<String, List<LegendItem>>("legendCache", legendCacheSize);
+        cacheRegistry.register(cache);
+        return cache;
+    }
+
+    public @Bean(name = "coloursCache")
+    VersionedCache<String, List<LegendItem>> coloursCacheBean() {
+        VersionedCache<String, List<LegendItem>> cache = new VersionedCache<String, List<LegendItem>>("coloursCache", coloursCacheSize);
+        cacheRegistry.register(cache);
+        return cache;
+    }
 }
@@ -19,6 +19,7 @@ import au.org.ala.biocache.model.Qid;
 import au.org.ala.biocache.util.QidMissingException;
 import au.org.ala.biocache.util.QidSizeException;
 
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -81,6 +82,11 @@ public interface QidCacheDAO {
 
     long getSize();
 
+    /**
+     * @return hit, miss and eviction counts of the in memory cache
+     */
+    Map<String, Object> getCacheStats();
+
     String[] getFq(SpatialSearchRequestParams requestParams);
 
     String generateQid(SpatialSearchRequestParams requestParams, String bbox, String title, Long maxage, String source);
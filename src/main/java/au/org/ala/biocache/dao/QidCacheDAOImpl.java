@@ -16,23 +16,33 @@ package au.org.ala.biocache.dao;
 
 import au.org.ala.biocache.dto.SpatialSearchRequestParams;
 import au.org.ala.biocache.model.Qid;
+import au.org.ala.biocache.util.CacheRegistry;
+import au.org.ala.biocache.util.ManagedCache;
 import au.org.ala.biocache.util.QidMissingException;
+import au.org.ala.biocache.util.MappedLogStore;
 import au.org.ala.biocache.util.QidSizeException;
+import au.org.ala.biocache.util.SegmentedLruCache;
 import au.org.ala.biocache.util.SpatialUtils;
+import au.org.ala.biocache.util.WktGeometryCache;
 import com.googlecode.ehcache.annotations.Cacheable;
+import org.apache.commons.collections.map.LRUMap;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CountDownLatch;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 
 /**
@@ -52,7 +62,7 @@ public class QidCacheDAOImpl implements QidCacheDAO {
     long maxCacheSize;
     
     /**
-     * min size of cached params in bytes
+     * min size of cached params in bytes. No longer used, qids are evicted one at a time when the max size is reached.
      */
     @Value("${qid.cache.size.min:52428800}")
     long minCacheSize;
@@ -88,68 +98,203 @@ public class QidCacheDAOImpl implements QidCacheDAO {
     private double wktSimplificationMaxPrecision;
 
     /**
-     * in memory store of params
+     * Approximate mean qid size in bytes, for sizing the cache frequency sketch
      */
-    private ConcurrentMap<String, Qid> cache = new ConcurrentHashMap<String, Qid>();
-    
+    @Value("${qid.cache.meanSize:1024}")
+    long meanQidSize = 1024;
+
     /**
-     * counter and lock
+     * Directory of the local disk store of qids, between the in memory cache and the db
      */
-    final private Object counterLock = new Object();
+    @Value("${qid.disk.dir:/data/cache/qid}")
+    String diskDir = "/data/cache/qid";
+
+    /**
+     * max size of the local disk store in bytes. 0 to disable.
+     */
+    @Value("${qid.disk.size.max:1073741824}")
+    long maxDiskSize = 1073741824L;
+
+    /**
+     * size of each local disk store file in bytes. Larger qids are not stored locally.
+     */
+    @Value("${qid.disk.segment.size:67108864}")
+    int diskSegmentSize = 67108864;
+
+    /**
+     * sync to write new qids to the db before returning the qid, async to write them in the background
+     */
+    @Value("${qid.persist.mode:sync}")
+    String persistMode = "sync";
+
+    /**
+     * max qids written to the db in one batch when async
+     */
+    @Value("${qid.persist.batch.size:100}")
+    int persistBatchSize = 100;
+
+    /**
+     * max qids waiting to be written when async. New qids are written before returning when it is full.
+     */
+    @Value("${qid.persist.queue.size:10000}")
+    int persistQueueSize = 10000;
+
+    /**
+     * retries of a failed async write, and ms before the first retry. The delay doubles for each retry.
+     */
+    @Value("${qid.persist.retries:5}")
+    int persistRetries = 5;
+
+    @Value("${qid.persist.retry.delay:1000}")
+    long persistRetryDelay = 1000;
+
+    /**
+     * Number of content hashes of recent qids to keep in memory. A qid with the same q, fqs, wkt, bbox and display
+     * string as a recent qid returns the existing qid. 0 to disable. Qids with a max age are not deduplicated, an
+     * existing qid may expire before the max age of the new qid.
+     */
+    @Value("${qid.dedup.size:100000}")
+    int dedupSize = 100000;
+
+    private LRUMap dedupKeys;
+    private final Object dedupLock = new Object();
+    private final LongAdder dedupHits = new LongAdder();
+
+    private volatile QidWriteBehindQueue writeBehindQueue;
+
+    //row keys of async qids: ms time, then a sequence that starts at a random value for each server
+    private final AtomicLong rowKeySequence = new AtomicLong(new Random().nextInt(1000000));
+
+    private volatile MappedLogStore diskStore;
+    private volatile boolean diskStoreFailed;
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder diskMisses = new LongAdder();
 
-    private long cacheSize;
-    
-    private CountDownLatch counter;
-    
-    private long triggerCleanSize = minCacheSize + (maxCacheSize - minCacheSize) / 2;
-    
     /**
-     * thread for cache size limitation
+     * max size in bytes of parsed and simplified WKT to cache
      */
-    private Thread cacheCleaner;
+    @Value("${wkt.cache.size:52428800}")
+    void setWktCacheSize(long sizeInBytes) {
+        WktGeometryCache.setMaxSize(sizeInBytes);
+    }
+
+    /**
+     * in memory store of params, weighted by Qid.size()
+     */
+    private volatile SegmentedLruCache<String, Qid> cache;
+    private final Object cacheLock = new Object();
 
     @Inject
     private SearchDAO searchDAO;
 
+    @Inject
+    protected CacheRegistry cacheRegistry;
+
     protected QidDAO qidDao = (QidDAO) au.org.ala.biocache.Config.getInstance(QidDAO.class);
+
+    /**
+     * The in memory cache, created on first use when the configured max size is available.
+     *
+     * @return
+     */
+    SegmentedLruCache<String, Qid> getCache() {
+        if (cache == null) {
+            synchronized (cacheLock) {
+                if (cache == null) {
+                    logger.info("maxCacheSize > " + maxCacheSize);
+                    int expectedEntries = (int) Math.min(Integer.MAX_VALUE, maxCacheSize / Math.max(1, meanQidSize));
+                    cache = new SegmentedLruCache<String, Qid>(maxCacheSize, expectedEntries, new SegmentedLruCache.Weigher<Qid>() {
+                        @Override
+                        public long weigh(Qid value) {
+                            return value.size();
+                        }
+                    });
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * The queue of qids waiting to be written to the db, created on first use.
+     *
+     * @return
+     */
+    QidWriteBehindQueue getWriteBehindQueue() {
+        if (writeBehindQueue == null) {
+            synchronized (cacheLock) {
+                if (writeBehindQueue == null) {
+                    writeBehindQueue = new QidWriteBehindQueue(qidDao, persistBatchSize, persistQueueSize,
+                            persistRetries, persistRetryDelay);
+                }
+            }
+        }
+        return writeBehindQueue;
+    }
+
     /**
-     * init
+     * @return false when not configured, or after the db has changed the row key of an async qid
      */
-    public QidCacheDAOImpl() {
-        counter = new CountDownLatch(1);
+    boolean isAsync() {
+        return "async".equalsIgnoreCase(persistMode) && (writeBehindQueue == null || !writeBehindQueue.isRowKeyChanged());
+    }
 
-        cacheCleaner = new Thread() {
+    @PostConstruct
+    public void init() {
+        //the in memory qids, maxSize is in bytes
+        cacheRegistry.register(new ManagedCache() {
+            @Override
+            public String getName() {
+                return "qidCache";
+            }
 
             @Override
-            public void run() {
-                try {
-                    while (true) {
-                        if (counter != null) counter.await();
-
-                        synchronized (counterLock) {
-                            cacheSize = minCacheSize;
-                            counter = new CountDownLatch(1);
-                        }
+            public Map<String, Object> getStats() {
+                return getCacheStats();
+            }
 
-                        cleanCache();
-                    }
-                } catch (InterruptedException e) {
-                } catch (Exception e) {
-                    logger.error("params cache cleaner stopping", e);
-                }
+            @Override
+            public void invalidate() {
+                getCache().clear();
             }
-        };
-        cacheCleaner.setName("qid-cache-cleaner");
-        cacheCleaner.start();
 
-        try {
-            updateTriggerCleanSize();
+            @Override
+            public boolean resize(long maxSize) {
+                setMaxCacheSize(maxSize);
+                return true;
+            }
+        });
+    }
 
-            logger.info("maxCacheSize > " + maxCacheSize);
-            logger.info("minCacheSize > " + minCacheSize);
-        } catch (Exception e) {
-            logger.error("cannot load qid.properties", e);
+    /**
+     * Write queued qids to the db.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.stop(30000);
+        }
+    }
+
+    /**
+     * The local disk store, opened on first use.
+     *
+     * @return null when disabled or it cannot be opened
+     */
+    MappedLogStore getDiskStore() {
+        if (diskStore == null && !diskStoreFailed && maxDiskSize > 0) {
+            synchronized (cacheLock) {
+                if (diskStore == null && !diskStoreFailed) {
+                    try {
+                        diskStore = new MappedLogStore(new File(diskDir), maxDiskSize, diskSegmentSize);
+                    } catch (Exception e) {
+                        diskStoreFailed = true;
+                        logger.error("failed to open the qid disk store " + diskDir + ", qids are only cached in memory", e);
+                    }
+                }
+            }
         }
+        return diskStore;
     }
 
     /**
@@ -171,47 +316,149 @@ public class QidCacheDAOImpl implements QidCacheDAO {
             throw new QidSizeException(qid.size());
         }
 
-        save(qid);
+        String hash = null;
+        if (dedupSize > 0 && isDeduplicated(maxAge)) {
+            hash = contentHash(q, displayQ, wkt, bbox, fqs, maxAge);
+            String existing = findDuplicate(hash);
+            if (existing != null) {
+                return existing;
+            }
+        }
+
+        if (isAsync()) {
+            qid.setRowKey(newRowKey());
+            getWriteBehindQueue().add(qid);
+        } else {
+            save(qid);
+        }
+
+        put(qid);
+        saveLocal(qid.getRowKey(), qid);
 
-        while (!put(qid)) {
-            //cache cleaner has been run, safe to try again
+        if (hash != null) {
+            saveHash(hash, qid.getRowKey());
         }
 
         return qid.getRowKey();
     }
 
     /**
-     * after adding an object to the cache update the cache size.
+     * An existing qid is returned only for qids without a max age. The max age is a lifetime from creation, so an
+     * existing qid may expire before the max age of the new qid.
      *
-     * @param qid
-     * @return true if successful.
+     * @param maxAge -1 or expected qid life in ms
+     * @return true when an existing qid with the same content can be returned
      */
-    boolean put(Qid qid) {
-        boolean runCleaner = false;
-        synchronized (counterLock) {
-            logger.debug("new cache size: " + cacheSize);
-            if (cacheSize + qid.size() > maxCacheSize) {
-                //run outside of counterLock
-                runCleaner = true;
-                logger.debug("not putting qid");
+    static boolean isDeduplicated(long maxAge) {
+        return maxAge <= 0;
+    }
+
+    /**
+     * Canonical hash of the qid parameters. The order of fqs is ignored.
+     *
+     * @return hex SHA-256
+     */
+    static String contentHash(String q, String displayQ, String wkt, double[] bbox, String[] fqs, long maxAge) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            hashString(md, q);
+            hashString(md, displayQ);
+            hashString(md, wkt);
+            hashString(md, bbox == null ? null : Arrays.toString(bbox));
+            if (fqs == null) {
+                hashString(md, null);
             } else {
-                if (cacheSize + qid.size() > triggerCleanSize) {
-                    counter.countDown();
+                String[] sorted = Arrays.copyOf(fqs, fqs.length);
+                Arrays.sort(sorted);
+                hashString(md, String.valueOf(sorted.length));
+                for (String fq : sorted) {
+                    hashString(md, fq);
                 }
+            }
+            hashString(md, String.valueOf(maxAge));
 
-                cacheSize += qid.size();
-                logger.debug("putting qid");
-                cache.put(qid.getRowKey(), qid);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
             }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        if (runCleaner) {
-            logger.debug("cleaning qid cache");
-            cleanCache();
-            return false;
+    private static void hashString(MessageDigest md, String s) {
+        if (s == null) {
+            md.update((byte) 0);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            md.update((byte) 1);
+            md.update(ByteBuffer.allocate(4).putInt(b.length).array());
+            md.update(b);
         }
+    }
 
-        return true;
+    /**
+     * Find an existing qid with the same content hash.
+     *
+     * @param hash
+     * @return the row key of the existing qid, or null
+     */
+    String findDuplicate(String hash) {
+        String key;
+        synchronized (dedupLock) {
+            key = dedupKeys == null ? null : (String) dedupKeys.get(hash);
+        }
+        if (key == null) {
+            MappedLogStore store = getDiskStore();
+            byte[] bytes = store == null ? null : store.get("hash:" + hash);
+            if (bytes != null) {
+                key = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        if (key == null) {
+            return null;
+        }
+
+        //the hash is only a pointer, check the qid
+        try {
+            Qid existing = get(key);
+            if (hash.equals(contentHash(existing.getQ(), existing.getDisplayString(), existing.getWkt(),
+                    existing.getBbox(), existing.getFqs(), existing.getMaxAge()))) {
+                dedupHits.increment();
+                return key;
+            }
+        } catch (QidMissingException e) {
+            //not found, make a new qid
+        }
+        return null;
+    }
+
+    private void saveHash(String hash, String key) {
+        synchronized (dedupLock) {
+            if (dedupKeys == null) {
+                dedupKeys = new LRUMap(dedupSize);
+            }
+            dedupKeys.put(hash, key);
+        }
+        MappedLogStore store = getDiskStore();
+        if (store != null) {
+            try {
+                store.put("hash:" + hash, key.getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                logger.error("failed to save qid hash to the disk store: " + key, e);
+            }
+        }
+    }
+
+    /**
+     * add an object to the cache. Less used qids are evicted when the cache is full.
+     *
+     * @param qid
+     * @return true if the qid is in the cache.
+     */
+    boolean put(Qid qid) {
+        return getCache().put(qid.getRowKey(), qid);
     }
 
     /**
@@ -222,19 +469,31 @@ public class QidCacheDAOImpl implements QidCacheDAO {
      * or in file storage.
      */
     public Qid get(String key) throws QidMissingException {
-        Qid obj = cache.get(key);
+        Qid obj = getCache().get(key);
+
+        if (obj == null && writeBehindQueue != null) {
+            obj = writeBehindQueue.get(key);
+        }
 
         if (obj == null) {
-            obj = load(key);
+            obj = loadLocal(key);
 
-            if (obj != null) {
-                cache.put(key, obj);
+            if (obj == null) {
+                obj = load(key);
 
-                // remove SOLR escaping of older qid
-                if (obj.getQ() != null && obj.getQ().indexOf('\\') >= 0) {
-                    obj.setQ(removeSolrEscaping(obj.getQ()));
+                if (obj != null) {
+                    // remove SOLR escaping of older qid
+                    if (obj.getQ() != null && obj.getQ().indexOf('\\') >= 0) {
+                        obj.setQ(removeSolrEscaping(obj.getQ()));
+                    }
+
+                    saveLocal(key, obj);
                 }
             }
+
+            if (obj != null) {
+                getCache().put(key, obj);
+            }
         }
 
         if (obj == null) {
@@ -291,58 +550,142 @@ public class QidCacheDAOImpl implements QidCacheDAO {
     }
 
     /**
-     * delete records from the cache to get cache size <= minCacheSize
+     * save a Qid to db
+     *
+     * @param value
      */
-    synchronized void cleanCache() {
-        updateTriggerCleanSize();
-                
-        if (cacheSize < triggerCleanSize) {
-            return;
+    void save(Qid value) {
+        try {
+            qidDao.put(value);
+        } catch (Exception e) {
+            logger.error("faild to save qid to db", e);
         }
+    }
 
-        List<Entry<String, Qid>> entries = new ArrayList<>(cache.entrySet());
+    /**
+     * Numeric row key for a qid that is written to the db in the background.
+     *
+     * @return
+     */
+    String newRowKey() {
+        return System.currentTimeMillis() + String.format("%06d", rowKeySequence.incrementAndGet() % 1000000);
+    }
 
-        //sort ascending by last use time
-        Collections.sort(entries, new Comparator<Entry<String, Qid>>() {
+    /**
+     * save a Qid to the local disk store
+     *
+     * @param key
+     * @param value
+     */
+    void saveLocal(String key, Qid value) {
+        MappedLogStore store = getDiskStore();
+        if (store != null) {
+            try {
+                store.put(key, serialize(value));
+            } catch (Exception e) {
+                logger.error("failed to save qid to the disk store: " + key, e);
+            }
+        }
+    }
 
-            @Override
-            public int compare(Entry<String, Qid> o1, Entry<String, Qid> o2) {
-                long c = o1.getValue().getLastUse() - o2.getValue().getLastUse();
-                return (c < 0) ? -1 : ((c > 0) ? 1 : 0);
+    /**
+     * load a Qid from the local disk store
+     *
+     * @param key
+     * @return null when it is not in the local disk store
+     */
+    Qid loadLocal(String key) {
+        MappedLogStore store = getDiskStore();
+        if (store != null) {
+            try {
+                byte[] bytes = store.get(key);
+                if (bytes != null) {
+                    diskHits.increment();
+                    return deserialize(bytes);
+                }
+            } catch (Exception e) {
+                logger.error("failed to read qid from the disk store: " + key, e);
+                store.remove(key);
             }
-        });
+            diskMisses.increment();
+        }
+        return null;
+    }
 
-        long size = 0;
-        int numberRemoved = 0;
-        for (int i = 0; i < entries.size(); i++) {
-            if (size + entries.get(i).getValue().size() > minCacheSize) {
-                String key = entries.get(i).getKey();
-                cache.remove(key);
-                numberRemoved++;
-            } else {
-                size += entries.get(i).getValue().size();
+    static byte[] serialize(Qid qid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(32, (int) qid.size()));
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, qid.getRowKey());
+        writeString(out, qid.getQ());
+        writeString(out, qid.getDisplayString());
+        writeString(out, qid.getWkt());
+        double[] bbox = qid.getBbox();
+        out.writeInt(bbox == null ? -1 : bbox.length);
+        if (bbox != null) {
+            for (double d : bbox) {
+                out.writeDouble(d);
+            }
+        }
+        out.writeLong(qid.getLastUse());
+        String[] fqs = qid.getFqs();
+        out.writeInt(fqs == null ? -1 : fqs.length);
+        if (fqs != null) {
+            for (String fq : fqs) {
+                writeString(out, fq);
             }
         }
+        out.writeLong(qid.getMaxAge());
+        writeString(out, qid.getSource());
+        out.flush();
+        return bytes.toByteArray();
+    }
 
-        //adjust output size correctly
-        synchronized (counterLock) {
-            cacheSize = cacheSize - (minCacheSize - size);
-            size = cacheSize;
+    static Qid deserialize(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        String rowKey = readString(in);
+        String q = readString(in);
+        String displayString = readString(in);
+        String wkt = readString(in);
+        double[] bbox = null;
+        int length = in.readInt();
+        if (length >= 0) {
+            bbox = new double[length];
+            for (int i = 0; i < length; i++) {
+                bbox[i] = in.readDouble();
+            }
+        }
+        long lastUse = in.readLong();
+        String[] fqs = null;
+        length = in.readInt();
+        if (length >= 0) {
+            fqs = new String[length];
+            for (int i = 0; i < length; i++) {
+                fqs[i] = readString(in);
+            }
         }
-        logger.debug("removed " + numberRemoved + " cached qids, new cache size " + size);
+        long maxAge = in.readLong();
+        String source = readString(in);
+        return new Qid(rowKey, q, displayString, wkt, bbox, lastUse, fqs, maxAge, source);
     }
 
-    /**
-     * save a Qid to db
-     *
-     * @param value
-     */
-    void save(Qid value) {
-        try {
-            qidDao.put(value);
-        } catch (Exception e) {
-            logger.error("faild to save qid to db", e);
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
         }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
     }
 
     /**
@@ -363,7 +706,9 @@ public class QidCacheDAOImpl implements QidCacheDAO {
 
     public void setMaxCacheSize(long sizeInBytes) {
         maxCacheSize = sizeInBytes;
-        updateTriggerCleanSize();
+        if (cache != null) {
+            cache.setMaxWeight(sizeInBytes);
+        }
     }
 
     public long getMaxCacheSize() {
@@ -372,7 +717,6 @@ public class QidCacheDAOImpl implements QidCacheDAO {
 
     public void setMinCacheSize(long sizeInBytes) {
         minCacheSize = sizeInBytes;
-        updateTriggerCleanSize();
     }
 
     public long getMinCacheSize() {
@@ -388,16 +732,23 @@ public class QidCacheDAOImpl implements QidCacheDAO {
     }
 
     public long getSize() {
-        return cacheSize;
+        return getCache().getWeight();
     }
 
-    /**
-     * cache cleaner is triggered when the size of the cache is
-     * half way between the min and max size.
-     */
-    void updateTriggerCleanSize() {
-        triggerCleanSize = minCacheSize + (maxCacheSize - minCacheSize) / 2;
-        logger.debug("triggerCleanSize=" + triggerCleanSize + " minCacheSize=" + minCacheSize + " maxCacheSize=" + maxCacheSize);
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = getCache().getStats();
+        stats.put("dedupHits", dedupHits.sum());
+        if (writeBehindQueue != null) {
+            stats.putAll(writeBehindQueue.getStats());
+        }
+        MappedLogStore store = getDiskStore();
+        if (store != null) {
+            stats.put("diskHits", diskHits.sum());
+            stats.put("diskMisses", diskMisses.sum());
+            stats.put("diskSize", store.size());
+            stats.put("diskBytes", store.getSize());
+        }
+        return stats;
     }
 
     public String[] getFq(SpatialSearchRequestParams requestParams) {
@@ -440,7 +791,7 @@ public class QidCacheDAOImpl implements QidCacheDAO {
             //simplify wkt
             String wkt = requestParams.getWkt();
             if (wkt != null && wkt.length() > 0) {
-                //TODO: Is this too slow? Do not want to send large WKT to SOLR.
+                //Do not want to send large WKT to SOLR. Simplified WKT is cached by WktGeometryCache.
                 wkt = fixWkt(wkt);
 
                 if (wkt == null) {
@@ -480,7 +831,6 @@ public class QidCacheDAOImpl implements QidCacheDAO {
         return null;
     }
 
-    @Cacheable(cacheName = "fixWkt")
     private String fixWkt(String wkt) {
         return SpatialUtils.simplifyWkt(wkt, maxWktPoints, wktSimplificationFactor, wktSimplificationInitialPrecision, wktSimplificationMaxPrecision);
     }
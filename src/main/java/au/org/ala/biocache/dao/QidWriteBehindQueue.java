@@ -0,0 +1,267 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.model.Qid;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes qids to the db in the background.
+ *
+ * A single thread writes queued qids in batches. A failed write is retried after a delay that doubles with each
+ * attempt. Qids are readable with get until they are written, or have failed all attempts.
+ *
+ * The row key of a queued qid has already been returned, so the db must write it with that key. A qid whose row key
+ * is changed by the db is logged and isRowKeyChanged is set so that new qids are written synchronously.
+ */
+class QidWriteBehindQueue {
+
+    private final static Logger logger = Logger.getLogger(QidWriteBehindQueue.class);
+
+    private final QidDAO qidDao;
+    private final int batchSize;
+    private final int maxQueueSize;
+    private final int retries;
+    private final long retryDelay;
+
+    private final DelayQueue<Pending> queue = new DelayQueue<Pending>();
+    private final Map<String, Qid> pending = new ConcurrentHashMap<String, Qid>();
+    private final Thread writer;
+    private volatile boolean stopping;
+    private volatile boolean rowKeyChanged;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder synchronous = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushTime = new LongAdder();
+    private final AtomicLong maxFlushTime = new AtomicLong();
+
+    /**
+     * @param qidDao       db
+     * @param batchSize    max qids written in one flush
+     * @param maxQueueSize qids are written on the calling thread when this many are waiting
+     * @param retries      max attempts after the first failure
+     * @param retryDelay   ms before the first retry
+     */
+    QidWriteBehindQueue(QidDAO qidDao, int batchSize, int maxQueueSize, int retries, long retryDelay) {
+        this.qidDao = qidDao;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxQueueSize = maxQueueSize;
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+
+        writer = new Thread("biocache-qid-writer") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Pending first;
+                        if (stopping) {
+                            first = pollAny();
+                            if (first == null) {
+                                break;
+                            }
+                        } else {
+                            first = queue.poll(1, TimeUnit.SECONDS);
+                        }
+                        flush(first);
+                    } catch (InterruptedException e) {
+                        //stopping
+                    } catch (Exception e) {
+                        logger.error("qid writer error", e);
+                    }
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a qid for writing. The qid must have a row key.
+     *
+     * @param qid
+     */
+    void add(Qid qid) {
+        if (pending.size() >= maxQueueSize) {
+            //back pressure
+            synchronous.increment();
+            String key = qid.getRowKey();
+            try {
+                qidDao.put(qid);
+                written.increment();
+                checkRowKey(key, qid);
+            } catch (Exception e) {
+                failed.increment();
+                logger.error("failed to write qid " + key + " to the db", e);
+            }
+            return;
+        }
+        pending.put(qid.getRowKey(), qid);
+        queue.add(new Pending(qid, 0, 0));
+    }
+
+    /**
+     * @param key
+     * @return a qid that is not written yet, or null
+     */
+    Qid get(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * @return true when the db has changed the row key of a written qid
+     */
+    boolean isRowKeyChanged() {
+        return rowKeyChanged;
+    }
+
+    /**
+     * Write queued qids and stop, waiting at most the given time. Qids waiting for a retry are written without
+     * waiting for the retry delay.
+     *
+     * @param wait ms
+     */
+    void stop(long wait) {
+        stopping = true;
+        writer.interrupt();
+        try {
+            writer.join(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!pending.isEmpty()) {
+            logger.error(pending.size() + " qids were not written to the db");
+        }
+    }
+
+    Map<String, Object> getStats() {
+        long n = flushes.sum();
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("persistQueueSize", pending.size());
+        stats.put("persistWritten", written.sum());
+        stats.put("persistRetried", retried.sum());
+        stats.put("persistFailed", failed.sum());
+        stats.put("persistSynchronous", synchronous.sum());
+        stats.put("persistRowKeyChanged", rowKeyChanged);
+        stats.put("persistFlushes", n);
+        stats.put("persistMeanFlushMs", n > 0 ? flushTime.sum() / n / 1000000.0 : 0);
+        stats.put("persistMaxFlushMs", maxFlushTime.get() / 1000000.0);
+        return stats;
+    }
+
+    private void flush(Pending first) {
+        if (first == null) {
+            return;
+        }
+        List<Pending> batch = new ArrayList<Pending>(batchSize);
+        batch.add(first);
+        if (stopping) {
+            Pending p;
+            while (batch.size() < batchSize && (p = pollAny()) != null) {
+                batch.add(p);
+            }
+        } else {
+            queue.drainTo(batch, batchSize - 1);
+        }
+
+        long start = System.nanoTime();
+        for (Pending p : batch) {
+            String key = p.qid.getRowKey();
+            try {
+                qidDao.put(p.qid);
+                pending.remove(key, p.qid);
+                written.increment();
+                checkRowKey(key, p.qid);
+            } catch (Exception e) {
+                if (p.attempt < retries && !stopping) {
+                    retried.increment();
+                    long delay = retryDelay << Math.min(p.attempt, 16);
+                    queue.add(new Pending(p.qid, p.attempt + 1, delay));
+                    logger.warn("failed to write qid " + key + ", retry in " + delay + "ms: " + e.getMessage());
+                } else {
+                    failed.increment();
+                    pending.remove(key, p.qid);
+                    logger.error("failed to write qid " + key + " to the db", e);
+                }
+            }
+        }
+
+        long time = System.nanoTime() - start;
+        flushes.increment();
+        flushTime.add(time);
+        long max;
+        while (time > (max = maxFlushTime.get()) && !maxFlushTime.compareAndSet(max, time)) {
+            //retry
+        }
+    }
+
+    private void checkRowKey(String key, Qid qid) {
+        if (!key.equals(qid.getRowKey())) {
+            rowKeyChanged = true;
+            logger.error("the db changed the row key of async qid " + key + " to " + qid.getRowKey()
+                    + ", new qids are written synchronously");
+        }
+    }
+
+    /**
+     * Remove a queued qid without waiting for its retry delay.
+     */
+    private Pending pollAny() {
+        Iterator<Pending> it = queue.iterator();
+        if (it.hasNext()) {
+            Pending p = it.next();
+            it.remove();
+            return p;
+        }
+        return null;
+    }
+
+    private static class Pending implements Delayed {
+        final Qid qid;
+        final int attempt;
+        final long time;
+
+        Pending(Qid qid, int attempt, long delay) {
+            this.qid = qid;
+            this.attempt = attempt;
+            this.time = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(time, ((Pending) o).time);
+        }
+    }
+}
@@ -212,6 +212,44 @@ public interface SearchDAO {
      */
     FacetField getFacetPointsShort(SpatialSearchRequestParams searchParams, String pointType) throws Exception;
 
+    /**
+     * Retrieve the distinct points of a point field (lat-long to 4 decimal places) for a given search, decoded
+     * directly into a packed longitude,latitude array and an occurrence count array.
+     *
+     * @param searchParams
+     * @param pointType point field, e.g. point-0.01
+     * @param points    receives the longitude,latitude array
+     * @param counts    receives the occurrence count array. May be null.
+     * @throws Exception
+     */
+    void getFacetPointsPacked(SpatialSearchRequestParams searchParams, String pointType,
+                              List<float[]> points, List<int[]> counts) throws Exception;
+
+    /**
+     * Retrieve the distinct points of a point field for each of a list of queries with a single SOLR request.
+     *
+     * @param searchParams
+     * @param pointType point field, e.g. point-0.01
+     * @param queries   one query for each group of points. Each is applied in addition to the searchParams.
+     * @param points    receives a longitude,latitude array for each query, in the order of the queries
+     * @param counts    receives an occurrence count array for each query, in the order of the queries. May be null.
+     * @throws Exception
+     */
+    void getFacetPointsByQuery(SpatialSearchRequestParams searchParams, String pointType, List<String> queries,
+                               List<float[]> points, List<int[]> counts) throws Exception;
+
+    /**
+     * Retrieve a grid of occurrence counts for a bounding box using a SOLR facet.heatmap on the spatial field.
+     *
+     * @param searchParams
+     * @param bbox      bounding box in decimal degrees as min longitude, min latitude, max longitude, max latitude
+     * @param gridLevel SOLR prefix tree grid level, or null to select it with distErr
+     * @param distErr   maximum cell size in decimal degrees, used when gridLevel is null
+     * @return the count grid, or null when not available
+     * @throws Exception
+     */
+    HeatmapDTO getHeatmap(SpatialSearchRequestParams searchParams, double[] bbox, Integer gridLevel, Double distErr) throws Exception;
+
     /**
      * Retrieve a list of occurrence uid's for a given search
      *
@@ -283,6 +321,17 @@ public interface SearchDAO {
      */
     Map<String, Integer> getOccurrenceCountsForTaxa(List<String> taxa, String[] filterQueries) throws Exception;
 
+    /**
+     * Returns the record count for each of the supplied queries with a single SOLR request. Each query is
+     * applied as a facet.query in addition to the search params.
+     *
+     * @param searchParams
+     * @param queries
+     * @return count for each query, keyed by query
+     * @throws Exception
+     */
+    Map<String, Integer> getFacetQueryCounts(SpatialSearchRequestParams searchParams, List<String> queries) throws Exception;
+
     /**
      * Returns the scientific name and counts for the taxon rank that proceed or include the supplied rank.
      * @param breakdownParams
@@ -373,6 +422,8 @@ public interface SearchDAO {
      *
      * Forcing an updated value will perform a new SOLR query for each request to be run in the foreground.
      *
+     * Without force it does not lock between refreshes, so it can be called for every request.
+     *
      * @return
      * @param force
      */
@@ -451,4 +502,4 @@ public interface SearchDAO {
      * @return
      */
     List<String> listFacets(SpatialSearchRequestParams searchParams) throws Exception;
-}
\ No newline at end of file
+}
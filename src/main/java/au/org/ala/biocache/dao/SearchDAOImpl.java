@@ -29,12 +29,15 @@ import au.org.ala.biocache.writer.*;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.ehcache.annotations.Cacheable;
+import com.vividsolutions.jts.geom.Envelope;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.ResponseParser;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrRequest;
@@ -42,6 +45,7 @@ import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.beans.Field;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.response.*;
 import org.apache.solr.client.solrj.response.FacetField.Count;
 import org.apache.solr.client.solrj.response.RangeFacet.Numeric;
@@ -66,6 +70,7 @@ import org.springframework.util.CollectionUtils;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.servlet.ServletOutputStream;
 import java.io.*;
 import java.math.BigDecimal;
@@ -258,6 +263,20 @@ public class SearchDAOImpl implements SearchDAO {
     @Inject
     protected ListsService listsService;
 
+    /**
+     * legends by query, facet and cutpoints. Used by getColours and WMS legends.
+     */
+    @Inject
+    @Named("legendCache")
+    protected VersionedCache<String, List<LegendItem>> legendCache;
+
+    /**
+     * colours by query and colour mode
+     */
+    @Inject
+    @Named("coloursCache")
+    protected VersionedCache<String, List<LegendItem>> coloursCache;
+
     @Inject
     protected DownloadService downloadService;
 
@@ -324,6 +343,10 @@ public class SearchDAOImpl implements SearchDAO {
 
     private volatile Set<IndexFieldDTO> indexFields = new ConcurrentHashSet<IndexFieldDTO>(); //RestartDataService.get(this, "indexFields", new TypeReference<TreeSet<IndexFieldDTO>>(){}, TreeSet.class);
     private volatile Map<String, IndexFieldDTO> indexFieldMap = RestartDataService.get(this, "indexFieldMap", new TypeReference<HashMap<String, IndexFieldDTO>>(){}, HashMap.class);
+    /**
+     * SOLR index version of indexFields
+     */
+    private volatile long indexFieldsVersion = 0;
     private final Map<String, StatsIndexFieldDTO> rangeFieldCache = new HashMap<String, StatsIndexFieldDTO>();
 
     /**
@@ -409,6 +432,8 @@ public class SearchDAOImpl implements SearchDAO {
         }
         speciesImageService.resetCache();
         speciesCountsService.resetCache();
+        legendCache.invalidate();
+        coloursCache.invalidate();
 
         listsService.refreshCache();
         layersService.refreshCache();
@@ -2382,6 +2407,196 @@ public class SearchDAOImpl implements SearchDAO {
         return null;
     }
 
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#getFacetPointsByQuery(au.org.ala.biocache.dto.SpatialSearchRequestParams, String, java.util.List, java.util.List, java.util.List)
+     */
+    @Override
+    public void getFacetPointsByQuery(SpatialSearchRequestParams searchParams, String pointType, List<String> queries,
+                                      List<float[]> points, List<int[]> counts) throws Exception {
+        queryFormatUtils.formatSearchQuery(searchParams);
+        if (logger.isInfoEnabled()) {
+            logger.info("search query: " + searchParams.getFormattedQuery());
+        }
+        SolrQuery solrQuery = new SolrQuery();
+        solrQuery.setRequestHandler("standard");
+        solrQuery.setQuery(searchParams.getFormattedQuery());
+        solrQuery.setRows(0);
+
+        //one query domain for each query, each with a nested terms facet on the point field
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < queries.size(); i++) {
+            String[] formatted = queryFormatUtils.formatQueryTerm(queries.get(i), searchParams);
+            if (i > 0) sb.append(",");
+            sb.append("q").append(i).append(":{type:query,q:\"").append(StringEscapeUtils.escapeJava(formatted[1]))
+                    .append("\",facet:{points:{type:terms,limit:").append(searchParams.getFlimit())
+                    .append(",mincount:1,field:\"").append(pointType).append("\"}}}");
+        }
+        sb.append("}");
+        solrQuery.add("json.facet", sb.toString());
+
+        QueryResponse qr = runSolrQuery(solrQuery, searchParams.getFormattedFq(), 0, 0, "", "", new PointFacetResponseParser());
+
+        //decoded by PointFacetResponseParser, or a NamedList response when the SolrClient does not use the parser
+        NamedList packed = (NamedList) qr.getResponse().get(PointFacetResponseParser.POINTS);
+        NamedList facets = (NamedList) qr.getResponse().get("facets");
+        for (int i = 0; i < queries.size(); i++) {
+            if (packed != null) {
+                addPoints((PointFacetResponseParser.Points) packed.get("q" + i), points, counts);
+                continue;
+            }
+
+            NamedList domain = facets == null ? null : (NamedList) facets.get("q" + i);
+            NamedList pointFacet = domain == null ? null : (NamedList) domain.get("points");
+            List<NamedList> buckets = pointFacet == null ? null : (List<NamedList>) pointFacet.get("buckets");
+
+            addPointsFromBuckets(buckets, points, counts);
+        }
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#getFacetPointsPacked(au.org.ala.biocache.dto.SpatialSearchRequestParams, String, java.util.List, java.util.List)
+     */
+    @Override
+    public void getFacetPointsPacked(SpatialSearchRequestParams searchParams, String pointType,
+                                     List<float[]> points, List<int[]> counts) throws Exception {
+        queryFormatUtils.formatSearchQuery(searchParams);
+        if (logger.isInfoEnabled()) {
+            logger.info("search query: " + searchParams.getFormattedQuery());
+        }
+        SolrQuery solrQuery = new SolrQuery();
+        solrQuery.setRequestHandler("standard");
+        solrQuery.setQuery(searchParams.getFormattedQuery());
+        solrQuery.setRows(0);
+        solrQuery.setFacet(true);
+        solrQuery.addFacetField(pointType);
+        solrQuery.setFacetMinCount(1);
+        solrQuery.setFacetLimit(searchParams.getFlimit());
+        solrQuery.set("json.nl", "flat");
+
+        QueryResponse qr = runSolrQuery(solrQuery, searchParams.getFormattedFq(), 0, 0, "", "", new PointFacetResponseParser());
+
+        //decoded by PointFacetResponseParser, or a NamedList response when the SolrClient does not use the parser
+        NamedList packed = (NamedList) qr.getResponse().get(PointFacetResponseParser.POINTS);
+        if (packed != null) {
+            addPoints((PointFacetResponseParser.Points) packed.get(pointType), points, counts);
+        } else {
+            float[] latLng = new float[2];
+            PointFacetResponseParser.Points p = new PointFacetResponseParser.Points(0);
+            FacetField facet = qr.getFacetField(pointType);
+            if (facet != null && facet.getValues() != null) {
+                for (FacetField.Count c : facet.getValues()) {
+                    if (PointFacetResponseParser.parsePoint(c.getName(), latLng)) {
+                        p.add(latLng[1], latLng[0], (int) c.getCount());
+                    }
+                }
+            }
+            addPoints(p.trim(), points, counts);
+        }
+    }
+
+    private void addPoints(PointFacetResponseParser.Points p, List<float[]> points, List<int[]> counts) {
+        points.add(p == null ? new float[0] : p.points);
+        if (counts != null) counts.add(p == null ? new int[0] : p.counts);
+    }
+
+    /**
+     * Add the points of json.facet terms buckets, with values of the form "latitude,longitude", as a single
+     * longitude,latitude array.
+     *
+     * @param buckets
+     * @param points
+     * @param counts  may be null
+     */
+    private void addPointsFromBuckets(List<NamedList> buckets, List<float[]> points, List<int[]> counts) {
+        int size = buckets == null ? 0 : buckets.size();
+        float[] pts = new float[size * 2];
+        int[] cnts = new int[size];
+        float[] latLng = new float[2];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            NamedList bucket = buckets.get(i);
+            Object val = bucket.get("val");
+            // invalid points are not rendered
+            if (val != null && PointFacetResponseParser.parsePoint(val.toString(), latLng)) {
+                pts[n * 2] = latLng[1];
+                pts[n * 2 + 1] = latLng[0];
+                cnts[n] = ((Number) bucket.get("count")).intValue();
+                n++;
+            }
+        }
+
+        if (n < size) {
+            pts = Arrays.copyOf(pts, n * 2);
+            cnts = Arrays.copyOf(cnts, n);
+        }
+        points.add(pts);
+        if (counts != null) counts.add(cnts);
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#getHeatmap(au.org.ala.biocache.dto.SpatialSearchRequestParams, double[], Integer, Double)
+     */
+    @Override
+    public HeatmapDTO getHeatmap(SpatialSearchRequestParams searchParams, double[] bbox, Integer gridLevel, Double distErr) throws Exception {
+        queryFormatUtils.formatSearchQuery(searchParams);
+        if (logger.isInfoEnabled()) {
+            logger.info("search query: " + searchParams.getFormattedQuery());
+        }
+
+        //facet.heatmap.geom must be within the world bounds
+        double minx = Math.max(-180, bbox[0]);
+        double miny = Math.max(-90, bbox[1]);
+        double maxx = Math.min(180, bbox[2]);
+        double maxy = Math.min(90, bbox[3]);
+        if (minx >= maxx || miny >= maxy) {
+            return null;
+        }
+
+        SolrQuery solrQuery = new SolrQuery();
+        solrQuery.setRequestHandler("standard");
+        solrQuery.setQuery(searchParams.getFormattedQuery());
+        solrQuery.setRows(0);
+        solrQuery.setFacet(true);
+        solrQuery.set("facet.heatmap", spatialField);
+        solrQuery.set("facet.heatmap.format", "ints2D");
+        solrQuery.set("facet.heatmap.geom", String.format(Locale.ROOT, "[\"%f %f\" TO \"%f %f\"]", minx, miny, maxx, maxy));
+        if (gridLevel != null) {
+            solrQuery.set("facet.heatmap.gridLevel", gridLevel);
+        } else if (distErr != null) {
+            solrQuery.set("facet.heatmap.distErr", String.valueOf(distErr));
+        }
+
+        QueryResponse qr = runSolrQuery(solrQuery, searchParams.getFormattedFq(), 0, 0, "", "");
+
+        NamedList facetCounts = (NamedList) qr.getResponse().get("facet_counts");
+        NamedList heatmaps = facetCounts == null ? null : (NamedList) facetCounts.get("facet_heatmaps");
+        NamedList heatmap = heatmaps == null ? null : (NamedList) heatmaps.get(spatialField);
+        if (heatmap == null) {
+            return null;
+        }
+
+        int columns = ((Number) heatmap.get("columns")).intValue();
+        int rows = ((Number) heatmap.get("rows")).intValue();
+        HeatmapDTO dto = new HeatmapDTO(((Number) heatmap.get("gridLevel")).intValue(), columns, rows,
+                ((Number) heatmap.get("minX")).doubleValue(), ((Number) heatmap.get("maxX")).doubleValue(),
+                ((Number) heatmap.get("minY")).doubleValue(), ((Number) heatmap.get("maxY")).doubleValue());
+
+        //counts_ints2D is null when there are no counts and a row is null when the row has no counts
+        List<List<Number>> counts = (List<List<Number>>) heatmap.get("counts_ints2D");
+        if (counts != null) {
+            for (int row = 0; row < counts.size() && row < rows; row++) {
+                List<Number> rowCounts = counts.get(row);
+                if (rowCounts != null) {
+                    for (int column = 0; column < rowCounts.size() && column < columns; column++) {
+                        dto.setCount(column, row, rowCounts.get(column).intValue());
+                    }
+                }
+            }
+        }
+
+        return dto;
+    }
+
     /**
      * @see au.org.ala.biocache.dao.SearchDAO#getOccurrences(au.org.ala.biocache.dto.SpatialSearchRequestParams, au.org.ala.biocache.dto.PointType, String)
      */
@@ -2684,6 +2899,12 @@ public class SearchDAOImpl implements SearchDAO {
      */
     private QueryResponse runSolrQuery(SolrQuery solrQuery, String filterQuery[], Integer pageSize,
                                        Integer startIndex, String sortField, String sortDirection) throws SolrServerException {
+        return runSolrQuery(solrQuery, filterQuery, pageSize, startIndex, sortField, sortDirection, null);
+    }
+
+    private QueryResponse runSolrQuery(SolrQuery solrQuery, String filterQuery[], Integer pageSize,
+                                       Integer startIndex, String sortField, String sortDirection,
+                                       ResponseParser responseParser) throws SolrServerException {
         SearchRequestParams requestParams = new SearchRequestParams();
         requestParams.setFq(filterQuery);
         requestParams.setFormattedFq(filterQuery);
@@ -2691,7 +2912,7 @@ public class SearchDAOImpl implements SearchDAO {
         requestParams.setStart(startIndex);
         requestParams.setSort(sortField);
         requestParams.setDir(sortDirection);
-        return runSolrQuery(solrQuery, requestParams);
+        return runSolrQuery(solrQuery, requestParams, responseParser);
     }
 
     /**
@@ -2703,6 +2924,19 @@ public class SearchDAOImpl implements SearchDAO {
      * @throws SolrServerException
      */
     private QueryResponse runSolrQuery(SolrQuery solrQuery, SearchRequestParams requestParams) throws SolrServerException {
+        return runSolrQuery(solrQuery, requestParams, null);
+    }
+
+    /**
+     * Perform SOLR query - takes a SolrQuery and search params
+     *
+     * @param solrQuery
+     * @param requestParams
+     * @param responseParser parser for the response, or null to use the SolrClient default.
+     * @return
+     * @throws SolrServerException
+     */
+    private QueryResponse runSolrQuery(SolrQuery solrQuery, SearchRequestParams requestParams, ResponseParser responseParser) throws SolrServerException {
 
         if (requestParams.getFormattedFq() != null) {
             for (String fq : requestParams.getFormattedFq()) {
@@ -2723,7 +2957,7 @@ public class SearchDAOImpl implements SearchDAO {
         if (logger.isDebugEnabled()) {
             logger.debug("Solr query: " + solrQuery.toString());
         }
-        QueryResponse qr = query(solrQuery, queryMethod); // can throw exception
+        QueryResponse qr = query(solrQuery, queryMethod, responseParser); // can throw exception
         if (logger.isDebugEnabled()) {
             logger.debug("qtime:" + qr.getQTime());
             if (qr.getResults() == null) {
@@ -3364,22 +3598,27 @@ public class SearchDAOImpl implements SearchDAO {
 
     /**
      * Returns details about the fields in the index.
+     *
+     * The fields are reloaded when update is true, or when the SOLR index version has changed since they were loaded.
      */
-    @Cacheable(cacheName = "getIndexedFields")
     public Set<IndexFieldDTO> getIndexedFields(boolean update) throws Exception {
         Set<IndexFieldDTO> result = indexFields;
-        if (result.size() == 0 || update) {
+        if (result.size() == 0 || update || indexFieldsVersion != solrIndexVersion) {
             synchronized (solrIndexVersionLock) {
                 result = indexFields;
-                if (result.size() == 0 || update) {
-                    result = getIndexFieldDetails(null);
-                    if (result != null && result.size() > 0) {
+                if (result.size() == 0 || update || indexFieldsVersion != solrIndexVersion) {
+                    Set<IndexFieldDTO> fields = getIndexFieldDetails(null);
+                    if (fields != null && fields.size() > 0) {
                         Map<String, IndexFieldDTO> resultMap = new HashMap<String, IndexFieldDTO>();
-                        for (IndexFieldDTO field : result) {
+                        for (IndexFieldDTO field : fields) {
                             resultMap.put(field.getName(), field);
                         }
+                        result = fields;
                         indexFields = result;
                         indexFieldMap = resultMap;
+                        indexFieldsVersion = solrIndexVersion;
+                    } else if (update) {
+                        result = fields;
                     }
                 }
             }
@@ -3737,8 +3976,20 @@ public class SearchDAOImpl implements SearchDAO {
         return getLegend(searchParams, facetField, cutpoints, false);
     }
 
-    @Cacheable(cacheName = "legendCache")
-    public List<LegendItem> getLegend(SpatialSearchRequestParams searchParams, String facetField, String[] cutpoints, boolean skipI18n) throws Exception {
+    /**
+     * Legend for a facet. The result is cached and must not be modified.
+     */
+    public List<LegendItem> getLegend(final SpatialSearchRequestParams searchParams, final String facetField, final String[] cutpoints, final boolean skipI18n) throws Exception {
+        String key = getCacheKey(searchParams) + "\n" + facetField + "\n" + Arrays.toString(cutpoints) + "\n" + skipI18n;
+        return legendCache.get(getIndexVersion(false), key, new VersionedCache.Loader<List<LegendItem>>() {
+            @Override
+            public List<LegendItem> load() throws Exception {
+                return loadLegend(searchParams, facetField, cutpoints, skipI18n);
+            }
+        });
+    }
+
+    private List<LegendItem> loadLegend(SpatialSearchRequestParams searchParams, String facetField, String[] cutpoints, boolean skipI18n) throws Exception {
         List<LegendItem> legend = new ArrayList<LegendItem>();
 
         queryFormatUtils.formatSearchQuery(searchParams);
@@ -3962,6 +4213,32 @@ public class SearchDAOImpl implements SearchDAO {
         return counts;
     }
 
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#getFacetQueryCounts(au.org.ala.biocache.dto.SpatialSearchRequestParams, java.util.List)
+     */
+    @Override
+    public Map<String, Integer> getFacetQueryCounts(SpatialSearchRequestParams searchParams, List<String> queries) throws Exception {
+        queryFormatUtils.formatSearchQuery(searchParams);
+        SolrQuery solrQuery = new SolrQuery();
+        solrQuery.setRequestHandler("standard");
+        solrQuery.setQuery(searchParams.getFormattedQuery());
+        solrQuery.setRows(0);
+        solrQuery.setFacet(true);
+        for (String query : queries) {
+            solrQuery.addFacetQuery(query);
+        }
+
+        QueryResponse qr = runSolrQuery(solrQuery, searchParams.getFormattedFq(), 0, 0, "", "");
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        Map<String, Integer> facetQueries = qr.getFacetQuery();
+        for (String query : queries) {
+            Integer count = facetQueries == null ? null : facetQueries.get(query);
+            counts.put(query, count == null ? 0 : count);
+        }
+        return counts;
+    }
+
     /**
      * @return the maxEndemicQueryThreads for endemic queries
      */
@@ -4005,6 +4282,19 @@ public class SearchDAOImpl implements SearchDAO {
     }
 
     private QueryResponse query(SolrParams query, SolrRequest.METHOD queryMethod) throws SolrServerException {
+        return query(query, queryMethod, null);
+    }
+
+    /**
+     * Perform SOLR query with retries.
+     *
+     * @param query
+     * @param queryMethod
+     * @param responseParser parser for the response, or null to use the SolrClient default.
+     * @return
+     * @throws SolrServerException
+     */
+    private QueryResponse query(SolrParams query, SolrRequest.METHOD queryMethod, ResponseParser responseParser) throws SolrServerException {
         int retry = 0;
 
         QueryResponse qr = null;
@@ -4018,7 +4308,14 @@ public class SearchDAOImpl implements SearchDAO {
                 // this.queryMethod is not always set by init() before query() is called
                 SolrRequest.METHOD defaultMethod = solrClient instanceof EmbeddedSolrServer ? SolrRequest.METHOD.GET : SolrRequest.METHOD.POST;
 
-                qr = solrClient.query(query, queryMethod == null ? (this.queryMethod == null ? defaultMethod : this.queryMethod) : queryMethod); // can throw exception
+                SolrRequest.METHOD method = queryMethod == null ? (this.queryMethod == null ? defaultMethod : this.queryMethod) : queryMethod;
+                if (responseParser == null) {
+                    qr = solrClient.query(query, method); // can throw exception
+                } else {
+                    QueryRequest request = new QueryRequest(query, method);
+                    request.setResponseParser(responseParser);
+                    qr = request.process(solrClient); // can throw exception
+                }
             } catch (SolrServerException e) {
                 //want to retry IOException and Proxy Error
                 if (retry < maxRetries && (e.getMessage().contains("IOException") || e.getMessage().contains("Proxy Error"))) {
@@ -4130,11 +4427,18 @@ public class SearchDAOImpl implements SearchDAO {
      * Get the SOLR index version. Trigger a background refresh on a timeout.
      * <p>
      * Forcing an updated value will perform a new SOLR query for each request to be run in the foreground.
+     * <p>
+     * Without force this is a volatile read, only the first call and the call that starts a refresh lock.
      *
      * @param force
      * @return
      */
     public Long getIndexVersion(Boolean force) {
+        long refreshed = solrIndexVersionTime;
+        if (!force && refreshed != 0 && refreshed >= System.currentTimeMillis() - solrIndexVersionRefreshTime) {
+            return solrIndexVersion;
+        }
+
         Thread t = null;
         synchronized (solrIndexVersionLock) {
             boolean immediately = solrIndexVersionTime == 0;
@@ -4441,8 +4745,17 @@ public class SearchDAOImpl implements SearchDAO {
     /**
      * @see au.org.ala.biocache.dao.SearchDAO#getColours
      */
-    @Cacheable(cacheName = "getColours")
-    public List<LegendItem> getColours(SpatialSearchRequestParams request, String colourMode) throws Exception {
+    public List<LegendItem> getColours(final SpatialSearchRequestParams request, final String colourMode) throws Exception {
+        String key = getCacheKey(request) + "\n" + colourMode;
+        return coloursCache.get(getIndexVersion(false), key, new VersionedCache.Loader<List<LegendItem>>() {
+            @Override
+            public List<LegendItem> load() throws Exception {
+                return loadColours(request, colourMode);
+            }
+        });
+    }
+
+    private List<LegendItem> loadColours(SpatialSearchRequestParams request, String colourMode) throws Exception {
         List<LegendItem> colours = new ArrayList<LegendItem>();
         if (colourMode.equals("grid")) {
             for (int i = 0; i <= 500; i += 100) {
@@ -4480,6 +4793,8 @@ public class SearchDAOImpl implements SearchDAO {
                 List<LegendItem> legend = getLegend(requestParams, s[0], cutpoints, true);
 
                 if (cutpoints == null) {     //do not sort if cutpoints are provided
+                    //the cached legend is shared
+                    legend = new ArrayList<LegendItem>(legend);
                     java.util.Collections.sort(legend);
                 }
                 int i = 0;
@@ -4507,6 +4822,15 @@ public class SearchDAOImpl implements SearchDAO {
         return colours;
     }
 
+    /**
+     * Cache key of the query in request params. Includes the parameters used to build the SOLR query.
+     */
+    private String getCacheKey(SpatialSearchRequestParams params) {
+        return params.getQ() + "\n" + params.getQId() + "\n" + params.getQc() + "\n" + Arrays.toString(params.getFq())
+                + "\n" + params.getFormattedQuery() + "\n" + params.getWkt()
+                + "\n" + params.getLat() + "\n" + params.getLon() + "\n" + params.getRadius();
+    }
+
     /**
      * Get bounding box for a query.
      *
@@ -4522,6 +4846,17 @@ public class SearchDAOImpl implements SearchDAO {
         //Filter for -180 +180 longitude and -90 +90 latitude to match WMS request bounds.
         String [] bounds = new String[]{"longitude:[-180 TO 180]", "latitude:[-90 TO 90]"};
 
+        //Records are within the WKT envelope, a range filter is cheaper than the spatial filter alone.
+        if (StringUtils.isNotEmpty(requestParams.getWkt())) {
+            WktGeometryCache.WktGeometry g = WktGeometryCache.get(requestParams.getWkt());
+            if (g != null) {
+                Envelope e = g.getEnvelope();
+                bounds = new String[]{
+                        String.format(Locale.ROOT, "longitude:[%f TO %f]", Math.max(-180, e.getMinX() - 0.000001), Math.min(180, e.getMaxX() + 0.000001)),
+                        String.format(Locale.ROOT, "latitude:[%f TO %f]", Math.max(-90, e.getMinY() - 0.000001), Math.min(90, e.getMaxY() + 0.000001))};
+            }
+        }
+
         queryFormatUtils.addFqs(bounds, requestParams);
 
         requestParams.setFq(requestParams.getFq());
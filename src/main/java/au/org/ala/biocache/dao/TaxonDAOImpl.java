@@ -14,15 +14,20 @@
  ***************************************************************************/
 package au.org.ala.biocache.dao;
 
-import org.apache.commons.lang.ArrayUtils;
+import au.org.ala.biocache.util.CacheRegistry;
+import au.org.ala.biocache.util.VersionedCache;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.PivotField;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -40,109 +45,108 @@ public class TaxonDAOImpl implements TaxonDAO {
     @Inject
     private SolrClient solrClient;
 
-    public void extractBySpeciesGroups(String metadataUrl, String q, String[] fq, Writer writer) throws Exception{
-
-        List<FacetField.Count> speciesGroups = extractFacet(q,fq, "species_group");
-        for(FacetField.Count spg: speciesGroups){
-            if (spg.getName() != null) {
-                List<FacetField.Count> orders = extractFacet(q, (String[]) ArrayUtils.add(fq, "species_group:" + spg.getName()), "order");
-                for (FacetField.Count o : orders) {
-                    if (o.getName() != null) {
-                        outputNestedMappableLayerStart("order", o.getName(), writer);
-                        List<FacetField.Count> families = extractFacet(q, (String[]) ArrayUtils.add(fq, "order:" + o.getName()), "family");
-                        for (FacetField.Count f : families) {
-                            if (f.getName() != null) {
-                                outputNestedMappableLayerStart("family", f.getName(), writer);
-                                List<FacetField.Count> genera = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"family:" + f.getName(), "species_group:" + spg.getName()}), "genus");
-                                for (FacetField.Count g : genera) {
-                                    if (g.getName() != null) {
-                                        outputNestedMappableLayerStart("genus", g.getName(), writer);
-                                        List<FacetField.Count> species = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"genus:" + g.getName(), "species_group:" + spg.getName(), "family:" + f.getName()}), "species");
-                                        for (FacetField.Count s : species) {
-                                            if (s.getName() != null) {
-                                                outputLayer(metadataUrl, "species", s.getName(), writer);
-                                            }
-                                        }
-                                        outputNestedLayerEnd(writer);
-                                    }
-                                }
-                                outputNestedLayerEnd(writer);
-                            }
-                        }
-                        outputNestedLayerEnd(writer);
-                    }
-                }
-                outputNestedLayerEnd(writer);
-            }
-        }
+    @Inject
+    private SearchDAO searchDAO;
+
+    @Inject
+    protected CacheRegistry cacheRegistry;
+
+    /**
+     * Number of generated layer hierarchies to cache. Cached hierarchies are replaced when the index version changes.
+     */
+    @Value("${wms.capabilities.cache.size:20}")
+    private int hierarchyCacheSize = 20;
+
+    private VersionedCache<String, String> hierarchyCache;
+
+    static final String[] HIERARCHY_RANKS = {"kingdom", "phylum", "class", "order", "family", "genus", "species"};
+
+    static final String[] SPECIES_GROUP_RANKS = {"species_group", "order", "family", "genus", "species"};
+
+    @PostConstruct
+    public void init() {
+        hierarchyCache = new VersionedCache<String, String>("wmsCapabilities", hierarchyCacheSize);
+        cacheRegistry.register(hierarchyCache);
+    }
+
+    public void extractBySpeciesGroups(String metadataUrl, String q, String[] fq, Writer writer) throws Exception {
+        writer.write(getLayers(metadataUrl, q, fq, SPECIES_GROUP_RANKS));
     }
 
     @Override
     public void extractHierarchy(String metadataUrl, String q, String[] fq, Writer writer) throws Exception {
+        writer.write(getLayers(metadataUrl, q, fq, HIERARCHY_RANKS));
+    }
+
+    /**
+     * Get the nested layers for a hierarchy of ranks from the cache, or build them from a single facet.pivot query.
+     * Concurrent requests for the same layers wait for a single query.
+     *
+     * @param metadataUrl
+     * @param q
+     * @param fq
+     * @param ranks the first rank is an unmappable group, the last rank is the layer
+     * @return layers
+     * @throws Exception
+     */
+    String getLayers(final String metadataUrl, final String q, final String[] fq, final String[] ranks) throws Exception {
+        if (hierarchyCacheSize <= 0) {
+            return buildLayers(metadataUrl, q, fq, ranks);
+        }
+
+        String key = StringUtils.join(ranks, ",") + "|" + metadataUrl + "|" +
+                q + "|" + (fq != null ? StringUtils.join(fq, "|") : "");
+
+        return hierarchyCache.get(searchDAO.getIndexVersion(false), key, new VersionedCache.Loader<String>() {
+            @Override
+            public String load() throws Exception {
+                return buildLayers(metadataUrl, q, fq, ranks);
+            }
+        });
+    }
 
-        List<FacetField.Count> kingdoms = extractFacet(q,fq,"kingdom");
-        for(FacetField.Count k: kingdoms){
-            if (k.getName() != null) {
-                outputNestedLayerStart(k.getName(), writer);
-                List<FacetField.Count> phyla = extractFacet(q, (String[]) ArrayUtils.add(fq, "kingdom:" + k.getName()), "phylum");
-                for (FacetField.Count p : phyla) {
-                    if (p.getName() != null) {
-                        outputNestedMappableLayerStart("phylum", p.getName(), writer);
-                        List<FacetField.Count> classes = extractFacet(q, (String[]) ArrayUtils.add(fq, "phylum:" + p.getName()), "class");
-                        for (FacetField.Count c : classes) {
-                            if (c.getName() != null) {
-                                outputNestedMappableLayerStart("class", c.getName(), writer);
-                                List<FacetField.Count> orders = extractFacet(q, (String[]) ArrayUtils.add(fq, "class:" + c.getName()), "order");
-                                for (FacetField.Count o : orders) {
-                                    if (o.getName() != null) {
-                                        outputNestedMappableLayerStart("order", o.getName(), writer);
-                                        List<FacetField.Count> families = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"order:" + o.getName(), "kingdom:" + k.getName()}), "family");
-                                        for (FacetField.Count f : families) {
-                                            if (f.getName() != null) {
-                                                outputNestedMappableLayerStart("family", f.getName(), writer);
-                                                List<FacetField.Count> genera = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"family:" + f.getName(), "kingdom:" + k.getName()}), "genus");
-                                                for (FacetField.Count g : genera) {
-                                                    if (g.getName() != null) {
-                                                        outputNestedMappableLayerStart("genus", g.getName(), writer);
-                                                        List<FacetField.Count> species = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"genus:" + g.getName(), "kingdom:" + k.getName(), "family:" + f.getName()}), "species");
-                                                        for (FacetField.Count s : species) {
-                                                            if (s.getName() != null) {
-                                                                outputLayer(metadataUrl, "species", s.getName(), writer);
-                                                            }
-                                                        }
-                                                        outputNestedLayerEnd(writer);
-                                                    }
-                                                }
-                                                outputNestedLayerEnd(writer);
-                                            }
-                                        }
-                                        outputNestedLayerEnd(writer);
-                                    }
-                                }
-                                outputNestedLayerEnd(writer);
-                            }
-                        }
-                        outputNestedLayerEnd(writer);
-                    }
+    private String buildLayers(String metadataUrl, String q, String[] fq, String[] ranks) throws Exception {
+        StringWriter out = new StringWriter();
+        List<PivotField> groups = extractPivot(q, fq, ranks);
+        for (PivotField group : groups) {
+            if (group.getValue() != null) {
+                outputNestedLayerStart(group.getValue().toString(), out);
+                outputPivot(metadataUrl, ranks, 1, group.getPivot(), out);
+                outputNestedLayerEnd(out);
+            }
+        }
+        return out.toString();
+    }
+
+    private void outputPivot(String metadataUrl, String[] ranks, int depth, List<PivotField> pivot, Writer out) throws Exception {
+        if (pivot == null) {
+            return;
+        }
+        String rank = ranks[depth];
+        boolean leaf = depth == ranks.length - 1;
+        for (PivotField p : pivot) {
+            if (p.getValue() != null) {
+                if (leaf) {
+                    outputLayer(metadataUrl, rank, p.getValue().toString(), out);
+                } else {
+                    outputNestedMappableLayerStart(rank, p.getValue().toString(), out);
+                    outputPivot(metadataUrl, ranks, depth + 1, p.getPivot(), out);
+                    outputNestedLayerEnd(out);
                 }
-                outputNestedLayerEnd(writer);
             }
         }
     }
 
     void outputNestedMappableLayerStart(String rank, String taxon, Writer out) throws Exception {
         out.write("<Layer queryable=\"1\"><Name>" + rank + ":" + taxon + "</Name><Title>" + taxon + "</Title>");
-        out.flush();
     }
 
     void outputNestedLayerStart(String layerName, Writer out) throws Exception {
         out.write("<Layer><Name>"+layerName + "</Name><Title>"+layerName + "</Title>\n\t");
-        out.flush();
     }
 
     void outputNestedLayerEnd(Writer out) throws Exception {
         out.write("</Layer>");
-        out.flush();
     }
 
     void outputLayer(String metadataUrlRoot, String rank, String taxon, Writer out) throws Exception {
@@ -156,27 +160,26 @@ public class TaxonDAOImpl implements TaxonDAO {
                 " xlink:href=\""+metadataUrlRoot+"?q="+rank+":"+ URLEncoder.encode(taxon,"UTF-8") +"\"/>\n" +
                 "</MetadataURL>"+
                 "</Layer>");
-        out.flush();
     }
 
-    private List<FacetField.Count> extractFacet(String queryString, String[] filterQueries, String facetName) throws Exception {
+    private List<PivotField> extractPivot(String queryString, String[] filterQueries, String[] ranks) throws Exception {
+        String pivot = StringUtils.join(ranks, ",");
         SolrQuery query = new SolrQuery(queryString);
         query.setFacet(true);
-        query.addFacetField(facetName);
+        query.addFacetPivotField(pivot);
         query.setRows(0);
         query.setFacetLimit(200000);
         query.setStart(0);
         query.setFacetMinCount(1);
         query.setFacetSort("index");
-        //query.setFacet
         if(filterQueries != null){
             for(String fq: filterQueries) query.addFilterQuery(fq);
         }
         QueryResponse response = solrClient.query(query);
-        List<FacetField.Count> fc = response.getFacetField(facetName).getValues();
-        if(fc == null){
-            fc = new ArrayList<FacetField.Count>();
+        List<PivotField> pf = response.getFacetPivot() != null ? response.getFacetPivot().get(pivot) : null;
+        if(pf == null){
+            pf = new ArrayList<PivotField>();
         }
-        return fc;
+        return pf;
     }
 }
@@ -0,0 +1,83 @@
+package au.org.ala.biocache.dto;
+
+/**
+ * Grid of occurrence counts from a SOLR facet.heatmap on the spatial field.
+ *
+ * Counts are stored row major with row 0 at maxY (north) and column 0 at minX (west).
+ */
+public class HeatmapDTO {
+
+    private int gridLevel;
+    private int columns;
+    private int rows;
+    private double minX;
+    private double maxX;
+    private double minY;
+    private double maxY;
+    private int[] counts;
+
+    public HeatmapDTO(int gridLevel, int columns, int rows, double minX, double maxX, double minY, double maxY) {
+        this.gridLevel = gridLevel;
+        this.columns = columns;
+        this.rows = rows;
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.counts = new int[columns * rows];
+    }
+
+    public int getCount(int column, int row) {
+        return counts[row * columns + column];
+    }
+
+    public void setCount(int column, int row, int count) {
+        counts[row * columns + column] = count;
+    }
+
+    /**
+     * @return width of a grid cell in decimal degrees
+     */
+    public double getCellWidth() {
+        return (maxX - minX) / columns;
+    }
+
+    /**
+     * @return height of a grid cell in decimal degrees
+     */
+    public double getCellHeight() {
+        return (maxY - minY) / rows;
+    }
+
+    public int getGridLevel() {
+        return gridLevel;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    public int[] getCounts() {
+        return counts;
+    }
+}
@@ -15,7 +15,9 @@
 package au.org.ala.biocache.dto;
 
 /**
- * Group result for a SOLR search
+ * Occurrence counts by lft for a query.
+ *
+ * Counts are stored as prefix sums, so the count of a lft range is two binary searches and a subtraction.
  */
 public class SpeciesCountDTO {
 
@@ -24,9 +26,9 @@ public class SpeciesCountDTO {
      */
     private long[] lft;
     /**
-     * counts for each lft
+     * sums[i] is the sum of the counts of lft[0] to lft[i - 1]. sums.length == lft.length + 1
      */
-    private long[] counts;
+    private long[] sums;
     /**
      * index version for this object
      */
@@ -39,10 +41,16 @@ public class SpeciesCountDTO {
 
     /**
      * Constructor
+     *
+     * @param lft    each unique lft in order
+     * @param counts count for each lft
      */
     public SpeciesCountDTO(long[] lft, long[] counts, long indexVersion) {
         this.lft = lft;
-        this.counts = counts;
+        this.sums = new long[counts.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            sums[i + 1] = sums[i] + counts[i];
+        }
         this.indexVersion = indexVersion;
     }
 
@@ -52,6 +60,26 @@ public class SpeciesCountDTO {
     public SpeciesCountDTO() {
     }
 
+    /**
+     * Sum of the counts of left <= lft <= right.
+     *
+     * @param left
+     * @param right
+     * @return
+     */
+    public long getCount(long left, long right) {
+        if (lft == null || left > right) {
+            return 0;
+        }
+        int from = java.util.Arrays.binarySearch(lft, left);
+        if (from < 0) {
+            from = -1 * from - 1;
+        }
+        int to = java.util.Arrays.binarySearch(lft, right);
+        to = to < 0 ? -1 * to - 1 : to + 1;
+        return sums[to] - sums[from];
+    }
+
     public long[] getLft() {
         return lft;
     }
@@ -60,12 +88,12 @@ public class SpeciesCountDTO {
         this.lft = lft;
     }
 
-    public long[] getCounts() {
-        return counts;
+    public long[] getSums() {
+        return sums;
     }
 
-    public void setCounts(long[] counts) {
-        this.counts = counts;
+    public void setSums(long[] sums) {
+        this.sums = sums;
     }
 
     public long getIndexVersion() {
@@ -14,29 +14,90 @@
  ***************************************************************************/
 package au.org.ala.biocache.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
- * Group result for a SOLR search
+ * First found image and occurrence count by lft.
  *
+ * Stored as primitive arrays. The data resource uids and image urls are indexes into a pool of unique strings and
+ * the counts are prefix sums, so the count of a lft range is two binary searches and a subtraction.
+ *
+ * This object is not modified after it is built, so it can be read while a new one is built.
  */
 public class SpeciesImagesDTO {
 
     /** each unique lft in order */
-    private long [] lft;
-    /** total count and first image info */
-    private SpeciesImageDTO [] speciesImage;
+    private long[] lft;
+    /** sums[i] is the sum of the counts of lft[0] to lft[i - 1]. sums.length == lft.length + 1 */
+    private long[] sums;
+    /** data_resource_uid of the first image for each lft, index into strings */
+    private int[] dataResourceUid;
+    /** image_url of the first image for each lft, index into strings */
+    private int[] image;
+    /** unique data_resource_uid and image_url values */
+    private String[] strings;
+    /** index version for this object */
+    private long indexVersion;
+    /** time this object was built */
+    private long age = System.currentTimeMillis();
 
     /**
-     * Constructor
+     * Default constructor
      */
-    public SpeciesImagesDTO(long[] lft, SpeciesImageDTO [] speciesImage) {
-        this.lft = lft;
-        this.speciesImage = speciesImage;
+    public SpeciesImagesDTO() {}
+
+    /**
+     * First image and total count of lft >= left and lft < right.
+     *
+     * @param left
+     * @param right
+     * @return null when there are no images
+     */
+    public SpeciesImageDTO get(long left, long right) {
+        if (!isComplete() || left >= right) {
+            return null;
+        }
+        int from = Arrays.binarySearch(lft, left);
+        if (from < 0) {
+            from = -1 * from - 1;
+        }
+        if (from >= lft.length || lft[from] >= right) {
+            return null;
+        }
+        int to = Arrays.binarySearch(lft, from, lft.length, right);
+        if (to < 0) {
+            to = -1 * to - 1;
+        }
+
+        SpeciesImageDTO speciesImage = new SpeciesImageDTO(string(dataResourceUid[from]), string(image[from]));
+        speciesImage.setCount(sums[to] - sums[from]);
+        return speciesImage;
+    }
+
+    private String string(int idx) {
+        return idx < 0 ? null : strings[idx];
     }
 
     /**
-     * Default constructor
+     * @return false when this is empty or was read from an incompatible file
      */
-    public SpeciesImagesDTO() {}
+    @JsonIgnore
+    public boolean isComplete() {
+        return lft != null && sums != null && dataResourceUid != null && image != null && strings != null
+                && sums.length == lft.length + 1 && dataResourceUid.length == lft.length && image.length == lft.length;
+    }
+
+    /**
+     * @return number of lft values
+     */
+    public int size() {
+        return isComplete() ? lft.length : 0;
+    }
 
     public long[] getLft() {
         return lft;
@@ -46,11 +107,141 @@ public class SpeciesImagesDTO {
         this.lft = lft;
     }
 
-    public SpeciesImageDTO[] getSpeciesImage() {
-        return speciesImage;
+    public long[] getSums() {
+        return sums;
+    }
+
+    public void setSums(long[] sums) {
+        this.sums = sums;
+    }
+
+    public int[] getDataResourceUid() {
+        return dataResourceUid;
+    }
+
+    public void setDataResourceUid(int[] dataResourceUid) {
+        this.dataResourceUid = dataResourceUid;
+    }
+
+    public int[] getImage() {
+        return image;
+    }
+
+    public void setImage(int[] image) {
+        this.image = image;
+    }
+
+    public String[] getStrings() {
+        return strings;
+    }
+
+    public void setStrings(String[] strings) {
+        this.strings = strings;
+    }
+
+    public long getIndexVersion() {
+        return indexVersion;
+    }
+
+    public void setIndexVersion(long indexVersion) {
+        this.indexVersion = indexVersion;
     }
 
-    public void setSpeciesImage(SpeciesImageDTO[] speciesImage) {
-        this.speciesImage = speciesImage;
+    public long getAge() {
+        return age;
+    }
+
+    public void setAge(long age) {
+        this.age = age;
+    }
+
+    /**
+     * Builds a SpeciesImagesDTO from lft values in any order. The first image added for a lft is kept and the counts
+     * of a lft are summed.
+     */
+    public static class Builder {
+        private long[] lft = new long[1024];
+        private long[] count = new long[1024];
+        private int[] dataResourceUid = new int[1024];
+        private int[] image = new int[1024];
+        private int size = 0;
+        private final Map<String, Integer> pool = new HashMap<String, Integer>();
+
+        public Builder add(long lft, long count, String dataResourceUid, String image) {
+            if (size == this.lft.length) {
+                int n = size * 2;
+                this.lft = Arrays.copyOf(this.lft, n);
+                this.count = Arrays.copyOf(this.count, n);
+                this.dataResourceUid = Arrays.copyOf(this.dataResourceUid, n);
+                this.image = Arrays.copyOf(this.image, n);
+            }
+            this.lft[size] = lft;
+            this.count[size] = count;
+            this.dataResourceUid[size] = pool(dataResourceUid);
+            this.image[size] = pool(image);
+            size++;
+            return this;
+        }
+
+        private int pool(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer idx = pool.get(value);
+            if (idx == null) {
+                idx = pool.size();
+                pool.put(value, idx);
+            }
+            return idx;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public SpeciesImagesDTO build(long indexVersion) {
+            //order of lft, stable so that the first added image is kept
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(lft[a], lft[b]);
+                }
+            });
+
+            long[] sortedLft = new long[size];
+            long[] sums = new long[size + 1];
+            int[] sortedDataResourceUid = new int[size];
+            int[] sortedImage = new int[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int j = order[i];
+                if (n == 0 || sortedLft[n - 1] != lft[j]) {
+                    sortedLft[n] = lft[j];
+                    sortedDataResourceUid[n] = dataResourceUid[j];
+                    sortedImage[n] = image[j];
+                    sums[n + 1] = sums[n];
+                    n++;
+                }
+                sums[n] += count[j];
+            }
+
+            String[] strings = new String[pool.size()];
+            for (Map.Entry<String, Integer> e : pool.entrySet()) {
+                strings[e.getValue()] = e.getKey();
+            }
+
+            SpeciesImagesDTO speciesImages = new SpeciesImagesDTO();
+            speciesImages.setLft(Arrays.copyOf(sortedLft, n));
+            speciesImages.setSums(Arrays.copyOf(sums, n + 1));
+            speciesImages.setDataResourceUid(Arrays.copyOf(sortedDataResourceUid, n));
+            speciesImages.setImage(Arrays.copyOf(sortedImage, n));
+            speciesImages.setStrings(strings);
+            speciesImages.setIndexVersion(indexVersion);
+            return speciesImages;
+        }
     }
 }
@@ -20,9 +20,13 @@ import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.*;
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
 
@@ -49,11 +53,32 @@ public class HeatMap {
     private LookupTable colorTable;
     private LookupOp colorOp;
 
-    /* bounding box coordinates for the image in decimal degrees. Default to BBOX for Australia */
-    private double minX = 110.911; //112.911; //112.911;
-    private double minY = -44.778; //-50.778; //-54.778;
-    private double maxX = 156.113; //158.113; //159.113;
-    private double maxY = -9.221; //-9.221; //-9.221;
+    /**
+     * Default bounding box for the background image, in decimal degrees minx,miny,maxx,maxy. BBOX for Australia.
+     */
+    public static final double[] DEFAULT_EXTENT = {110.911, -44.778, 156.113, -9.221};
+
+    public static final String EPSG_4326 = "EPSG:4326";
+    public static final String EPSG_3857 = "EPSG:3857";
+
+    //max latitude for EPSG:3857
+    private static final double MAX_MERCATOR_LATITUDE = 85.0511;
+
+    //max width or height of a heatmap
+    public static final int MAX_SIZE = 4096;
+
+    //decoded base images shared by all heatmaps. Copies are drawn on.
+    private static final ConcurrentHashMap<String, BufferedImage> baseImages = new ConcurrentHashMap<String, BufferedImage>();
+
+    /* bounding box coordinates for the image, projected. Default to BBOX for Australia */
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+
+    private int width;
+    private int height;
+    private boolean mercator;
 
 //    public HeatMap(File resourceDirectory) throws Exception {
 //       File bkImage = new File(resourceDirectory, "/images/heatmap_background.png");
@@ -61,36 +86,128 @@ public class HeatMap {
 //       initImages(bkImage, legendImage);
 //    }
 
+    /**
+     * Heatmap for Australia drawn on the default background image.
+     *
+     * @throws Exception
+     */
     public HeatMap() throws Exception {
-        InputStream bkImageInput = HeatMap.class.getResourceAsStream("/images/heatmap_background.png");
-        InputStream legendImageInput = HeatMap.class.getResourceAsStream( "/images/heatmap_legend.png");
-
-//        backgroundImage = ImageIO.read(new File(baseDir.getAbsolutePath() + "/base/heatmap_background.png"));
-//        legendImage = ImageIO.read(new File(baseDir.getAbsolutePath() + "/base/heatmap_legend.png"));
-//        dotImage = ImageIO.read(new File(baseDir.getAbsolutePath() + "/base/bullet_blue.png"));
-        backgroundImage = ImageIO.read(bkImageInput);
-        legendImage = ImageIO.read(legendImageInput);
-//        dotImage = ImageIO.read(dotImageFile);
-
-        int width = backgroundImage.getWidth();
-        int height = backgroundImage.getHeight();
-
-        colorImage = createEvenlyDistributedGradientImage(new Dimension(
-                512, 20), new Color(255, 0, 0), new Color(255, 30, 0),
-                new Color(255, 60, 0), new Color(255, 90, 0),
-                new Color(255, 120, 0), new Color(255, 150, 0),
-                new Color(255, 180, 0), new Color(255, 210, 0),
-                new Color(255, 230, 0), new Color(255, 255, 0),
-                Color.WHITE);
+        this(DEFAULT_EXTENT, -1, -1, EPSG_4326);
+    }
+
+    /**
+     * Heatmap for an extent. The default background image is only used for the default extent and size.
+     *
+     * @param extent minx,miny,maxx,maxy in decimal degrees
+     * @param width  image width in pixels, or -1 for the background image width
+     * @param height image height in pixels, or -1 to match the extent aspect ratio
+     * @param srs    projection of the image, EPSG:4326 or EPSG:3857
+     * @throws Exception
+     */
+    public HeatMap(double[] extent, int width, int height, String srs) throws Exception {
+        BufferedImage background = getBaseImage("/images/heatmap_background.png");
+        legendImage = copyImage(getBaseImage("/images/heatmap_legend.png"));
+
+        mercator = EPSG_3857.equalsIgnoreCase(srs);
+        if (!mercator && srs != null && !EPSG_4326.equalsIgnoreCase(srs)) {
+            throw new IllegalArgumentException("Unsupported heatmap projection: " + srs);
+        }
+
+        minX = projectX(extent[0]);
+        minY = projectY(extent[1]);
+        maxX = projectX(extent[2]);
+        maxY = projectY(extent[3]);
+        if (!(maxX > minX) || !(maxY > minY)) {
+            throw new IllegalArgumentException("Invalid heatmap extent");
+        }
+
+        if (width <= 0) {
+            width = background.getWidth();
+        }
+        if (height <= 0) {
+            height = Arrays.equals(extent, DEFAULT_EXTENT) && !mercator && width == background.getWidth() ?
+                    background.getHeight() : (int) Math.round(width * (maxY - minY) / (maxX - minX));
+        }
+        this.width = Math.max(1, Math.min(MAX_SIZE, width));
+        this.height = Math.max(1, Math.min(MAX_SIZE, height));
+
+        if (Arrays.equals(extent, DEFAULT_EXTENT) && !mercator
+                && this.width == background.getWidth() && this.height == background.getHeight()) {
+            backgroundImage = copyImage(background);
+        } else {
+            backgroundImage = createCompatibleTranslucentImage(this.width, this.height);
+        }
+
+        colorImage = getBaseImage(GRADIENT);
 
         colorTable = createColorLookupTable(colorImage, .5f);
         colorOp = new LookupOp(colorTable, null);
 
-        monochromeImage = createCompatibleTranslucentImage(width, height);
+        monochromeImage = createCompatibleTranslucentImage(this.width, this.height);
 
         Graphics g = monochromeImage.getGraphics();
         g.setColor(Color.WHITE);
-        g.fillRect(0, 0, width, height);
+        g.fillRect(0, 0, this.width, this.height);
+    }
+
+    private static final String GRADIENT = "gradient";
+
+    /**
+     * Get a decoded base image from the classpath, or the colour gradient image.
+     *
+     * The returned image is shared and must not be drawn on.
+     *
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    private static BufferedImage getBaseImage(String name) throws IOException {
+        BufferedImage image = baseImages.get(name);
+        if (image == null) {
+            if (GRADIENT.equals(name)) {
+                image = createEvenlyDistributedGradientImage(new Dimension(
+                        512, 20), new Color(255, 0, 0), new Color(255, 30, 0),
+                        new Color(255, 60, 0), new Color(255, 90, 0),
+                        new Color(255, 120, 0), new Color(255, 150, 0),
+                        new Color(255, 180, 0), new Color(255, 210, 0),
+                        new Color(255, 230, 0), new Color(255, 255, 0),
+                        Color.WHITE);
+            } else {
+                try (InputStream in = HeatMap.class.getResourceAsStream(name)) {
+                    image = ImageIO.read(in);
+                }
+            }
+            baseImages.putIfAbsent(name, image);
+        }
+        return image;
+    }
+
+    private static BufferedImage copyImage(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), TYPE_INT_ARGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    private double projectX(double longitude) {
+        return mercator ? longitude * 20037508.342789244 / 180 : longitude;
+    }
+
+    private double projectY(double latitude) {
+        if (mercator) {
+            latitude = Math.max(-MAX_MERCATOR_LATITUDE, Math.min(MAX_MERCATOR_LATITUDE, latitude));
+            return Math.log(Math.tan((90 + latitude) * Math.PI / 360)) * 20037508.342789244 / Math.PI;
+        }
+        return latitude;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
     }
 
     /**
@@ -170,33 +287,23 @@ public class HeatMap {
     }
 
     /**
-     * Merges the monochrome and color image.
+     * ARGB colour for each of the 256 levels of the log scale, from the colour gradient image.
      *
      * @return
      */
-    private BufferedImage doColorize() {
-
-        //System.out.println("doColorize()");
-        int[] image_bytes = colorImage.getRGB(0, 0, colorImage.getWidth(), colorImage.getHeight(), null, 0, colorImage.getWidth());
-
-        int[] image_bytes2 = monochromeImage.getRGB(0, 0, monochromeImage.getWidth(), monochromeImage.getHeight(), null, 0, monochromeImage.getWidth());
-
-        //System.out.println("imagebytes.1: " + image_bytes.length);
-        //System.out.println("imagebytes.2: " + image_bytes2.length);
-
-        for (int i = 0; i < image_bytes2.length; i++) {
-            //System.out.print(image_bytes2[i] + " --> ");
-            int pos = image_bytes2[i] & 0x000000ff;
-            //System.out.print("at " + pos * 2 + " ==> ");
-            image_bytes2[i] = image_bytes[pos * 2] & 0x99ffffff;
-            //System.out.println(image_bytes2[i]);
+    private int[] createColourLut() {
+        int[] gradient = colorImage.getRGB(0, 0, colorImage.getWidth(), 1, null, 0, colorImage.getWidth());
+
+        int[] lut = new int[256];
+        for (int i = 0; i < lut.length; i++) {
+            int c = gradient[i * 2] & 0x99ffffff;
+            //white is transparent
+            if ((c | 0xFF000000) == 0xFFFFFFFF) {
+                c &= 0x00FFFFFF;
+            }
+            lut[i] = c;
         }
-
-        /* write bytes to image */
-        BufferedImage biColorized = new BufferedImage(monochromeImage.getWidth(), monochromeImage.getHeight(), TYPE_INT_ARGB);
-        biColorized.setRGB(0, 0, biColorized.getWidth(), biColorized.getHeight(), image_bytes2, 0, biColorized.getWidth());
-
-        return biColorized;
+        return lut;
     }
 
     private static Image makeColorTransparent(BufferedImage im, final Color color) {
@@ -244,13 +351,13 @@ public class HeatMap {
         try {
             //System.out.println("translating: " + x + ", " + y);
             // normalize points into range (0 - 1)...
-            x = (x - minX) / (maxX - minX);
-            y = (y - minY) / (maxY - minY);
+            x = (projectX(x) - minX) / (maxX - minX);
+            y = (projectY(y) - minY) / (maxY - minY);
 
             //System.out.println("normalised: " + x + ", " + y);
             // ...and the map into our image size...
-            x = (x * backgroundImage.getWidth());
-            y = ((1 - y) * backgroundImage.getHeight());
+            x = (x * width);
+            y = ((1 - y) * height);
 
             //System.out.println("pixeled: " + x + ", " + y);
             return new Point(new Double(x).intValue(), new Double(y).intValue());
@@ -260,90 +367,42 @@ public class HeatMap {
         return null;
     }
 
-    private void generateLogScaleCircle(int dPoints[][]) {
-        try {
-
-            int maxValue = 0;
-            int width = monochromeImage.getWidth();
-            int height = monochromeImage.getHeight();
-
-            for (int mi = 0; mi < width; mi++) {
-                for (int mj = 0; mj < height; mj++) {
-                    if (maxValue < dPoints[mi][mj]) {
-                        maxValue = dPoints[mi][mj];
-                    }
-                }
-            }
-
-            // we check if the maxValue = 0
-            // 0 tells us that there are no records in the 
-            // current "bounding box"            
-            if (maxValue > 0) {
-                // we are doing "1" here to make sure nothing is 0
-                int roundFactor = 1;
-
-                for (int mi = 0; mi < width; mi++) {
-                    for (int mj = 0; mj < height; mj++) {
-                        int rgba = (int) (255 - Math.log(dPoints[mi][mj]) * 255 / Math.log((double) maxValue));
-                        if (rgba < 255 && rgba > 255 - (255 / numColours) - roundFactor) {
-                            rgba = 255 - (255 / numColours) - roundFactor;
-                        }
-                        //rgba <<= 8;
-                        //
-                        //rgba = (((short)rgba) & 0x000000ff) << 24;
-                        rgba = (rgba) | (rgba << 8) | (rgba << 16) | 0xff000000;
-                        //System.out.println("rgba: " + Integer.toHexString(rgba));
-
-                        monochromeImage.setRGB(mi, mj, rgba);
-                    }
-                }
-
-                generateLegend(maxValue);
-            }
-        } catch (Exception e) {
-            logger.error("Error generating log scale circle: " + e.getMessage(), e);
-        }
-    }
-
     /**
      * Generate classes
      *
-     * @param points
+     * @param points longitude,latitude pairs
+     * @param weights number of occurrences at each point
      */
-    public void generateClasses(double[] points) {
-
-        int width = backgroundImage.getWidth();
-        int height = backgroundImage.getHeight();
-        //System.out.println("bounding box: " + minX + "," + minY + "," + maxX + "," + maxY);
-        //System.out.println("Adding " + (v.length / 2) + " points to base image...");
-        //System.out.println("Adding to base image...");
-        int dPoints[][] = new int[width][height];
-        for (int i = 0; i < points.length; i += 2) {
-            double cx = points[i];
-            double cy = points[i + 1];
+    public void generateClasses(float[] points, int[] weights) {
+
+        int n = points.length / 2;
+        int[] x = new int[n];
+        int[] y = new int[n];
+        for (int i = 0; i < n; i++) {
+            Point p = translate(points[i * 2], points[i * 2 + 1]);
+            x[i] = p.x;
+            y[i] = p.y;
+        }
 
-            Point p = translate(cx, cy);
+        KernelDensity density = new KernelDensity(width, height, radius, numColours);
+        density.add(x, y, weights, n);
 
-            int pradius = radius * radius;
-
-            for (int ci = (int) (p.x - radius); ci <= (p.x + radius); ci++) {
-                for (int cj = (int) (p.y - radius); cj <= (p.y + radius); cj++) {
-                    if (ci >= 0 && ci < width && cj >= 0 && cj < height) {
-                        double d = Math.pow((p.x - ci), 2) + Math.pow((p.y - cj), 2);
-                        if ((int) d <= pradius) {
-                            // applying gradient to this circle so outer influence is low
-                            // and at the peak it's maximum
-                            dPoints[ci][cj] += numColours - ((d * numColours) / pradius);
-                        }
-                    }
-                }
-            }
-        }
+        // we check if the maxValue = 0
+        // 0 tells us that there are no records in the
+        // current "bounding box"
+        if (density.getMax() > 0) {
+            // we are doing "1" here to make sure nothing is 0
+            int roundFactor = 1;
+
+            heatmapImage = new BufferedImage(width, height, TYPE_INT_ARGB);
+            int[] pixels = ((DataBufferInt) heatmapImage.getRaster().getDataBuffer()).getData();
+            density.colourise(createColourLut(), 255 - (255 / numColours) - roundFactor, pixels);
 
-        generateLogScaleCircle(dPoints);
+            generateLegend(density.getMax());
+        }
     }
 
-    public void generatePoints(double[] points, Color pointColour, String label) {
+    public void generatePoints(float[] points, Color pointColour, String label) {
         for (int i = 0; i < points.length; i += 2) {
             double cx = points[i];
             double cy = points[i + 1];
@@ -456,33 +515,31 @@ public class HeatMap {
     }
 
     public void drawLegend(String outfile) {
-        File legOut = new File(outfile);
-        try {
-            ImageIO.write(legendImage, "png", legOut);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile))) {
+            writeLegend(out);
         } catch (Exception e) {
             logger.error("Unable to write legendImage: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Write the legend as PNG.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeLegend(OutputStream out) throws IOException {
+        ImageIO.write(legendImage, "png", out);
+    }
+
     /**
      * Outputs the image to the supplied file path.
      *
      * @param colorize
      */
     public void drawOutput(String outputFilePath, boolean colorize) throws IOException {
-        try {
-            if (colorize) {
-                heatmapImage = doColorize();
-            } else {
-                heatmapImage = monochromeImage;
-            }
-
-            Graphics2D g = (Graphics2D) backgroundImage.getGraphics();
-            g.drawImage(makeColorTransparent(heatmapImage, Color.WHITE), 0, 0, null);
-
-            File hmOut = new File(outputFilePath);
-            ImageIO.write(backgroundImage, "png", hmOut);
-
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFilePath))) {
+            writeOutput(out, colorize);
         } catch (IOException ex) {
             logger.error("An error occurred drawing output to outfile: '"  + outputFilePath
                     + "' Error message: " + ex.getMessage(), ex);
@@ -490,6 +547,28 @@ public class HeatMap {
         }
     }
 
+    /**
+     * Write the heatmap on the background as PNG.
+     *
+     * @param out
+     * @param colorize
+     * @throws IOException
+     */
+    public void writeOutput(OutputStream out, boolean colorize) throws IOException {
+        Graphics2D g = (Graphics2D) backgroundImage.getGraphics();
+        if (colorize) {
+            //colourised heatmap is already transparent where there are no points
+            if (heatmapImage != null) {
+                g.drawImage(heatmapImage, 0, 0, null);
+            }
+        } else {
+            g.drawImage(makeColorTransparent(monochromeImage, Color.WHITE), 0, 0, null);
+        }
+        g.dispose();
+
+        ImageIO.write(backgroundImage, "png", out);
+    }
+
     public void setLegendImage(BufferedImage legendImage) {
         this.legendImage = legendImage;
     }
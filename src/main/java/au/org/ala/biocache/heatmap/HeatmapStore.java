@@ -0,0 +1,297 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.heatmap;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Disk store for generated static heatmap and legend images.
+ *
+ * Images are identified by a content key, e.g. a hash of the normalised query and index version, so they do not
+ * need to be invalidated. Each image is generated once even when requested concurrently, and is written to a
+ * temporary file that is renamed when complete so a partially written image is never read.
+ *
+ * The total size of the images is limited by removing the least recently used images that are not being read or
+ * generated.
+ */
+@Component("heatmapStore")
+public class HeatmapStore {
+
+    private final static Logger logger = Logger.getLogger(HeatmapStore.class);
+
+    static final String TEMP_PREFIX = ".tmp_";
+    static final String LEGEND_PREFIX = "legend_";
+    static final String MAP_SUFFIX = "_hm.png";
+
+    @Value("${heatmap.output.dir:/data/output/heatmap}")
+    protected String heatmapOutputDir;
+
+    /**
+     * Max size in bytes of all stored images. 0 for no limit.
+     */
+    @Value("${heatmap.output.quota:1073741824}")
+    protected long quota = 1073741824L;
+
+    //generation by content key
+    private final ConcurrentHashMap<String, FutureTask<Void>> inProgress = new ConcurrentHashMap<String, FutureTask<Void>>();
+
+    //number of requests reading each file
+    private final ConcurrentHashMap<String, Integer> readers = new ConcurrentHashMap<String, Integer>();
+
+    private final Object quotaLock = new Object();
+
+    /**
+     * Writes images for a key.
+     */
+    public interface Generator {
+        /**
+         * Write the images. Either image may not be written.
+         *
+         * @param mapFile    heatmap image file to write
+         * @param legendFile legend image file to write
+         * @throws Exception
+         */
+        void generate(File mapFile, File legendFile) throws Exception;
+    }
+
+    public HeatmapStore() {
+    }
+
+    public HeatmapStore(String heatmapOutputDir, long quota) {
+        this.heatmapOutputDir = heatmapOutputDir;
+        this.quota = quota;
+    }
+
+    /**
+     * Get the heatmap image for a key, generating it when it is not stored.
+     *
+     * @param key          content key
+     * @param forceRefresh generate the image even when it is stored
+     * @param generator
+     * @return image, or null when the generator did not write it
+     * @throws Exception
+     */
+    public byte[] getMap(String key, boolean forceRefresh, Generator generator) throws Exception {
+        return get(key, getMapName(key), forceRefresh, generator);
+    }
+
+    /**
+     * Get the legend image for a key, generating it when it is not stored.
+     *
+     * @param key          content key
+     * @param forceRefresh generate the image even when it is stored
+     * @param generator
+     * @return image, or null when the generator did not write it
+     * @throws Exception
+     */
+    public byte[] getLegend(String key, boolean forceRefresh, Generator generator) throws Exception {
+        return get(key, getLegendName(key), forceRefresh, generator);
+    }
+
+    String getMapName(String key) {
+        return key + MAP_SUFFIX;
+    }
+
+    String getLegendName(String key) {
+        return LEGEND_PREFIX + key + MAP_SUFFIX;
+    }
+
+    /**
+     * @param name image file name
+     * @return content key of the image
+     */
+    String getKey(String name) {
+        String key = name.startsWith(LEGEND_PREFIX) ? name.substring(LEGEND_PREFIX.length()) : name;
+        return key.endsWith(MAP_SUFFIX) ? key.substring(0, key.length() - MAP_SUFFIX.length()) : key;
+    }
+
+    private byte[] get(final String key, String name, boolean forceRefresh, final Generator generator) throws Exception {
+        final File dir = getOutputDir();
+        File file = new File(dir, name);
+
+        boolean refresh = forceRefresh;
+        while (true) {
+            if (!refresh) {
+                byte[] bytes = read(file);
+                if (bytes != null) {
+                    return bytes;
+                }
+            }
+
+            //one generation for each key, the map and legend are written together
+            FutureTask<Void> task = new FutureTask<Void>(() -> {
+                generate(dir, key, generator);
+                return null;
+            });
+
+            FutureTask<Void> existing = inProgress.putIfAbsent(key, task);
+            if (existing == null) {
+                try {
+                    task.run();
+                    result(task);
+                    //read while the key is in progress so the quota does not remove it first
+                    return read(file);
+                } finally {
+                    inProgress.remove(key, task);
+                }
+            }
+
+            logger.debug("waiting for heatmap generation of " + name);
+            result(existing);
+
+            //use the image written by the other request, or generate it when that request did not write it
+            refresh = false;
+        }
+    }
+
+    private void result(FutureTask<Void> task) throws Exception {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read a stored image. The file is not removed by the quota while it is read.
+     *
+     * @param file
+     * @return image, or null when it is not stored
+     * @throws IOException
+     */
+    private byte[] read(File file) throws IOException {
+        String name = file.getName();
+        readers.compute(name, (k, v) -> v == null ? 1 : v + 1);
+        try {
+            if (!file.isFile()) {
+                return null;
+            }
+            //last modified is the last use
+            file.setLastModified(System.currentTimeMillis());
+            return Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            //removed by the quota
+            return null;
+        } finally {
+            readers.compute(name, (k, v) -> v == null || v <= 1 ? null : v - 1);
+        }
+    }
+
+    private void generate(File dir, String key, Generator generator) throws Exception {
+        File mapTmp = File.createTempFile(TEMP_PREFIX, ".png", dir);
+        File legendTmp = File.createTempFile(TEMP_PREFIX, ".png", dir);
+        try {
+            generator.generate(mapTmp, legendTmp);
+
+            moveIfWritten(mapTmp, new File(dir, getMapName(key)));
+            moveIfWritten(legendTmp, new File(dir, getLegendName(key)));
+        } finally {
+            mapTmp.delete();
+            legendTmp.delete();
+        }
+
+        enforceQuota(dir);
+    }
+
+    private void moveIfWritten(File tmp, File target) throws IOException {
+        if (tmp.length() > 0) {
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Remove the least recently used images until the total size is within the quota. Images that are being read or
+     * generated are not removed.
+     *
+     * @param dir
+     */
+    void enforceQuota(File dir) {
+        if (quota <= 0) {
+            return;
+        }
+
+        synchronized (quotaLock) {
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".png") && !name.startsWith(TEMP_PREFIX));
+            if (files == null) {
+                return;
+            }
+
+            long total = 0;
+            List<File> list = new ArrayList<File>(Arrays.asList(files));
+            for (File f : list) {
+                total += f.length();
+            }
+
+            if (total > quota) {
+                //oldest first
+                list.sort(Comparator.comparingLong(File::lastModified));
+                int removed = 0;
+                for (File f : list) {
+                    if (total <= quota) {
+                        break;
+                    }
+                    if (readers.containsKey(f.getName()) || inProgress.containsKey(getKey(f.getName()))) {
+                        continue;
+                    }
+                    long length = f.length();
+                    if (f.delete()) {
+                        total -= length;
+                        removed++;
+                    }
+                }
+                logger.debug("removed " + removed + " heatmap images, new size " + total);
+            }
+        }
+    }
+
+    private File getOutputDir() throws IOException {
+        File dir = new File(heatmapOutputDir);
+        if (!dir.exists()) {
+            Files.createDirectories(dir.toPath());
+        }
+        return dir;
+    }
+
+    public long getQuota() {
+        return quota;
+    }
+
+    public void setQuota(long quota) {
+        this.quota = quota;
+    }
+}
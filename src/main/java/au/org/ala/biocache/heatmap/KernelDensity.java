@@ -0,0 +1,182 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.heatmap;
+
+import java.util.stream.IntStream;
+
+/**
+ * Weighted kernel density raster for heatmaps.
+ *
+ * Each point adds a precomputed circular kernel stamp, multiplied by the point weight, to an int raster.
+ * The kernel is highest at the point and falls linearly with the squared distance to 0 at the radius.
+ *
+ * Rendering is split into bands of image rows. Each band is rendered by one thread so no raster cell is shared
+ * between threads.
+ */
+public class KernelDensity {
+
+    //min rows in a band
+    static final int MIN_BAND_HEIGHT = 16;
+
+    private final int width;
+    private final int height;
+    private final int radius;
+    private final int[] stamp;
+    private final int[] raster;
+    private int max;
+
+    /**
+     * @param width  raster width in pixels
+     * @param height raster height in pixels
+     * @param radius kernel radius in pixels
+     * @param levels kernel value at the point
+     */
+    public KernelDensity(int width, int height, int radius, int levels) {
+        this.width = width;
+        this.height = height;
+        this.radius = radius;
+        this.raster = new int[width * height];
+        this.stamp = createStamp(radius, levels);
+    }
+
+    /**
+     * Kernel values for a (2 * radius + 1) square, row major.
+     */
+    static int[] createStamp(int radius, int levels) {
+        int size = 2 * radius + 1;
+        int pradius = radius * radius;
+        int[] stamp = new int[size * size];
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                int d = dx * dx + dy * dy;
+                if (d <= pradius) {
+                    // applying gradient to this circle so outer influence is low
+                    // and at the peak it's maximum
+                    stamp[(dy + radius) * size + dx + radius] = (int) (levels - ((double) d * levels) / pradius);
+                }
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Add weighted points.
+     *
+     * @param x       pixel x of each point
+     * @param y       pixel y of each point
+     * @param weights weight of each point, or null for a weight of 1
+     * @param n       number of points
+     */
+    public void add(final int[] x, final int[] y, final int[] weights, final int n) {
+        int bands = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), height / MIN_BAND_HEIGHT));
+        final int bandHeight = (height + bands - 1) / bands;
+
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int y0 = band * bandHeight;
+            int y1 = Math.min(height, y0 + bandHeight);
+            addToBand(x, y, weights, n, y0, y1);
+        });
+
+        max = 0;
+        for (int v : raster) {
+            if (v > max) {
+                max = v;
+            }
+        }
+    }
+
+    private void addToBand(int[] x, int[] y, int[] weights, int n, int y0, int y1) {
+        int size = 2 * radius + 1;
+        for (int i = 0; i < n; i++) {
+            int py = y[i];
+            if (py + radius < y0 || py - radius >= y1) {
+                continue;
+            }
+            int px = x[i];
+            if (px + radius < 0 || px - radius >= width) {
+                continue;
+            }
+            int weight = weights == null ? 1 : weights[i];
+            if (weight <= 0) {
+                continue;
+            }
+
+            int cjStart = Math.max(py - radius, y0);
+            int cjEnd = Math.min(py + radius, y1 - 1);
+            int ciStart = Math.max(px - radius, 0);
+            int ciEnd = Math.min(px + radius, width - 1);
+            for (int cj = cjStart; cj <= cjEnd; cj++) {
+                int stampRow = (cj - py + radius) * size - px + radius;
+                int rasterRow = cj * width;
+                for (int ci = ciStart; ci <= ciEnd; ci++) {
+                    int s = stamp[stampRow + ci];
+                    if (s > 0) {
+                        long v = raster[rasterRow + ci] + (long) s * weight;
+                        raster[rasterRow + ci] = v > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) v;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Colour the raster on a log scale.
+     *
+     * @param lut     ARGB colour for each of 256 levels, 0 is the max value
+     * @param minimum lowest lut level used for non zero values, e.g. 255 - (255 / numColours) - 1
+     * @param target  ARGB pixels of an image with the same width and height. Zero values are transparent.
+     */
+    public void colourise(final int[] lut, final int minimum, final int[] target) {
+        final double logMax = Math.log(max);
+        int bands = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), height / MIN_BAND_HEIGHT));
+        final int bandHeight = (height + bands - 1) / bands;
+
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int start = band * bandHeight * width;
+            int end = Math.min(height, (band + 1) * bandHeight) * width;
+            for (int i = start; i < end; i++) {
+                int v = raster[i];
+                if (v <= 0) {
+                    target[i] = 0;
+                } else {
+                    int level = max <= 1 ? 0 : (int) (255 - Math.log(v) * 255 / logMax);
+                    if (level < 255 && level > minimum) {
+                        level = minimum;
+                    }
+                    target[i] = lut[Math.max(0, Math.min(255, level))];
+                }
+            }
+        });
+    }
+
+    public int[] getRaster() {
+        return raster;
+    }
+
+    /**
+     * @return max raster value after the last add
+     */
+    public int getMax() {
+        return max;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -16,41 +16,59 @@ package au.org.ala.biocache.service;
 
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.*;
-import org.apache.commons.collections.map.LRUMap;
+import au.org.ala.biocache.util.CacheRegistry;
+import au.org.ala.biocache.util.VersionedCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Caches species counts using left/right values and an optional fq term.
  *
+ * Counts are cached by query and index version, so they are loaded again only when the index changes.
+ *
  * Created by Adam Collins on 21/09/15.
  */
 @Component("SpeciesCountsService")
 public class SpeciesCountsService {
 
+    private static final Logger logger = Logger.getLogger(SpeciesCountsService.class);
+
+    //threads loading counts in the background
+    private static final int UPDATE_THREADS = 2;
+
     /**
      * Fulltext search DAO
      */
     @Inject
     protected SearchDAO searchDAO;
 
+    @Inject
+    protected CacheRegistry cacheRegistry;
+
     /**
-     * Refresh cache every 30 minutes.
+     * Load counts in the background. The counts of the previous index version are returned for a query until they
+     * are loaded for the current index version. No counts are returned for a new query until they are loaded.
      */
     @Value("${species.counts.async.updates:false}")
     protected Boolean asyncUpdates;
 
     /**
-     * Refresh cache every 30 minutes.
+     * Max number of queries to cache counts for.
      */
-    @Value("${species.counts.cache.minage:1800000}")
-    protected Long cacheMinAge;
+    @Value("${species.counts.cache.size:100}")
+    protected Integer cacheSize = 100;
 
     /**
      * Permit disabling of cached species counts
@@ -58,189 +76,164 @@ public class SpeciesCountsService {
     @Value("${autocomplete.species.counts.enabled:true}")
     private Boolean enabled;
 
-    //left and left counts by q, fq, qc
-    final Object cacheLock = new Object();
-    LRUMap cache = new LRUMap();
-    final Object updatelock = new Object();
+    //lft counts by normalized q and fqs
+    private VersionedCache<String, SpeciesCountDTO> cache;
 
-    //record of updates in queue
-    final Object updatingLock = new Object();
-    Map<Integer, Boolean> updatingList = new ConcurrentHashMap<Integer, Boolean>();
+    //last loaded counts of any index version, for async updates
+    private Map<String, SpeciesCountDTO> previous;
+
+    //queries with a background load
+    private final Map<String, Boolean> updating = new ConcurrentHashMap<String, Boolean>();
+    private ThreadPoolExecutor updateExecutor;
+
+    @PostConstruct
+    public void init() {
+        cache = new VersionedCache<String, SpeciesCountDTO>("speciesCounts", cacheSize);
+        cacheRegistry.register(cache);
+
+        final int maxPrevious = cacheSize;
+        previous = Collections.synchronizedMap(new LinkedHashMap<String, SpeciesCountDTO>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SpeciesCountDTO> eldest) {
+                return size() > maxPrevious;
+            }
+        });
+
+        //loads are queued rather than run at once, a new index version needs a load for every cached query
+        updateExecutor = new ThreadPoolExecutor(UPDATE_THREADS, UPDATE_THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, cacheSize)),
+                new ThreadFactoryBuilder().setNameFormat("species-counts-%d").setDaemon(true).build());
+        updateExecutor.allowCoreThreadTimeOut(true);
+    }
 
     /**
      * retrieve left + count + index version
      *
-     * @return
+     * @param filterQuery q followed by optional fqs
+     * @return counts, or null when disabled or not available
      */
     public SpeciesCountDTO getCounts(String[] filterQuery) {
         if (!enabled) return null;
 
         //lft counts for the query
-        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
-        StringBuilder fq = new StringBuilder();
+        final SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        final String key;
         if (filterQuery == null || filterQuery.length == 0) {
             params.setQ("*:*");
-            fq.append("*:*");
+            key = "*:*";
         } else {
             params.setQ(filterQuery[0]);
-            fq.append(filterQuery[0]);
-            if (filterQuery.length > 1) {
-                String[] fqs = Arrays.copyOfRange(filterQuery, 1, filterQuery.length);
-                params.setFacets(fqs);
-                for (String s : fqs) {
-                    fq.append(s);
-                }
-            }
+            //fq order does not change the counts
+            String[] fqs = Arrays.copyOfRange(filterQuery, 1, filterQuery.length);
+            Arrays.sort(fqs);
+            params.setFq(fqs);
+            key = filterQuery[0] + "\n" + StringUtils.join(fqs, "\n");
         }
         params.setPageSize(0);
         params.setFacet(true);
         params.setFacets(new String[]{"lft"});
         params.setFlimit(-1);
 
-        //hash code
-        int hashCode = fq.toString().hashCode();
+        final long indexVersion = searchDAO.getIndexVersion(false);
+        final VersionedCache.Loader<SpeciesCountDTO> loader = new VersionedCache.Loader<SpeciesCountDTO>() {
+            @Override
+            public SpeciesCountDTO load() throws Exception {
+                return loadCounts(params, indexVersion);
+            }
+        };
+
+        if (asyncUpdates) {
+            SpeciesCountDTO counts = cache.getIfPresent(indexVersion, key);
+            if (counts != null) {
+                return counts;
+            }
+
+            if (updating.putIfAbsent(key, true) == null) {
+                try {
+                    updateExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                SpeciesCountDTO loaded = cache.get(indexVersion, key, loader);
+                                if (loaded != null) {
+                                    previous.put(key, loaded);
+                                }
+                            } catch (Exception e) {
+                                logger.error("Failed to update species counts for : " + params.toString() + " " + e.getMessage(), e);
+                            } finally {
+                                updating.remove(key);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    //queue is full, try again on a later request
+                    updating.remove(key);
+                }
+            }
 
-        SpeciesCountDTO counts;
-        synchronized (cacheLock) {
-            counts = (SpeciesCountDTO) cache.get(hashCode);
+            //counts of the previous index version until the load is done
+            return previous.get(key);
         }
 
-        //refresh if cache missing and not refreshed recently (cacheMinAge)
-        long indexVersion = searchDAO.getIndexVersion(false);
-        if (counts == null || (cacheMinAge + counts.getAge() < System.currentTimeMillis() && indexVersion != counts.getIndexVersion())) {
-            //old counts that need one update scheduled
-            synchronized (updatingLock) {
-                Boolean updating = updatingList.get(hashCode);
-
-                if (updating == null) {
-                    updatingList.put(hashCode, true);
-
-                    if (asyncUpdates){
-                        Thread updateThread = new UpdateThread(this, hashCode, params);
-                        updateThread.start();
-                    } else {
-                        //run synchronously...
-                        UpdateThread updateThread = new UpdateThread(this, hashCode, params);
-                        updateThread.update();
-                        counts = (SpeciesCountDTO) cache.get(hashCode);
+        try {
+            return cache.get(indexVersion, key, loader);
+        } catch (Exception e) {
+            logger.error("Failed to update species counts for : " + params.toString() + " " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private SpeciesCountDTO loadCounts(SpatialSearchRequestParams params, long indexVersion) throws Exception {
+        logger.debug("updating species counts for query: " + params.toString());
+        SearchResultDTO qr = searchDAO.findByFulltextSpatialQuery(params, null);
+
+        //get lft and count
+        Map<Long, Long> map = new HashMap<Long, Long>();
+        for (FacetResultDTO fr : qr.getFacetResults()) {
+            for (FieldResultDTO r : fr.getFieldResult()) {
+                if (StringUtils.isNotEmpty(r.getLabel())) {
+                    try {
+                        map.put(Long.parseLong(r.getLabel()), r.getCount());
+                    } catch (NumberFormatException e){
+                        //for non numeric
                     }
                 }
             }
         }
 
-        return counts;
+        //sort keys
+        long[] left = new long[map.size()];
+        int i = 0;
+        for (Long key : map.keySet()) {
+            left[i++] = key;
+        }
+        java.util.Arrays.sort(left);
+
+        //get sorted values
+        long[] leftCount = new long[left.length];
+        for (i = 0; i < leftCount.length; i++) {
+            leftCount[i] = map.get(left[i]);
+        }
+
+        return new SpeciesCountDTO(left, leftCount, indexVersion);
     }
 
     public boolean isEnabled() {
         return enabled;
     }
 
+    /**
+     * Sum of the counts of left <= lft <= right.
+     */
     public long getCount(SpeciesCountDTO counts, long left, long right) {
-        if (counts == null || counts.getLft() == null) {
+        if (counts == null) {
             return 0;
         }
-        long[] lft = counts.getLft();
-        long[] count = counts.getCounts();
-
-        int pos = java.util.Arrays.binarySearch(lft, left);
-        if (pos < 0) {
-            pos = -1 * pos - 1;
-        }
-
-        long sum = 0;
-        while (pos < lft.length && lft[pos] <= right) {
-            sum += count[pos++];
-        }
-        return sum;
+        return counts.getCount(left, right);
     }
 
     public void resetCache() {
-        synchronized (cacheLock) {
-            cache.clear();
-        }
+        cache.invalidate();
+        previous.clear();
     }
-
 }
-
-class UpdateThread extends Thread {
-
-    private static final Logger logger = Logger.getLogger(UpdateThread.class);
-
-    SpeciesCountsService speciesCountsService;
-    int hashCode;
-    SpatialSearchRequestParams params;
-
-    public UpdateThread(SpeciesCountsService speciesCountsService, int hashCode, SpatialSearchRequestParams params) {
-        this.speciesCountsService = speciesCountsService;
-        this.hashCode = hashCode;
-        this.params = params;
-    }
-
-    @Override
-    public void run() {
-        update();
-    }
-
-    public void update() {
-        synchronized (speciesCountsService.updatelock) {
-            //check if another has already updated this query
-            synchronized (speciesCountsService.cacheLock) {
-                if (speciesCountsService.cache.get(hashCode) != null) {
-                    //remove this from the update list
-                    synchronized (speciesCountsService.updatingLock) {
-                        speciesCountsService.updatingList.remove(hashCode);
-                    }
-                    return;
-                }
-            }
-
-            //not found, update now
-            try {
-                logger.debug("updating species counts for query: " + params.toString());
-                SearchResultDTO qr = speciesCountsService.searchDAO.findByFulltextSpatialQuery(params, null);
-
-                //get lft and count
-                Map<Long, Long> map = new HashMap<Long, Long>();
-                for (FacetResultDTO fr : qr.getFacetResults()) {
-                    for (FieldResultDTO r : fr.getFieldResult()) {
-                        if (StringUtils.isNotEmpty(r.getLabel())) {
-                            try {
-                                map.put(Long.parseLong(r.getLabel()), r.getCount());
-                            } catch (NumberFormatException e){
-                                //for non numeric
-                            }
-                        }
-                    }
-                }
-
-                //sort keys
-                long[] left = new long[map.size()];
-                List<Long> keys = new ArrayList<Long>(map.keySet());
-                for (int i = 0; i < left.length; i++) {
-                    left[i] = keys.get(i);
-                }
-                java.util.Arrays.sort(left);
-
-                //get sorted values
-                long[] leftCount = new long[map.size()];
-                for (int i = 0; i < leftCount.length; i++) {
-                    leftCount[i] = map.get(left[i]);
-                }
-
-                SpeciesCountDTO counts = new SpeciesCountDTO(left, leftCount, speciesCountsService.searchDAO.getIndexVersion(false));
-
-                //store in map
-                synchronized (speciesCountsService.cacheLock) {
-                    speciesCountsService.cache.put(hashCode, counts);
-                }
-
-            } catch (Exception e) {
-                logger.error("Failed to update species counts for : " + params.toString() + " " + e.getMessage(), e);
-            }
-        }
-        //remove this from the update list
-        synchronized (speciesCountsService.updatingLock) {
-            speciesCountsService.updatingList.remove(hashCode);
-        }
-    }
-}
\ No newline at end of file
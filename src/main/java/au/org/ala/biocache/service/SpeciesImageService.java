@@ -18,30 +18,34 @@ import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.SpatialSearchRequestParams;
 import au.org.ala.biocache.dto.SpeciesImageDTO;
 import au.org.ala.biocache.dto.SpeciesImagesDTO;
+import au.org.ala.biocache.util.CacheRegistry;
+import au.org.ala.biocache.util.CacheStats;
+import au.org.ala.biocache.util.ManagedCache;
 import au.org.ala.biocache.util.SearchUtils;
 import com.fasterxml.jackson.core.type.TypeReference;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * cache of lft with the first found image info; data_resource_uid, image_url and number found.
  *
- * This does not wait for the cache to be built.
+ * The images are rebuilt in the background when the index version changes. Requests use the current images until
+ * the new images are built. On startup the images saved by RestartDataService are used, so startup does not wait
+ * for SOLR.
  *
  * Created by Adam Collins on 21/09/15.
  */
 @Component("SpeciesImageService")
-public class SpeciesImageService {
+public class SpeciesImageService implements ManagedCache {
 
     /** log4 j logger */
     private static final Logger logger = Logger.getLogger(SpeciesImageService.class);
@@ -52,16 +56,42 @@ public class SpeciesImageService {
     @Inject
     protected SearchDAO searchDAO;
 
-    private Object cacheLock = new Object();
-    private SpeciesImagesDTO cache = RestartDataService.get(this, "cache", new TypeReference<SpeciesImagesDTO>(){}, SpeciesImagesDTO.class);
-    private boolean updatingCache = false;
+    @Inject
+    protected CacheRegistry cacheRegistry;
+
+    /**
+     * Permit disabling of cached species images
+     */
+    @Value("${autocomplete.species.images.enabled:true}")
+    private Boolean enabled;
+
+    private final CacheStats stats = new CacheStats();
 
-    Thread updateCacheThread = new CacheThread();
+    //replaced, not modified, when rebuilt
+    private volatile SpeciesImagesDTO cache = RestartDataService.get(this, "cache", new TypeReference<SpeciesImagesDTO>(){}, SpeciesImagesDTO.class);
+    private final AtomicBoolean updatingCache = new AtomicBoolean();
 
     class CacheThread extends Thread {
+        private final boolean force;
+
+        CacheThread(boolean force) {
+            this.force = force;
+            setName("species-images-update");
+            setDaemon(true);
+        }
+
         @Override
         public void run() {
+            long start = System.nanoTime();
             try {
+                Long indexVersion = searchDAO.getIndexVersion(false);
+                SpeciesImagesDTO current = cache;
+                if (!force && current != null && current.isComplete() && indexVersion != null
+                        && indexVersion == current.getIndexVersion()) {
+                    logger.debug("species images are current for index version " + indexVersion);
+                    return;
+                }
+
                 long startTime = System.currentTimeMillis();
                 logger.debug("start refresh");
 
@@ -76,61 +106,72 @@ public class SpeciesImageService {
 
                 QueryResponse qr = searchDAO.searchGroupedFacets(params);
 
-                Map<Long, SpeciesImageDTO> map = new HashMap();
-
+                SpeciesImagesDTO.Builder builder = new SpeciesImagesDTO.Builder();
                 for (SimpleOrderedMap item : SearchUtils.getList(qr.getResponse(), "facets", "lft", "buckets")) {
-                    String dataResourceUid = (String) SearchUtils.getVal(item, "data_resource_uid", "buckets", 0, 0);
-                    String imageUrl = (String) SearchUtils.getVal(item, "image_url", "buckets", 0, 0);
-                    SpeciesImageDTO image = new SpeciesImageDTO(dataResourceUid, imageUrl);
-                    image.setCount((Long) item.getVal(1));
                     try {
-                        map.put((Long) item.getVal(0), image);
+                        String dataResourceUid = (String) SearchUtils.getVal(item, "data_resource_uid", "buckets", 0, 0);
+                        String imageUrl = (String) SearchUtils.getVal(item, "image_url", "buckets", 0, 0);
+                        builder.add(((Number) item.getVal(0)).longValue(), ((Number) item.getVal(1)).longValue(),
+                                dataResourceUid, imageUrl);
                     } catch (Exception e) {
                     }
                 }
 
-                //sort keys
-                long[] left = new long[map.size()];
-                List<Long> keys = new ArrayList<Long>(map.keySet());
-                for (int i = 0; i < left.length; i++) {
-                    left[i] = keys.get(i);
-                }
-                java.util.Arrays.sort(left);
-
-                //get sorted values
-                SpeciesImageDTO[] leftImages = new SpeciesImageDTO[map.size()];
-                for (int i = 0; i < leftImages.length; i++) {
-                    leftImages[i] = map.get(left[i]);
-                }
-
-                SpeciesImagesDTO speciesImages = new SpeciesImagesDTO(left, leftImages);
-
-                //store in map
-                synchronized (cacheLock) {
-                    updatingCache = false;
-                    if (speciesImages.getSpeciesImage().length > 0) {
-                        cache = speciesImages;
-                    }
+                //swap, readers use the previous images until now
+                if (builder.size() > 0) {
+                    cache = builder.build(indexVersion == null ? 0 : indexVersion);
                 }
+                stats.load(System.nanoTime() - start);
 
                 logger.debug("time to refresh SpeciesImageService: " + (System.currentTimeMillis() - startTime) + "ms");
             } catch (Exception e) {
+                stats.loadFailure();
                 logger.error(e.getMessage(), e);
+            } finally {
+                updatingCache.set(false);
             }
         }
     }
 
     @PostConstruct
     public void init() {
-        resetCache();
+        cacheRegistry.register(this);
+        if (enabled) {
+            update(false);
+        }
     }
 
+    /**
+     * Rebuild the images when the index version has changed.
+     */
+    @Scheduled(fixedDelayString = "${autocomplete.species.images.check.interval:300000}")
+    public void checkIndexVersion() {
+        if (!enabled) {
+            return;
+        }
+
+        Long indexVersion = searchDAO.getIndexVersion(false);
+        SpeciesImagesDTO current = cache;
+        if (current == null || !current.isComplete() || (indexVersion != null && indexVersion != current.getIndexVersion())) {
+            update(false);
+        }
+    }
 
     /**
-     * Permit disabling of cached species images
+     * Start a rebuild in the background unless one is running.
+     *
+     * @param force rebuild when the images are for the current index version
      */
-    @Value("${autocomplete.species.images.enabled:true}")
-    private Boolean enabled;
+    private void update(boolean force) {
+        if (updatingCache.compareAndSet(false, true)) {
+            try {
+                new CacheThread(force).start();
+            } catch (Throwable e) {
+                updatingCache.set(false);
+                logger.error("failed to start species images update", e);
+            }
+        }
+    }
 
     /**
      * retrieve left + count + index version
@@ -140,56 +181,56 @@ public class SpeciesImageService {
     public SpeciesImagesDTO getSpeciesImages() {
         if (!enabled) return null;
 
-        if (cache.getSpeciesImage() == null) {
-            synchronized (cacheLock) {
-                if (!updatingCache && cache == null) {
-                    updatingCache = true;
-                    updateCacheThread.start();
-                }
-            }
-        }
         return cache;
     }
 
     public SpeciesImageDTO get(long left, long right) {
         SpeciesImagesDTO speciesImages = getSpeciesImages();
-        if (speciesImages == null || speciesImages.getLft() == null) {
-            return null;
-        }
-        long[] lft = speciesImages.getLft();
-        SpeciesImageDTO[] images = speciesImages.getSpeciesImage();
+        SpeciesImageDTO ret = speciesImages == null ? null : speciesImages.get(left, right);
 
-        int pos = java.util.Arrays.binarySearch(lft, left);
-        if (pos < 0) {
-            pos = -1 * pos - 1;
+        if (ret != null) {
+            stats.hit();
+        } else {
+            stats.miss();
         }
 
-        //get the first image
-        SpeciesImageDTO ret = null;
-        if (pos < lft.length && lft[pos] < right) {
-            ret = new SpeciesImageDTO(images[pos].getDataResourceUid(), images[pos].getImage());
-        }
+        return ret;
+    }
 
-        long sum = 0;
-        while (pos < lft.length && lft[pos] < right) {
-            sum += images[pos++].getCount();
-        }
+    /**
+     * Rebuild the images. The current images are used until the rebuild is finished.
+     */
+    public void resetCache() {
+        update(true);
+    }
 
-        if (ret != null && sum > 0) {
-            ret.setCount(sum);
-        }
+    @Override
+    public String getName() {
+        return "speciesImages";
+    }
 
-        return ret;
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> map = stats.toMap();
+        SpeciesImagesDTO images = cache;
+        map.put("size", images == null ? 0 : images.size());
+        map.put("strings", images == null || images.getStrings() == null ? 0 : images.getStrings().length);
+        map.put("indexVersion", images == null ? 0 : images.getIndexVersion());
+        map.put("updating", updatingCache.get());
+        map.put("age", images != null && images.isComplete() ? System.currentTimeMillis() - images.getAge() : -1);
+        return map;
     }
 
-    public void resetCache() {
-        synchronized (cacheLock) {
-            if (!updatingCache) {
-                updatingCache = true;
-                updateCacheThread = new CacheThread();
-                updateCacheThread.start();
-            }
-        }
+    /**
+     * Rebuild the images. The current images are used until the rebuild is finished.
+     */
+    @Override
+    public void invalidate() {
+        resetCache();
     }
 
+    @Override
+    public boolean resize(long maxSize) {
+        return false;
+    }
 }
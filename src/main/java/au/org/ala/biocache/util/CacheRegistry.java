@@ -0,0 +1,220 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Statistics;
+import org.apache.log4j.Logger;
+import org.springframework.cache.ehcache.EhCacheManagerFactoryBean;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of caches for metrics and runtime control, see /admin/cache.
+ *
+ * The ehcache regions in ehcache.xml are registered on startup. Other caches register themselves.
+ */
+@Component("cacheRegistry")
+public class CacheRegistry {
+
+    private final static Logger logger = Logger.getLogger(CacheRegistry.class);
+
+    @Inject
+    protected EhCacheManagerFactoryBean cacheManager;
+
+    private final Map<String, ManagedCache> caches = new ConcurrentSkipListMap<String, ManagedCache>();
+
+    @PostConstruct
+    public void init() {
+        CacheManager manager = cacheManager.getObject();
+        if (manager != null) {
+            for (String name : manager.getCacheNames()) {
+                register(new EhcacheManagedCache(manager.getEhcache(name)));
+            }
+        }
+
+        register(new ManagedCache() {
+            @Override
+            public String getName() {
+                return "wktGeometryCache";
+            }
+
+            @Override
+            public Map<String, Object> getStats() {
+                return WktGeometryCache.getStats();
+            }
+
+            @Override
+            public void invalidate() {
+                WktGeometryCache.clear();
+            }
+
+            @Override
+            public boolean resize(long maxSize) {
+                WktGeometryCache.setMaxSize(maxSize);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Add a cache. A cache with the same name is replaced.
+     *
+     * @param cache
+     */
+    public void register(ManagedCache cache) {
+        if (caches.put(cache.getName(), cache) != null) {
+            logger.warn("replaced registered cache: " + cache.getName());
+        }
+    }
+
+    /**
+     * @param name
+     * @return the cache, or null
+     */
+    public ManagedCache get(String name) {
+        return caches.get(name);
+    }
+
+    public Set<String> getNames() {
+        return caches.keySet();
+    }
+
+    /**
+     * @return stats by cache name
+     */
+    public Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<String, Map<String, Object>>();
+        for (ManagedCache cache : caches.values()) {
+            try {
+                stats.put(cache.getName(), cache.getStats());
+            } catch (Exception e) {
+                logger.error("failed to get stats for cache: " + cache.getName(), e);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Numeric stats of all caches in the Prometheus text format.
+     *
+     * e.g. biocache_cache_hits{cache="WMSCache"} 10
+     *
+     * @return
+     */
+    public String getMetrics() {
+        Map<String, StringBuilder> metrics = new LinkedHashMap<String, StringBuilder>();
+        for (Map.Entry<String, Map<String, Object>> cache : getStats().entrySet()) {
+            for (Map.Entry<String, Object> stat : cache.getValue().entrySet()) {
+                if (stat.getValue() instanceof Number) {
+                    String metric = "biocache_cache_" + stat.getKey().replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase();
+                    StringBuilder sb = metrics.get(metric);
+                    if (sb == null) {
+                        sb = new StringBuilder("# TYPE ").append(metric).append(" gauge\n");
+                        metrics.put(metric, sb);
+                    }
+                    sb.append(metric).append("{cache=\"").append(cache.getKey()).append("\"} ")
+                            .append(stat.getValue()).append('\n');
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (StringBuilder metric : metrics.values()) {
+            sb.append(metric);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param name
+     * @return false when there is no cache with this name
+     */
+    public boolean invalidate(String name) {
+        ManagedCache cache = caches.get(name);
+        if (cache == null) {
+            return false;
+        }
+        logger.info("invalidating cache: " + name);
+        cache.invalidate();
+        return true;
+    }
+
+    /**
+     * @param name
+     * @param maxSize
+     * @return false when there is no cache with this name or it cannot be resized
+     */
+    public boolean resize(String name, long maxSize) {
+        ManagedCache cache = caches.get(name);
+        if (cache == null) {
+            return false;
+        }
+        logger.info("resizing cache: " + name + " to " + maxSize);
+        return cache.resize(maxSize);
+    }
+
+    /**
+     * An ehcache region. maxSize is the max number of elements in memory.
+     */
+    static class EhcacheManagedCache implements ManagedCache {
+        private final Ehcache cache;
+
+        EhcacheManagedCache(Ehcache cache) {
+            this.cache = cache;
+            cache.setStatisticsEnabled(true);
+        }
+
+        @Override
+        public String getName() {
+            return cache.getName();
+        }
+
+        @Override
+        public Map<String, Object> getStats() {
+            Statistics s = cache.getStatistics();
+            long hits = s.getCacheHits();
+            long misses = s.getCacheMisses();
+            Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("type", "ehcache");
+            stats.put("size", cache.getSize());
+            stats.put("maxSize", cache.getCacheConfiguration().getMaxElementsInMemory());
+            stats.put("hits", hits);
+            stats.put("misses", misses);
+            stats.put("hitRate", hits + misses > 0 ? hits / (double) (hits + misses) : 0);
+            stats.put("meanGetMs", s.getAverageGetTime());
+            stats.put("evictions", s.getEvictionCount());
+            stats.put("timeToLiveSeconds", cache.getCacheConfiguration().getTimeToLiveSeconds());
+            return stats;
+        }
+
+        @Override
+        public void invalidate() {
+            cache.removeAll();
+        }
+
+        @Override
+        public boolean resize(long maxSize) {
+            cache.getCacheConfiguration().setMaxElementsInMemory((int) Math.min(Integer.MAX_VALUE, maxSize));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit, miss, load and eviction counters for a cache.
+ */
+public class CacheStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder loadTime = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public void hit() {
+        hits.increment();
+    }
+
+    public void miss() {
+        misses.increment();
+    }
+
+    /**
+     * @param nanos time taken to load a value
+     */
+    public void load(long nanos) {
+        loads.increment();
+        loadTime.add(nanos);
+    }
+
+    public void loadFailure() {
+        loadFailures.increment();
+    }
+
+    public void eviction() {
+        evictions.increment();
+    }
+
+    /**
+     * @return counters, with hitRate and meanLoadMs
+     */
+    public Map<String, Object> toMap() {
+        long h = hits.sum();
+        long m = misses.sum();
+        long l = loads.sum();
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRate", h + m > 0 ? h / (double) (h + m) : 0);
+        stats.put("loads", l);
+        stats.put("loadFailures", loadFailures.sum());
+        stats.put("meanLoadMs", l > 0 ? loadTime.sum() / l / 1000000.0 : 0);
+        stats.put("evictions", evictions.sum());
+        return stats;
+    }
+}
@@ -27,6 +27,7 @@ import javax.inject.Inject;
 import java.lang.reflect.Field;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides access to the collection and institution codes and names from the Collectory.
@@ -38,7 +39,7 @@ import java.util.List;
  * @author "Nick dos Remedios <Nick.dosRemedios@csiro.au>"
  */
 @Component("collectionsCache")
-public class CollectionsCache {
+public class CollectionsCache implements ManagedCache {
 
     protected LinkedHashMap<String, String> dataResources = RestartDataService.get(this, "dataResources", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
     protected LinkedHashMap<String, String> dataProviders = RestartDataService.get(this, "dataProviders", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
@@ -65,8 +66,13 @@ public class CollectionsCache {
     /** Spring injected RestTemplate object */
     @Inject
     private RestOperations restTemplate; // NB MappingJacksonHttpMessageConverter() injected by Spring
+    @Inject
+    protected CacheRegistry cacheRegistry;
     /** Log4J logger */
     private final static Logger logger = Logger.getLogger(CollectionsCache.class);  
+
+    private final CacheStats stats = new CacheStats();
+    private volatile long cacheTime = 0;
     
     /**
      * Get the institutions
@@ -104,6 +110,7 @@ public class CollectionsCache {
 
     @PostConstruct
     public void init() {
+        cacheRegistry.register(this);
         updateCache();
     }
 
@@ -113,7 +120,13 @@ public class CollectionsCache {
      * @return
      */
     public String getNameForCode(String code){
-        return combinedLookup.get(code);
+        String name = combinedLookup.get(code);
+        if (name != null) {
+            stats.hit();
+        } else {
+            stats.miss();
+        }
+        return name;
     }
 
     /**
@@ -126,6 +139,7 @@ public class CollectionsCache {
             public void run() {
                 if(enabled){
                     logger.info("Updating collectory cache...");
+                    long start = System.nanoTime();
                     LinkedHashMap m;
                     combinedLookup = new LinkedHashMap<String,String>();
 
@@ -148,6 +162,9 @@ public class CollectionsCache {
                     if (m != null && m.size() > 0) dataHubs = m; combinedLookup.putAll(m);
 
                     dataResources.putAll(tempDataResources);
+
+                    stats.load(System.nanoTime() - start);
+                    cacheTime = System.currentTimeMillis();
                 } else{
                     logger.info("Collectory cache has been disabled");
                 }
@@ -163,6 +180,37 @@ public class CollectionsCache {
         }
     }
     
+    @Override
+    public String getName() {
+        return "collectionsCache";
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> map = stats.toMap();
+        map.put("size", combinedLookup.size());
+        map.put("collections", collections.size());
+        map.put("institutions", institutions.size());
+        map.put("dataResources", dataResources.size());
+        map.put("dataProviders", dataProviders.size());
+        map.put("dataHubs", dataHubs.size());
+        map.put("age", cacheTime > 0 ? System.currentTimeMillis() - cacheTime : -1);
+        return map;
+    }
+
+    /**
+     * Reload from the registry. The current values are used until the reload is finished.
+     */
+    @Override
+    public void invalidate() {
+        updateCache();
+    }
+
+    @Override
+    public boolean resize(long maxSize) {
+        return false;
+    }
+
     /**
      * Do the web services call. Uses RestTemplate.
      *
@@ -0,0 +1,46 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.Map;
+
+/**
+ * A cache registered with the CacheRegistry.
+ */
+public interface ManagedCache {
+
+    /**
+     * @return unique name of the cache
+     */
+    String getName();
+
+    /**
+     * @return metrics, e.g. hits, misses, size and evictions
+     */
+    Map<String, Object> getStats();
+
+    /**
+     * Remove all cached values.
+     */
+    void invalidate();
+
+    /**
+     * Change the max size of the cache. The unit of size is that of the cache, e.g. bytes or entries.
+     *
+     * @param maxSize
+     * @return false when the cache cannot be resized
+     */
+    boolean resize(long maxSize);
+}
@@ -0,0 +1,318 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Size bounded local store of byte arrays, by key.
+ *
+ * Values are appended to memory mapped segment files in a directory. An in memory index holds the segment and
+ * offset of the latest value of each key. When the total size of the segments exceeds the max size the oldest
+ * segment is deleted, so the oldest values are removed first. The index is rebuilt from the segments on open.
+ *
+ * A deleted segment is unmapped immediately, when the JVM allows it, so its memory and disk space are released
+ * without waiting for garbage collection. Reads hold a read lock so that a segment is not unmapped while it is read.
+ *
+ * Record format: int record length, int key length, key (UTF-8), value, int CRC32 of the key and value.
+ */
+public class MappedLogStore {
+
+    private final static Logger logger = Logger.getLogger(MappedLogStore.class);
+
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8;
+    private static final int TRAILER = 4;
+
+    private final File dir;
+    private final long maxSize;
+    private final int segmentSize;
+
+    //segment id << 32 | offset
+    private final Map<String, Long> index = new ConcurrentHashMap<String, Long>();
+    private final Map<Integer, MappedByteBuffer> segments = new ConcurrentHashMap<Integer, MappedByteBuffer>();
+    private final List<Integer> segmentIds = new ArrayList<Integer>();
+
+    //write locked to unmap a removed segment
+    private final ReadWriteLock unmapLock = new ReentrantReadWriteLock();
+
+    private MappedByteBuffer current;
+    private int currentId;
+
+    /**
+     * @param dir         directory of the segment files
+     * @param maxSize     max total size of the segments in bytes
+     * @param segmentSize size of each segment in bytes, also the max record size
+     * @throws IOException
+     */
+    public MappedLogStore(File dir, long maxSize, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = Math.max(maxSize, segmentSize);
+        this.segmentSize = segmentSize;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir.getPath());
+        }
+        open();
+    }
+
+    /**
+     * Append a value, replacing any value of the key.
+     *
+     * @param key
+     * @param value
+     * @return false when the record is larger than a segment
+     */
+    public synchronized boolean put(String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + keyBytes.length + value.length + TRAILER;
+        if (length > segmentSize) {
+            return false;
+        }
+
+        if (current.remaining() < length) {
+            roll();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(value);
+
+        int offset = current.position();
+        current.putInt(length);
+        current.putInt(keyBytes.length);
+        current.put(keyBytes);
+        current.put(value);
+        current.putInt((int) crc.getValue());
+
+        index.put(key, ((long) currentId << 32) | offset);
+        return true;
+    }
+
+    /**
+     * @param key
+     * @return the value or null
+     */
+    public byte[] get(String key) {
+        Long location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        unmapLock.readLock().lock();
+        try {
+            MappedByteBuffer segment = segments.get((int) (location >>> 32));
+            if (segment == null) {
+                //segment was removed
+                return null;
+            }
+
+            ByteBuffer buffer = segment.duplicate();
+            buffer.position((int) (long) location);
+            int length = buffer.getInt();
+            int keyLength = buffer.getInt();
+            buffer.position(buffer.position() + keyLength);
+            byte[] value = new byte[length - HEADER - keyLength - TRAILER];
+            buffer.get(value);
+            return value;
+        } finally {
+            unmapLock.readLock().unlock();
+        }
+    }
+
+    public void remove(String key) {
+        index.remove(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return total size of the segments in bytes
+     */
+    public synchronized long getSize() {
+        return (long) segmentIds.size() * segmentSize;
+    }
+
+    private void open() throws IOException {
+        File[] files = dir.listFiles();
+        List<Integer> ids = new ArrayList<Integer>();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        //not a segment
+                    }
+                }
+            }
+        }
+        Integer[] sorted = ids.toArray(new Integer[0]);
+        Arrays.sort(sorted);
+
+        for (Integer id : sorted) {
+            MappedByteBuffer segment = map(id);
+            segmentIds.add(id);
+            segments.put(id, segment);
+            currentId = id;
+            current = segment;
+            current.position(scan(id, segment));
+        }
+
+        if (current == null) {
+            roll();
+        } else {
+            removeOldest();
+        }
+        logger.info("opened " + dir.getPath() + " with " + index.size() + " values in " + segmentIds.size() + " segments");
+    }
+
+    /**
+     * Add the valid records of a segment to the index.
+     *
+     * @return the end of the valid records
+     */
+    private int scan(int id, MappedByteBuffer segment) {
+        ByteBuffer buffer = segment.duplicate();
+        int offset = 0;
+        while (offset + HEADER + TRAILER <= segmentSize) {
+            buffer.position(offset);
+            int length = buffer.getInt();
+            int keyLength = buffer.getInt();
+            if (length < HEADER + TRAILER || offset + length > segmentSize || keyLength < 0
+                    || keyLength > length - HEADER - TRAILER) {
+                break;
+            }
+
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            byte[] value = new byte[length - HEADER - keyLength - TRAILER];
+            buffer.get(value);
+            CRC32 crc = new CRC32();
+            crc.update(keyBytes);
+            crc.update(value);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            index.put(new String(keyBytes, StandardCharsets.UTF_8), ((long) id << 32) | offset);
+            offset += length;
+        }
+        return offset;
+    }
+
+    private MappedByteBuffer map(int id) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(dir, id + SUFFIX), "rw");
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            //the mapping remains valid after the file is closed
+            file.close();
+        }
+    }
+
+    private void roll() throws IOException {
+        int id = segmentIds.isEmpty() ? 0 : currentId + 1;
+        current = map(id);
+        currentId = id;
+        segmentIds.add(id);
+        segments.put(id, current);
+        removeOldest();
+    }
+
+    private void removeOldest() {
+        while ((long) segmentIds.size() * segmentSize > maxSize && segmentIds.size() > 1) {
+            int id = segmentIds.remove(0);
+            MappedByteBuffer segment = segments.remove(id);
+
+            Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+            while (it.hasNext()) {
+                if ((int) (it.next().getValue() >>> 32) == id) {
+                    it.remove();
+                }
+            }
+
+            //no read can start on the removed segment, wait for the current reads to finish
+            unmapLock.writeLock().lock();
+            try {
+                unmap(segment);
+            } finally {
+                unmapLock.writeLock().unlock();
+            }
+
+            if (!new File(dir, id + SUFFIX).delete()) {
+                logger.warn("failed to delete " + id + SUFFIX + " in " + dir.getPath());
+            }
+        }
+    }
+
+    /**
+     * Release a mapping without waiting for garbage collection. There is no public API for this, the cleaner is
+     * found by reflection: Unsafe.invokeCleaner on Java 9+ and DirectByteBuffer.cleaner() on Java 8. When neither
+     * is available the mapping is released by garbage collection.
+     *
+     * @param buffer a mapping that is no longer used
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+
+            if (invokeCleaner != null) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("cannot unmap a removed segment, it is released by garbage collection", e);
+        }
+    }
+}
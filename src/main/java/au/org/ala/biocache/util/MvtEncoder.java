@@ -0,0 +1,309 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encodes point features into a single layer Mapbox Vector Tile (specification version 2.1).
+ *
+ * Only the subset of the specification needed for occurrence points is supported, which allows the protobuf
+ * wire format to be written directly without a protobuf dependency.
+ *
+ * Usage: look up key and value indexes once with {@link #key(String)} and {@link #value(Object)}, add points
+ * in tile coordinates with {@link #addPoint(int, int, int...)} and finish with {@link #encode()}.
+ */
+public class MvtEncoder {
+
+    public static final String CONTENT_TYPE = "application/vnd.mapbox-vector-tile";
+
+    public static final int DEFAULT_EXTENT = 4096;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    // Tile.layers
+    private static final int TILE_LAYERS = 3;
+
+    // Tile.Layer fields
+    private static final int LAYER_NAME = 1;
+    private static final int LAYER_FEATURES = 2;
+    private static final int LAYER_KEYS = 3;
+    private static final int LAYER_VALUES = 4;
+    private static final int LAYER_EXTENT = 5;
+    private static final int LAYER_VERSION = 15;
+
+    // Tile.Feature fields
+    private static final int FEATURE_ID = 1;
+    private static final int FEATURE_TAGS = 2;
+    private static final int FEATURE_TYPE = 3;
+    private static final int FEATURE_GEOMETRY = 4;
+
+    // Tile.Value fields
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_FLOAT = 2;
+    private static final int VALUE_DOUBLE = 3;
+    private static final int VALUE_UINT = 5;
+    private static final int VALUE_SINT = 6;
+    private static final int VALUE_BOOL = 7;
+
+    private static final int GEOM_TYPE_POINT = 1;
+    private static final int CMD_MOVE_TO_ONE = (1 & 0x7) | (1 << 3);
+
+    private final String layerName;
+    private final int extent;
+
+    private final Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+    private final Map<Object, Integer> values = new LinkedHashMap<Object, Integer>();
+
+    private final Buffer features = new Buffer(4096);
+    private final Buffer feature = new Buffer(64);
+    private final Buffer packed = new Buffer(32);
+
+    private int featureCount = 0;
+
+    public MvtEncoder(String layerName, int extent) {
+        this.layerName = layerName;
+        this.extent = extent;
+    }
+
+    public int getExtent() {
+        return extent;
+    }
+
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * Get the index of an attribute key, adding it to the layer key table if required.
+     *
+     * @param key attribute name
+     * @return key index for use with {@link #addPoint(int, int, int...)}
+     */
+    public int key(String key) {
+        Integer idx = keys.get(key);
+        if (idx == null) {
+            idx = keys.size();
+            keys.put(key, idx);
+        }
+        return idx;
+    }
+
+    /**
+     * Get the index of an attribute value, adding it to the layer value table if required.
+     *
+     * @param value String, Integer, Long, Float, Double or Boolean
+     * @return value index for use with {@link #addPoint(int, int, int...)}
+     */
+    public int value(Object value) {
+        if (!(value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Double || value instanceof Boolean)) {
+            throw new IllegalArgumentException("Unsupported vector tile value type: " +
+                    (value == null ? "null" : value.getClass().getName()));
+        }
+        Integer idx = values.get(value);
+        if (idx == null) {
+            idx = values.size();
+            values.put(value, idx);
+        }
+        return idx;
+    }
+
+    /**
+     * Add a point feature.
+     *
+     * @param x    tile x coordinate, 0 is the left edge and extent is the right edge
+     * @param y    tile y coordinate, 0 is the top edge and extent is the bottom edge
+     * @param tags alternating key and value indexes
+     */
+    public void addPoint(int x, int y, int... tags) {
+        featureCount++;
+
+        feature.reset();
+        feature.writeTag(FEATURE_ID, WIRE_VARINT);
+        feature.writeVarint(featureCount);
+
+        if (tags != null && tags.length > 0) {
+            packed.reset();
+            for (int tag : tags) {
+                packed.writeVarint(tag);
+            }
+            feature.writeTag(FEATURE_TAGS, WIRE_LENGTH);
+            feature.writeBuffer(packed);
+        }
+
+        feature.writeTag(FEATURE_TYPE, WIRE_VARINT);
+        feature.writeVarint(GEOM_TYPE_POINT);
+
+        packed.reset();
+        packed.writeVarint(CMD_MOVE_TO_ONE);
+        packed.writeVarint(zigZag(x));
+        packed.writeVarint(zigZag(y));
+        feature.writeTag(FEATURE_GEOMETRY, WIRE_LENGTH);
+        feature.writeBuffer(packed);
+
+        features.writeTag(LAYER_FEATURES, WIRE_LENGTH);
+        features.writeBuffer(feature);
+    }
+
+    /**
+     * Encode the tile.
+     *
+     * @return the encoded tile. A tile without features is zero length.
+     */
+    public byte[] encode() {
+        if (featureCount == 0) {
+            return new byte[0];
+        }
+
+        Buffer layer = new Buffer(features.length + 256);
+        layer.writeTag(LAYER_NAME, WIRE_LENGTH);
+        layer.writeString(layerName);
+
+        layer.writeBytes(features.buf, 0, features.length);
+
+        for (String key : keys.keySet()) {
+            layer.writeTag(LAYER_KEYS, WIRE_LENGTH);
+            layer.writeString(key);
+        }
+
+        Buffer value = new Buffer(32);
+        for (Object v : values.keySet()) {
+            value.reset();
+            writeValue(value, v);
+            layer.writeTag(LAYER_VALUES, WIRE_LENGTH);
+            layer.writeBuffer(value);
+        }
+
+        layer.writeTag(LAYER_EXTENT, WIRE_VARINT);
+        layer.writeVarint(extent);
+
+        layer.writeTag(LAYER_VERSION, WIRE_VARINT);
+        layer.writeVarint(2);
+
+        Buffer tile = new Buffer(layer.length + 8);
+        tile.writeTag(TILE_LAYERS, WIRE_LENGTH);
+        tile.writeBuffer(layer);
+
+        return tile.toByteArray();
+    }
+
+    private static void writeValue(Buffer b, Object v) {
+        if (v instanceof String) {
+            b.writeTag(VALUE_STRING, WIRE_LENGTH);
+            b.writeString((String) v);
+        } else if (v instanceof Integer || v instanceof Long) {
+            long n = ((Number) v).longValue();
+            if (n >= 0) {
+                b.writeTag(VALUE_UINT, WIRE_VARINT);
+                b.writeVarint(n);
+            } else {
+                b.writeTag(VALUE_SINT, WIRE_VARINT);
+                b.writeVarint((n << 1) ^ (n >> 63));
+            }
+        } else if (v instanceof Float) {
+            b.writeTag(VALUE_FLOAT, WIRE_FIXED32);
+            b.writeFixed32(Float.floatToIntBits((Float) v));
+        } else if (v instanceof Double) {
+            b.writeTag(VALUE_DOUBLE, WIRE_FIXED64);
+            b.writeFixed64(Double.doubleToLongBits((Double) v));
+        } else if (v instanceof Boolean) {
+            b.writeTag(VALUE_BOOL, WIRE_VARINT);
+            b.writeVarint((Boolean) v ? 1 : 0);
+        }
+    }
+
+    static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * Minimal growable protobuf output buffer.
+     */
+    static class Buffer {
+        byte[] buf;
+        int length;
+
+        Buffer(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+            }
+        }
+
+        void writeTag(int field, int wireType) {
+            writeVarint((field << 3) | wireType);
+        }
+
+        void writeVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[length++] = (byte) v;
+        }
+
+        void writeFixed32(int v) {
+            ensure(4);
+            buf[length++] = (byte) v;
+            buf[length++] = (byte) (v >> 8);
+            buf[length++] = (byte) (v >> 16);
+            buf[length++] = (byte) (v >> 24);
+        }
+
+        void writeFixed64(long v) {
+            writeFixed32((int) v);
+            writeFixed32((int) (v >> 32));
+        }
+
+        void writeBytes(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, length, len);
+            length += len;
+        }
+
+        void writeString(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(b.length);
+            writeBytes(b, 0, b.length);
+        }
+
+        /**
+         * Write another buffer as a length delimited value.
+         */
+        void writeBuffer(Buffer b) {
+            writeVarint(b.length);
+            writeBytes(b.buf, 0, b.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, length);
+        }
+    }
+}
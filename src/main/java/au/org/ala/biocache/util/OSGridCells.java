@@ -0,0 +1,150 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.Arrays;
+
+/**
+ * OS grid cells projected into a map SRS, for rendering OS grid WMS tiles.
+ *
+ * Each cell is stored as a 4 corner polygon in a 1-d array of x,y pairs (south west, south east, north east,
+ * north west) with its bounding box, grid size and grid reference. Cells are drawn in the order they are added.
+ */
+public class OSGridCells {
+
+    double[] polygons;
+    double[] bounds;
+    int[] gridSizes;
+    String[] gridRefs;
+    int size;
+
+    public OSGridCells(int capacity) {
+        polygons = new double[capacity * 8];
+        bounds = new double[capacity * 4];
+        gridSizes = new int[capacity];
+        gridRefs = new String[capacity];
+    }
+
+    /**
+     * Add a cell.
+     *
+     * @param gridRef  grid reference
+     * @param gridSize grid size in metres
+     * @param polygon  projected corners as x,y pairs, starting at the south west corner
+     */
+    public void add(String gridRef, int gridSize, double[] polygon) {
+        if (size == gridSizes.length) {
+            int capacity = Math.max(16, size * 2);
+            polygons = Arrays.copyOf(polygons, capacity * 8);
+            bounds = Arrays.copyOf(bounds, capacity * 4);
+            gridSizes = Arrays.copyOf(gridSizes, capacity);
+            gridRefs = Arrays.copyOf(gridRefs, capacity);
+        }
+
+        double minx = Double.POSITIVE_INFINITY;
+        double miny = Double.POSITIVE_INFINITY;
+        double maxx = Double.NEGATIVE_INFINITY;
+        double maxy = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < 8; i += 2) {
+            minx = Math.min(minx, polygon[i]);
+            maxx = Math.max(maxx, polygon[i]);
+            miny = Math.min(miny, polygon[i + 1]);
+            maxy = Math.max(maxy, polygon[i + 1]);
+        }
+
+        System.arraycopy(polygon, 0, polygons, size * 8, 8);
+        bounds[size * 4] = minx;
+        bounds[size * 4 + 1] = miny;
+        bounds[size * 4 + 2] = maxx;
+        bounds[size * 4 + 3] = maxy;
+        gridSizes[size] = gridSize;
+        gridRefs[size] = gridRef;
+        size++;
+    }
+
+    /**
+     * Trim the arrays to the number of cells.
+     */
+    public OSGridCells trim() {
+        if (gridSizes.length != size) {
+            polygons = Arrays.copyOf(polygons, size * 8);
+            bounds = Arrays.copyOf(bounds, size * 4);
+            gridSizes = Arrays.copyOf(gridSizes, size);
+            gridRefs = Arrays.copyOf(gridRefs, size);
+        }
+        return this;
+    }
+
+    /**
+     * Test if a cell intersects a bounding box in the projected units.
+     *
+     * @param i cell index
+     * @param minx
+     * @param miny
+     * @param maxx
+     * @param maxy
+     * @return
+     */
+    public boolean intersects(int i, double minx, double miny, double maxx, double maxy) {
+        int b = i * 4;
+        return bounds[b] <= maxx && bounds[b + 2] >= minx && bounds[b + 1] <= maxy && bounds[b + 3] >= miny;
+    }
+
+    /**
+     * Convert the corners of a cell to pixel positions in a tile.
+     *
+     * @param i          cell index
+     * @param minx       min x of the tile in projected units
+     * @param miny       min y of the tile in projected units
+     * @param xPixelsPerUnit
+     * @param yPixelsPerUnit
+     * @param tileHeight tile height in pixels
+     * @param x          receives the 4 pixel x positions
+     * @param y          receives the 4 pixel y positions
+     */
+    public void toPixels(int i, double minx, double miny, double xPixelsPerUnit, double yPixelsPerUnit,
+                         int tileHeight, int[] x, int[] y) {
+        int p = i * 8;
+        for (int j = 0; j < 4; j++) {
+            x[j] = (int) ((polygons[p + j * 2] - minx) * xPixelsPerUnit);
+            y[j] = tileHeight - (int) ((polygons[p + j * 2 + 1] - miny) * yPixelsPerUnit);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getGridSize(int i) {
+        return gridSizes[i];
+    }
+
+    public String getGridRef(int i) {
+        return gridRefs[i];
+    }
+
+    /**
+     * get approximate size in bytes.
+     *
+     * @return
+     */
+    public long sizeOf() {
+        long bytes = size * (8 * 8 + 4 * 8 + 4 + 8L) + 64;
+        for (int i = 0; i < size; i++) {
+            bytes += 40 + gridRefs[i].length() * 2;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,431 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder for TYPE_INT_ARGB images, e.g. WMS tiles.
+ *
+ * Images with at most 256 colours are written as indexed colour with the smallest bit depth that fits, other
+ * images are written as 8 bit RGBA. All fully transparent pixels are written as transparent black.
+ *
+ * The Deflater and buffers are reused for each thread. Other image types are written with ImageIO.
+ */
+public class PngEncoder {
+
+    public static final int DEFAULT_LEVEL = 4;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private static final int MAX_PALETTE = 256;
+
+    //palette hash table size, a power of 2 larger than MAX_PALETTE
+    private static final int TABLE_SIZE = 1024;
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * Encode an image as PNG.
+     *
+     * @param img
+     * @param level deflate level, 0 to 9
+     * @return PNG bytes
+     * @throws IOException
+     */
+    public static byte[] encode(BufferedImage img, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(img, level, bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write an image as PNG.
+     *
+     * @param img
+     * @param level deflate level, 0 to 9
+     * @param out
+     * @throws IOException
+     */
+    public static void write(BufferedImage img, int level, OutputStream out) throws IOException {
+        if (img.getType() != BufferedImage.TYPE_INT_ARGB) {
+            ImageIO.write(img, "png", out);
+            return;
+        }
+
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] pixels = getPixels(img);
+
+        Buffers b = buffers.get();
+        Palette palette = b.palette;
+
+        ByteBuffer chunk = b.chunk;
+        chunk.reset();
+        out.write(SIGNATURE);
+
+        if (palette.build(pixels, width * height)) {
+            int bitDepth = palette.size <= 2 ? 1 : palette.size <= 4 ? 2 : palette.size <= 16 ? 4 : 8;
+            writeHeader(b, out, width, height, bitDepth, 3);
+
+            chunk.reset();
+            for (int i = 0; i < palette.size; i++) {
+                int c = palette.colours[i];
+                chunk.write(c >> 16);
+                chunk.write(c >> 8);
+                chunk.write(c);
+            }
+            writeChunk(b, out, "PLTE", chunk);
+
+            //translucent colours are first in the palette so trailing opaque entries are omitted
+            if (palette.translucent > 0) {
+                chunk.reset();
+                for (int i = 0; i < palette.translucent; i++) {
+                    chunk.write(palette.colours[i] >>> 24);
+                }
+                writeChunk(b, out, "tRNS", chunk);
+            }
+
+            writeIndexedData(b, out, pixels, width, height, bitDepth, level);
+        } else {
+            writeHeader(b, out, width, height, 8, 6);
+            writeRgbaData(b, out, pixels, width, height, level);
+        }
+
+        chunk.reset();
+        writeChunk(b, out, "IEND", chunk);
+    }
+
+    /**
+     * ARGB pixels of an image, without copying when the image uses a single int array.
+     */
+    private static int[] getPixels(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        Raster raster = img.getRaster();
+        if (raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getNumBanks() == 1 && raster.getDataBuffer().getOffset() == 0
+                && raster.getDataBuffer().getSize() >= width * height) {
+            return ((DataBufferInt) raster.getDataBuffer()).getData();
+        }
+        return img.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    private static void writeHeader(Buffers b, OutputStream out, int width, int height, int bitDepth, int colourType) throws IOException {
+        ByteBuffer chunk = b.chunk;
+        chunk.reset();
+        chunk.writeInt(width);
+        chunk.writeInt(height);
+        chunk.write(bitDepth);
+        chunk.write(colourType);
+        chunk.write(0); //deflate
+        chunk.write(0); //adaptive filtering
+        chunk.write(0); //no interlace
+        writeChunk(b, out, "IHDR", chunk);
+    }
+
+    /**
+     * Rows of palette indexes with filter type None, which is usually best for indexed colour.
+     */
+    private static void writeIndexedData(Buffers b, OutputStream out, int[] pixels, int width, int height,
+                                         int bitDepth, int level) throws IOException {
+        Palette palette = b.palette;
+        int pixelsPerByte = 8 / bitDepth;
+        int rowBytes = (width + pixelsPerByte - 1) / pixelsPerByte;
+        byte[] row = b.row(rowBytes + 1);
+
+        Deflater deflater = b.deflater(level);
+        ByteBuffer idat = b.chunk;
+        idat.reset();
+
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(row, 0, rowBytes + 1, (byte) 0);
+            int p = y * width;
+            if (bitDepth == 8) {
+                for (int x = 0; x < width; x++) {
+                    row[x + 1] = (byte) palette.indexOf(pixels[p + x]);
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                    row[x / pixelsPerByte + 1] |= palette.indexOf(pixels[p + x]) << shift;
+                }
+            }
+            deflate(deflater, row, rowBytes + 1, idat);
+        }
+        finish(deflater, idat);
+        writeChunk(b, out, "IDAT", idat);
+    }
+
+    /**
+     * Rows of RGBA with the filter type None, Sub or Up with the smallest sum of absolute values.
+     */
+    private static void writeRgbaData(Buffers b, OutputStream out, int[] pixels, int width, int height, int level) throws IOException {
+        int rowBytes = width * 4;
+        byte[] row = b.row(rowBytes + 1);
+        byte[] prior = b.prior(rowBytes);
+        byte[] sub = b.sub(rowBytes + 1);
+        byte[] up = b.up(rowBytes + 1);
+        Arrays.fill(prior, 0, rowBytes, (byte) 0);
+
+        Deflater deflater = b.deflater(level);
+        ByteBuffer idat = b.chunk;
+        idat.reset();
+
+        for (int y = 0; y < height; y++) {
+            int p = y * width;
+            for (int x = 0; x < width; x++) {
+                int c = pixels[p + x];
+                if ((c >>> 24) == 0) {
+                    c = 0;
+                }
+                int i = x * 4 + 1;
+                row[i] = (byte) (c >> 16);
+                row[i + 1] = (byte) (c >> 8);
+                row[i + 2] = (byte) c;
+                row[i + 3] = (byte) (c >>> 24);
+            }
+
+            long sumNone = 0;
+            long sumSub = 0;
+            long sumUp = 0;
+            for (int i = 1; i <= rowBytes; i++) {
+                byte v = row[i];
+                byte s = (byte) (v - (i > 4 ? row[i - 4] : 0));
+                byte u = (byte) (v - prior[i - 1]);
+                sub[i] = s;
+                up[i] = u;
+                sumNone += Math.abs(v);
+                sumSub += Math.abs(s);
+                sumUp += Math.abs(u);
+            }
+
+            System.arraycopy(row, 1, prior, 0, rowBytes);
+
+            byte[] filtered;
+            if (sumSub < sumNone && sumSub <= sumUp) {
+                filtered = sub;
+                filtered[0] = 1;
+            } else if (sumUp < sumNone) {
+                filtered = up;
+                filtered[0] = 2;
+            } else {
+                filtered = row;
+                filtered[0] = 0;
+            }
+            deflate(deflater, filtered, rowBytes + 1, idat);
+        }
+        finish(deflater, idat);
+        writeChunk(b, out, "IDAT", idat);
+    }
+
+    private static void deflate(Deflater deflater, byte[] data, int length, ByteBuffer target) {
+        deflater.setInput(data, 0, length);
+        while (!deflater.needsInput()) {
+            target.ensureCapacity(target.size + 8192);
+            target.size += deflater.deflate(target.data, target.size, target.data.length - target.size);
+        }
+    }
+
+    private static void finish(Deflater deflater, ByteBuffer target) {
+        deflater.finish();
+        while (!deflater.finished()) {
+            target.ensureCapacity(target.size + 8192);
+            target.size += deflater.deflate(target.data, target.size, target.data.length - target.size);
+        }
+    }
+
+    private static void writeChunk(Buffers b, OutputStream out, String type, ByteBuffer data) throws IOException {
+        byte[] header = b.header;
+        writeInt(header, 0, data.size);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = b.crc;
+        crc.reset();
+        crc.update(header, 4, 4);
+        crc.update(data.data, 0, data.size);
+
+        out.write(header, 0, 8);
+        out.write(data.data, 0, data.size);
+        writeInt(header, 0, (int) crc.getValue());
+        out.write(header, 0, 4);
+    }
+
+    private static void writeInt(byte[] buf, int offset, int v) {
+        buf[offset] = (byte) (v >>> 24);
+        buf[offset + 1] = (byte) (v >>> 16);
+        buf[offset + 2] = (byte) (v >>> 8);
+        buf[offset + 3] = (byte) v;
+    }
+
+    /**
+     * Colours of an image when there are no more than MAX_PALETTE.
+     */
+    static class Palette {
+        final int[] keys = new int[TABLE_SIZE];
+        final int[] indexes = new int[TABLE_SIZE];
+        final int[] colours = new int[MAX_PALETTE];
+        int size;
+        int translucent;
+
+        /**
+         * @return false when there are more than MAX_PALETTE colours
+         */
+        boolean build(int[] pixels, int n) {
+            Arrays.fill(indexes, -1);
+            size = 0;
+
+            int last = 1;
+            for (int i = 0; i < n; i++) {
+                int c = pixels[i];
+                if ((c >>> 24) == 0) {
+                    c = 0;
+                }
+                //runs of the same colour are common
+                if (c == last) {
+                    continue;
+                }
+                last = c;
+                int slot = find(c);
+                if (indexes[slot] < 0) {
+                    if (size == MAX_PALETTE) {
+                        return false;
+                    }
+                    keys[slot] = c;
+                    indexes[slot] = size;
+                    colours[size++] = c;
+                }
+            }
+
+            //translucent colours first
+            translucent = 0;
+            for (int i = 0; i < size; i++) {
+                if ((colours[i] >>> 24) != 255) {
+                    int c = colours[i];
+                    colours[i] = colours[translucent];
+                    colours[translucent++] = c;
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                indexes[find(colours[i])] = i;
+            }
+            return true;
+        }
+
+        int indexOf(int c) {
+            if ((c >>> 24) == 0) {
+                c = 0;
+            }
+            return indexes[find(c)];
+        }
+
+        private int find(int c) {
+            int slot = (c * 0x9E3779B9) >>> 22;
+            while (indexes[slot] >= 0 && keys[slot] != c) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Growable byte array.
+     */
+    static class ByteBuffer {
+        byte[] data = new byte[65536];
+        int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (data.length < capacity) {
+                data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+            }
+        }
+
+        void write(int b) {
+            ensureCapacity(size + 1);
+            data[size++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensureCapacity(size + 4);
+            PngEncoder.writeInt(data, size, v);
+            size += 4;
+        }
+    }
+
+    /**
+     * Buffers reused by a thread.
+     */
+    private static class Buffers {
+        final Palette palette = new Palette();
+        final ByteBuffer chunk = new ByteBuffer();
+        final CRC32 crc = new CRC32();
+        final byte[] header = new byte[8];
+        final Deflater deflater = new Deflater(DEFAULT_LEVEL);
+        byte[] row = new byte[0];
+        byte[] prior = new byte[0];
+        byte[] sub = new byte[0];
+        byte[] up = new byte[0];
+
+        Deflater deflater(int level) {
+            deflater.reset();
+            deflater.setLevel(Math.max(0, Math.min(9, level)));
+            return deflater;
+        }
+
+        byte[] row(int length) {
+            if (row.length < length) row = new byte[length];
+            return row;
+        }
+
+        byte[] prior(int length) {
+            if (prior.length < length) prior = new byte[length];
+            return prior;
+        }
+
+        byte[] sub(int length) {
+            if (sub.length < length) sub = new byte[length];
+            return sub;
+        }
+
+        byte[] up(int length) {
+            if (up.length < length) up = new byte[length];
+            return up;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * SOLR response parser for point facet queries. Facet values of the form "latitude,longitude" are decoded while
+ * the JSON response is streamed, straight into packed longitude,latitude float arrays and count int arrays,
+ * without creating a String or FacetField.Count for each value.
+ *
+ * Supported facet layouts are:
+ * <ul>
+ *     <li>facet_counts/facet_fields/[field] with json.nl=flat. The group name is the field name.</li>
+ *     <li>facets/[name]/points/buckets from a json.facet query domain with a nested terms facet named 'points'.
+ *     The group name is the query domain name.</li>
+ * </ul>
+ *
+ * All other values in the response are skipped. The decoded groups are in the response under {@link #POINTS}.
+ */
+public class PointFacetResponseParser extends ResponseParser {
+
+    /**
+     * Response key of the NamedList of decoded {@link Points} groups.
+     */
+    public static final String POINTS = "packedPoints";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final double[] POW10 = new double[19];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Packed points of a facet.
+     */
+    public static class Points {
+        /**
+         * longitude,latitude pairs
+         */
+        public float[] points;
+        public int[] counts;
+        public int size;
+
+        public Points(int capacity) {
+            points = new float[capacity * 2];
+            counts = new int[capacity];
+        }
+
+        public void add(float lng, float lat, int count) {
+            if (size == counts.length) {
+                int capacity = Math.max(16, size * 2);
+                points = Arrays.copyOf(points, capacity * 2);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            points[size * 2] = lng;
+            points[size * 2 + 1] = lat;
+            counts[size] = count;
+            size++;
+        }
+
+        /**
+         * Trim the arrays to the number of points.
+         */
+        public Points trim() {
+            if (counts.length != size) {
+                points = Arrays.copyOf(points, size * 2);
+                counts = Arrays.copyOf(counts, size);
+            }
+            return this;
+        }
+    }
+
+    @Override
+    public String getWriterType() {
+        return "json";
+    }
+
+    /**
+     * The content type of the JSON response depends on the SOLR config, application/json or text/plain, so it is
+     * not checked. The default, application/xml, fails every response from a HTTP or Cloud client.
+     */
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public NamedList<Object> processResponse(InputStream body, String encoding) {
+        try {
+            return processResponse(new InputStreamReader(body, encoding == null ? StandardCharsets.UTF_8.name() : encoding));
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "parsing error", e);
+        }
+    }
+
+    @Override
+    public NamedList<Object> processResponse(Reader reader) {
+        NamedList<Object> response = new NamedList<Object>();
+        NamedList<Points> groups = new NamedList<Points>();
+        response.add(POINTS, groups);
+
+        try (JsonParser p = jsonFactory.createParser(reader)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "expected a JSON object");
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                JsonToken t = p.nextToken();
+                if ("facet_counts".equals(name) && t == JsonToken.START_OBJECT) {
+                    parseFacetCounts(p, groups);
+                } else if ("facets".equals(name) && t == JsonToken.START_OBJECT) {
+                    parseJsonFacets(p, groups);
+                } else if ("error".equals(name) && t == JsonToken.START_OBJECT) {
+                    response.add("error", parseError(p));
+                } else {
+                    p.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "parsing error", e);
+        }
+
+        return response;
+    }
+
+    private NamedList<Object> parseError(JsonParser p) throws IOException {
+        NamedList<Object> error = new NamedList<Object>();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if (t == JsonToken.VALUE_STRING) {
+                error.add(name, p.getText());
+            } else if (t == JsonToken.VALUE_NUMBER_INT) {
+                error.add(name, p.getIntValue());
+            } else {
+                p.skipChildren();
+            }
+        }
+        return error;
+    }
+
+    private void parseFacetCounts(JsonParser p, NamedList<Points> groups) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if ("facet_fields".equals(name) && t == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = p.getCurrentName();
+                    if (p.nextToken() == JsonToken.START_ARRAY) {
+                        groups.add(field, parseFlatFacet(p));
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * json.nl=flat facet values: [value, count, value, count, ...]
+     */
+    private Points parseFlatFacet(JsonParser p) throws IOException {
+        Points points = new Points(1024);
+        float[] latLng = new float[2];
+        JsonToken t;
+        while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+            boolean valid = t == JsonToken.VALUE_STRING &&
+                    parsePoint(p.getTextCharacters(), p.getTextOffset(), p.getTextOffset() + p.getTextLength(), latLng);
+            p.nextToken();
+            if (valid) {
+                points.add(latLng[1], latLng[0], p.getIntValue());
+            }
+        }
+        return points.trim();
+    }
+
+    private void parseJsonFacets(JsonParser p, NamedList<Points> groups) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            if (p.nextToken() == JsonToken.START_OBJECT) {
+                Points points = null;
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String child = p.getCurrentName();
+                    if (p.nextToken() == JsonToken.START_OBJECT && "points".equals(child)) {
+                        points = parseBucketFacet(p);
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                groups.add(name, points == null ? new Points(0) : points);
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * json.facet terms facet: {buckets: [{val: value, count: count}, ...]}
+     */
+    private Points parseBucketFacet(JsonParser p) throws IOException {
+        Points points = new Points(1024);
+        float[] latLng = new float[2];
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            if (p.nextToken() == JsonToken.START_ARRAY && "buckets".equals(name)) {
+                while (p.nextToken() == JsonToken.START_OBJECT) {
+                    boolean valid = false;
+                    int count = 0;
+                    while (p.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = p.getCurrentName();
+                        JsonToken t = p.nextToken();
+                        if ("val".equals(field) && t == JsonToken.VALUE_STRING) {
+                            valid = parsePoint(p.getTextCharacters(), p.getTextOffset(), p.getTextOffset() + p.getTextLength(), latLng);
+                        } else if ("count".equals(field) && t == JsonToken.VALUE_NUMBER_INT) {
+                            count = p.getIntValue();
+                        } else {
+                            p.skipChildren();
+                        }
+                    }
+                    if (valid) {
+                        points.add(latLng[1], latLng[0], count);
+                    }
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+        return points.trim();
+    }
+
+    /**
+     * Parse a point facet value of the form "latitude,longitude".
+     *
+     * @param chars
+     * @param start  first character
+     * @param end    index after the last character
+     * @param latLng receives the latitude and longitude
+     * @return false when the value is not a valid point
+     */
+    public static boolean parsePoint(char[] chars, int start, int end, float[] latLng) {
+        for (int i = start; i < end; i++) {
+            if (chars[i] == ',') {
+                latLng[0] = parseFloat(chars, start, i);
+                latLng[1] = parseFloat(chars, i + 1, end);
+                return !Float.isNaN(latLng[0]) && !Float.isNaN(latLng[1]);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a point facet value of the form "latitude,longitude".
+     *
+     * @param value
+     * @param latLng receives the latitude and longitude
+     * @return false when the value is not a valid point
+     */
+    public static boolean parsePoint(String value, float[] latLng) {
+        if (value == null) {
+            return false;
+        }
+        int p = value.indexOf(',');
+        if (p < 0) {
+            return false;
+        }
+        latLng[0] = parseFloat(value, 0, p);
+        latLng[1] = parseFloat(value, p + 1, value.length());
+        return !Float.isNaN(latLng[0]) && !Float.isNaN(latLng[1]);
+    }
+
+    /**
+     * Parse a plain decimal number, e.g. -35.1234, without creating a String.
+     *
+     * Values with an exponent or more than 18 digits are passed to Float.parseFloat.
+     *
+     * @return the value, or Float.NaN when it is not a number
+     */
+    public static float parseFloat(char[] chars, int start, int end) {
+        int i = start;
+        while (i < end && chars[i] == ' ') i++;
+        while (end > i && chars[end - 1] == ' ') end--;
+        if (i >= end) {
+            return Float.NaN;
+        }
+
+        boolean negative = false;
+        if (chars[i] == '-' || chars[i] == '+') {
+            negative = chars[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fractionDigits >= 0) fractionDigits++;
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+
+        if (i < end || digits > 18) {
+            try {
+                return Float.parseFloat(new String(chars, start, end - start));
+            } catch (NumberFormatException e) {
+                return Float.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Float.NaN;
+        }
+
+        double value = fractionDigits > 0 ? mantissa / POW10[fractionDigits] : mantissa;
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * Parse a plain decimal number from part of a String.
+     *
+     * @see #parseFloat(char[], int, int)
+     */
+    public static float parseFloat(String s, int start, int end) {
+        int len = end - start;
+        char[] chars = len <= 32 ? LOCAL_CHARS.get() : new char[len];
+        s.getChars(start, end, chars, 0);
+        return parseFloat(chars, 0, len);
+    }
+
+    private static final ThreadLocal<char[]> LOCAL_CHARS = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[32];
+        }
+    };
+}
@@ -0,0 +1,411 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weight limited cache with W-TinyLFU eviction.
+ *
+ * New entries go into a small LRU window. Entries leaving the window are admitted to the main segmented LRU
+ * (probation and protected) only when they have been used at least as often as the entry they would evict. Use
+ * counts, including the miss and put that loaded an entry, are approximated with a count-min sketch that is halved
+ * periodically so that old popularity fades. This keeps frequently used entries when there is a burst of entries
+ * that are used once. Entries heavier than the window are always admitted, they could not otherwise be used at
+ * all.
+ *
+ * All maintenance is O(1) per put or get. Gets do not block: the reordering after a get is skipped when another
+ * thread holds the lock.
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class SegmentedLruCache<K, V> {
+
+    /**
+     * Weight of a value, e.g. the size in bytes.
+     */
+    public interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = -1;
+
+    //percentage of the max weight for the window and, of the remainder, for the protected segment
+    static final int WINDOW_PERCENT = 1;
+    static final int PROTECTED_PERCENT = 80;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Weigher<V> weigher;
+    private final FrequencySketch sketch;
+
+    //circular lists with a sentinel, head.next is the least recently used
+    @SuppressWarnings("unchecked")
+    private final Node<K, V>[] heads = new Node[]{new Node<K, V>(), new Node<K, V>(), new Node<K, V>()};
+    private final long[] weights = new long[3];
+
+    private volatile long maxWeight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedWeight = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param maxWeight       max total weight
+     * @param expectedEntries approximate number of entries when full, for sizing the frequency sketch
+     * @param weigher         weight of a value
+     */
+    public SegmentedLruCache(long maxWeight, int expectedEntries, Weigher<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedEntries);
+        for (Node<K, V> head : heads) {
+            head.prev = head;
+            head.next = head;
+        }
+    }
+
+    /**
+     * @param key
+     * @return the cached value or null
+     */
+    public V get(K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key);
+                if (node != null && node.segment != REMOVED) {
+                    onAccess(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Add or replace a value.
+     *
+     * @param key
+     * @param value
+     * @return true when the value is in the cache, false when it is heavier than the max weight
+     */
+    public boolean put(K key, V value) {
+        long weight = weigher.weigh(value);
+        Node<K, V> node = new Node<K, V>(key, value, weight);
+
+        lock.lock();
+        try {
+            Node<K, V> old = map.put(key, node);
+            if (old != null && old.segment != REMOVED) {
+                unlink(old);
+            }
+
+            if (weight > maxWeight) {
+                map.remove(key, node);
+                rejections.increment();
+                return false;
+            }
+
+            sketch.increment(key);
+            link(node, WINDOW);
+            evict();
+            return node.segment != REMOVED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a value.
+     *
+     * @param key
+     */
+    public void remove(K key) {
+        lock.lock();
+        try {
+            Node<K, V> node = map.remove(key);
+            if (node != null && node.segment != REMOVED) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all values. The statistics are retained.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            map.clear();
+            for (int i = 0; i < heads.length; i++) {
+                for (Node<K, V> n = heads[i].next; n != heads[i]; n = n.next) {
+                    n.segment = REMOVED;
+                }
+                heads[i].prev = heads[i];
+                heads[i].next = heads[i];
+                weights[i] = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Change the max weight, evicting when it is smaller.
+     *
+     * @param maxWeight
+     */
+    public void setMaxWeight(long maxWeight) {
+        lock.lock();
+        try {
+            this.maxWeight = maxWeight;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total weight of the cached values
+     */
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return hits, misses, evictions and the current size
+     */
+    public Map<String, Object> getStats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRate", h + m > 0 ? h / (double) (h + m) : 0);
+        stats.put("evictions", evictions.sum());
+        stats.put("evictedWeight", evictedWeight.sum());
+        stats.put("rejections", rejections.sum());
+        stats.put("size", size());
+        stats.put("weight", getWeight());
+        stats.put("maxWeight", maxWeight);
+        return stats;
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.segment == PROBATION) {
+            unlink(node);
+            link(node, PROTECTED);
+
+            //demote the least recently used of the protected segment
+            long protectedMax = (maxWeight - windowMax()) * PROTECTED_PERCENT / 100;
+            while (weights[PROTECTED] > protectedMax && heads[PROTECTED].next != node) {
+                Node<K, V> demoted = heads[PROTECTED].next;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            int segment = node.segment;
+            unlink(node);
+            link(node, segment);
+        }
+    }
+
+    private long windowMax() {
+        return Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+    }
+
+    private void evict() {
+        //move the oldest window entries to probation when they are at least as popular as the entry they would
+        //evict, or when they are heavier than the window
+        long windowMax = windowMax();
+        while (weights[WINDOW] > windowMax) {
+            Node<K, V> candidate = heads[WINDOW].next;
+            unlink(candidate);
+            link(candidate, PROBATION);
+
+            while (total() > maxWeight) {
+                Node<K, V> victim = heads[PROBATION].next;
+                if (victim == candidate) {
+                    victim = heads[PROTECTED].next != heads[PROTECTED] ? heads[PROTECTED].next : candidate;
+                }
+                if (victim != candidate && candidate.weight <= windowMax
+                        && sketch.frequency(candidate.key) < sketch.frequency(victim.key)) {
+                    victim = candidate;
+                }
+                evict(victim);
+                if (victim == candidate) {
+                    break;
+                }
+            }
+        }
+
+        //when the max weight is reduced
+        while (total() > maxWeight) {
+            int segment = PROBATION;
+            while (heads[segment].next == heads[segment]) {
+                segment = (segment + 1) % heads.length;
+            }
+            evict(heads[segment].next);
+        }
+    }
+
+    private long total() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    private void evict(Node<K, V> node) {
+        unlink(node);
+        map.remove(node.key, node);
+        evictions.increment();
+        evictedWeight.add(node.weight);
+    }
+
+    private void link(Node<K, V> node, int segment) {
+        Node<K, V> head = heads[segment];
+        node.segment = segment;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        weights[segment] += node.weight;
+    }
+
+    private void unlink(Node<K, V> node) {
+        weights[node.segment] -= node.weight;
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.segment = REMOVED;
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final long weight;
+        Node<K, V> prev;
+        Node<K, V> next;
+        int segment = REMOVED;
+
+        Node() {
+            this(null, null, 0);
+        }
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Count-min sketch of counters up to 15, 4 rows of at least 4 columns per expected entry. Counters are halved
+     * after 10 increments per expected entry so that the counts reflect recent use.
+     */
+    static class FrequencySketch {
+        private static final long[] SEEDS = {0x97cb3127L, 0xc2b2ae35L, 0x85ebca6bL, 0x27d4eb2fL};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int resetSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int entries = Math.max(64, Math.min(1 << 20, expectedEntries));
+            int width = Integer.highestOneBit(entries * 8 - 1);
+            counters = new byte[SEEDS.length][width];
+            mask = width - 1;
+            resetSize = entries * 10;
+        }
+
+        void increment(Object key) {
+            int h = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                byte[] row = counters[i];
+                int idx = index(h, i);
+                if (row[idx] < 15) {
+                    row[idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= resetSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            int h = spread(key.hashCode());
+            int min = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                min = Math.min(min, counters[i][index(h, i)]);
+            }
+            return min;
+        }
+
+        private int index(int h, int i) {
+            long x = (h + SEEDS[i]) * SEEDS[i];
+            return (int) (x ^ (x >>> 32)) & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >>> 1);
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x45d9f3b;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -4,7 +4,6 @@ import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.io.WKTReader;
-import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
 import org.apache.log4j.Logger;
 import org.geotools.geometry.jts.JTS;
 
@@ -208,26 +207,20 @@ public class SpatialUtils {
         String field = negated ? "-" +spatialField:spatialField;
         if(wkt.startsWith("GEOMETRYCOLLECTION")){
             //the lucene JTS WKT does not support GEOMETRYCOLLECTION http://wiki.apache.org/solr/SolrAdaptersForLuceneSpatial4 so we will add a bunch of "OR"ed intersections
-            try{
-                WKTReader r = new WKTReader();
-                GeometryCollection gc = (GeometryCollection)r.read(wkt);
-                
+            WktGeometryCache.WktGeometry gc = WktGeometryCache.get(wkt);
+            if (gc != null) {
                 //now get the individual components
+                String[] components = gc.getComponents();
                 sb.append("(");
-                for(int i=0;i<gc.getNumGeometries();i++){
-                    Geometry g = gc.getGeometryN(i);
+                for(int i=0;i<components.length;i++){
                     if(i>0){
                         sb.append(operation);
                     }
                     sb.append(field).append(":\"Intersects(");
-                    sb.append(g.toText());
+                    sb.append(components[i]);
                     sb.append(")\"");
                 }
                 sb.append(")");
-                
-            } catch(Exception e){
-                //log the error
-                e.printStackTrace();
             }
         } else {
             sb.append(field).append(":\"Intersects(");
@@ -255,42 +248,10 @@ public class SpatialUtils {
     }
     
     public static String simplifyWkt(final String wkt, final int maxPoints, final double distanceFactor, final double distanceInitialPrecision, final double distanceMaxPrecision) {
-        WKTReader r = new WKTReader();
+        WktGeometryCache.WktGeometry g = WktGeometryCache.get(wkt);
 
-        try {
-            Geometry g = r.read(wkt);
-
-            if (maxPoints <= 0 || g.getNumPoints() <= maxPoints) {
-                return wkt;
-            }
-
-            double distance = distanceInitialPrecision;
-            while (distance < distanceMaxPrecision) {
-                g = TopologyPreservingSimplifier.simplify(g, distance);
-
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Simplified geometry to " + g.getNumPoints() + " at distance precision " + distance);
-                }
-                
-                distance *= distanceFactor;
-
-                if (g.getNumPoints() <= maxPoints) {
-                    return g.toText();
-                }
-            }
-
-            logger.warn(
-                    "WKT simplification failed to achieve the required precision: " +
-                            " finalNumberOfPoints=" + g.getNumPoints() +
-                            " maxPoints=" + maxPoints + 
-                            " distanceFactor=" + distanceFactor +
-                            " distanceInitialPrecision=" + distanceInitialPrecision + 
-                            " distanceMaxPrecision=" + distanceMaxPrecision);
-        } catch (Exception e) {
-            logger.error("WKT reduction failed due to an exception: " + e.getMessage());
-        }
-        // An exception occurred or we were unable to reduce it. In both cases, we return null as part of our contract
-        return null;
+        // Invalid WKT or we were unable to reduce it. In both cases, we return null as part of our contract
+        return g == null ? null : g.getSimplified(maxPoints, distanceFactor, distanceInitialPrecision, distanceMaxPrecision);
     }
 
 }
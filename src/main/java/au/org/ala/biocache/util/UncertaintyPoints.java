@@ -0,0 +1,141 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Points with a coordinate uncertainty, for drawing WMS uncertainty circles.
+ *
+ * Points are stored in a 1-d array of long,lat,long,lat with the uncertainty of each point in metres.
+ * The first getMappableCount() points have an uncertainty that is mapped, the remaining points have an
+ * uncertainty that is too large and are drawn with the max uncertainty.
+ *
+ * Circle radii in pixels are calculated once for each scale. Scales are rounded to SCALE_STEPS steps for each
+ * doubling of pixels per metre, so tiles of a zoom level share the radii.
+ */
+public class UncertaintyPoints {
+
+    //max number of scales to keep radii for, the least recently used are removed
+    static final int MAX_SCALES = 4;
+
+    //number of scales for each doubling of pixels per metre
+    static final int SCALE_STEPS = 8;
+
+    float[] points;
+    float[] uncertainty;
+    int size;
+    int mappableCount;
+
+    //radii by scale step
+    final Map<Integer, int[]> radii = Collections.synchronizedMap(new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > MAX_SCALES;
+        }
+    });
+
+    public UncertaintyPoints(int capacity) {
+        points = new float[capacity * 2];
+        uncertainty = new float[capacity];
+    }
+
+    /**
+     * Add a point. All points with a mappable uncertainty must be added before points with an uncertainty
+     * that is too large.
+     *
+     * @param lng
+     * @param lat
+     * @param uncertainty in metres
+     * @param mappable false when the uncertainty is too large to map
+     */
+    public void add(float lng, float lat, float uncertainty, boolean mappable) {
+        if (size == this.uncertainty.length) {
+            int capacity = Math.max(16, size * 2);
+            points = Arrays.copyOf(points, capacity * 2);
+            this.uncertainty = Arrays.copyOf(this.uncertainty, capacity);
+        }
+        points[size * 2] = lng;
+        points[size * 2 + 1] = lat;
+        this.uncertainty[size] = uncertainty;
+        size++;
+        if (mappable) {
+            mappableCount = size;
+        }
+    }
+
+    /**
+     * Trim the arrays to the number of points.
+     */
+    public UncertaintyPoints trim() {
+        if (uncertainty.length != size) {
+            points = Arrays.copyOf(points, size * 2);
+            uncertainty = Arrays.copyOf(uncertainty, size);
+        }
+        return this;
+    }
+
+    /**
+     * Circle radius in pixels of each point.
+     *
+     * @param pixelsPerMetre scale of the zoom level, rounded to the nearest scale step
+     * @return radii, rounded up
+     */
+    public int[] getRadii(double pixelsPerMetre) {
+        if (!(pixelsPerMetre > 0) || Double.isInfinite(pixelsPerMetre)) {
+            return new int[size];
+        }
+
+        int step = (int) Math.round(Math.log(pixelsPerMetre) / Math.log(2) * SCALE_STEPS);
+        int[] r = radii.get(step);
+        if (r == null) {
+            double scale = Math.pow(2, step / (double) SCALE_STEPS);
+            r = new int[size];
+            for (int i = 0; i < size; i++) {
+                r[i] = (int) Math.ceil(uncertainty[i] * scale);
+            }
+            radii.put(step, r);
+        }
+        return r;
+    }
+
+    public float[] getPoints() {
+        return points;
+    }
+
+    public float[] getUncertainty() {
+        return uncertainty;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getMappableCount() {
+        return mappableCount;
+    }
+
+    /**
+     * get approximate size in bytes, including radii for the max number of scales.
+     *
+     * @return
+     */
+    public long sizeOf() {
+        return size * (4 * 3 + 4L * MAX_SCALES) + 64;
+    }
+}
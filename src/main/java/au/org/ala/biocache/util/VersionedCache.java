@@ -0,0 +1,363 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of values loaded for an index version.
+ *
+ * Keys include the index version. When a newer index version is seen all values for older versions are removed.
+ * Concurrent requests for the same missing key wait for a single load. Null values are not cached. Values can also
+ * expire after a max age.
+ *
+ * Reads do not lock. When the cache is over the max size the least recently used values are removed by one thread,
+ * down to 90% of the max size so that the values are scanned once for every tenth of the max size loaded.
+ *
+ * Unlike @Cacheable this works for calls made from within the class that owns the cache.
+ *
+ * @param <K> key
+ * @param <V> value, shared by all callers so it must not be modified
+ */
+public class VersionedCache<K, V> implements ManagedCache {
+
+    public interface Loader<V> {
+        V load() throws Exception;
+    }
+
+    private final String name;
+    private final Map<VersionedKey<K>, Entry<V>> map = new ConcurrentHashMap<VersionedKey<K>, Entry<V>>();
+    private volatile int maxSize;
+    private volatile long maxAge;
+    private final AtomicLong version = new AtomicLong();
+    //order of use
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder loadTime = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param name    for stats and logging
+     * @param maxSize max number of values
+     */
+    public VersionedCache(String name, int maxSize) {
+        this(name, maxSize, 0);
+    }
+
+    /**
+     * @param name    for stats and logging
+     * @param maxSize max number of values
+     * @param maxAge  ms before a value is loaded again, 0 for no max age
+     */
+    public VersionedCache(String name, int maxSize, long maxAge) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get a cached value or load it. Only one load runs at a time for a key.
+     *
+     * @param version index version the value is loaded from
+     * @param key
+     * @param loader  loads the value when it is not cached
+     * @return
+     * @throws Exception from the loader
+     */
+    public V get(long version, K key, final Loader<V> loader) throws Exception {
+        updateVersion(version);
+
+        VersionedKey<K> k = new VersionedKey<K>(version, key);
+        while (true) {
+            Entry<V> entry = map.get(k);
+            if (entry != null) {
+                if (entry.isExpired()) {
+                    if (map.remove(k, entry)) {
+                        expirations.increment();
+                    }
+                    continue;
+                }
+                entry.lastUse = clock.incrementAndGet();
+                if (entry.task.isDone()) {
+                    hits.increment();
+                } else {
+                    misses.increment();
+                    waits.increment();
+                }
+                return result(entry.task);
+            }
+
+            FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    return loader.load();
+                }
+            });
+            entry = new Entry<V>(task, clock.incrementAndGet());
+            if (map.putIfAbsent(k, entry) != null) {
+                continue;
+            }
+            misses.increment();
+            return load(k, entry);
+        }
+    }
+
+    /**
+     * Get a cached value without loading it.
+     *
+     * @param version
+     * @param key
+     * @return the value, or null when it is not cached or is still loading
+     */
+    public V getIfPresent(long version, K key) {
+        Entry<V> entry = map.get(new VersionedKey<K>(version, key));
+        if (entry == null || !entry.task.isDone() || entry.isExpired()) {
+            return null;
+        }
+        try {
+            V value = entry.task.get();
+            entry.lastUse = clock.incrementAndGet();
+            hits.increment();
+            return value;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private V load(VersionedKey<K> k, Entry<V> entry) throws Exception {
+        long start = System.nanoTime();
+        try {
+            entry.task.run();
+            V value = result(entry.task);
+            entry.created = System.currentTimeMillis();
+            if (value == null || k.version < version.get()) {
+                map.remove(k, entry);
+            } else {
+                evict();
+            }
+            return value;
+        } catch (Exception e) {
+            loadFailures.increment();
+            map.remove(k, entry);
+            throw e;
+        } catch (Error e) {
+            map.remove(k, entry);
+            throw e;
+        } finally {
+            loadTime.add(System.nanoTime() - start);
+        }
+    }
+
+    private V result(FutureTask<V> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Remove values of older index versions when a newer version is seen.
+     */
+    private void updateVersion(long newVersion) {
+        long current;
+        while (newVersion > (current = version.get())) {
+            if (version.compareAndSet(current, newVersion)) {
+                boolean removed = false;
+                Iterator<VersionedKey<K>> it = map.keySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().version < newVersion) {
+                        it.remove();
+                        removed = true;
+                    }
+                }
+                if (removed) {
+                    invalidations.increment();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the least recently used loaded values, down to 90% of the max size, when the cache is over the max size.
+     */
+    private void evict() {
+        while (map.size() > maxSize && evicting.compareAndSet(false, true)) {
+            try {
+                int max = maxSize;
+                int remove = map.size() - (max - max / 10);
+                if (remove <= 0) {
+                    return;
+                }
+
+                //last use of the loaded values, copied as it changes during the sort
+                long[] lastUse = new long[map.size()];
+                int loaded = 0;
+                for (Entry<V> e : map.values()) {
+                    if (e.task.isDone() && loaded < lastUse.length) {
+                        lastUse[loaded++] = e.lastUse;
+                    }
+                }
+                if (loaded == 0) {
+                    //only values that are loading
+                    return;
+                }
+                Arrays.sort(lastUse, 0, loaded);
+                long oldest = lastUse[Math.min(remove, loaded) - 1];
+
+                //values used since the copy are kept
+                Iterator<Map.Entry<VersionedKey<K>, Entry<V>>> it = map.entrySet().iterator();
+                while (it.hasNext() && remove > 0) {
+                    Map.Entry<VersionedKey<K>, Entry<V>> e = it.next();
+                    if (e.getValue().task.isDone() && e.getValue().lastUse <= oldest && map.remove(e.getKey(), e.getValue())) {
+                        evictions.increment();
+                        remove--;
+                    }
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Remove all values.
+     */
+    @Override
+    public void invalidate() {
+        map.clear();
+        invalidations.increment();
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    @Override
+    public boolean resize(long maxSize) {
+        setMaxSize((int) Math.min(Integer.MAX_VALUE, maxSize));
+        return true;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxAge ms before a value is loaded again, 0 for no max age
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        long loads = m - waits.sum();
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("name", name);
+        stats.put("version", version.get());
+        stats.put("size", map.size());
+        stats.put("maxSize", maxSize);
+        stats.put("maxAge", maxAge);
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRate", h + m > 0 ? h / (double) (h + m) : 0);
+        stats.put("loads", loads);
+        stats.put("loadWaits", waits.sum());
+        stats.put("loadFailures", loadFailures.sum());
+        stats.put("meanLoadMs", loads > 0 ? loadTime.sum() / loads / 1000000.0 : 0);
+        stats.put("evictions", evictions.sum());
+        stats.put("expirations", expirations.sum());
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+
+    private class Entry<T> {
+        final FutureTask<T> task;
+        volatile long lastUse;
+        //set when loaded
+        volatile long created;
+
+        Entry(FutureTask<T> task, long lastUse) {
+            this.task = task;
+            this.lastUse = lastUse;
+        }
+
+        boolean isExpired() {
+            long age = maxAge;
+            return age > 0 && created > 0 && created + age < System.currentTimeMillis();
+        }
+    }
+
+    private static class VersionedKey<K> {
+        final long version;
+        final K key;
+
+        VersionedKey(long version, K key) {
+            this.version = version;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VersionedKey)) {
+                return false;
+            }
+            VersionedKey other = (VersionedKey) o;
+            return version == other.version && (key == null ? other.key == null : key.equals(other.key));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(version) + (key == null ? 0 : key.hashCode());
+        }
+    }
+}
@@ -19,10 +19,13 @@ import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
@@ -37,7 +40,7 @@ import java.util.concurrent.CountDownLatch;
  * @author Adam
  */
 @Component("WMSCache")
-public class WMSCache {
+public class WMSCache implements ManagedCache {
 
     private final Logger logger = Logger.getLogger(WMSCache.class);
     //max size of cached params in bytes
@@ -63,6 +66,11 @@ public class WMSCache {
     //cache size before cleaner is triggered
     long triggerCleanSize = minCacheSize + (maxCacheSize - minCacheSize) / 2;
 
+    final CacheStats stats = new CacheStats();
+
+    @Inject
+    protected CacheRegistry cacheRegistry;
+
     {
         counter = new CountDownLatch(1);
 
@@ -94,6 +102,11 @@ public class WMSCache {
         logger.info("maxAge > " + maxAge);
     }
 
+    @PostConstruct
+    public void init() {
+        cacheRegistry.register(this);
+    }
+
     /**
      * Store search params and return key.
      *
@@ -130,6 +143,28 @@ public class WMSCache {
         return true;
     }
 
+    /**
+     * Update the size of a cached WMSTile after it has changed, e.g. uncertainty points were added.
+     *
+     * @param wco cached WMSTile
+     */
+    public void resize(WMSTile wco) {
+        if (!wco.getCached()) {
+            return;
+        }
+
+        long previousSize = wco.getSize();
+        wco.updateSize();
+
+        synchronized (counterLock) {
+            cacheSize += wco.getSize() - previousSize;
+            logger.debug("new cache size: " + cacheSize);
+            if (cacheSize > triggerCleanSize) {
+                counter.countDown();
+            }
+        }
+    }
+
     /**
      * cache key built from query, colourmode and point type.
      *
@@ -161,9 +196,16 @@ public class WMSCache {
 
             if (obj != null && obj.getCreated() + maxAge < System.currentTimeMillis()) {
                 cache.remove(key);
+                stats.eviction();
                 obj = null;
             }
 
+            if (obj != null && obj.getCached()) {
+                stats.hit();
+            } else {
+                stats.miss();
+            }
+
             if (obj == null) {
                 obj = new WMSTile();
                 cache.put(key, obj);
@@ -215,6 +257,7 @@ public class WMSCache {
             if (size + entries.get(i).getValue().getSize() > minCacheSize) {
                 String key = entries.get(i).getKey();
                 cache.remove(key);
+                stats.eviction();
                 numberRemoved++;
             } else {
                 size += entries.get(i).getValue().getSize();
@@ -300,6 +343,44 @@ public class WMSCache {
         maxAge = maxCacheAge;
     }
 
+    @Override
+    public String getName() {
+        return "WMSCache";
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> map = stats.toMap();
+        map.put("entries", cache.size());
+        map.put("size", cacheSize);
+        map.put("maxSize", maxCacheSize);
+        map.put("minSize", minCacheSize);
+        map.put("maxAge", maxAge);
+        return map;
+    }
+
+    @Override
+    public void invalidate() {
+        empty();
+    }
+
+    /**
+     * @param maxSize max size in bytes. The min size is reduced to half of this when it is larger.
+     */
+    @Override
+    public boolean resize(long maxSize) {
+        if (minCacheSize > maxSize) {
+            setMinCacheSize(maxSize / 2);
+        }
+        setMaxCacheSize(maxSize);
+        if (cacheSize > triggerCleanSize) {
+            synchronized (counterLock) {
+                counter.countDown();
+            }
+        }
+        return true;
+    }
+
 
     /**
      * cache cleaner is triggered when the size of the cache is
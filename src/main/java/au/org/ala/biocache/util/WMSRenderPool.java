@@ -0,0 +1,224 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded thread pool for rendering WMS tiles.
+ *
+ * Rendering allocates a full image per tile, so the number of concurrent renders is limited to the number of
+ * threads, by default the number of processors. A render that waits in the queue longer than the queue wait
+ * budget, or that does not fit in the queue, is rejected so the request can return quickly.
+ *
+ * Time spent in each stage of a tile request is recorded for getMetrics().
+ */
+@Component("wmsRenderPool")
+public class WMSRenderPool {
+
+    private final static Logger logger = Logger.getLogger(WMSRenderPool.class);
+
+    public static final String STAGE_QUEUE = "queue";
+    public static final String STAGE_QUERY = "query";
+    public static final String STAGE_RENDER = "render";
+    public static final String STAGE_ENCODE = "encode";
+
+    /**
+     * Number of render threads. 0 for the number of processors.
+     */
+    @Value("${wms.render.threads:0}")
+    protected int threads = 0;
+
+    /**
+     * Max number of renders waiting for a thread.
+     */
+    @Value("${wms.render.queue.size:200}")
+    protected int queueSize = 200;
+
+    /**
+     * Max time in ms that a render waits for a thread.
+     */
+    @Value("${wms.render.queue.wait.max:2000}")
+    protected long maxQueueWait = 2000;
+
+    private volatile ThreadPoolExecutor executor;
+
+    private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    public WMSRenderPool() {
+        for (String stage : new String[]{STAGE_QUEUE, STAGE_QUERY, STAGE_RENDER, STAGE_ENCODE}) {
+            stages.put(stage, new Stage());
+        }
+    }
+
+    /**
+     * Run a render task on the pool and wait for the result.
+     *
+     * @param task
+     * @return result of the task
+     * @throws RejectedExecutionException when the queue is full or the task did not start within the queue wait budget
+     * @throws Exception                  from the task
+     */
+    public <T> T render(final Callable<T> task) throws Exception {
+        final long queued = System.nanoTime();
+        final CountDownLatch started = new CountDownLatch(1);
+        FutureTask<T> future = new FutureTask<T>(() -> {
+            started.countDown();
+            record(STAGE_QUEUE, System.nanoTime() - queued);
+            return task.call();
+        });
+
+        ThreadPoolExecutor pool = getExecutor();
+        try {
+            pool.execute(future);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+
+        //a task that starts after the wait budget is cancelled, so it never runs
+        if (!started.await(maxQueueWait, TimeUnit.MILLISECONDS) && future.cancel(false)) {
+            pool.remove(future);
+            expired.increment();
+            record(STAGE_QUEUE, System.nanoTime() - queued);
+            throw new RejectedExecutionException("WMS render waited more than " + maxQueueWait + "ms");
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Record the time spent in a stage.
+     *
+     * @param stage one of the STAGE_ names
+     * @param nanos
+     */
+    public void record(String stage, long nanos) {
+        Stage s = stages.get(stage);
+        if (s != null) {
+            s.add(nanos);
+        }
+    }
+
+    /**
+     * @return pool sizes, rejection counts and count, mean and max ms for each stage
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        ThreadPoolExecutor pool = executor;
+        metrics.put("threads", getThreads());
+        metrics.put("active", pool == null ? 0 : pool.getActiveCount());
+        metrics.put("queued", pool == null ? 0 : pool.getQueue().size());
+        metrics.put("completed", pool == null ? 0 : pool.getCompletedTaskCount());
+        metrics.put("rejected", rejected.sum());
+        metrics.put("expired", expired.sum());
+
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            Stage s = entry.getValue();
+            long count = s.count.sum();
+            Map<String, Object> stage = new LinkedHashMap<String, Object>();
+            stage.put("count", count);
+            stage.put("meanMs", count == 0 ? 0 : s.nanos.sum() / count / 1000000.0);
+            stage.put("maxMs", s.max.get() / 1000000.0);
+            metrics.put(entry.getKey(), stage);
+        }
+        return metrics;
+    }
+
+    int getThreads() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        ThreadPoolExecutor nextExecutor = executor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = executor;
+                if (nextExecutor == null) {
+                    int n = getThreads();
+                    logger.info("WMS render pool with " + n + " threads and queue size " + queueSize);
+                    nextExecutor = executor = new ThreadPoolExecutor(n, n, 0L, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                            new ThreadFactoryBuilder().setNameFormat("biocache-wms-render-%d").build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        ThreadPoolExecutor pool = executor;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    public long getMaxQueueWait() {
+        return maxQueueWait;
+    }
+
+    public void setMaxQueueWait(long maxQueueWait) {
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    private static class Stage {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        void add(long n) {
+            count.increment();
+            nanos.add(n);
+            long m;
+            while (n > (m = max.get()) && !max.compareAndSet(m, n)) {
+            }
+        }
+    }
+}
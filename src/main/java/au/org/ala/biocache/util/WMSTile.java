@@ -14,6 +14,8 @@
  ***************************************************************************/
 package au.org.ala.biocache.util;
 
+import au.org.ala.biocache.dto.PointType;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,6 +31,9 @@ public class WMSTile {
     List<float[]> points; //points stored in a 1-d array of long,lat,long,lat
     List<int[]> counts;
     List<Integer> colours; //colours of the separate facets
+    UncertaintyPoints uncertainty; //points for uncertainty circles, loaded when first drawn
+    boolean bboxOnly; //points are only for the bbox
+    PointType pointType; //resolution of the points
     double[] bbox;
     long lastUse;
     long created;
@@ -107,6 +112,7 @@ public class WMSTile {
     public void clearObjects() {
         points = null;
         colours = null;
+        uncertainty = null;
     }
 
     public List<int[]> getCounts() {
@@ -117,6 +123,30 @@ public class WMSTile {
         this.counts = counts;
     }
 
+    public UncertaintyPoints getUncertainty() {
+        return uncertainty;
+    }
+
+    public void setUncertainty(UncertaintyPoints uncertainty) {
+        this.uncertainty = uncertainty;
+    }
+
+    public boolean isBboxOnly() {
+        return bboxOnly;
+    }
+
+    public void setBboxOnly(boolean bboxOnly) {
+        this.bboxOnly = bboxOnly;
+    }
+
+    public PointType getPointType() {
+        return pointType;
+    }
+
+    public void setPointType(PointType pointType) {
+        this.pointType = pointType;
+    }
+
     public void setCached(boolean cached) {
         this.cached = cached;
     }
@@ -133,6 +163,9 @@ public class WMSTile {
             }
         }
         size = sizeOf(numPoints, counts != null);
+        if (uncertainty != null) {
+            size += uncertainty.sizeOf();
+        }
     }
 
     /**
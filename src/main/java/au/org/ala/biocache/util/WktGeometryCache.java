@@ -0,0 +1,194 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of parsed WKT.
+ *
+ * Each WKT is parsed once. The geometry, its envelope, the components of a GEOMETRYCOLLECTION and the simplified
+ * WKT are kept with it. A simplified WKT is also added to the cache with its geometry, so that
+ * queries built from a simplified qid WKT do not parse it again.
+ *
+ * The cache is limited by the approximate size in bytes of the cached WKT and geometries.
+ */
+public class WktGeometryCache {
+
+    private final static Logger logger = Logger.getLogger(WktGeometryCache.class);
+
+    /**
+     * default max size in bytes
+     */
+    public static final long DEFAULT_MAX_SIZE = 52428800;
+
+    private static final SegmentedLruCache<String, WktGeometry> cache = new SegmentedLruCache<String, WktGeometry>(
+            DEFAULT_MAX_SIZE, 1000, new SegmentedLruCache.Weigher<WktGeometry>() {
+        @Override
+        public long weigh(WktGeometry value) {
+            //chars and coordinates
+            return value.wkt.length() * 2L + value.geometry.getNumPoints() * 48L;
+        }
+    });
+
+    /**
+     * @param maxSize max size in bytes
+     */
+    public static void setMaxSize(long maxSize) {
+        cache.setMaxWeight(maxSize);
+    }
+
+    public static void clear() {
+        cache.clear();
+    }
+
+    public static Map<String, Object> getStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Get parsed WKT.
+     *
+     * @param wkt
+     * @return null when the WKT is not valid
+     */
+    public static WktGeometry get(String wkt) {
+        WktGeometry g = cache.get(wkt);
+        if (g == null) {
+            try {
+                g = new WktGeometry(wkt, new WKTReader().read(wkt));
+            } catch (Exception e) {
+                logger.error("invalid WKT: " + e.getMessage());
+                return null;
+            }
+            cache.put(wkt, g);
+        }
+        return g;
+    }
+
+    /**
+     * Parsed WKT.
+     */
+    public static class WktGeometry {
+        private static final String FAILED = "";
+
+        private final String wkt;
+        private final Geometry geometry;
+        private final Envelope envelope;
+        private volatile String[] components;
+
+        //simplified WKT by simplification parameters
+        private final Map<String, String> simplified = new ConcurrentHashMap<String, String>();
+
+        WktGeometry(String wkt, Geometry geometry) {
+            this.wkt = wkt;
+            this.geometry = geometry;
+            this.envelope = geometry.getEnvelopeInternal();
+        }
+
+        public String getWkt() {
+            return wkt;
+        }
+
+        /**
+         * @return the geometry. It must not be modified.
+         */
+        public Geometry getGeometry() {
+            return geometry;
+        }
+
+        public Envelope getEnvelope() {
+            return envelope;
+        }
+
+        /**
+         * @return WKT of each geometry in a GEOMETRYCOLLECTION, or the WKT
+         */
+        public String[] getComponents() {
+            if (components == null) {
+                if (geometry instanceof GeometryCollection && wkt.startsWith("GEOMETRYCOLLECTION")) {
+                    String[] c = new String[geometry.getNumGeometries()];
+                    for (int i = 0; i < c.length; i++) {
+                        c[i] = geometry.getGeometryN(i).toText();
+                    }
+                    components = c;
+                } else {
+                    components = new String[]{wkt};
+                }
+            }
+            return components;
+        }
+
+        /**
+         * Simplify until the number of points is <= maxPoints. See SpatialUtils.simplifyWkt.
+         *
+         * @return the simplified WKT, the WKT when it has <= maxPoints, or null when simplification failed
+         */
+        public String getSimplified(int maxPoints, double distanceFactor, double distanceInitialPrecision, double distanceMaxPrecision) {
+            if (maxPoints <= 0 || geometry.getNumPoints() <= maxPoints) {
+                return wkt;
+            }
+
+            String key = maxPoints + " " + distanceFactor + " " + distanceInitialPrecision + " " + distanceMaxPrecision;
+            String result = simplified.get(key);
+            if (result == null) {
+                result = simplify(maxPoints, distanceFactor, distanceInitialPrecision, distanceMaxPrecision);
+                simplified.put(key, result);
+            }
+            return result == FAILED ? null : result;
+        }
+
+        private String simplify(int maxPoints, double distanceFactor, double distanceInitialPrecision, double distanceMaxPrecision) {
+            Geometry g = geometry;
+            try {
+                double distance = distanceInitialPrecision;
+                while (distance < distanceMaxPrecision) {
+                    g = TopologyPreservingSimplifier.simplify(g, distance);
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Simplified geometry to " + g.getNumPoints() + " at distance precision " + distance);
+                    }
+
+                    distance *= distanceFactor;
+
+                    if (g.getNumPoints() <= maxPoints) {
+                        String text = g.toText();
+                        cache.put(text, new WktGeometry(text, g));
+                        return text;
+                    }
+                }
+
+                logger.warn(
+                        "WKT simplification failed to achieve the required precision: " +
+                                " finalNumberOfPoints=" + g.getNumPoints() +
+                                " maxPoints=" + maxPoints +
+                                " distanceFactor=" + distanceFactor +
+                                " distanceInitialPrecision=" + distanceInitialPrecision +
+                                " distanceMaxPrecision=" + distanceMaxPrecision);
+            } catch (Exception e) {
+                logger.error("WKT reduction failed due to an exception: " + e.getMessage());
+            }
+            return FAILED;
+        }
+    }
+}
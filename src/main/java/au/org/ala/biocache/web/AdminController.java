@@ -16,9 +16,12 @@ package au.org.ala.biocache.web;
 
 import au.org.ala.biocache.Store;
 import au.org.ala.biocache.service.AuthService;
+import au.org.ala.biocache.util.CacheRegistry;
+import au.org.ala.biocache.util.ManagedCache;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -28,6 +31,7 @@ import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides administration web services for the biocache-service.
@@ -43,6 +47,10 @@ public class AdminController extends AbstractSecureController {
     private final static Logger logger = Logger.getLogger(AdminController.class);
     @Inject
     protected AuthService authService;
+    @Inject
+    protected WMSCacheSeeder wmsCacheSeeder;
+    @Inject
+    protected CacheRegistry cacheRegistry;
 
     @Value("${ingest.process.threads:4}")
     protected Integer ingestProcessingThreads;
@@ -163,6 +171,128 @@ public class AdminController extends AbstractSecureController {
         return Store.isReadOnly();
     }
 
+    /**
+     * Progress of seeding the WMS cache after an index version change.
+     * @return
+     */
+    @RequestMapping(value="/admin/wms/seed", method=RequestMethod.GET)
+    public @ResponseBody Map<String, Object> wmsSeedStatus() {
+        return wmsCacheSeeder.getStatus();
+    }
+
+    /**
+     * Starts seeding the WMS cache with the configured and most requested tiles.
+     * @param request
+     * @param response
+     * @return progress of the seeding
+     * @throws Exception
+     */
+    @RequestMapping(value="/admin/wms/seed/start", method=RequestMethod.GET)
+    public @ResponseBody Map<String, Object> startWmsSeed(HttpServletRequest request,
+                                                          @RequestParam(value = "apiKey", required = true) String apiKey,
+                                                          HttpServletResponse response) throws Exception {
+        if(!shouldPerformOperation(request, response)){
+            return null;
+        }
+        if(!wmsCacheSeeder.start()){
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Already seeding the WMS cache.");
+            return null;
+        }
+        return wmsCacheSeeder.getStatus();
+    }
+
+    /**
+     * Hits, misses, size and evictions of all registered caches.
+     * @return stats by cache name
+     */
+    @RequestMapping(value="/admin/cache", method=RequestMethod.GET)
+    public @ResponseBody Map<String, Map<String, Object>> cacheStats() {
+        return cacheRegistry.getStats();
+    }
+
+    /**
+     * Numeric stats of all registered caches in the Prometheus text format.
+     * @param response
+     * @throws Exception
+     */
+    @RequestMapping(value="/admin/cache/metrics", method=RequestMethod.GET)
+    public void cacheMetrics(HttpServletResponse response) throws Exception {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(cacheRegistry.getMetrics());
+    }
+
+    /**
+     * Stats of one cache.
+     * @param name
+     * @param response
+     * @return
+     * @throws Exception
+     */
+    @RequestMapping(value="/admin/cache/{name}", method=RequestMethod.GET)
+    public @ResponseBody Map<String, Object> cacheStats(@PathVariable("name") String name,
+                                                       HttpServletResponse response) throws Exception {
+        ManagedCache cache = cacheRegistry.get(name);
+        if (cache == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No cache named " + name);
+            return null;
+        }
+        return cache.getStats();
+    }
+
+    /**
+     * Removes all values from one cache.
+     * @param name
+     * @param request
+     * @param response
+     * @return stats of the cache
+     * @throws Exception
+     */
+    @RequestMapping(value="/admin/cache/{name}/invalidate", method={RequestMethod.GET, RequestMethod.POST})
+    public @ResponseBody Map<String, Object> invalidateCache(@PathVariable("name") String name,
+                                                            HttpServletRequest request,
+                                                            @RequestParam(value = "apiKey", required = true) String apiKey,
+                                                            HttpServletResponse response) throws Exception {
+        if(!shouldPerformOperation(request, response)){
+            return null;
+        }
+        if(!cacheRegistry.invalidate(name)){
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No cache named " + name);
+            return null;
+        }
+        return cacheRegistry.get(name).getStats();
+    }
+
+    /**
+     * Changes the max size of one cache. The unit of size, e.g. bytes or entries, is that of the cache maxSize.
+     * @param name
+     * @param size new max size
+     * @param request
+     * @param response
+     * @return stats of the cache
+     * @throws Exception
+     */
+    @RequestMapping(value="/admin/cache/{name}/resize", method={RequestMethod.GET, RequestMethod.POST})
+    public @ResponseBody Map<String, Object> resizeCache(@PathVariable("name") String name,
+                                                        @RequestParam(value = "size", required = true) Long size,
+                                                        HttpServletRequest request,
+                                                        @RequestParam(value = "apiKey", required = true) String apiKey,
+                                                        HttpServletResponse response) throws Exception {
+        if(!shouldPerformOperation(request, response)){
+            return null;
+        }
+        ManagedCache cache = cacheRegistry.get(name);
+        if (cache == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No cache named " + name);
+            return null;
+        }
+        if (size < 0 || !cacheRegistry.resize(name, size)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unable to resize cache " + name + " to " + size);
+            return null;
+        }
+        return cache.getStats();
+    }
+
     /**
      * Reloads caches of translation maps between user names, ids, and email addresses 
      * @return Returns the string "Done". Will perform the reload asynchronously if the auth.user.details.path property is set to a non-empty string
@@ -19,10 +19,10 @@ import au.org.ala.biocache.dto.OccurrencePoint;
 import au.org.ala.biocache.dto.PointType;
 import au.org.ala.biocache.dto.SpatialSearchRequestParams;
 import au.org.ala.biocache.heatmap.HeatMap;
+import au.org.ala.biocache.heatmap.HeatmapStore;
 import au.org.ala.biocache.util.ColorUtil;
 import au.org.ala.biocache.util.QueryFormatUtils;
 import au.org.ala.biocache.util.SearchUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.log4j.Logger;
@@ -50,6 +50,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
@@ -58,8 +59,8 @@ import java.util.concurrent.atomic.AtomicReference;
  * WMS and static map controller. This controller generates static PNG image files
  * that provide a heatmap of occurrences. 
  * 
- * TODO: This functionality is currently only supporting
- * overview maps for Australia but could be extended to support other regions.
+ * Static heatmaps default to an overview map for Australia. Other regions use the bbox, width, height and srs
+ * parameters.
  *
  * @author "Ajay Ranipeta <Ajay.Ranipeta@csiro.au>"
  *
@@ -71,8 +72,8 @@ public class MapController implements ServletConfigAware {
     /** Logger initialisation */
     private final static Logger logger = Logger.getLogger(MapController.class);
 
-    @Value("${heatmap.output.dir:/data/output/heatmap}")
-    protected String heatmapOutputDir;
+    @Inject
+    protected HeatmapStore heatmapStore;
 
     @Inject
     protected SearchDAO searchDAO;
@@ -466,16 +467,15 @@ public class MapController implements ServletConfigAware {
             @RequestParam(value = "colours", required = false, defaultValue = "") String coloursCSV,
             @RequestParam(value = "pointHeatMapThreshold", required = false, defaultValue = "500") Integer pointHeatMapThreshold,
             @RequestParam(value = "opacity", required = false, defaultValue = "1.0") Float opacity,
+            @RequestParam(value = "bbox", required = false) String bboxString,
+            @RequestParam(value = "width", required = false, defaultValue = "-1") Integer width,
+            @RequestParam(value = "height", required = false, defaultValue = "-1") Integer height,
+            @RequestParam(value = "srs", required = false, defaultValue = "EPSG:4326") String srs,
             HttpServletRequest request,
             HttpServletResponse response) throws Exception {
 
-        File outputDir = new File(heatmapOutputDir);
-        if(!outputDir.exists()){
-            FileUtils.forceMkdir(outputDir);
-        }
-
-        //output heatmap path
-        String outputHMFile = getOutputFile(request);
+        //output heatmap key
+        String key = getHeatmapKey(request);
 
         String[] facetValues = null;
         String[] facetColours = null;
@@ -486,50 +486,145 @@ public class MapController implements ServletConfigAware {
                 throw new IllegalArgumentException(String.format("Mismatch in facet values and colours. Values: %d, Colours: %d", facetValues.length, facetColours.length));
             }
         }
-               
-        //Does file exist on disk?
-        File f = new File(outputDir + "/" + outputHMFile);
 
-        if (!f.isFile() || !f.exists() || forceRefresh) {
+        if (isNotModified(key, request, response, forceRefresh)) {
+            return;
+        }
+
+        final String[] fqValues = facetValues;
+        final String[] fqColours = facetColours;
+        byte[] image = heatmapStore.getMap(key, forceRefresh, (mapFile, legendFile) -> {
             logger.debug("Regenerating heatmap image");
-            //If not, generate
-            generateStaticHeatmapImages(requestParams,  false, forcePointsDisplay, pointHeatMapThreshold, pointColour, facetValues, facetColours, opacity, request);
+            generateStaticHeatmapImages(requestParams, false, forcePointsDisplay, pointHeatMapThreshold, pointColour, fqValues, fqColours, opacity,
+                    getHeatmapExtent(requestParams, bboxString), width, height, srs, mapFile, legendFile);
+        });
+
+        writeImage(image, key, response);
+    }
+
+    /**
+     * Get the heatmap extent from the bbox parameter.
+     *
+     * @param requestParams
+     * @param bboxString minx,miny,maxx,maxy in decimal degrees, "auto" for the extent of the occurrences or empty
+     *                   for the default extent
+     * @return minx,miny,maxx,maxy in decimal degrees
+     * @throws Exception
+     */
+    private double[] getHeatmapExtent(SpatialSearchRequestParams requestParams, String bboxString) throws Exception {
+        if (StringUtils.isBlank(bboxString)) {
+            return HeatMap.DEFAULT_EXTENT;
+        }
+
+        double[] extent = new double[4];
+        if ("auto".equalsIgnoreCase(bboxString)) {
+            //getBBox changes the request
+            String[] fq = requestParams.getFq();
+            String sort = requestParams.getSort();
+            String dir = requestParams.getDir();
+            String fl = requestParams.getFl();
+            Integer pageSize = requestParams.getPageSize();
+
+            double[] bbox = searchDAO.getBBox(requestParams);
+
+            requestParams.setFq(fq);
+            requestParams.setSort(sort);
+            requestParams.setDir(dir);
+            requestParams.setFl(fl);
+            requestParams.setPageSize(pageSize);
+            requestParams.setFormattedQuery(null);
+
+            //pad by 5%, min 1 degree
+            double padX = Math.max(0.5, (bbox[2] - bbox[0]) * 0.05);
+            double padY = Math.max(0.5, (bbox[3] - bbox[1]) * 0.05);
+            extent[0] = Math.max(-180, bbox[0] - padX);
+            extent[1] = Math.max(-90, bbox[1] - padY);
+            extent[2] = Math.min(180, bbox[2] + padX);
+            extent[3] = Math.min(90, bbox[3] + padY);
         } else {
-            logger.debug("Heatmap file already exists on disk, sending file back to user");
+            String[] bounds = StringUtils.split(bboxString, ",");
+            if (bounds.length != 4) {
+                throw new IllegalArgumentException("bbox must be minx,miny,maxx,maxy or auto");
+            }
+            for (int i = 0; i < 4; i++) {
+                extent[i] = Double.parseDouble(bounds[i]);
+            }
         }
+        return extent;
+    }
 
+    /**
+     * Content key for the heatmap images of a request. The key is a hash of the normalised query string, without
+     * forceRefresh, and the index version so stored images are not used after the index changes.
+     *
+     * @param request
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @throws UnsupportedEncodingException
+     */
+    private String getHeatmapKey(HttpServletRequest request) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        List<String> params = new ArrayList<String>();
+        if (request.getQueryString() != null) {
+            for (String param : request.getQueryString().split("&")) {
+                if (param.length() > 0 && !param.toLowerCase().startsWith("forcerefresh=")) {
+                    params.add(param);
+                }
+            }
+        }
+        Collections.sort(params);
+
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        md.update((StringUtils.join(params, "&") + "|" + searchDAO.getIndexVersion(false)).getBytes("UTF-8"));
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Respond with 304 when the If-None-Match header matches the heatmap key.
+     *
+     * @return true when the response is complete
+     */
+    private boolean isNotModified(String key, HttpServletRequest request, HttpServletResponse response, boolean forceRefresh) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (!forceRefresh && ifNoneMatch != null && ifNoneMatch.contains("\"" + key + "\"")) {
+            response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
+            response.setHeader("ETag", "\"" + key + "\"");
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send a stored image.
+     *
+     * @param bytes image, or null when there is no image
+     * @param key heatmap key, used as the ETag
+     * @param response
+     */
+    private void writeImage(byte[] bytes, String key, HttpServletResponse response) {
         response.setContentType("image/png");
         response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
-        response.setHeader("ETag", mapETag.get());
+        response.setHeader("ETag", "\"" + key + "\"");
+        //only send the image back if it actually exists - a legend won't exist if we create the map based on points
+        if (bytes == null) {
+            return;
+        }
         try {
-            //read file off disk and send back to user
-            File file = new File(outputDir + "/" + outputHMFile);
-            BufferedImage img = ImageIO.read(file);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(img, "png", outputStream);
+            response.setContentLength(bytes.length);
             ServletOutputStream outStream = response.getOutputStream();
-            outStream.write(outputStream.toByteArray());
+            outStream.write(bytes);
             outStream.flush();
             outStream.close();
-
         } catch (Exception e) {
             logger.error("Unable to write image.", e);
         }
     }
 
-    private String getQueryHash(HttpServletRequest request) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        //replace forceRefresh if it is first or not
-        String qs = request.getQueryString().replaceAll("&(?i)forceRefresh=true", "").replaceAll("(?i)forceRefresh=true&", "");
-        md.update(qs.getBytes("UTF-8"));
-        byte[] digest = md.digest();
-        StringBuffer sb = new StringBuffer();
-        for (byte b : digest) {
-            sb.append(Integer.toHexString((int) (b & 0xff)));
-        }
-        return sb.toString();
-    }
-
     /**
      * This method creates and renders a density map legend for a species.
      * 
@@ -539,53 +634,37 @@ public class MapController implements ServletConfigAware {
     public @ResponseBody void speciesDensityLegend(SpatialSearchRequestParams requestParams,
             @RequestParam(value = "forceRefresh", required = false, defaultValue = "false") boolean forceRefresh,
            @RequestParam(value = "pointHeatMapThreshold", required = false, defaultValue = "500") Integer pointHeatMapThreshold,
+            @RequestParam(value = "bbox", required = false) String bboxString,
+            @RequestParam(value = "width", required = false, defaultValue = "-1") Integer width,
+            @RequestParam(value = "height", required = false, defaultValue = "-1") Integer height,
+            @RequestParam(value = "srs", required = false, defaultValue = "EPSG:4326") String srs,
             HttpServletRequest request,
            HttpServletResponse response) throws Exception {
 
-        File baseDir = new File(heatmapOutputDir);
-
-        String outputHMFile = getOutputFile(request);
+        String key = getHeatmapKey(request);
 
-        //Does file exist on disk?
-        File f = new File(baseDir + "/" + "legend_" + outputHMFile);
-        
-        if (!f.isFile() || !f.exists() || forceRefresh) {
-            //If not, generate
-            logger.debug("regenerating heatmap legend");
-            generateStaticHeatmapImages(requestParams, true, false,  pointHeatMapThreshold, "0000ff", null, null, 1.0f, request);
-        } else {
-            logger.debug("legend file already exists on disk, sending file back to user");
+        if (isNotModified(key, request, response, forceRefresh)) {
+            return;
         }
 
-        response.setContentType("image/png");
-        response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
-        response.setHeader("ETag", mapETag.get());
-        //read file off disk and send back to user
-        try {
-            File file = new File(baseDir + "/" + "legend_" + outputHMFile);
-            //only send the image back if it actually exists - a legend won't exist if we create the map based on points
-            if(file.exists()){
-                BufferedImage img = ImageIO.read(file);
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                ImageIO.write(img, "png", outputStream);
-                ServletOutputStream outStream = response.getOutputStream();
-                outStream.write(outputStream.toByteArray());
-                outStream.flush();
-                outStream.close();
-            }
-
-        } catch (Exception e) {
-            logger.error("Unable to write image.", e);
-        }
-    }
+        byte[] image = heatmapStore.getLegend(key, forceRefresh, (mapFile, legendFile) -> {
+            logger.debug("regenerating heatmap legend");
+            generateStaticHeatmapImages(requestParams, true, false, pointHeatMapThreshold, "0000ff", null, null, 1.0f,
+                    getHeatmapExtent(requestParams, bboxString), width, height, srs, mapFile, legendFile);
+        });
 
-    private String getOutputFile(HttpServletRequest request) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        return getQueryHash(request) + "_hm.png";
+        writeImage(image, key, response);
     }
 
     /**
      * Generate heatmap image (and associated legend if applicable)
      * @param requestParams
+     * @param extent minx,miny,maxx,maxy of the image in decimal degrees
+     * @param width image width in pixels, or -1 for the default
+     * @param height image height in pixels, or -1 for the default
+     * @param srs image projection, EPSG:4326 or EPSG:3857
+     * @param mapFile heatmap image output file
+     * @param legendFile legend image output file
      */
     public void generateStaticHeatmapImages(
             SpatialSearchRequestParams requestParams, 
@@ -596,20 +675,27 @@ public class MapController implements ServletConfigAware {
             String[] colourByFq,
             String[] colours,
             Float opacity,
-            HttpServletRequest request) throws Exception {
-        
-        File baseDir = new File(heatmapOutputDir);
-        logger.debug("Heatmap output directory is " + heatmapOutputDir);
-        String outputHMFile = getOutputFile(request);
+            double[] extent,
+            int width,
+            int height,
+            String srs,
+            File mapFile,
+            File legendFile) throws Exception {
 
         PointType pointType = PointType.POINT_001;
 
-        double[] points = retrievePoints(requestParams, pointType);
+        List<int[]> weights = new ArrayList<int[]>(1);
+        float[] points = retrievePoints(requestParams, pointType, weights);
+        int[] counts = weights.get(0);
+        long totalItems = 0;
+        for (int c : counts) {
+            totalItems += c;
+        }
         
-        HeatMap hm = new HeatMap();
+        HeatMap hm = new HeatMap(extent, width, height, srs);
 
         //heatmap versus points
-        if (forcePointsDisplay || points.length == 0 || (points.length / 2) < pointHeatMapThreshold) {
+        if (forcePointsDisplay || points.length == 0 || totalItems < pointHeatMapThreshold) {
             hm.setLegendImage(null);
             if (!generateLegend && colourByFq != null){
                 String[] originalFq = requestParams.getFq();
@@ -619,11 +705,11 @@ public class MapController implements ServletConfigAware {
                     } else {
                         requestParams.setFq(new String[]{colourByFq[k]});
                     }
-                    if(forcePointsDisplay && points.length > 0 && (points.length / 2 < pointHeatMapThreshold) ){
+                    if(forcePointsDisplay && points.length > 0 && totalItems < pointHeatMapThreshold){
                         pointType = PointType.POINT_01;
                     }
 
-                    double[] pointsForFacet = retrievePoints(requestParams, pointType);
+                    float[] pointsForFacet = retrievePoints(requestParams, pointType, null);
                     Color pointColor = ColorUtil.getColor(colours[k], opacity);
 
                     String facetDisplayString = queryFormatUtils.formatQueryTerm(colourByFq[k], null)[0];
@@ -633,59 +719,48 @@ public class MapController implements ServletConfigAware {
                 Color pointColor = ColorUtil.getColor(defaultPointColour, opacity);
                 hm.generatePoints(points, pointColor, heatmapLegendOccurrenceLabel);
             }
-            hm.drawOutput(baseDir + "/" + outputHMFile, false);
-            hm.drawLegend(baseDir + "/legend_" + outputHMFile);
+            hm.drawOutput(mapFile.getPath(), false);
+            hm.drawLegend(legendFile.getPath());
         } else {
-            hm.generateClasses(points); //this will create legend
+            hm.generateClasses(points, counts); //this will create legend
             if (generateLegend){
-                hm.drawLegend(baseDir + "/legend_" + outputHMFile);
+                hm.drawLegend(legendFile.getPath());
             } else {
-                hm.drawOutput(baseDir + "/" + outputHMFile, true);
+                hm.drawOutput(mapFile.getPath(), true);
             }
         }
     }
 
     /**
-     * Returns an array of points in the format [lat1,long1,lat2,long2,.....]
+     * Returns the distinct points in the format [long1,lat1,long2,lat2,.....]
      *
      * @param requestParams
      * @param pointType
+     * @param counts when not null, the number of occurrences at each point is added
      * @return returns an empty array if none found.
      */
-    private double[] retrievePoints(SpatialSearchRequestParams requestParams, PointType pointType) {
+    private float[] retrievePoints(SpatialSearchRequestParams requestParams, PointType pointType, List<int[]> counts) {
 
-        double[] points = new double[0];
+        List<float[]> points = new ArrayList<float[]>(1);
+        List<int[]> pointCounts = new ArrayList<int[]>(1);
         try {
-            requestParams.setQ(requestParams.getQ());
-            List<OccurrencePoint> occ_points = searchDAO.getFacetPoints(requestParams, pointType);
+            requestParams.setFlimit(-1);
+            searchDAO.getFacetPointsPacked(requestParams, pointType.getLabel(), points, pointCounts);
             if(logger.isDebugEnabled()){
-                logger.debug("Points search for " + pointType.getLabel() + " - found: " + occ_points.size());
-            }
-
-            int totalItems = 0;
-            for (int i = 0; i < occ_points.size(); i++) {
-                OccurrencePoint pt = occ_points.get(i);
-                totalItems = (int) (totalItems + pt.getCount());
-            }
-
-            logger.debug("total number of occurrence points is " + totalItems);
-
-            points = new double[totalItems * 2];
-
-            int j = 0;
-            for (int i = 0; i < occ_points.size(); i++) {
-                OccurrencePoint pt = occ_points.get(i);
-                pt.getCount();
-                double lng = pt.getCoordinates().get(0).doubleValue();
-                double lat = pt.getCoordinates().get(1).doubleValue();
-                points[j] = lng;
-                points[j + 1] = lat;
-                j = j + 2;
+                logger.debug("Points search for " + pointType.getLabel() + " - found: " + pointCounts.get(0).length);
             }
         } catch (Exception e) {
             logger.error("An error occurred getting heatmap points", e);
         }
-        return points;
+
+        if (points.isEmpty()) {
+            points.add(new float[0]);
+            pointCounts.add(new int[0]);
+        }
+        if (counts != null) {
+            counts.add(pointCounts.get(0));
+        }
+        return points.get(0);
     }
 
     public void setSearchDAO(SearchDAO searchDAO) {
@@ -0,0 +1,393 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.web;
+
+import au.org.ala.biocache.dao.SearchDAO;
+import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.validation.DataBinder;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Refills the WMSCache in the background after the index version changes.
+ *
+ * WMS tile requests are counted by layer, the query string without BBOX, WIDTH and HEIGHT. When a new index version
+ * is found the WMSCache is emptied and the tiles listed in wms.seed.file, followed by a tile of each of the
+ * wms.seed.top most requested layers, are replayed on a low priority thread. Replaying a tile runs the points query
+ * only, no image is rendered. The WMSCache holds the points of a layer, or of the area around the tile when the
+ * layer has too many points.
+ *
+ * Counting does not lock, so it can be done for every tile request.
+ */
+@Component("wmsCacheSeeder")
+public class WMSCacheSeeder {
+
+    private final static Logger logger = Logger.getLogger(WMSCacheSeeder.class);
+
+    public static final String STATE_IDLE = "idle";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_FINISHED = "finished";
+
+    @Inject
+    protected SearchDAO searchDAO;
+
+    @Inject
+    protected WMSController wmsController;
+
+    /**
+     * Enable seeding the WMSCache when the index version changes.
+     */
+    @Value("${wms.seed.enabled:true}")
+    protected Boolean enabled;
+
+    /**
+     * Number of the most requested tiles to replay.
+     */
+    @Value("${wms.seed.top:100}")
+    protected Integer top;
+
+    /**
+     * Optional file of tile requests to replay, one query string per line.
+     */
+    @Value("${wms.seed.file:}")
+    protected String seedFile;
+
+    /**
+     * Max number of distinct layers to count.
+     */
+    @Value("${wms.seed.log.size:10000}")
+    protected Integer logSize;
+
+    /**
+     * Pause in ms between replayed tiles.
+     */
+    @Value("${wms.seed.delay:50}")
+    protected Long delay;
+
+    //request counts by layer
+    private final ConcurrentHashMap<String, LoggedRequest> requestLog = new ConcurrentHashMap<String, LoggedRequest>();
+
+    private Long indexVersion;
+
+    private final Object statusLock = new Object();
+    private Thread seedThread;
+    private String state = STATE_IDLE;
+    private Long seedIndexVersion;
+    private int total;
+    private int done;
+    private int failed;
+    private int empty;
+    private long startTime;
+    private long endTime;
+    private long tileTime;
+
+    /**
+     * Count a WMS tile request.
+     *
+     * @param request
+     */
+    public void record(HttpServletRequest request) {
+        String queryString = request.getQueryString();
+        if (!enabled || top <= 0 || StringUtils.isEmpty(queryString)) {
+            return;
+        }
+
+        String key = getLayerKey(queryString);
+        LoggedRequest logged = requestLog.get(key);
+        if (logged == null) {
+            if (requestLog.size() >= logSize) {
+                //full, only layers that are already counted are counted until the next seeding
+                return;
+            }
+            LoggedRequest added = new LoggedRequest(queryString);
+            logged = requestLog.putIfAbsent(key, added);
+            if (logged == null) {
+                logged = added;
+            }
+        }
+        logged.count.increment();
+    }
+
+    /**
+     * The layer of a tile request, the sorted query string parameters without BBOX, WIDTH and HEIGHT.
+     *
+     * @param queryString
+     * @return
+     */
+    static String getLayerKey(String queryString) {
+        List<String> params = new ArrayList<String>();
+        for (String pair : StringUtils.split(queryString, '&')) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            if (!"BBOX".equalsIgnoreCase(name) && !"WIDTH".equalsIgnoreCase(name) && !"HEIGHT".equalsIgnoreCase(name)) {
+                params.add(pair);
+            }
+        }
+        Collections.sort(params);
+        return StringUtils.join(params, '&');
+    }
+
+    /**
+     * Start seeding when the index version has changed.
+     */
+    @Scheduled(fixedDelayString = "${wms.seed.check.interval:60000}")
+    public void checkIndexVersion() {
+        if (!enabled) {
+            return;
+        }
+
+        Long version = searchDAO.getIndexVersion(false);
+        if (version == null || version.equals(indexVersion)) {
+            return;
+        }
+
+        boolean changed = indexVersion != null;
+        indexVersion = version;
+        if (changed) {
+            logger.info("New index version " + version + ", seeding the WMS cache");
+            wmsController.emptyWmsCache();
+            start();
+        }
+    }
+
+    /**
+     * Start seeding the WMSCache unless it is already running.
+     *
+     * @return false when seeding is already running
+     */
+    public boolean start() {
+        synchronized (statusLock) {
+            if (seedThread != null && seedThread.isAlive()) {
+                return false;
+            }
+
+            seedThread = new Thread("biocache-wms-seed") {
+                @Override
+                public void run() {
+                    seed();
+                }
+            };
+            seedThread.setDaemon(true);
+            seedThread.setPriority(Thread.MIN_PRIORITY);
+            seedThread.start();
+            return true;
+        }
+    }
+
+    /**
+     * Progress of the current or last seeding.
+     *
+     * @return
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        synchronized (statusLock) {
+            status.put("state", state);
+            status.put("indexVersion", seedIndexVersion);
+            status.put("total", total);
+            status.put("done", done);
+            status.put("failed", failed);
+            status.put("empty", empty);
+            if (startTime > 0) {
+                status.put("startTime", new Date(startTime));
+                long elapsed = (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+                status.put("elapsedMs", elapsed);
+            }
+            if (endTime > 0) {
+                status.put("endTime", new Date(endTime));
+            }
+            status.put("meanTileMs", done > 0 ? tileTime / done / 1000000 : 0);
+        }
+        status.put("loggedLayers", requestLog.size());
+        return status;
+    }
+
+    private void seed() {
+        List<Map<String, String[]>> tiles = getSeedTiles();
+
+        synchronized (statusLock) {
+            state = STATE_RUNNING;
+            seedIndexVersion = indexVersion;
+            total = tiles.size();
+            done = 0;
+            failed = 0;
+            empty = 0;
+            startTime = System.currentTimeMillis();
+            endTime = 0;
+            tileTime = 0;
+        }
+
+        for (Map<String, String[]> params : tiles) {
+            long start = System.nanoTime();
+            boolean hasPoints = false;
+            boolean error = false;
+            try {
+                hasPoints = seedTile(params);
+            } catch (Exception e) {
+                error = true;
+                logger.debug("Failed to seed WMS tile: " + params.keySet(), e);
+            }
+
+            synchronized (statusLock) {
+                done++;
+                tileTime += System.nanoTime() - start;
+                if (error) {
+                    failed++;
+                } else if (!hasPoints) {
+                    empty++;
+                }
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        synchronized (statusLock) {
+            state = STATE_FINISHED;
+            endTime = System.currentTimeMillis();
+            logger.info("Seeded the WMS cache with " + done + " tiles in " + (endTime - startTime) + "ms, "
+                    + failed + " failed, " + empty + " empty");
+        }
+    }
+
+    /**
+     * Tiles from wms.seed.file followed by a tile of each of the most requested layers. The least requested layers
+     * are removed from the counts so new layers can be counted.
+     */
+    List<Map<String, String[]>> getSeedTiles() {
+        List<Map<String, String[]>> tiles = new ArrayList<Map<String, String[]>>();
+
+        if (StringUtils.isNotEmpty(seedFile)) {
+            try {
+                for (String line : FileUtils.readLines(new File(seedFile), "UTF-8")) {
+                    line = line.trim();
+                    if (line.length() > 0 && !line.startsWith("#")) {
+                        tiles.add(parseQueryString(line));
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Failed to read WMS seed file: " + seedFile, e);
+            }
+        }
+
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, LoggedRequest> entry : requestLog.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().count.sum());
+        }
+        List<String> layers = new ArrayList<String>(counts.keySet());
+        Collections.sort(layers, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Long.compare(counts.get(o2), counts.get(o1));
+            }
+        });
+        for (int i = 0; i < layers.size() && i < top; i++) {
+            LoggedRequest logged = requestLog.get(layers.get(i));
+            if (logged != null) {
+                try {
+                    tiles.add(parseQueryString(logged.queryString));
+                } catch (Exception e) {
+                    logger.debug("Failed to parse WMS tile request: " + logged.queryString, e);
+                }
+            }
+        }
+
+        //keep the most requested half
+        for (int i = Math.max(top, logSize / 2); i < layers.size(); i++) {
+            requestLog.remove(layers.get(i));
+        }
+
+        return tiles;
+    }
+
+    private boolean seedTile(Map<String, String[]> params) throws Exception {
+        SpatialSearchRequestParams requestParams = new SpatialSearchRequestParams();
+        new DataBinder(requestParams).bind(new MutablePropertyValues(params));
+
+        return wmsController.seedWmsTile(requestParams,
+                getParam(params, "CQL_FILTER", null),
+                getParam(params, "ENV", ""),
+                getParam(params, "SRS", "EPSG:3857"),
+                getParam(params, "STYLES", ""),
+                getParam(params, "BBOX", null),
+                Integer.parseInt(getParam(params, "WIDTH", "256")),
+                Integer.parseInt(getParam(params, "HEIGHT", "256")),
+                getParam(params, "LAYERS", ""));
+    }
+
+    private static String getParam(Map<String, String[]> params, String name, String defaultValue) {
+        String[] values = params.get(name);
+        return values != null && values.length > 0 ? values[0] : defaultValue;
+    }
+
+    /**
+     * Parse a URL encoded query string into a parameter map.
+     *
+     * @param queryString
+     * @return
+     */
+    static Map<String, String[]> parseQueryString(String queryString) throws UnsupportedEncodingException {
+        Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+        int start = queryString.indexOf('?');
+        for (String pair : queryString.substring(start + 1).split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            List<String> list = values.get(name);
+            if (list == null) {
+                list = new ArrayList<String>();
+                values.put(name, list);
+            }
+            list.add(value);
+        }
+
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            params.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+        }
+        return params;
+    }
+
+    private static class LoggedRequest {
+        //first tile request of the layer, replayed when seeding
+        final String queryString;
+        final LongAdder count = new LongAdder();
+
+        LoggedRequest(String queryString) {
+            this.queryString = queryString;
+        }
+    }
+}
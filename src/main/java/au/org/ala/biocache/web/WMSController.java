@@ -22,7 +22,7 @@ import au.org.ala.biocache.model.Qid;
 import au.org.ala.biocache.util.*;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.collections.map.LRUMap;
+import com.google.common.hash.Hashing;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.response.FacetField;
@@ -45,20 +45,24 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.ModelAndView;
 
 import javax.imageio.ImageIO;
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -125,6 +129,10 @@ public class WMSController extends AbstractSecureController{
     protected QidCacheDAO qidCacheDAO;
     @Inject
     protected WMSCache wmsCache;
+    @Inject
+    protected WMSRenderPool wmsRenderPool;
+    @Inject
+    protected WMSCacheSeeder wmsCacheSeeder;
 
     /**
      * Load a smaller 256x256 png than java.image produces
@@ -166,6 +174,13 @@ public class WMSController extends AbstractSecureController{
     @Value("${wms.capabilities.focus:latitude:[-90 TO 90] AND longitude:[-180 TO 180]}")
     protected String limitToFocusValue;
 
+    /**
+     * Use a SOLR facet.heatmap for colormode grid tiles instead of aggregating the cached points. Requires the
+     * spatial field to be a SOLR RPT field.
+     */
+    @Value("${wms.grid.heatmap.enabled:false}")
+    private boolean wmsGridHeatmapEnabled;
+
     /**
      * Threshold for caching a whole PointType for a query or only caching the current bounding box.
      */
@@ -191,11 +206,48 @@ public class WMSController extends AbstractSecureController{
     @Value("${wms.cache.cachecontrol.maxage:86400}")
     private String wmsCacheControlHeaderMaxAge;
 
+    /**
+     * Retry-After value in seconds for WMS tiles that are not rendered because the render pool is busy.
+     */
+    @Value("${wms.render.retryAfter:5}")
+    private int wmsRenderRetryAfter = 5;
+
+    /**
+     * Return a blank tile, instead of HTTP 503, for WMS tiles that are not rendered because the render pool is busy.
+     */
+    @Value("${wms.render.busy.blank:true}")
+    private boolean wmsRenderBusyBlank = true;
+
+    /**
+     * Deflate level, 0 to 9, for PNG WMS tiles and legend graphics.
+     */
+    @Value("${wms.png.level:4}")
+    private int wmsPngLevel = PngEncoder.DEFAULT_LEVEL;
+
+    /**
+     * Half the circumference of the earth in EPSG:3857 metres. Extents of vector tiles are -/+ this value.
+     */
+    private static final double MERCATOR_MAX = 20037508.342789244;
+
     private final AtomicReference<String> wmsETag = new AtomicReference<String>(UUID.randomUUID().toString());
 
+    /**
+     * Max number of cached occurrence and point counts.
+     */
+    @Value("${wms.counts.cache.size:10000}")
+    private int countsCacheSize = 10000;
+
+    /**
+     * Max age in ms of cached occurrence and point counts. Counts are also reloaded when the index version changes.
+     */
+    @Value("${wms.counts.cache.age.max:3600000}")
+    private long countsCacheMaxAge = 3600000;
+
     //Stores query hashes + occurrence counts, and, query hashes + pointType + point counts
-    private LRUMap countsCache = new LRUMap(10000);
-    private final Object countLock = new Object();
+    private VersionedCache<String, Integer> countsCache;
+
+    @Inject
+    protected CacheRegistry cacheRegistry;
 
     @Inject
     protected WMSOSGridController wmsosGridController;
@@ -218,6 +270,12 @@ public class WMSController extends AbstractSecureController{
     @Inject
     EhCacheManagerFactoryBean cacheManager;
 
+    @PostConstruct
+    public void init() {
+        countsCache = new VersionedCache<String, Integer>("wmsCounts", countsCacheSize, countsCacheMaxAge);
+        cacheRegistry.register(countsCache);
+    }
+
     @RequestMapping(value = {"/webportal/params", "/mapping/params"}, method = RequestMethod.POST)
     public void storeParams(SpatialSearchRequestParams requestParams,
                             @RequestParam(value = "bbox", required = false, defaultValue = "false") String bbox,
@@ -419,6 +477,8 @@ public class WMSController extends AbstractSecureController{
         requestParams.setFormattedQuery(null);
         List<LegendItem> legend = searchDAO.getLegend(requestParams, s[0], cutpoints);
         if (cutpoints == null) {
+            //the cached legend is shared
+            legend = new ArrayList<LegendItem>(legend);
             java.util.Collections.sort(legend);
         }
         StringBuilder sb = new StringBuilder();
@@ -1032,7 +1092,7 @@ public class WMSController extends AbstractSecureController{
                 response.setContentType("image/png");
                 response.setHeader("Cache-Control", wmsCacheControlHeaderPublicOrPrivate + ", max-age=" + wmsCacheControlHeaderMaxAge);
                 response.setHeader("ETag", wmsETag.get());
-                ImageIO.write(img, "png", out);
+                PngEncoder.write(img, wmsPngLevel, out);
             }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
@@ -1407,6 +1467,11 @@ public class WMSController extends AbstractSecureController{
             logger.debug("WMS tile: " + request.getQueryString());
         }
 
+        //popular tiles are replayed to refill the cache for a new index
+        if (!"off".equals(cache)) {
+            wmsCacheSeeder.record(request);
+        }
+
         response.setHeader("Cache-Control", wmsCacheControlHeaderPublicOrPrivate + ", max-age=" + wmsCacheControlHeaderMaxAge);
         response.setHeader("ETag", wmsETag.get());
         response.setContentType("image/png"); //only png images generated
@@ -1417,9 +1482,7 @@ public class WMSController extends AbstractSecureController{
         double[] pbbox = new double[4];
         double[] tilebbox = new double[4];
 
-        //bbox adjustment for WMSCache is better with a stepped size
-        int steppedSize = (int) (Math.ceil(vars.size / 20.0) * 20);
-        int size = steppedSize + (vars.highlight != null ? HIGHLIGHT_RADIUS * 2 + (int) (steppedSize * 0.2) : 0) + 5;  //bounding box buffer
+        int size = getBBoxBuffer(vars);
 
         CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
         CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
@@ -1437,48 +1500,21 @@ public class WMSController extends AbstractSecureController{
             logger.debug("Rendering: " + pointType.name());
         }
 
-        String[] boundingBoxFqs = new String[2];
-        boundingBoxFqs[0] = String.format(Locale.ROOT, "longitude:[%f TO %f]", bbox[0], bbox[2]);
-        boundingBoxFqs[1] = String.format(Locale.ROOT, "latitude:[%f TO %f]", bbox[1], bbox[3]);
+        String[] boundingBoxFqs = getBoundingBoxFqs(bbox);
 
-        int pointWidth = vars.size * 2;
         double width_mult = (width / (pbbox[2] - pbbox[0]));
         double height_mult = (height / (pbbox[1] - pbbox[3]));
 
 
-        //CQL Filter takes precedence of the layer
-        String q = "";
-        if (StringUtils.trimToNull(cql_filter) != null) {
-            q = WMSUtils.getQ(cql_filter);
-        } else if (StringUtils.trimToNull(layers) != null && !"ALA:Occurrences".equalsIgnoreCase(layers)) {
-            q = WMSUtils.convertLayersParamToQ(layers);
-        }
-
-        //build request
-        if (q.length() > 0) {
-            requestParams.setQ(q);
-        } else {
-            q = requestParams.getQ();
-        }
+        applyLayerQuery(requestParams, cql_filter, layers);
 
-        //bounding box test (requestParams must be 'qid:' + number only)
-        if (q.startsWith("qid:") && StringUtils.isEmpty(requestParams.getWkt()) &&
-                (requestParams.getFq().length == 0 ||
-                        (requestParams.getFq().length == 1 && StringUtils.isEmpty(requestParams.getFq()[0])))) {
-            double[] queryBBox = qidCacheDAO.get(q.substring(4)).getBbox();
-            if (queryBBox != null && (queryBBox[0] > bbox[2] || queryBBox[2] < bbox[0]
-                    || queryBBox[1] > bbox[3] || queryBBox[3] < bbox[1])) {
-                displayBlankImage(response);
-                return null;
-            }
+        if (isOutsideQidBBox(requestParams, bbox)) {
+            displayBlankImage(response);
+            return null;
         }
 
         String[] originalFqs = qidCacheDAO.getFq(requestParams);
 
-        //get from cache, or make it
-        boolean canCache = wmsCache.isEnabled() && "on".equalsIgnoreCase(cache);
-        WMSTile wco = getWMSCacheObject(requestParams, vars, pointType, bbox, originalFqs, boundingBoxFqs, canCache);
-
         //correction for gridDivisionCount
         boolean isGrid = vars.colourMode.equals("grid");
         if (isGrid) {
@@ -1491,15 +1527,72 @@ public class WMSController extends AbstractSecureController{
             }
         }
 
-        ImgObj imgObj = wco.getPoints() == null ? null :
-                wmsCached(wco, requestParams, vars, pointType, pbbox, bbox, mbbox, width, height, width_mult,
-                        height_mult, pointWidth, originalFqs, hq, boundingBoxFqs, outlinePoints, outlineColour,
-                        response, tilebbox, gridDivisionCount, transformFrom4326);
+        //all SOLR queries are on the request thread, only rendering and encoding are on the bounded render pool
+        final boolean heatmapGrid = isGrid && wmsGridHeatmapEnabled;
+        final int divisions = gridDivisionCount;
+        long start = System.nanoTime();
+        WMSTile wco = null;
+        HeatmapDTO heatmap = null;
+        UncertaintyPoints up = null;
+        if (heatmapGrid) {
+            if (vars.alpha > 0 && vars.size > 0) {
+                heatmap = queryHeatmapGrid(requestParams, originalFqs, boundingBoxFqs, bboxString, divisions, transformTo4326);
+            }
+        } else {
+            //get from cache, or make it
+            boolean canCache = wmsCache.isEnabled() && "on".equalsIgnoreCase(cache);
+            wco = getWMSCacheObject(requestParams, vars, pointType, bbox, originalFqs, boundingBoxFqs, canCache);
+
+            if (wco.getPoints() == null) {
+                wmsRenderPool.record(WMSRenderPool.STAGE_QUERY, System.nanoTime() - start);
+                displayBlankImage(response);
+                return null;
+            }
+
+            if (!isGrid && vars.alpha > 0 && vars.size > 0 && isUncertaintyDrawn(vars, height, mbbox)) {
+                up = getUncertaintyPoints(requestParams, originalFqs, bbox, pointType, wco);
+            }
+        }
+        float[] highlight = vars.highlight != null ?
+                queryHighlight(requestParams, vars, pointType, originalFqs, boundingBoxFqs) : null;
+        wmsRenderPool.record(WMSRenderPool.STAGE_QUERY, System.nanoTime() - start);
+
+        final WMSTile tile = wco;
+        final HeatmapDTO heatmapCounts = heatmap;
+        final UncertaintyPoints uncertaintyPoints = up;
 
-        if (imgObj != null && imgObj.g != null) {
-            imgObj.g.dispose();
+        byte[] png;
+        try {
+            png = wmsRenderPool.render(() -> {
+                long renderStart = System.nanoTime();
+                ImgObj imgObj;
+                if (heatmapGrid) {
+                    imgObj = wmsHeatmapGrid(heatmapCounts, vars, width, height, tilebbox, transformFrom4326, highlight);
+                } else {
+                    imgObj = wmsCached(tile, vars, pbbox, bbox, mbbox, width, height, width_mult,
+                            height_mult, hq, outlinePoints, outlineColour,
+                            tilebbox, divisions, transformFrom4326, uncertaintyPoints, highlight);
+                }
+                wmsRenderPool.record(WMSRenderPool.STAGE_RENDER, System.nanoTime() - renderStart);
+
+                if (imgObj == null || imgObj.g == null) {
+                    return null;
+                }
+                imgObj.g.dispose();
+
+                long encodeStart = System.nanoTime();
+                byte[] bytes = PngEncoder.encode(imgObj.img, wmsPngLevel);
+                wmsRenderPool.record(WMSRenderPool.STAGE_ENCODE, System.nanoTime() - encodeStart);
+                return bytes;
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("WMS tile not rendered: " + e.getMessage());
+            return sendBusyTile(response);
+        }
+
+        if (png != null) {
             try (ServletOutputStream outStream = response.getOutputStream();){
-                ImageIO.write(imgObj.img, "png", outStream);
+                outStream.write(png);
                 outStream.flush();
             } catch (Exception e) {
                 logger.debug("Unable to write image", e);
@@ -1510,6 +1603,289 @@ public class WMSController extends AbstractSecureController{
         return null;
     }
 
+    /**
+     * Fill the WMSCache for a tile request without rendering the tile. Used to refill the cache for a new index.
+     *
+     * @return true when the tile has points
+     * @throws Exception
+     */
+    boolean seedWmsTile(SpatialSearchRequestParams requestParams, String cql_filter, String env, String srs,
+                        String styles, String bboxString, int width, int height, String layers) throws Exception {
+        WmsEnv vars = new WmsEnv(env, styles);
+        if (vars.colourMode.equals("grid") && wmsGridHeatmapEnabled) {
+            //not cached
+            return false;
+        }
+
+        double[] mbbox = new double[4];
+        double[] bbox = new double[4];
+        double[] pbbox = new double[4];
+        double[] tilebbox = new double[4];
+
+        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
+        CoordinateOperation transformTo4326 = new DefaultCoordinateOperationFactory().createOperation(
+                factory.createCoordinateReferenceSystem(srs), factory.createCoordinateReferenceSystem("EPSG:4326"));
+        double resolution = getBBoxesSRS(transformTo4326, bboxString, width, height, getBBoxBuffer(vars), vars.uncertainty,
+                mbbox, bbox, pbbox, tilebbox);
+        PointType pointType = getPointTypeForDegreesPerPixel(resolution);
+
+        applyLayerQuery(requestParams, cql_filter, layers);
+        if (isOutsideQidBBox(requestParams, bbox)) {
+            return false;
+        }
+
+        String[] originalFqs = qidCacheDAO.getFq(requestParams);
+        WMSTile wco = getWMSCacheObject(requestParams, vars, pointType, bbox, originalFqs, getBoundingBoxFqs(bbox),
+                wmsCache.isEnabled());
+        return wco.getPoints() != null;
+    }
+
+    /**
+     * Empty the WMSCache, e.g. for a new index, and change the ETag of WMS tiles.
+     */
+    void emptyWmsCache() {
+        wmsCache.empty();
+        regenerateWMSETag();
+    }
+
+    /**
+     * Bounding box buffer in pixels for the point size and highlight. It is stepped for better WMSCache use.
+     */
+    private int getBBoxBuffer(WmsEnv vars) {
+        int steppedSize = (int) (Math.ceil(vars.size / 20.0) * 20);
+        return steppedSize + (vars.highlight != null ? HIGHLIGHT_RADIUS * 2 + (int) (steppedSize * 0.2) : 0) + 5;
+    }
+
+    private String[] getBoundingBoxFqs(double[] bbox) {
+        String[] boundingBoxFqs = new String[2];
+        boundingBoxFqs[0] = String.format(Locale.ROOT, "longitude:[%f TO %f]", bbox[0], bbox[2]);
+        boundingBoxFqs[1] = String.format(Locale.ROOT, "latitude:[%f TO %f]", bbox[1], bbox[3]);
+        return boundingBoxFqs;
+    }
+
+    /**
+     * Response for a tile that was not rendered because the render pool is busy. This is not cached by clients.
+     *
+     * @param response
+     * @return
+     */
+    private ModelAndView sendBusyTile(HttpServletResponse response) {
+        response.setHeader("Cache-Control", "no-store");
+        response.setHeader("Retry-After", String.valueOf(wmsRenderRetryAfter));
+        if (wmsRenderBusyBlank) {
+            displayBlankImage(response);
+        } else {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        return null;
+    }
+
+    /**
+     * Time spent queued for the render pool, querying, rendering and encoding WMS tiles.
+     *
+     * @return
+     */
+    @RequestMapping(value = {"/webportal/wms/metrics", "/ogc/wms/metrics", "/mapping/wms/metrics"}, method = RequestMethod.GET)
+    public @ResponseBody Map<String, Object> getWmsMetrics() {
+        return wmsRenderPool.getMetrics();
+    }
+
+    /**
+     * Mapbox Vector Tile service for the same layers as the WMS service.
+     *
+     * Point features are taken from the WMSCache and have the attributes 'colour' (#rrggbb), 'group' (index of
+     * the colour group, as for the HQ parameter of the WMS service) and 'count' (occurrences at the point,
+     * only when there is no colormode). Styling (size, opacity, outline) is left to the client.
+     *
+     * @param z      zoom level
+     * @param x      tile column
+     * @param y      tile row, 0 is the north
+     * @param cql_filter q value.
+     * @param env    ';' delimited field:value pairs.  See Env
+     * @param cache  'on' = use cache, 'off' = do not use cache.
+     * @param extent tile coordinate extent
+     * @param buffer tile coordinate buffer for points outside of the tile extent
+     * @throws Exception
+     */
+    @RequestMapping(value = {"/webportal/mvt/{z}/{x}/{y}.pbf", "/ogc/mvt/{z}/{x}/{y}.pbf", "/mapping/mvt/{z}/{x}/{y}.pbf"}, method = RequestMethod.GET)
+    public void generateVectorTile(
+            SpatialSearchRequestParams requestParams,
+            @PathVariable("z") Integer z,
+            @PathVariable("x") Integer x,
+            @PathVariable("y") Integer y,
+            @RequestParam(value = "CQL_FILTER", required = false, defaultValue = "") String cql_filter,
+            @RequestParam(value = "ENV", required = false, defaultValue = "") String env,
+            @RequestParam(value = "STYLES", required = false, defaultValue = "") String styles,
+            @RequestParam(value = "LAYERS", required = false, defaultValue = "") String layers,
+            @RequestParam(value = "CACHE", required = false, defaultValue = "default") String cache,
+            @RequestParam(value = "EXTENT", required = false, defaultValue = "4096") Integer extent,
+            @RequestParam(value = "BUFFER", required = false, defaultValue = "64") Integer buffer,
+            HttpServletRequest request,
+            HttpServletResponse response)
+            throws Exception {
+
+        int tiles = 1 << z;
+        if (z < 0 || z > 30 || x < 0 || x >= tiles || y < 0 || y >= tiles || extent <= 0) {
+            response.sendError(400, "Invalid tile coordinates");
+            return;
+        }
+
+        if ("default".equals(cache)) cache = wmsCacheEnabled ? "on" : "off";
+
+        String etag = wmsETag.get();
+        response.setHeader("Cache-Control", wmsCacheControlHeaderPublicOrPrivate + ", max-age=" + wmsCacheControlHeaderMaxAge);
+        response.setHeader("ETag", etag);
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(MvtEncoder.CONTENT_TYPE);
+
+        //spherical mercator tile extents
+        double tileSize = 2 * MERCATOR_MAX / tiles;
+        double[] tilebbox = {-MERCATOR_MAX + x * tileSize, MERCATOR_MAX - (y + 1) * tileSize,
+                -MERCATOR_MAX + (x + 1) * tileSize, MERCATOR_MAX - y * tileSize};
+        String bboxString = tilebbox[0] + "," + tilebbox[1] + "," + tilebbox[2] + "," + tilebbox[3];
+
+        WmsEnv vars = new WmsEnv(env, styles);
+        double[] mbbox = new double[4];
+        double[] bbox = new double[4];
+        double[] pbbox = new double[4];
+
+        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
+        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem("EPSG:3857");
+        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
+        CoordinateOperation transformTo4326 = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
+
+        //resolution of a 256px raster tile is used to select the same PointType as the WMS service
+        int bufferPixels = (int) Math.ceil(buffer * 256.0 / extent);
+        double resolution = getBBoxesSRS(transformTo4326, bboxString, 256, 256, bufferPixels, false, mbbox, bbox, pbbox, new double[4]);
+        PointType pointType = getPointTypeForDegreesPerPixel(resolution);
+
+        String[] boundingBoxFqs = new String[2];
+        boundingBoxFqs[0] = String.format(Locale.ROOT, "longitude:[%f TO %f]", bbox[0], bbox[2]);
+        boundingBoxFqs[1] = String.format(Locale.ROOT, "latitude:[%f TO %f]", bbox[1], bbox[3]);
+
+        applyLayerQuery(requestParams, cql_filter, layers);
+
+        MvtEncoder encoder = new MvtEncoder("occurrences", extent);
+
+        if (!isOutsideQidBBox(requestParams, bbox)) {
+            String[] originalFqs = qidCacheDAO.getFq(requestParams);
+
+            boolean canCache = wmsCache.isEnabled() && "on".equalsIgnoreCase(cache);
+            WMSTile wco = getWMSCacheObject(requestParams, vars, pointType, bbox, originalFqs, boundingBoxFqs, canCache);
+
+            if (wco.getPoints() != null) {
+                encodePoints(encoder, wco, tilebbox, buffer);
+            }
+        }
+
+        byte[] bytes = encoder.encode();
+        response.setContentLength(bytes.length);
+        try (ServletOutputStream outStream = response.getOutputStream()) {
+            outStream.write(bytes);
+            outStream.flush();
+        } catch (Exception e) {
+            logger.debug("Unable to write vector tile", e);
+        }
+    }
+
+    /**
+     * Add the WMSTile points that are within the buffered tile extents to a vector tile.
+     *
+     * @param encoder  vector tile to add points to
+     * @param wco      cached points
+     * @param tilebbox tile extents in EPSG:3857 as min x, min y, max x, max y
+     * @param buffer   tile coordinate buffer for points outside of the tile extent
+     */
+    void encodePoints(MvtEncoder encoder, WMSTile wco, double[] tilebbox, int buffer) {
+        int extent = encoder.getExtent();
+        double xmult = extent / (tilebbox[2] - tilebbox[0]);
+        double ymult = extent / (tilebbox[3] - tilebbox[1]);
+
+        int colourKey = encoder.key("colour");
+        int groupKey = encoder.key("group");
+        int countKey = wco.getCounts() != null ? encoder.key("count") : -1;
+
+        List<float[]> points = wco.getPoints();
+        List<int[]> counts = wco.getCounts();
+        List<Integer> colours = wco.getColours();
+
+        for (int j = 0; j < points.size(); j++) {
+            float[] ps = points.get(j);
+            if (ps == null || ps.length == 0) {
+                continue;
+            }
+
+            int colour = colours != null && j < colours.size() && colours.get(j) != null ? colours.get(j) : 0;
+            int colourValue = encoder.value(String.format("#%06x", colour & 0x00FFFFFF));
+            int groupValue = encoder.value(j);
+            int[] count = counts != null && j < counts.size() ? counts.get(j) : null;
+
+            for (int i = 0; i < ps.length; i += 2) {
+                float lng = ps[i];
+                float lat = ps[i + 1];
+                if (Float.isNaN(lng) || Float.isNaN(lat) || lat <= -85.06 || lat >= 85.06) {
+                    continue;
+                }
+
+                int px = (int) Math.round((convertLngToMeters(lng) - tilebbox[0]) * xmult);
+                int py = (int) Math.round((tilebbox[3] - convertLatToMeters(lat)) * ymult);
+
+                if (px < -buffer || px > extent + buffer || py < -buffer || py > extent + buffer) {
+                    continue;
+                }
+
+                if (count != null && countKey >= 0) {
+                    encoder.addPoint(px, py, colourKey, colourValue, groupKey, groupValue, countKey, encoder.value(count[i / 2]));
+                } else {
+                    encoder.addPoint(px, py, colourKey, colourValue, groupKey, groupValue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the CQL_FILTER or LAYERS value as the q of the request. CQL Filter takes precedence over the layer.
+     *
+     * @param requestParams
+     * @param cql_filter
+     * @param layers
+     */
+    private void applyLayerQuery(SpatialSearchRequestParams requestParams, String cql_filter, String layers) {
+        String q = "";
+        if (StringUtils.trimToNull(cql_filter) != null) {
+            q = WMSUtils.getQ(cql_filter);
+        } else if (StringUtils.trimToNull(layers) != null && !"ALA:Occurrences".equalsIgnoreCase(layers)) {
+            q = WMSUtils.convertLayersParamToQ(layers);
+        }
+
+        if (q.length() > 0) {
+            requestParams.setQ(q);
+        }
+    }
+
+    /**
+     * Bounding box test of a qid request against the tile bounding box. Only applies when the request
+     * is 'qid:' + number only.
+     *
+     * @param requestParams
+     * @param bbox tile bounding box in EPSG:4326
+     * @return true when the qid bounding box does not intersect the tile
+     */
+    private boolean isOutsideQidBBox(SpatialSearchRequestParams requestParams, double[] bbox) throws Exception {
+        String q = requestParams.getQ();
+        if (q != null && q.startsWith("qid:") && StringUtils.isEmpty(requestParams.getWkt()) &&
+                (requestParams.getFq().length == 0 ||
+                        (requestParams.getFq().length == 1 && StringUtils.isEmpty(requestParams.getFq()[0])))) {
+            double[] queryBBox = qidCacheDAO.get(q.substring(4)).getBbox();
+            return queryBBox != null && (queryBBox[0] > bbox[2] || queryBBox[2] < bbox[0]
+                    || queryBBox[1] > bbox[3] || queryBBox[3] < bbox[1]);
+        }
+        return false;
+    }
+
     private ModelAndView sendWmsError(HttpServletResponse response, int status, String errorType, String errorDescription) {
         response.setStatus(status);
         Map<String,String> model = new HashMap<String,String>();
@@ -1775,18 +2151,22 @@ public class WMSController extends AbstractSecureController{
     }
 
     /**
+     * Draw a tile from the points of a WMSTile. No SOLR queries are made.
+     *
+     * @param up uncertainty points, or null when uncertainty circles are not drawn
+     * @param highlight packed longitude,latitude of highlighted points, or null
      * @return
      * @throws Exception
      */
-    private ImgObj wmsCached(WMSTile wco, SpatialSearchRequestParams requestParams,
-                             WmsEnv vars, PointType pointType, double[] pbbox,
+    private ImgObj wmsCached(WMSTile wco,
+                             WmsEnv vars, double[] pbbox,
                              double[] bbox, double[] mbbox, int width, int height, double width_mult,
-                             double height_mult, int pointWidth, String[] originalFqs, Set<Integer> hq,
-                             String[] boundingBoxFqs, boolean outlinePoints,
+                             double height_mult, Set<Integer> hq,
+                             boolean outlinePoints,
                              String outlineColour,
-                             HttpServletResponse response,
                              double[] tilebbox, int gridDivisionCount,
-                             CoordinateOperation transformFrom4326) throws Exception {
+                             CoordinateOperation transformFrom4326,
+                             UncertaintyPoints up, float[] highlight) throws Exception {
 
         ImgObj imgObj = null;
 
@@ -1856,15 +2236,14 @@ public class WMSController extends AbstractSecureController{
                         }
                     }
                 } else {
-                    renderPoints(vars, bbox, pbbox, width_mult, height_mult, pointWidth, outlinePoints, outlineColour, pColour, imgObj, j, ps, tilebbox, height, width, transformFrom4326);
+                    renderPoints(vars, bbox, pbbox, width_mult, height_mult, outlinePoints, outlineColour, pColour, imgObj, j, ps, tilebbox, height, width, transformFrom4326);
                 }
             }
         }
 
         //no points
         if (imgObj == null || imgObj.img == null) {
-            if (vars.highlight == null) {
-                displayBlankImage(response);
+            if (highlight == null) {
                 return null;
             }
         } else if (isGrid) {
@@ -1882,24 +2261,141 @@ public class WMSController extends AbstractSecureController{
                     }
                 }
             }
-        } else {
-            drawUncertaintyCircles(requestParams, vars, height, width, mbbox, bbox, imgObj.g,
-                    originalFqs, tilebbox, pointType, transformFrom4326);
+        } else if (up != null) {
+            drawUncertaintyCircles(vars, height, width, mbbox, bbox, imgObj.g, tilebbox, transformFrom4326, up);
+        }
+
+        //highlight
+        if (highlight != null) {
+            imgObj = drawHighlight(vars, width, height, imgObj, highlight, tilebbox, transformFrom4326);
+        }
+
+        return imgObj;
+    }
+
+    /**
+     * Query a SOLR facet.heatmap of the tile for colormode grid. The number of grid cells returned by SOLR is
+     * bounded by the requested grid detail, not by the number of points.
+     *
+     * @return heatmap, or null
+     * @throws Exception
+     */
+    HeatmapDTO queryHeatmapGrid(SpatialSearchRequestParams requestParams, String[] originalFqs, String[] boundingBoxFqs,
+                                String bboxString, int gridDivisionCount, CoordinateOperation transformTo4326) throws Exception {
+        //tile extents in EPSG:4326 without the point size buffer
+        double[] source = new double[4];
+        double[] tile4326 = new double[4];
+        transformBBox(transformTo4326, bboxString, source, tile4326);
+
+        double distErr = Math.min(tile4326[2] - tile4326[0], tile4326[3] - tile4326[1]) / gridDivisionCount;
+
+        String[] fqs = new String[2 + (originalFqs != null ? originalFqs.length : 0)];
+        if (originalFqs != null) {
+            System.arraycopy(originalFqs, 0, fqs, 2, originalFqs.length);
+        }
+        fqs[0] = boundingBoxFqs[0];
+        fqs[1] = boundingBoxFqs[1];
+        try {
+            requestParams.setFq(fqs);
+            requestParams.setFormattedQuery(null);
+
+            return searchDAO.getHeatmap(requestParams, tile4326, null, distErr);
+        } finally {
+            //restore fqs for highlight
+            requestParams.setFq(originalFqs);
+        }
+    }
+
+    /**
+     * Render colormode grid from a SOLR facet.heatmap of the tile instead of from the cached points. No SOLR
+     * queries are made.
+     *
+     * @param heatmap from queryHeatmapGrid, or null
+     * @param highlight packed longitude,latitude of highlighted points, or null
+     * @return image, or null when there is nothing to draw
+     * @throws Exception
+     */
+    ImgObj wmsHeatmapGrid(HeatmapDTO heatmap, WmsEnv vars, int width, int height, double[] tilebbox,
+                          CoordinateOperation transformFrom4326, float[] highlight) throws Exception {
+        ImgObj imgObj = null;
+
+        if (vars.alpha > 0 && vars.size > 0) {
+            if (heatmap != null) {
+                double top = tilebbox[3];
+                double bottom = tilebbox[1];
+                double left = tilebbox[0];
+                double right = tilebbox[2];
+
+                double cellWidth = heatmap.getCellWidth();
+                double cellHeight = heatmap.getCellHeight();
+
+                for (int row = 0; row < heatmap.getRows(); row++) {
+                    for (int column = 0; column < heatmap.getColumns(); column++) {
+                        int v = heatmap.getCount(column, row);
+                        if (v <= 0) {
+                            continue;
+                        }
+
+                        double lng = heatmap.getMinX() + column * cellWidth;
+                        double lat = heatmap.getMaxY() - (row + 1) * cellHeight;
+                        try {
+                            DirectPosition sw = transformFrom4326.getMathTransform().transform(new GeneralDirectPosition(lng, lat), null);
+                            DirectPosition ne = transformFrom4326.getMathTransform().transform(new GeneralDirectPosition(lng + cellWidth, lat + cellHeight), null);
+                            int x1 = scaleLongitudeForImage(sw.getOrdinate(0), left, right, width);
+                            int y1 = scaleLatitudeForImage(ne.getOrdinate(1), top, bottom, height);
+                            int x2 = scaleLongitudeForImage(ne.getOrdinate(0), left, right, width);
+                            int y2 = scaleLatitudeForImage(sw.getOrdinate(1), top, bottom, height);
+
+                            if (imgObj == null) {
+                                imgObj = ImgObj.create(width, height);
+                            }
+
+                            if (v > 500) {
+                                v = 500;
+                            }
+                            int colour = (((500 - v) / 2) << 8) | (vars.alpha << 24) | 0x00FF0000;
+                            imgObj.g.setColor(new Color(colour));
+                            imgObj.g.fillRect(x1, y1, Math.max(1, x2 - x1), Math.max(1, y2 - y1));
+                        } catch (MismatchedDimensionException e) {
+                        } catch (TransformException e) {
+                            // failure to transform a coordinate will result in it not rendering
+                        }
+                    }
+                }
+            }
         }
 
         //highlight
-        if (vars.highlight != null) {
-            imgObj = drawHighlight(requestParams, vars, pointType, width, height, imgObj,
-                    originalFqs, boundingBoxFqs, tilebbox, transformFrom4326);
+        if (highlight != null) {
+            imgObj = drawHighlight(vars, width, height, imgObj, highlight, tilebbox, transformFrom4326);
         }
 
         return imgObj;
     }
 
-    void drawUncertaintyCircles(SpatialSearchRequestParams requestParams, WmsEnv vars, int height, int width,
+    /**
+     * Uncertainty circles are only drawn when the max radius will be larger than the dot size.
+     *
+     * @return true when drawUncertaintyCircles will draw circles
+     */
+    boolean isUncertaintyDrawn(WmsEnv vars, int height, double[] mbbox) {
+        double hmult = (height / (mbbox[3] - mbbox[1]));
+
+        //min uncertainty for current resolution and dot size
+        double min_uncertainty = (vars.size + 1) / hmult;
+
+        return vars.uncertainty && MAX_UNCERTAINTY > min_uncertainty;
+    }
+
+    /**
+     * Draw uncertainty circles. No SOLR queries are made.
+     *
+     * @param up from getUncertaintyPoints
+     */
+    void drawUncertaintyCircles(WmsEnv vars, int height, int width,
                                 double[] mbbox, double[] bbox, Graphics2D g,
-                                String[] originalFqs, double[] tilebbox,
-                                PointType pointType, CoordinateOperation transformFrom4326) throws Exception {
+                                double[] tilebbox,
+                                CoordinateOperation transformFrom4326, UncertaintyPoints up) throws Exception {
         //draw uncertainty circles
         double hmult = (height / (mbbox[3] - mbbox[1]));
 
@@ -1913,87 +2409,213 @@ public class WMSController extends AbstractSecureController{
         double right = tilebbox[2];
 
         //only draw uncertainty if max radius will be > dot size
-        if (vars.uncertainty && MAX_UNCERTAINTY > min_uncertainty) {
+        if (isUncertaintyDrawn(vars, height, mbbox)) {
 
-            //uncertainty colour/fq/radius, [0]=map, [1]=not specified, [2]=too large
-            Color[] uncertaintyColours = {new Color(255, 170, 0, vars.alpha), new Color(255, 255, 100, vars.alpha), new Color(50, 255, 50, vars.alpha)};
-            //TODO: don't assume MAX_UNCERTAINTY > default_uncertainty
-            String[] uncertaintyFqs = {"coordinate_uncertainty:[" + min_uncertainty + " TO " + MAX_UNCERTAINTY + "] AND -assertions:uncertaintyNotSpecified", "assertions:uncertaintyNotSpecified", "coordinate_uncertainty:[" + MAX_UNCERTAINTY + " TO *]"};
-            double[] uncertaintyR = {-1, MAX_UNCERTAINTY, MAX_UNCERTAINTY};
+            if (up.getSize() == 0) {
+                return;
+            }
 
-            int originalFqsLength = originalFqs != null ? originalFqs.length : 0;
+            //uncertainty colour, [0]=map, [2]=too large
+            Color mappableColour = new Color(255, 170, 0, vars.alpha);
+            Color tooLargeColour = new Color(50, 255, 50, vars.alpha);
 
-            String[] fqs = new String[originalFqsLength + 3];
+            //expand bounding box to cover MAX_UNCERTAINTY radius (m to degrees)
+            double buffer = MAX_UNCERTAINTY / 100000.0;
+            double minLng = bbox[0] - buffer;
+            double maxLng = bbox[2] + buffer;
+            double minLat = bbox[1] - buffer;
+            double maxLat = bbox[3] + buffer;
+
+            float[] ps = up.getPoints();
+            float[] uncertainty = up.getUncertainty();
+            int[] radii = up.getRadii(hmult);
+
+            //points in this tile
+            int[] idx = new int[up.getSize()];
+            double[] coords = new double[up.getSize() * 2];
+            int n = 0;
+            for (int i = 0; i < up.getSize(); i++) {
+                double lng = ps[i * 2];
+                double lat = ps[i * 2 + 1];
+                if (uncertainty[i] >= min_uncertainty && lng >= minLng && lng <= maxLng && lat >= minLat && lat <= maxLat) {
+                    idx[n] = i;
+                    coords[n * 2] = lng;
+                    coords[n * 2 + 1] = lat;
+                    n++;
+                }
+            }
 
-            if(originalFqsLength > 0) {
-                System.arraycopy(originalFqs, 0, fqs, 3, originalFqsLength);
+            if (n == 0) {
+                return;
             }
 
-            //expand bounding box to cover MAX_UNCERTAINTY radius (m to degrees)
-            fqs[1] = "longitude:[" + (bbox[0] - MAX_UNCERTAINTY / 100000.0) + " TO " + (bbox[2] + MAX_UNCERTAINTY / 100000.0) + "]";
-            fqs[2] = "latitude:[" + (bbox[1] - MAX_UNCERTAINTY / 100000.0) + " TO " + (bbox[3] + MAX_UNCERTAINTY / 100000.0) + "]";
+            coords = transformPoints(transformFrom4326, coords, n);
+            if (coords == null) {
+                return;
+            }
 
-            requestParams.setPageSize(DEFAULT_PAGE_SIZE);
+            boolean mappable = true;
+            g.setColor(mappableColour);
+            for (int k = 0; k < n; k++) {
+                int i = idx[k];
+                if (mappable && i >= up.getMappableCount()) {
+                    mappable = false;
+                    g.setColor(tooLargeColour);
+                }
 
-            for (int j = 0; j < uncertaintyFqs.length; j++) {
-                //do not display for [1]=not specified
-                if (j == 1) {
+                if (Double.isNaN(coords[k * 2]) || Double.isNaN(coords[k * 2 + 1])) {
                     continue;
                 }
 
-                fqs[0] = uncertaintyFqs[j];
-                requestParams.setFq(fqs);
+                int x = scaleLongitudeForImage(coords[k * 2], left, right, width);
+                int y = scaleLatitudeForImage(coords[k * 2 + 1], top, bottom, height);
 
-                //There can be performance issues with pivot when too many distinct coordinate_uncertainty values
-                requestParams.setFacets(new String[]{"coordinate_uncertainty", pointType.getLabel()});
-                requestParams.setFlimit(-1);
-                requestParams.setFormattedQuery(null);
-                List<FacetPivotResultDTO> qr = searchDAO.searchPivot(requestParams);
+                int uncertaintyRadius = radii[i];
+                if (uncertaintyRadius > 0) {
+                    g.drawOval(x - uncertaintyRadius, y - uncertaintyRadius, uncertaintyRadius * 2, uncertaintyRadius * 2);
+                } else {
+                    g.drawRect(x, y, 1, 1);
+                }
+            }
+        }
+    }
 
-                if (qr != null && qr.size() > 0) {
-                    List<FacetPivotResultDTO> piv = qr.get(0).getPivotResult();
+    /**
+     * Transform packed x,y coordinates. Coordinates that fail to transform are NaN.
+     *
+     * @param transformFrom4326
+     * @param coords x,y pairs
+     * @param n number of points
+     * @return transformed x,y pairs or null when no coordinates could be transformed
+     */
+    private double[] transformPoints(CoordinateOperation transformFrom4326, double[] coords, int n) {
+        double[] target = new double[n * 2];
+        try {
+            transformFrom4326.getMathTransform().transform(coords, 0, target, 0, n);
+            return target;
+        } catch (TransformException e) {
+            // fall back to transforming each point so one failure does not prevent rendering the others
+        }
 
-                    double lng, lat;
-                    int x, y;
-                    int uncertaintyRadius = (int) Math.ceil(uncertaintyR[j] * hmult);
+        boolean found = false;
+        for (int k = 0; k < n; k++) {
+            try {
+                DirectPosition targetCoords = transformFrom4326.getMathTransform().transform(
+                        new GeneralDirectPosition(coords[k * 2], coords[k * 2 + 1]), null);
+                target[k * 2] = targetCoords.getOrdinate(0);
+                target[k * 2 + 1] = targetCoords.getOrdinate(1);
+                found = true;
+            } catch (MismatchedDimensionException e) {
+                target[k * 2] = Double.NaN;
+            } catch (TransformException e) {
+                // failure to transform a coordinate will result in it not rendering
+                target[k * 2] = Double.NaN;
+            }
+        }
+        return found ? target : null;
+    }
 
-                    g.setColor(uncertaintyColours[j]);
-                    for (FacetPivotResultDTO r : piv) {
-                        if (uncertaintyR[j] < 0) {
-                            uncertaintyRadius = (int) Math.ceil(Double.parseDouble(r.getValue()) * hmult);
-                        }
+    /**
+     * Get the points to draw uncertainty circles. They are stored with the points of a cached WMSTile so the
+     * uncertainty pivot is only queried once for each layer, or for each tile when the layer has too many points.
+     *
+     * Points are not filtered by the min uncertainty of the zoom level so they can be used at all zoom levels.
+     *
+     * @param requestParams
+     * @param originalFqs
+     * @param bbox tile bbox in EPSG:4326
+     * @param pointType
+     * @param wco WMSTile of the points, or null
+     * @return
+     * @throws Exception
+     */
+    UncertaintyPoints getUncertaintyPoints(SpatialSearchRequestParams requestParams, String[] originalFqs,
+                                           double[] bbox, PointType pointType, WMSTile wco) throws Exception {
+        if (wco == null || !wco.getCached()) {
+            return queryUncertaintyPoints(requestParams, originalFqs, bbox, pointType);
+        }
+
+        UncertaintyPoints up = wco.getUncertainty();
+        if (up == null) {
+            synchronized (wco) {
+                up = wco.getUncertainty();
+                if (up == null) {
+                    up = queryUncertaintyPoints(requestParams, originalFqs, wco.isBboxOnly() ? wco.getBbox() : null,
+                            wco.getPointType() != null ? wco.getPointType() : pointType);
+                    wco.setUncertainty(up);
+                    wmsCache.resize(wco);
+                }
+            }
+        }
+        return up;
+    }
 
-                        for (FacetPivotResultDTO point : r.getPivotResult()) {
-                            String[] lat_lng = point.getValue().split(",");
+    private UncertaintyPoints queryUncertaintyPoints(SpatialSearchRequestParams requestParams, String[] originalFqs,
+                                                     double[] bbox, PointType pointType) throws Exception {
+        //uncertainty fq, [0]=map, [1]=too large. Not specified is not displayed.
+        //TODO: don't assume MAX_UNCERTAINTY > default_uncertainty
+        String[] uncertaintyFqs = {"coordinate_uncertainty:[* TO " + MAX_UNCERTAINTY + "] AND -assertions:uncertaintyNotSpecified", "coordinate_uncertainty:[" + MAX_UNCERTAINTY + " TO *]"};
 
-                            lng = Double.parseDouble(lat_lng[1]);
-                            lat = Double.parseDouble(lat_lng[0]);
+        int originalFqsLength = originalFqs != null ? originalFqs.length : 0;
+        int bboxFqsLength = bbox != null ? 2 : 0;
 
-                            try {
-                                GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
-                                DirectPosition targetCoords = transformFrom4326.getMathTransform().transform(sourceCoords, null);
-                                x = scaleLongitudeForImage(targetCoords.getOrdinate(0), left, right, width);
-                                y = scaleLatitudeForImage(targetCoords.getOrdinate(1), top, bottom, height);
+        String[] fqs = new String[1 + bboxFqsLength + originalFqsLength];
 
-                                if (uncertaintyRadius > 0) {
-                                    g.drawOval(x - uncertaintyRadius, y - uncertaintyRadius, uncertaintyRadius * 2, uncertaintyRadius * 2);
-                                } else {
-                                    g.drawRect(x, y, 1, 1);
-                                }
-                            } catch (MismatchedDimensionException e) {
-                            } catch (TransformException e) {
-                                // failure to transform a coordinate will result in it not rendering
-                            }
+        if (originalFqsLength > 0) {
+            System.arraycopy(originalFqs, 0, fqs, 1 + bboxFqsLength, originalFqsLength);
+        }
+
+        if (bbox != null) {
+            //expand bounding box to cover MAX_UNCERTAINTY radius (m to degrees)
+            fqs[1] = "longitude:[" + (bbox[0] - MAX_UNCERTAINTY / 100000.0) + " TO " + (bbox[2] + MAX_UNCERTAINTY / 100000.0) + "]";
+            fqs[2] = "latitude:[" + (bbox[1] - MAX_UNCERTAINTY / 100000.0) + " TO " + (bbox[3] + MAX_UNCERTAINTY / 100000.0) + "]";
+        }
+
+        requestParams.setPageSize(DEFAULT_PAGE_SIZE);
+
+        UncertaintyPoints up = new UncertaintyPoints(1024);
+        float[] latLng = new float[2];
+
+        for (int j = 0; j < uncertaintyFqs.length; j++) {
+            fqs[0] = uncertaintyFqs[j];
+            requestParams.setFq(fqs);
+
+            //There can be performance issues with pivot when too many distinct coordinate_uncertainty values
+            requestParams.setFacets(new String[]{"coordinate_uncertainty", pointType.getLabel()});
+            requestParams.setFlimit(-1);
+            requestParams.setFormattedQuery(null);
+            List<FacetPivotResultDTO> qr = searchDAO.searchPivot(requestParams);
+
+            if (qr != null && qr.size() > 0) {
+                for (FacetPivotResultDTO r : qr.get(0).getPivotResult()) {
+                    String v = r.getValue();
+                    float uncertainty = j == 0 ? (v == null ? Float.NaN : PointFacetResponseParser.parseFloat(v, 0, v.length())) : (float) MAX_UNCERTAINTY;
+                    if (Float.isNaN(uncertainty) || r.getPivotResult() == null) {
+                        continue;
+                    }
+
+                    for (FacetPivotResultDTO point : r.getPivotResult()) {
+                        if (PointFacetResponseParser.parsePoint(point.getValue(), latLng)) {
+                            up.add(latLng[1], latLng[0], uncertainty, j == 0);
                         }
                     }
                 }
             }
         }
+
+        requestParams.setFq(originalFqs);
+
+        return up.trim();
     }
 
-    ImgObj drawHighlight(SpatialSearchRequestParams requestParams, WmsEnv vars, PointType pointType,
-                         int width, int height, ImgObj imgObj, String[] originalFqs, String[] boundingBoxFqs,
-                         double[] tilebbox, CoordinateOperation transformFrom4326) throws Exception {
+    /**
+     * Query the points of the highlight fq in the tile.
+     *
+     * @return packed longitude,latitude
+     * @throws Exception
+     */
+    float[] queryHighlight(SpatialSearchRequestParams requestParams, WmsEnv vars, PointType pointType,
+                           String[] originalFqs, String[] boundingBoxFqs) throws Exception {
         String[] fqs = new String[3 + (originalFqs != null ? originalFqs.length : 0)];
 
         if (originalFqs != null) {
@@ -2004,21 +2626,48 @@ public class WMSController extends AbstractSecureController{
         fqs[1] = boundingBoxFqs[0];
         fqs[2] = boundingBoxFqs[1];
 
-        requestParams.setFq(fqs);
-        requestParams.setFlimit(-1);
-        requestParams.setFormattedQuery(null);
-        FacetField ps = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel());
+        FacetField ps;
+        try {
+            requestParams.setFq(fqs);
+            requestParams.setFlimit(-1);
+            requestParams.setFormattedQuery(null);
+            ps = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel());
+        } finally {
+            requestParams.setFq(originalFqs);
+        }
+
+        int count = ps != null ? ps.getValueCount() : 0;
+        float[] points = new float[count * 2];
+        float[] latLng = new float[2];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (PointFacetResponseParser.parsePoint(ps.getValues().get(i).getName(), latLng)) {
+                points[n * 2] = latLng[1];
+                points[n * 2 + 1] = latLng[0];
+                n++;
+            }
+        }
+        return n * 2 < points.length ? Arrays.copyOf(points, n * 2) : points;
+    }
 
-        if (ps != null && ps.getValueCount() > 0) {
+    /**
+     * Draw highlighted points. No SOLR queries are made.
+     *
+     * @param highlight packed longitude,latitude from queryHighlight
+     * @return image, or null when there is no image and nothing to draw
+     */
+    ImgObj drawHighlight(WmsEnv vars, int width, int height, ImgObj imgObj, float[] highlight,
+                         double[] tilebbox, CoordinateOperation transformFrom4326) throws Exception {
+        if (highlight.length > 0) {
             if (imgObj == null || imgObj.img == null) {  //when vars.alpha == 0 img is null
                 imgObj = ImgObj.create(width, height);
             }
 
             int highightRadius = vars.size + HIGHLIGHT_RADIUS;
-            int highlightWidth = highightRadius * 2;
 
-            imgObj.g.setStroke(new BasicStroke(2));
-            imgObj.g.setColor(new Color(255, 0, 0, 255));
+            //red circle outline, composited directly into the image pixels
+            int[] pixels = ((DataBufferInt) imgObj.img.getRaster().getDataBuffer()).getData();
+            PointStamp stamp = PointStamp.get(highightRadius, 0, 0xffff0000, 2);
             int x, y;
 
             //for image scaling
@@ -2027,24 +2676,20 @@ public class WMSController extends AbstractSecureController{
             double left = tilebbox[0];
             double right = tilebbox[2];
 
-            for (int i = 0; i < ps.getValueCount(); i++) {
-                //extract lat lng
-                if (ps.getValues().get(i).getName() != null) {
-                    String[] lat_lng = ps.getValues().get(i).getName().split(",");
-                    float lng = Float.parseFloat(lat_lng[1]);
-                    float lat = Float.parseFloat(lat_lng[0]);
-
-                    try {
-                        GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
-                        DirectPosition targetCoords = transformFrom4326.getMathTransform().transform(sourceCoords, null);
-                        x = scaleLongitudeForImage(targetCoords.getOrdinate(0), left, right, width);
-                        y = scaleLatitudeForImage(targetCoords.getOrdinate(1), top, bottom, height);
-
-                        imgObj.g.drawOval(x - highightRadius, y - highightRadius, highlightWidth, highlightWidth);
-                    } catch (MismatchedDimensionException e) {
-                    } catch (TransformException e) {
-                        // failure to transform a coordinate will result in it not rendering
-                    }
+            for (int i = 0; i < highlight.length; i += 2) {
+                float lng = highlight[i];
+                float lat = highlight[i + 1];
+
+                try {
+                    GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
+                    DirectPosition targetCoords = transformFrom4326.getMathTransform().transform(sourceCoords, null);
+                    x = scaleLongitudeForImage(targetCoords.getOrdinate(0), left, right, width);
+                    y = scaleLatitudeForImage(targetCoords.getOrdinate(1), top, bottom, height);
+
+                    stamp.draw(pixels, imgObj.img.getWidth(), imgObj.img.getHeight(), x, y);
+                } catch (MismatchedDimensionException e) {
+                } catch (TransformException e) {
+                    // failure to transform a coordinate will result in it not rendering
                 }
             }
         }
@@ -2094,11 +2739,14 @@ public class WMSController extends AbstractSecureController{
             }
         }
 
-        String qfull = qparam + StringUtils.join(requestParams.getFq(), ",") + requestParams.getQc() +
-                requestParams.getWkt() + requestParams.getRadius() + requestParams.getLat() + requestParams.getLon();
+        //fq order does not change the result
+        String[] fqs = requestParams.getFq() == null ? new String[0] : requestParams.getFq().clone();
+        Arrays.sort(fqs);
+        String qfull = qparam + "\n" + StringUtils.join(fqs, "\n") + "\n" + requestParams.getQc() + "\n" +
+                requestParams.getWkt() + "\n" + requestParams.getRadius() + "\n" + requestParams.getLat() + "\n" + requestParams.getLon();
 
-        //qfull can be long if there is WKT
-        String q = String.valueOf(qfull.hashCode());
+        //qfull can be long if there is WKT. A 128 bit hash avoids collisions of the 32 bit String.hashCode.
+        String q = Hashing.murmur3_128().hashString(qfull, StandardCharsets.UTF_8).toString();
 
         //grid and -1 colour modes have the same data
         String cm = (vars.colourMode.equals("-1") || vars.colourMode.equals("grid")) ? "-1" : vars.colourMode;
@@ -2195,6 +2843,8 @@ public class WMSController extends AbstractSecureController{
                 wco.setColourmode(vars.colourMode);
                 wco.setCounts(equivalentTile.getCounts());
                 wco.setPoints(equivalentTile.getPoints());
+                wco.setBboxOnly(equivalentTile.isBboxOnly());
+                wco.setPointType(equivalentTile.getPointType());
                 wco.setQuery(q);
             } else {
                 //query with the bbox when it cannot be cached
@@ -2212,6 +2862,8 @@ public class WMSController extends AbstractSecureController{
                 wco.setColours(pColour);
                 if (cm.equals("-1")) wco.setCounts(countsArrays);
                 wco.setPoints(pointsArrays);
+                wco.setBboxOnly(!canCache || useBbox[0]);
+                wco.setPointType(pointType);
                 wco.setQuery(q);
             }
 
@@ -2223,41 +2875,46 @@ public class WMSController extends AbstractSecureController{
         }
     }
 
-    private Integer getCachedCount(boolean docCount, SpatialSearchRequestParams requestParams, String q, PointType pointType, boolean[] useBbox) throws Exception {
-
-        Integer count = null;
+    /**
+     * Occurrence count, or unique point count, of a query. Counts are cached by query and index version.
+     * Concurrent requests for the same count wait for one SOLR query.
+     *
+     * @param q normalized query, see getWMSCacheObject
+     * @return the count, or null when it cannot be found
+     */
+    private Integer getCachedCount(final boolean docCount, final SpatialSearchRequestParams requestParams, String q, final PointType pointType, boolean[] useBbox) throws Exception {
 
         String tag = docCount ? "" : pointType.getLabel();
 
-        synchronized (countLock) {
-            count = (Integer) countsCache.get(q + tag);
-        }
-        if (count == null) {
-            requestParams.setPageSize(0);
-            requestParams.setFacet(true);
-            requestParams.setFlimit(0);
-            requestParams.setFacets(new String[]{pointType.getLabel()});
-            requestParams.setFormattedQuery(null);
-            if (docCount) {
-                requestParams.setFacet(false);
-                SolrDocumentList result = searchDAO.findByFulltext(requestParams);
-                if (result != null) {
-                    synchronized (countLock) {
-                        count = (int) result.getNumFound();
-                        countsCache.put(q + tag, count);
+        final boolean[] loaded = new boolean[1];
+        Integer count = countsCache.get(searchDAO.getIndexVersion(false), q + tag, new VersionedCache.Loader<Integer>() {
+            @Override
+            public Integer load() throws Exception {
+                loaded[0] = true;
+                requestParams.setPageSize(0);
+                requestParams.setFacet(true);
+                requestParams.setFlimit(0);
+                requestParams.setFacets(new String[]{pointType.getLabel()});
+                requestParams.setFormattedQuery(null);
+                if (docCount) {
+                    requestParams.setFacet(false);
+                    SolrDocumentList result = searchDAO.findByFulltext(requestParams);
+                    if (result != null) {
+                        return (int) result.getNumFound();
                     }
-                }
-            } else {
-                List<FieldStatsItem> result = searchDAO.searchStat(requestParams, pointType.getLabel(), null,
-                        Arrays.asList("countDistinct"));
-                if (result != null && result.size() > 0) {
-                    synchronized (countLock) {
-                        count = result.get(0).getCountDistinct().intValue();
-                        countsCache.put(q + tag, count);
+                } else {
+                    List<FieldStatsItem> result = searchDAO.searchStat(requestParams, pointType.getLabel(), null,
+                            Arrays.asList("countDistinct"));
+                    if (result != null && result.size() > 0) {
+                        return result.get(0).getCountDistinct().intValue();
                     }
                 }
+                return null;
             }
-        } else {
+        });
+
+        if (!loaded[0]) {
+            //cached, or loaded by another request
             queryFormatUtils.formatSearchQuery(requestParams, false);
         }
 
@@ -2278,14 +2935,20 @@ public class WMSController extends AbstractSecureController{
 
             boolean numericalFacetCategories = vars.colourMode.contains(",");
 
-            //in some instances querying each colour's facet, one by one, is more suitable than pivoting
+            //in some instances querying each colour's facet is more suitable than pivoting
             if (numericalFacetCategories || docCount > wmsFacetPivotCutoff || !canCache) {
-                //iterate
-                String[] fqs = new String[requestParams.getFq() == null ? 1 : requestParams.getFq().length + 1];
-                if (requestParams.getFq() != null && requestParams.getFq().length > 0) {
-                    System.arraycopy(requestParams.getFq(), 0, fqs, 1, requestParams.getFq().length);
+                //retrieve the points of every colour with a single request
+                List<String> colourFqs = new ArrayList<String>(colours.size());
+                for (LegendItem li : colours) {
+                    colourFqs.add(li.getFq());
                 }
-                List<String> fqsDone = new ArrayList<String>(colours != null ? colours.size() : 0);
+                List<float[]> colourPoints = new ArrayList<float[]>(colours.size());
+
+                long ms = System.currentTimeMillis();
+                requestParams.setFlimit(-1);
+                requestParams.setFormattedQuery(null);
+                searchDAO.getFacetPointsByQuery(requestParams, pointType.getLabel(), colourFqs, colourPoints, countsArrays);
+                colrmaxtime = (System.currentTimeMillis() - ms);
 
                 //draw grouped points before drawing other points.
                 boolean otherPointsAdded = false;
@@ -2293,41 +2956,13 @@ public class WMSController extends AbstractSecureController{
                 pColour.add(null);
 
                 for (int i = 0; i < colours.size(); i++) {
-                    LegendItem li = colours.get(i);
-
-                    fqs[0] = li.getFq();
+                    pointsArrays.add(colourPoints.get(i));
+                    pColour.add(colours.get(i).getColour() | (vars.alpha << 24));
 
-                    //invert fq
-                    if (StringUtils.isEmpty(li.getName())) {
-                        //li.getFq() is of the form "-(...)"
-                        fqsDone.add(fqs[0].substring(1));
-                    } else {
-                        if (fqs[0].charAt(0) == '-') {
-                            fqsDone.add(fqs[0].substring(1));
-                        } else {
-                            fqsDone.add("-" + fqs[0]);
-                        }
-                    }
-
-                    requestParams.setFq(fqs);
-                    long ms = System.currentTimeMillis();
-                    requestParams.setFlimit(-1);
-
-                    requestParams.setFormattedQuery(null);
-                    makePointsFromFacet(searchDAO.getFacetPointsShort(requestParams, pointType.getLabel()), pointsArrays, countsArrays);
-                    pColour.add(li.getColour() | (vars.alpha << 24));
-                    colrmaxtime = (System.currentTimeMillis() - ms);
-
-                    //in the last iteration check for more and batch.
+                    //when the legend is truncated add the remaining points with the last colour.
                     if (i == ColorUtil.colourList.length - 2 && colours.size() == ColorUtil.colourList.length - 1) {
                         colrmax = i;
 
-                        fqs = new String[(requestParams.getFq() == null ? 0 : requestParams.getFq().length) + fqsDone.size()];
-                        if (requestParams.getFq() != null && requestParams.getFq().length > 0) {
-                            System.arraycopy(requestParams.getFq(), 0, fqs, fqsDone.size(), requestParams.getFq().length);
-                        }
-                        System.arraycopy(fqsDone.toArray(new String[]{}), 0, fqs, 0, fqsDone.size());
-
                         //do full query
                         requestParams.setFq(origFqs);
                         String prevColourMode = vars.colourMode;
@@ -2415,7 +3050,7 @@ public class WMSController extends AbstractSecureController{
                     }
                 }
 
-                logger.debug("wms timings: many queries=" + (t2 - t1) + "ms, pivot=" + (t3 - t2) + "ms, " +
+                logger.debug("wms timings: colour queries=" + (t2 - t1) + "ms, pivot=" + (t3 - t2) + "ms, " +
                         "colours=" + colours.size() + ", points=" + points + ", occurrences=" + occurrences + ", " +
                         "matchedColours=" + colourMatches + ", max colour idx=" + colrmax + ", " +
                         "max colour request time=" + colrmaxtime + "ms, query docCount=" + docCount);
@@ -2426,7 +3061,7 @@ public class WMSController extends AbstractSecureController{
         if (colours == null || colours.isEmpty() || colours.size() == 1) {
             requestParams.setFlimit(-1);
             requestParams.setFormattedQuery(null);
-            makePointsFromFacet(searchDAO.getFacetPointsShort(requestParams, pointType.getLabel()), pointsArrays, countsArrays);
+            searchDAO.getFacetPointsPacked(requestParams, pointType.getLabel(), pointsArrays, countsArrays);
             if (colours == null || colours.isEmpty()) {
                 pColour.add(vars.colour);
             } else {
@@ -2439,14 +3074,13 @@ public class WMSController extends AbstractSecureController{
         Objects.requireNonNull(pivotResult, "Pivot result was null");
         float[] points = new float[2 * pivotResult.size()];
         int[] count = new int[pivotResult.size()];
+        float[] latLng = new float[2];
         int i = 0;
         int j = 0;
         for (FacetPivotResultDTO fpr : pivotResult) {
-            String v = fpr.getValue();
-            if (StringUtils.isNotEmpty(v)) {
-                int p = v.indexOf(',');
-                points[i++] = Float.parseFloat(v.substring(p + 1));
-                points[i++] = Float.parseFloat(v.substring(0, p));
+            if (PointFacetResponseParser.parsePoint(fpr.getValue(), latLng)) {
+                points[i++] = latLng[1];
+                points[i++] = latLng[0];
                 count[j++] = fpr.getCount();
             } else {
                 points[i++] = Float.NaN;
@@ -2459,51 +3093,15 @@ public class WMSController extends AbstractSecureController{
         if (gCount != null) gCount.add(count);
     }
 
-    private void makePointsFromFacet(FacetField facet, List gPoints, List gCount) {
-        float[] points = new float[2 * facet.getValues().size()];
-        int[] count = new int[facet.getValues().size()];
-        int i = 0;
-        int j = 0;
-        for (FacetField.Count s : facet.getValues()) {
-            try {
-                String v = s.getName();
-                if (v != null) {
-                    int p = v.indexOf(',');
-                    float lng = Float.parseFloat(v.substring(p + 1));
-                    float lat = Float.parseFloat(v.substring(0, p));
-                    int c = (int) s.getCount();
-                    points[i++] = lng;
-                    points[i++] = lat;
-                    count[j++] = c;
-                } else {
-                    points[i++] = Float.NaN;
-                    i++;
-                    count[j++] = 0;
-                }
-            } catch (Exception e) {
-            }
-        }
-
-        //duplicate the last point in case of errors above
-        while (i < points.length && i > 1) {
-            points[i] = points[i - 2];
-            i++;
-        }
-        while (j < count.length && j > 0) {
-            count[j] = 0;
-            j++;
-        }
-
-        gPoints.add(points);
-        if (gCount != null) gCount.add(count);
-    }
-
-    private void renderPoints(WmsEnv vars, double[] bbox, double[] pbbox, double width_mult, double height_mult, int pointWidth, boolean outlinePoints, String outlineColour, List<Integer> pColour, ImgObj imgObj, int j, float[] ps, double[] tilebbox, int height, int width, CoordinateOperation transformFrom4326) throws TransformException {
+    private void renderPoints(WmsEnv vars, double[] bbox, double[] pbbox, double width_mult, double height_mult, boolean outlinePoints, String outlineColour, List<Integer> pColour, ImgObj imgObj, int j, float[] ps, double[] tilebbox, int height, int width, CoordinateOperation transformFrom4326) throws TransformException {
         int x;
         int y;
-        Paint currentFill = new Color(pColour.get(j), true);
-        imgObj.g.setPaint(currentFill);
-        Color oColour = Color.decode(outlineColour);
+
+        //points are composited directly into the image pixels
+        int[] pixels = ((DataBufferInt) imgObj.img.getRaster().getDataBuffer()).getData();
+        int imageWidth = imgObj.img.getWidth();
+        int imageHeight = imgObj.img.getHeight();
+        PointStamp stamp = PointStamp.get(vars.size, pColour.get(j), outlinePoints ? Color.decode(outlineColour).getRGB() : 0, 1);
 
         //for 4326
         double top = tilebbox[3];
@@ -2524,13 +3122,7 @@ public class WMSController extends AbstractSecureController{
                     x = scaleLongitudeForImage(targetCoords.getOrdinate(0), left, right, width);
                     y = scaleLatitudeForImage(targetCoords.getOrdinate(1), top, bottom, height);
 
-                    //System.out.println("Drawing an oval.....");
-                    imgObj.g.fillOval(x - vars.size, y - vars.size, pointWidth, pointWidth);
-                    if (outlinePoints) {
-                        imgObj.g.setPaint(oColour);
-                        imgObj.g.drawOval(x - vars.size, y - vars.size, pointWidth, pointWidth);
-                        imgObj.g.setPaint(currentFill);
-                    }
+                    stamp.draw(pixels, imageWidth, imageHeight, x, y);
                 } catch (MismatchedDimensionException e) {
                 } catch (TransformException e) {
                     // failure to transform a coordinate will result in it not rendering
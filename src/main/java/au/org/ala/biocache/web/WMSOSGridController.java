@@ -3,6 +3,7 @@ package au.org.ala.biocache.web;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.*;
 import au.org.ala.biocache.util.*;
+import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
@@ -12,6 +13,8 @@ import org.geotools.referencing.operation.DefaultCoordinateOperationFactory;
 import org.opengis.geometry.DirectPosition;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.CoordinateOperation;
+import org.opengis.referencing.operation.MathTransform;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -19,7 +22,6 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import scala.Option;
 
-import javax.imageio.ImageIO;
 import javax.inject.Inject;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -44,6 +46,30 @@ public class WMSOSGridController {
     @Inject
     protected WMSUtils wmsUtils;
 
+    //grid_ref_* field resolutions in metres, finest first
+    private static final int[] GRID_SIZES = {100, 1000, 2000, 10000, 100000};
+
+    //record counts by query key and grid reference filter query
+    private final LRUMap gridCountCache = new LRUMap(10000);
+    private final Object gridCountLock = new Object();
+
+    //grid_ref_* fields that are queried for the area of a tile rather than for the whole query, and are not cached
+    private static final Set<String> FINE_GRID_FIELDS = new HashSet<String>(Arrays.asList("grid_ref", "grid_ref_100", "grid_ref_1000"));
+
+    /**
+     * Max size in bytes of the cached projected grid cells for WMS tiles.
+     */
+    @Value("${wms.osgrid.cache.max.size:104857600}")
+    private long gridCellsCacheMaxSize = 104857600L;
+
+    /**
+     * Deflate level, 0 to 9, for PNG tiles.
+     */
+    @Value("${wms.png.level:4}")
+    private int wmsPngLevel = PngEncoder.DEFAULT_LEVEL;
+
+    //projected grid cells by query key, facet and SRS, limited by size in bytes
+    private volatile SegmentedLruCache<String, OSGridCells> gridCellsCache;
 
     @RequestMapping(value = {"/osgrid/lookup.json"}, method = RequestMethod.GET)
     public @ResponseBody Map<String, Object> parseGridReference(
@@ -82,11 +108,14 @@ public class WMSOSGridController {
     }
 
     /**
-     * Query for a record count at:
-     * - 100m grid, stopping if > 0
-     * - 1000m grid, stopping if > 0
-     * - 2000m grid, stopping if > 0
+     * Find the finest grid with records at the requested point, from:
+     * - 100m grid
+     * - 1000m grid
+     * - 2000m grid
      * - 10000m grid
+     * - 100000m grid
+     *
+     * Counts for all grids are retrieved with a single query and cached by query and grid reference.
      *
      * @param requestParams
      * @param request
@@ -123,59 +152,28 @@ public class WMSOSGridController {
 
             Map<String, Object> map = new HashMap<String, Object>();
 
-            long count = getRecordCountForGridRef(requestParams, osGrid.getGridRef100(), 100, false);
-            if (count > 0) {
-                map.put("gridRef", osGrid.getGridRef100());
-                map.put("gridSize", 100);
-                map.put("recordCount", count);
-                map.put("filterQuery", getFilterQuery(osGrid.getGridRef100(), 100));
-            }
-            logger.info(osGrid.getGridRef100() + " = " + count);
+            //finest resolution first
+            String[] gridRefs = new String[]{
+                    osGrid.getGridRef100(),
+                    osGrid.getGridRef1000(),
+                    osGrid.getGridRef2000(),
+                    osGrid.getGridRef10000(),
+                    osGrid.getGridRef100000()
+            };
 
-            if (count == 0) {
-                count = getRecordCountForGridRef(requestParams, osGrid.getGridRef1000(), 1000, true);
-                if (count > 0) {
-                    map.put("gridRef", osGrid.getGridRef1000());
-                    map.put("gridSize", 1000);
-                    map.put("recordCount", count);
-                    map.put("filterQuery", getFilterQuery(osGrid.getGridRef1000(), 1000));
-                }
-            }
-            logger.info(osGrid.getGridRef1000() + " = " + count);
+            long[] counts = getRecordCountsForGridRefs(requestParams, gridRefs);
 
-            if (count == 0) {
-                count = getRecordCountForGridRef(requestParams, osGrid.getGridRef2000(), 2000, true);
+            long count = 0;
+            for (int i = 0; i < gridRefs.length && count == 0; i++) {
+                count = counts[i];
                 if (count > 0) {
-                    map.put("gridRef", osGrid.getGridRef2000());
-                    map.put("gridSize", 2000);
+                    map.put("gridRef", gridRefs[i]);
+                    map.put("gridSize", GRID_SIZES[i]);
                     map.put("recordCount", count);
-                    map.put("filterQuery", getFilterQuery(osGrid.getGridRef2000(), 2000));
+                    map.put("filterQuery", getFilterQuery(gridRefs[i], GRID_SIZES[i]));
                 }
+                logger.debug(gridRefs[i] + " = " + count);
             }
-            logger.info(osGrid.getGridRef2000() + " = " + count);
-
-            if (count == 0) {
-                count = getRecordCountForGridRef(requestParams, osGrid.getGridRef10000(), 10000, true);
-                if (count > 0) {
-                    map.put("gridRef", osGrid.getGridRef10000());
-                    map.put("gridSize", 10000);
-                    map.put("recordCount", count);
-                    map.put("filterQuery", getFilterQuery(osGrid.getGridRef10000(), 10000));
-                }
-            }
-            logger.info(osGrid.getGridRef10000() + " = " + count);
-
-            if (count == 0) {
-                count = getRecordCountForGridRef(requestParams, osGrid.getGridRef100000(), 100000, true);
-                if (count > 0) {
-                    map.put("gridRef", osGrid.getGridRef100000());
-                    map.put("gridSize", 100000);
-                    map.put("recordCount", count);
-                    map.put("filterQuery", getFilterQuery(osGrid.getGridRef100000(), 100000));
-                }
-            }
-
-            logger.info(osGrid.getGridRef100000() + " = " + count);
 
             if (count > 0) {
                 int gridSize = (Integer) map.get("gridSize");
@@ -208,48 +206,66 @@ public class WMSOSGridController {
     }
 
     /**
-     * Performs a quick count query for this query and grid reference.
+     * Record counts for this query at each grid reference, with a single query for the grid references that
+     * are not cached.
      *
      * @param requestParams
-     * @param gridRef
-     * @param gridSize
-     * @param replaceLast
-     * @return
+     * @param gridRefs grid reference at each of GRID_SIZES
+     * @return record count for each grid reference
+     * @throws Exception
      */
-    private long getRecordCountForGridRef(SpatialSearchRequestParams requestParams, String gridRef, int gridSize, boolean replaceLast){
+    private long[] getRecordCountsForGridRefs(SpatialSearchRequestParams requestParams, String[] gridRefs) throws Exception {
 
-        try {
-            String fq = getFilterQuery(gridRef, gridSize);
-            logger.debug("New filter query to use for record count: " + fq);
-            if (replaceLast) {
-                String[] newFqs = new String[requestParams.getFq().length];
-                System.arraycopy(requestParams.getFq(), 0, newFqs, 0, requestParams.getFq().length);
-                newFqs[newFqs.length - 1] = fq;
-                requestParams.setFq(newFqs);
-            } else {
-                String[] newFqs = new String[requestParams.getFq().length + 1];
-                System.arraycopy(requestParams.getFq(), 0, newFqs, 0, requestParams.getFq().length);
-                newFqs[newFqs.length - 1] = fq;
-                requestParams.setFq(newFqs);
+        requestParams.setLat(null);
+        requestParams.setLon(null);
+        requestParams.setFacet(false);
+        requestParams.setPageSize(0);
+        requestParams.setFormattedQuery(null);
+
+        String queryKey = getQueryKey(requestParams);
+
+        long[] counts = new long[gridRefs.length];
+        String[] fqs = new String[gridRefs.length];
+        List<String> uncached = new ArrayList<String>();
+        synchronized (gridCountLock) {
+            for (int i = 0; i < gridRefs.length; i++) {
+                fqs[i] = getFilterQuery(gridRefs[i], GRID_SIZES[i]);
+                Long count = (Long) gridCountCache.get(queryKey + fqs[i]);
+                if (count == null) {
+                    counts[i] = -1;
+                    uncached.add(fqs[i]);
+                } else {
+                    counts[i] = count;
+                }
             }
+        }
 
-            requestParams.setLat(null);
-            requestParams.setLon(null);
-            requestParams.setFacet(false);
-            requestParams.setPageSize(0);
-            requestParams.setFormattedQuery(null);
-
-            logger.debug("FQs for record count: " + Arrays.toString(requestParams.getFq()));
+        if (!uncached.isEmpty()) {
+            logger.debug("Facet queries for record count: " + uncached + ", FQs: " + Arrays.toString(requestParams.getFq()));
 
-            SearchResultDTO resultDTO = searchDAO.findByFulltextSpatialQuery(requestParams, new HashMap<String, String[]>());
-            return resultDTO.getTotalRecords();
-        } catch (Exception e){
-            logger.error("Problem with getRecordCountForGridRef request: " + e.getMessage());
-            if(logger.isDebugEnabled()){
-                logger.debug( e.getMessage(), e);
+            Map<String, Integer> found = searchDAO.getFacetQueryCounts(requestParams, uncached);
+            synchronized (gridCountLock) {
+                for (int i = 0; i < gridRefs.length; i++) {
+                    if (counts[i] < 0) {
+                        Integer count = found.get(fqs[i]);
+                        counts[i] = count == null ? 0 : count;
+                        gridCountCache.put(queryKey + fqs[i], counts[i]);
+                    }
+                }
             }
-            return 0;
         }
+
+        return counts;
+    }
+
+    /**
+     * Cache key for the query, filter queries and index version of a request.
+     */
+    private String getQueryKey(SpatialSearchRequestParams requestParams) {
+        String[] fqs = requestParams.getFq() == null ? new String[0] : requestParams.getFq().clone();
+        Arrays.sort(fqs);
+        return searchDAO.getIndexVersion(false) + "\n" + requestParams.getQ() + "\n" + requestParams.getWkt()
+                + "\n" + StringUtils.join(fqs, "\n") + "\n";
     }
 
     private String getFilterQuery(String gridRef, int gridSize) {
@@ -354,7 +370,7 @@ public class WMSOSGridController {
                 buff = 0.75;
             } else if(boundingBoxSizeInKm >= 19 && boundingBoxSizeInKm <= 39){
                 buff = 0.5;
-                facets = new String[]{"grid_ref_1000", "grid_ref_10000"};
+                facets = new String[]{"grid_ref_10000", "grid_ref_1000"};
             } else {
                 buff = 0.1;
                 facets = new String[]{"grid_ref"};
@@ -398,73 +414,46 @@ public class WMSOSGridController {
         System.arraycopy(additionalFqs, 0, newFqs, fqs.length, additionalFqs.length);
         newFqs[newFqs.length - 1] = fq;
 
-        requestParams.setFq(newFqs);
-        requestParams.setPageSize(0);
-        requestParams.setFacet(true);
-        requestParams.setFlimit(-1);
-        requestParams.setFacets(facets);
+        //coarse grids are cached for the whole query, fine grids are queried for the area of this tile
+        List<OSGridCells> layersToRender = new ArrayList<OSGridCells>();
+        for (String facet : facets) {
+            boolean fine = FINE_GRID_FIELDS.contains(facet);
+            requestParams.setFq(fine ? newFqs : fqs);
+            layersToRender.add(getGridCells(requestParams, facet, srs, !fine));
+        }
 
         WMSImg wmsImg = WMSImg.create(width, height);
 
-        requestParams.setFq(newFqs);
-        requestParams.setPageSize(0);
-        requestParams.setFacet(true);
-        requestParams.setFlimit(-1);
-        requestParams.setFacets(facets);
-
-        Map<String, Integer> gridsRefs = new HashMap<String, Integer>();
-
-        SearchResultDTO resultsDTO2 = searchDAO.findByFulltextSpatialQuery(requestParams, new HashMap<String,String[]>());
-        Collection<FacetResultDTO> results2 = resultsDTO2.getFacetResults();
-        for (FacetResultDTO result : results2){
-            for (FieldResultDTO fieldResult : result.getFieldResult()) {
-                gridsRefs.put(fieldResult.getLabel(), (int) fieldResult.getCount());
+        int[] x = new int[4];
+        int[] y = new int[4];
+        for (OSGridCells cells : layersToRender) {
+            for (int i = 0; i < cells.size(); i++) {
+                if (cells.intersects(i, minx, miny, maxx, maxy)) {
+                    cells.toPixels(i, minx, miny, oneUnitInRequestedProjXInPixels, oneUnitInRequestedProjYInPixels, height, x, y);
+                    renderGrid(wmsImg, cells.getGridRef(i), cells.getGridSize(i), x, y, wmsEnv);
+                }
             }
         }
 
-        List<String> gridRefsToRender =  Arrays.asList(gridsRefs.keySet().toArray(new String[0]));
-        java.util.Collections.sort(gridRefsToRender, new Comparator<String>() {
-            @Override
-            public int compare(String o1, String o2) {
-                if(o1.length() > o2.length())
-                    return 1;
-                if(o1.length() == o2.length())
-                    return 0;
-                return -1;
-            }
-        });
-
-        Set<int[]> linesToRender = new HashSet<int[]>();
-        List<String> renderedLinesCache = new LinkedList<String>();
-
-        for(String gridRef : gridRefsToRender){
-
-            Set<int[]> renderedLines = renderGrid(wmsImg,
-                    gridRef,
-                    minx,
-                    miny,
-                    oneUnitInRequestedProjXInPixels,
-                    oneUnitInRequestedProjYInPixels,
-                    srs,
-                    width,
-                    height,
-                    wmsEnv,
-                    renderedLinesCache
-            );
-
-            linesToRender.addAll(renderedLines);
-        }
-
         if(outlineGrids) {
             //grid lines are rendered after cell fills
-            renderGridLines(wmsImg, linesToRender, outlineColour);
+            wmsImg.g.setPaint(new Color(0xff000000, true));
+            wmsImg.g.setStroke(new BasicStroke(0.8f));
+            for (OSGridCells cells : layersToRender) {
+                for (int i = 0; i < cells.size(); i++) {
+                    if (cells.intersects(i, minx, miny, maxx, maxy)) {
+                        cells.toPixels(i, minx, miny, oneUnitInRequestedProjXInPixels, oneUnitInRequestedProjYInPixels, height, x, y);
+                        wmsImg.g.drawPolygon(x, y, 4);
+                    }
+                }
+            }
         }
-        
+
         if (wmsImg != null && wmsImg.g != null) {
             wmsImg.g.dispose();
             try {
                 ServletOutputStream outStream = response.getOutputStream();
-                ImageIO.write(wmsImg.img, "png", outStream);
+                PngEncoder.write(wmsImg.img, wmsPngLevel, outStream);
                 outStream.flush();
                 outStream.close();
             } catch (Exception e) {
@@ -473,62 +462,138 @@ public class WMSOSGridController {
         }
     }
 
-    public void renderGridLines(WMSImg wmsImg, Collection<int[]> linesToRender, String outlineColour){
-        for(int[] line: linesToRender){
-            wmsImg.g.setPaint(new Color(0xff000000, true));
-            wmsImg.g.setStroke(new BasicStroke(0.8f));
-            wmsImg.g.drawLine(line[0],line[1],line[2],line[3]);
+    /**
+     * Get the grid cells of a grid_ref facet for a query, projected into the target SRS. Cells are cached by
+     * query, filter queries, index version, facet and SRS.
+     *
+     * @param requestParams
+     * @param facet     grid_ref facet field
+     * @param targetSrs
+     * @param cache     false to not cache the cells, e.g. when they are only for the area of a tile
+     * @return
+     * @throws Exception
+     */
+    private OSGridCells getGridCells(SpatialSearchRequestParams requestParams, String facet, String targetSrs,
+                                     boolean cache) throws Exception {
+        String key = cache ? getQueryKey(requestParams) + facet + "\n" + targetSrs : null;
+
+        OSGridCells cells = cache ? getGridCellsCache().get(key) : null;
+
+        if (cells == null) {
+            requestParams.setPageSize(0);
+            requestParams.setFacet(true);
+            requestParams.setFlimit(-1);
+            requestParams.setFacets(new String[]{facet});
+
+            List<String> gridRefs = new ArrayList<String>();
+            SearchResultDTO resultsDTO = searchDAO.findByFulltextSpatialQuery(requestParams, new HashMap<String, String[]>());
+            for (FacetResultDTO result : resultsDTO.getFacetResults()) {
+                for (FieldResultDTO fieldResult : result.getFieldResult()) {
+                    gridRefs.add(fieldResult.getLabel());
+                }
+            }
+
+            //larger grids, with shorter references, are rendered first
+            java.util.Collections.sort(gridRefs, new Comparator<String>() {
+                @Override
+                public int compare(String o1, String o2) {
+                    return Integer.compare(o1.length(), o2.length());
+                }
+            });
+
+            cells = projectGridCells(gridRefs, targetSrs);
+            if (logger.isDebugEnabled()) {
+                logger.debug("projected " + cells.size() + " " + facet + " cells, " + cells.sizeOf() + " bytes");
+            }
+
+            if (cache) {
+                getGridCellsCache().put(key, cells);
+            }
         }
+
+        return cells;
+    }
+
+    private SegmentedLruCache<String, OSGridCells> getGridCellsCache() {
+        if (gridCellsCache == null) {
+            synchronized (this) {
+                if (gridCellsCache == null) {
+                    gridCellsCache = new SegmentedLruCache<String, OSGridCells>(gridCellsCacheMaxSize, 1000,
+                            new SegmentedLruCache.Weigher<OSGridCells>() {
+                                @Override
+                                public long weigh(OSGridCells value) {
+                                    return value.sizeOf();
+                                }
+                            });
+                }
+            }
+        }
+        return gridCellsCache;
     }
 
     /**
-     * Render a single grid reference on the supplied tile
-     *
-     * //TODO note imageHeight is not used.....
+     * Project the corners of grid references into the target SRS.
      *
-     * @param wmsImg
-     * @param gridRef
-     * @param minx
-     * @param miny
-     * @param oneUnitXInPixels
-     * @param oneUnitYInPixels
+     * @param gridRefs
+     * @param targetSrs
+     * @return
      */
-    private Set<int[]> renderGrid(WMSImg wmsImg, String gridRef, double minx, double miny, double oneUnitXInPixels,
-                                  double oneUnitYInPixels, String targetSrs, int imageWidth, int imageHeight, WmsEnv wmsEnv, List<String> renderedLines){
-
-        if(StringUtils.isEmpty(gridRef)) return new HashSet<int[]>();
-
-        Option<au.org.ala.biocache.util.GridRef> gridRefOption = GridUtil.gridReferenceToEastingNorthing(gridRef);
+    OSGridCells projectGridCells(List<String> gridRefs, String targetSrs) {
+        OSGridCells cells = new OSGridCells(gridRefs.size());
 
-        if(gridRefOption.isEmpty()) return new HashSet<int[]>();
+        Map<String, MathTransform> transforms = new HashMap<String, MathTransform>();
+        double[] corners = new double[8];
+        double[] polygon = new double[8];
+        for (String gridRef : gridRefs) {
+            if (StringUtils.isEmpty(gridRef)) continue;
 
-        Set<int[]> linesToRender = new HashSet<int[]>();
+            Option<GridRef> gridRefOption = GridUtil.gridReferenceToEastingNorthing(gridRef);
+            if (gridRefOption.isEmpty()) continue;
 
-        au.org.ala.biocache.util.GridRef gr = gridRefOption.get();
+            GridRef gr = gridRefOption.get();
+            int easting = gr.easting();
+            int northing = gr.northing();
+            int gridSize = (Integer) gr.coordinateUncertainty().get();
 
-        int easting = gr.easting();
-        int northing = gr.northing();
-        int gridSize = (Integer) gr.coordinateUncertainty().get();
+            try {
+                MathTransform transform = transforms.get(gr.datum());
+                if (transform == null) {
+                    CoordinateReferenceSystem sourceCRS = CRS.decode(gr.datum());
+                    CoordinateReferenceSystem targetCRS = CRS.decode(targetSrs);
+                    transform = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS).getMathTransform();
+                    transforms.put(gr.datum(), transform);
+                }
 
-        //coordinates in easting / northing of the nearest 10km grid to the bottom,left of this tile
-        Integer minEastingOfGridCell  = easting; //may need to use the minimum of each
-        Integer minNorthingOfGridCell = northing;
-        Integer maxEastingOfGridCell  = minEastingOfGridCell + gridSize;
-        Integer maxNorthingOfGridCell = minNorthingOfGridCell + gridSize;
+                corners[0] = easting;
+                corners[1] = northing;
+                corners[2] = easting + gridSize;
+                corners[3] = northing;
+                corners[4] = easting + gridSize;
+                corners[5] = northing + gridSize;
+                corners[6] = easting;
+                corners[7] = northing + gridSize;
+                transform.transform(corners, 0, polygon, 0, 4);
+
+                cells.add(gridRef, gridSize, polygon);
+            } catch (Exception e) {
+                logger.error("Unable to project grid reference " + gridRef + ": " + e.getMessage());
+            }
+        }
 
-        double[][] polygonInMercator = convertEastingNorthingToTargetSRS(
-                new double[][]{
-                        new double[]{minEastingOfGridCell, minNorthingOfGridCell},
-                        new double[]{maxEastingOfGridCell, minNorthingOfGridCell},
-                        new double[]{maxEastingOfGridCell, maxNorthingOfGridCell},
-                        new double[]{minEastingOfGridCell, maxNorthingOfGridCell},
-                },
-                gr.datum(),
-                targetSrs
-        );
+        return cells.trim();
+    }
 
-        int[][] coordinatesForImages = convertUnitsToPixelOffset(polygonInMercator, minx, miny,
-                oneUnitXInPixels, oneUnitYInPixels, imageWidth, imageHeight);
+    /**
+     * Render a single grid cell on the supplied tile
+     *
+     * @param wmsImg
+     * @param gridRef
+     * @param gridSize grid size in metres
+     * @param x pixel x of the south west, south east, north east and north west corners
+     * @param y pixel y of the south west, south east, north east and north west corners
+     * @param wmsEnv
+     */
+    private void renderGrid(WMSImg wmsImg, String gridRef, int gridSize, int[] x, int[] y, WmsEnv wmsEnv){
 
         int color;
         if(!StringUtils.isEmpty(wmsEnv.gridres) && !"variablegrid".equals(wmsEnv.gridres)){
@@ -554,52 +619,7 @@ public class WMSOSGridController {
 
         Paint polygonFill = new Color(color, true);
         wmsImg.g.setPaint(polygonFill);
-
-
-        if(overlapping(coordinatesForImages)){
-            wmsImg.g.fillPolygon(
-                    new int[]{
-                            coordinatesForImages[0][0],
-                            coordinatesForImages[1][0],
-                            coordinatesForImages[2][0],
-                            coordinatesForImages[3][0]
-                    },
-                    new int[]{
-                            coordinatesForImages[0][1],
-                            coordinatesForImages[1][1],
-                            coordinatesForImages[2][1],
-                            coordinatesForImages[3][1]
-                    },
-                    4
-            );
-        }
-
-        Paint polygonBorder = new Color(0xFF000000, true);
-        wmsImg.g.setPaint(polygonBorder);
-
-        //line 1 -  bottom line
-        String key1 = getLineKey(minEastingOfGridCell,minNorthingOfGridCell,maxEastingOfGridCell,minNorthingOfGridCell);
-        if(!renderedLines.contains(key1)) {
-            linesToRender.add(new int[]{coordinatesForImages[0][0], coordinatesForImages[0][1], coordinatesForImages[1][0], coordinatesForImages[1][1]});
-        }
-
-        //line 2 - right line
-        String key2 = getLineKey(maxEastingOfGridCell,minNorthingOfGridCell,maxEastingOfGridCell,maxNorthingOfGridCell);
-        if(!renderedLines.contains(key2)) {
-            linesToRender.add(new int[]{coordinatesForImages[1][0], coordinatesForImages[1][1], coordinatesForImages[2][0], coordinatesForImages[2][1]});
-        }
-
-        //line 3 - top line
-        String key3 = getLineKey(maxEastingOfGridCell,maxNorthingOfGridCell,minEastingOfGridCell,maxNorthingOfGridCell);
-        if(!renderedLines.contains(key3)) {
-            linesToRender.add(new int[]{coordinatesForImages[2][0], coordinatesForImages[2][1], coordinatesForImages[3][0], coordinatesForImages[3][1]});
-        }
-
-        //line 4 - left line
-        String key4 = getLineKey(minEastingOfGridCell,maxNorthingOfGridCell,minEastingOfGridCell,minNorthingOfGridCell);
-        if(!renderedLines.contains(key4)) {
-            linesToRender.add(new int[]{coordinatesForImages[3][0], coordinatesForImages[3][1], coordinatesForImages[0][0], coordinatesForImages[0][1]});
-        }
+        wmsImg.g.fillPolygon(x, y, 4);
 
         if(wmsEnv.gridlabels) {
             Paint textColor = new Color(0xFF000000, true);
@@ -611,53 +631,22 @@ public class WMSOSGridController {
 
             String toDisplay = gridRef;
 
-            if ((relativeStringWidth + 5) <= (coordinatesForImages[1][0] - coordinatesForImages[0][0])) {
+            if ((relativeStringWidth + 5) <= (x[1] - x[0])) {
                 wmsImg.g.drawString(toDisplay,
-                        coordinatesForImages[0][0] + (coordinatesForImages[1][0] - coordinatesForImages[0][0]) / 2 - (fm.stringWidth(gridRef) / 2),
-                        coordinatesForImages[0][1] + (coordinatesForImages[2][1] - coordinatesForImages[0][1]) / 2
+                        x[0] + (x[1] - x[0]) / 2 - (fm.stringWidth(gridRef) / 2),
+                        y[0] + (y[2] - y[0]) / 2
                 );
             } else {
                 wmsImg.g.setFont(new Font("Ofliant", Font.PLAIN, 9));
                 relativeStringWidth = fm.stringWidth(gridRef);
-                if ((relativeStringWidth + 5) <= (coordinatesForImages[1][0] - coordinatesForImages[0][0])) {
+                if ((relativeStringWidth + 5) <= (x[1] - x[0])) {
                     wmsImg.g.drawString(toDisplay,
-                            coordinatesForImages[0][0] + (coordinatesForImages[1][0] - coordinatesForImages[0][0]) / 2 - (fm.stringWidth(gridRef) / 2),
-                            coordinatesForImages[0][1] + (coordinatesForImages[2][1] - coordinatesForImages[0][1]) / 2
+                            x[0] + (x[1] - x[0]) / 2 - (fm.stringWidth(gridRef) / 2),
+                            y[0] + (y[2] - y[0]) / 2
                     );
                 }
             }
         }
-
-        return linesToRender;
-    }
-
-    public boolean overlapping(int[][] imageCoords){
-        for(int i=0; i < imageCoords.length; i++){
-            if(imageCoords[i][0] >=0 && imageCoords[i][1] >=0 ){
-                return true;
-            }
-        }
-        return false;
-    }
-
-    public String getLineKey(int x1, int y1 , int x2 , int y2){
-
-        String key = "";
-        if(x1 < x2){
-            key = x1 + " " + x2;
-        } else {
-            key = x2 + " " + x1;
-        }
-
-        key += " ";
-
-        if(y1 < y2){
-            key += y1 + " " + y2;
-        } else {
-            key += y2 + " " + y1;
-        }
-
-        return key;
     }
 
     ParsedGridRef convertEastingNorthingToOSGrid(double e, double n){
@@ -735,40 +724,6 @@ public class WMSOSGridController {
     double[] convertProjectionToWGS84(Double coordinate1, Double coordinate2, String sourceProjection){
         return reprojectPoint(coordinate1, coordinate2, sourceProjection, "EPSG:4326");
     }
-
-    /**
-     *
-     * @param polygon coordinates for the polygon
-     * @param minXOfTileInMetres
-     * @param minYOfTileInMetres
-     * @param onePixelInUnitX
-     * @param onePixelInUnitY
-     * @return
-     */
-    int[][] convertUnitsToPixelOffset(double[][] polygon,
-                                      double minXOfTileInMetres,
-                                      double minYOfTileInMetres,
-                                      double onePixelInUnitX,
-                                      double onePixelInUnitY,
-                                      int tileSizeInPixelsX,
-                                      int tileSizeInPixelsY){
-
-        int[][] offsetXYWidthHeights = new int[polygon.length][2];
-        for(int i = 0; i < polygon.length; i++){
-            int x = (int)((polygon[i][0] - minXOfTileInMetres) * onePixelInUnitX);
-            int y = (int)((polygon[i][1] - minYOfTileInMetres) * onePixelInUnitY);
-            offsetXYWidthHeights[i] = new int[]{x, tileSizeInPixelsY - y};
-        }
-        return offsetXYWidthHeights;
-    }
-
-    double[][] convertEastingNorthingToTargetSRS(double[][] polygon, String sourceSrs, String targetSrs){
-        double[][] converted = new double[polygon.length][2];
-        for(int i = 0; i < polygon.length; i++){
-            converted[i] = reprojectPoint(polygon[i][0], polygon[i][1], sourceSrs, targetSrs);
-        }
-        return converted;
-    }
 }
 
 class WMSImg {
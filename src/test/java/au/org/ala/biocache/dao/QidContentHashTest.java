@@ -0,0 +1,40 @@
+package au.org.ala.biocache.dao;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QidContentHashTest {
+
+    @Test
+    public void testContentHash() {
+        double[] bbox = {1, 2, 3, 4};
+        String hash = QidCacheDAOImpl.contentHash("q", "title", "wkt", bbox, new String[]{"a:1", "b:2"}, -1);
+
+        //same content, fq order is ignored
+        assertEquals(hash, QidCacheDAOImpl.contentHash("q", "title", "wkt", new double[]{1, 2, 3, 4},
+                new String[]{"b:2", "a:1"}, -1));
+
+        assertNotEquals(hash, QidCacheDAOImpl.contentHash("q2", "title", "wkt", bbox, new String[]{"a:1", "b:2"}, -1));
+        assertNotEquals(hash, QidCacheDAOImpl.contentHash("q", "title2", "wkt", bbox, new String[]{"a:1", "b:2"}, -1));
+        assertNotEquals(hash, QidCacheDAOImpl.contentHash("q", "title", null, bbox, new String[]{"a:1", "b:2"}, -1));
+        assertNotEquals(hash, QidCacheDAOImpl.contentHash("q", "title", "wkt", null, new String[]{"a:1", "b:2"}, -1));
+        assertNotEquals(hash, QidCacheDAOImpl.contentHash("q", "title", "wkt", bbox, new String[]{"a:1"}, -1));
+        assertNotEquals(hash, QidCacheDAOImpl.contentHash("q", "title", "wkt", bbox, new String[]{"a:1", "b:2"}, 1000));
+
+        //field boundaries are part of the hash
+        assertNotEquals(QidCacheDAOImpl.contentHash("ab", "c", null, null, null, -1),
+                QidCacheDAOImpl.contentHash("a", "bc", null, null, null, -1));
+        assertNotEquals(QidCacheDAOImpl.contentHash("q", null, null, null, null, -1),
+                QidCacheDAOImpl.contentHash("q", null, null, null, new String[0], -1));
+    }
+
+    @Test
+    public void testMaxAgeNotDeduplicated() {
+        assertTrue(QidCacheDAOImpl.isDeduplicated(-1));
+        assertTrue(QidCacheDAOImpl.isDeduplicated(0));
+
+        //an existing qid may expire before the max age of the new qid
+        assertFalse(QidCacheDAOImpl.isDeduplicated(60000));
+    }
+}
@@ -0,0 +1,128 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.model.Qid;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class QidWriteBehindQueueTest {
+
+    @Test
+    public void testWriteAndRetry() throws Exception {
+        final Map<String, Qid> db = new ConcurrentHashMap<String, Qid>();
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        QidDAO qidDao = mock(QidDAO.class);
+        doAnswer(new Answer<Qid>() {
+            @Override
+            public Qid answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                Qid qid = (Qid) invocation.getArguments()[0];
+                //first attempt of each qid fails
+                if (attempts.incrementAndGet() % 2 == 1) {
+                    throw new RuntimeException("unavailable");
+                }
+                db.put(qid.getRowKey(), qid);
+                return null;
+            }
+        }).when(qidDao).put((Qid) any());
+
+        QidWriteBehindQueue queue = new QidWriteBehindQueue(qidDao, 10, 100, 3, 10);
+        Qid qid = new Qid("1", "q", "displayString", null, null, 0, null, -1, null);
+        queue.add(qid);
+
+        //readable before it is written
+        assertSame(qid, queue.get("1"));
+        assertEquals(1, queue.getStats().get("persistQueueSize"));
+
+        release.countDown();
+        for (int i = 0; i < 100 && queue.get("1") != null; i++) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+
+        assertNull(queue.get("1"));
+        assertSame(qid, db.get("1"));
+        assertEquals(1L, queue.getStats().get("persistRetried"));
+        assertEquals(1L, queue.getStats().get("persistWritten"));
+        queue.stop(1000);
+    }
+
+    @Test
+    public void testStopWritesQueued() throws Exception {
+        final Map<String, Qid> db = new ConcurrentHashMap<String, Qid>();
+        QidDAO qidDao = mock(QidDAO.class);
+        doAnswer(new Answer<Qid>() {
+            @Override
+            public Qid answer(InvocationOnMock invocation) {
+                Qid qid = (Qid) invocation.getArguments()[0];
+                db.put(qid.getRowKey(), qid);
+                return null;
+            }
+        }).when(qidDao).put((Qid) any());
+
+        //when the queue is full qids are written on the calling thread
+        QidWriteBehindQueue queue = new QidWriteBehindQueue(qidDao, 10, 0, 3, 10);
+        queue.add(new Qid("1", "q", "displayString", null, null, 0, null, -1, null));
+        assertNotNull(db.get("1"));
+        assertEquals(1L, queue.getStats().get("persistSynchronous"));
+
+        queue = new QidWriteBehindQueue(qidDao, 10, 1000, 3, 10);
+        for (int i = 2; i < 500; i++) {
+            queue.add(new Qid(String.valueOf(i), "q", "displayString", null, null, 0, null, -1, null));
+        }
+        queue.stop(10000);
+        assertEquals(499, db.size());
+    }
+
+    @Test
+    public void testRowKeyChanged() throws Exception {
+        QidDAO qidDao = mock(QidDAO.class);
+        doAnswer(new Answer<Qid>() {
+            @Override
+            public Qid answer(InvocationOnMock invocation) {
+                //a db that assigns its own row keys
+                ((Qid) invocation.getArguments()[0]).setRowKey("db");
+                return null;
+            }
+        }).when(qidDao).put((Qid) any());
+
+        QidWriteBehindQueue queue = new QidWriteBehindQueue(qidDao, 10, 100, 3, 10);
+        assertFalse(queue.isRowKeyChanged());
+        queue.add(new Qid("1", "q", "displayString", null, null, 0, null, -1, null));
+        for (int i = 0; i < 100 && queue.get("1") != null; i++) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        queue.stop(1000);
+
+        assertTrue(queue.isRowKeyChanged());
+        assertEquals(true, queue.getStats().get("persistRowKeyChanged"));
+    }
+
+    @Test
+    public void testSynchronousWriteFailure() throws Exception {
+        QidDAO qidDao = mock(QidDAO.class);
+        doThrow(new RuntimeException("unavailable")).when(qidDao).put((Qid) any());
+
+        //a failed write on the calling thread is logged, as a sync write is
+        QidWriteBehindQueue queue = new QidWriteBehindQueue(qidDao, 10, 0, 3, 10);
+        queue.add(new Qid("1", "q", "displayString", null, null, 0, null, -1, null));
+        assertEquals(1L, queue.getStats().get("persistSynchronous"));
+        assertEquals(1L, queue.getStats().get("persistFailed"));
+        assertEquals(0L, queue.getStats().get("persistWritten"));
+        assertFalse(queue.isRowKeyChanged());
+        queue.stop(1000);
+    }
+}
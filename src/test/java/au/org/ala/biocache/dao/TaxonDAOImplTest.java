@@ -0,0 +1,154 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.util.CacheRegistry;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.PivotField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TaxonDAOImplTest {
+
+    @Mock
+    SolrClient solrClient;
+
+    @Mock
+    SearchDAO searchDAO;
+
+    @Mock
+    CacheRegistry cacheRegistry;
+
+    @InjectMocks
+    TaxonDAOImpl taxonDao = new TaxonDAOImpl();
+
+    @Before
+    public void setup() {
+        //server is also a SolrClient
+        ReflectionTestUtils.setField(taxonDao, "solrClient", solrClient);
+        taxonDao.init();
+    }
+
+    @Test
+    public void testExtractHierarchy() throws Exception {
+        pivotResponse(TaxonDAOImpl.HIERARCHY_RANKS,
+                pivot("Animalia",
+                        pivot("Chordata",
+                                pivot("Aves",
+                                        pivot("Casuariiformes",
+                                                pivot("Dromaiidae",
+                                                        pivot("Dromaius",
+                                                                pivot("Dromaius novaehollandiae"),
+                                                                pivot(null))))),
+                                pivot(null))),
+                pivot(null));
+
+        Document doc = extract(false);
+        String species = "/root/Layer[Name='Animalia']/Layer[Name='phylum:Chordata']/Layer[Name='class:Aves']"
+                + "/Layer[Name='order:Casuariiformes']/Layer[Name='family:Dromaiidae']/Layer[Name='genus:Dromaius']"
+                + "/Layer[Name='species:Dromaius_novaehollandiae']";
+        assertEquals(1, count(doc, species));
+        assertEquals("species:Dromaius novaehollandiae", evaluate(doc, species + "/Title"));
+
+        //null values are not output
+        assertEquals(7, count(doc, "//Layer"));
+        assertEquals(1, count(doc, "/root/Layer"));
+        assertFalse(evaluate(doc, "/root").contains("null"));
+
+        //the second request is cached
+        extract(false);
+        verify(solrClient, times(1)).query(any(SolrParams.class));
+    }
+
+    @Test
+    public void testExtractBySpeciesGroups() throws Exception {
+        pivotResponse(TaxonDAOImpl.SPECIES_GROUP_RANKS,
+                pivot("Birds",
+                        pivot("Casuariiformes",
+                                pivot("Dromaiidae",
+                                        pivot("Dromaius",
+                                                pivot("Dromaius novaehollandiae"))))),
+                pivot("Plants",
+                        pivot(null)));
+
+        Document doc = extract(true);
+
+        //a layer for each group, with the nested ranks inside it
+        assertEquals(2, count(doc, "/root/Layer"));
+        assertEquals(1, count(doc, "/root/Layer[Name='Birds']/Layer[Name='order:Casuariiformes']"
+                + "/Layer[Name='family:Dromaiidae']/Layer[Name='genus:Dromaius']"
+                + "/Layer[Name='species:Dromaius_novaehollandiae']"));
+        assertEquals(0, count(doc, "/root/Layer[Name='Plants']/Layer"));
+        assertFalse(evaluate(doc, "/root").contains("null"));
+    }
+
+    private void pivotResponse(String[] ranks, PivotField... groups) throws Exception {
+        NamedList<List<PivotField>> pivots = new NamedList<List<PivotField>>();
+        pivots.add(String.join(",", ranks), Arrays.asList(groups));
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getFacetPivot()).thenReturn(pivots);
+        when(solrClient.query(any(SolrQuery.class))).thenReturn(response);
+    }
+
+    private PivotField pivot(Object value, PivotField... children) {
+        PivotField p = mock(PivotField.class);
+        when(p.getValue()).thenReturn(value);
+        if (children.length > 0) {
+            when(p.getPivot()).thenReturn(Arrays.asList(children));
+        }
+        return p;
+    }
+
+    /**
+     * @return the layers in a root element, parsed to check that they are well formed
+     */
+    private Document extract(boolean speciesGroups) throws Exception {
+        StringWriter out = new StringWriter();
+        if (speciesGroups) {
+            taxonDao.extractBySpeciesGroups("http://metadata", "*:*", null, out);
+        } else {
+            taxonDao.extractHierarchy("http://metadata", "*:*", null, out);
+        }
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader("<root>" + out + "</root>")));
+    }
+
+    private int count(Document doc, String path) throws Exception {
+        return ((Double) xpath().evaluate("count(" + path + ")", doc, XPathConstants.NUMBER)).intValue();
+    }
+
+    private String evaluate(Document doc, String path) throws Exception {
+        return xpath().evaluate(path, doc);
+    }
+
+    private XPath xpath() {
+        return XPathFactory.newInstance().newXPath();
+    }
+}
@@ -0,0 +1,25 @@
+package au.org.ala.biocache.dto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpeciesCountDTOTest {
+
+    @Test
+    public void testGetCount() {
+        SpeciesCountDTO counts = new SpeciesCountDTO(new long[]{2, 5, 7, 10}, new long[]{1, 10, 100, 1000}, 1);
+
+        assertEquals(1111, counts.getCount(0, 20));
+        assertEquals(1111, counts.getCount(2, 10));
+        assertEquals(110, counts.getCount(3, 7));
+        assertEquals(10, counts.getCount(5, 6));
+        assertEquals(1000, counts.getCount(10, 10));
+        assertEquals(0, counts.getCount(11, 20));
+        assertEquals(0, counts.getCount(3, 4));
+        assertEquals(0, counts.getCount(7, 5));
+
+        assertEquals(0, new SpeciesCountDTO(new long[0], new long[0], 1).getCount(0, 10));
+        assertEquals(0, new SpeciesCountDTO().getCount(0, 10));
+    }
+}
@@ -0,0 +1,45 @@
+package au.org.ala.biocache.dto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpeciesImagesDTOTest {
+
+    @Test
+    public void testGet() {
+        SpeciesImagesDTO images = new SpeciesImagesDTO.Builder()
+                .add(10, 1000, "dr2", "image3")
+                .add(3, 1, "dr1", "image1")
+                .add(5, 10, "dr1", "image2")
+                .add(5, 5, "dr2", "image4")
+                .add(7, 100, null, "image1")
+                .build(1);
+
+        assertArrayEquals(new long[]{3, 5, 7, 10}, images.getLft());
+        assertEquals(6, images.getStrings().length);
+        assertEquals(1, images.getIndexVersion());
+
+        SpeciesImageDTO image = images.get(3, 8);
+        assertEquals("dr1", image.getDataResourceUid());
+        assertEquals("image1", image.getImage());
+        assertEquals(116, image.getCount());
+
+        //first image for a lft is kept
+        image = images.get(4, 6);
+        assertEquals("image2", image.getImage());
+        assertEquals(15, image.getCount());
+
+        image = images.get(6, 11);
+        assertNull(image.getDataResourceUid());
+        assertEquals(1100, image.getCount());
+
+        //right is exclusive
+        assertNull(images.get(11, 20));
+        assertNull(images.get(8, 10));
+        assertEquals(1000, images.get(10, 11).getCount());
+
+        assertNull(new SpeciesImagesDTO.Builder().build(1).get(0, 10));
+        assertNull(new SpeciesImagesDTO().get(0, 10));
+    }
+}
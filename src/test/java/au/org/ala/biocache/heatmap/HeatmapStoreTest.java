@@ -0,0 +1,122 @@
+package au.org.ala.biocache.heatmap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeatmapStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("heatmap").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testSingleGeneration() throws Exception {
+        final HeatmapStore store = new HeatmapStore(dir.getPath(), 0);
+        final AtomicInteger generated = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final HeatmapStore.Generator generator = (mapFile, legendFile) -> {
+            generated.incrementAndGet();
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            Files.write(mapFile.toPath(), new byte[]{1, 2, 3});
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> store.getMap("key", false, generator)));
+        }
+        started.await(10, TimeUnit.SECONDS);
+        Thread.sleep(100);
+        release.countDown();
+
+        for (Future<byte[]> f : results) {
+            assertEquals(3, f.get(10, TimeUnit.SECONDS).length);
+        }
+        executor.shutdown();
+
+        assertEquals(1, generated.get());
+
+        //stored
+        assertEquals(3, store.getMap("key", false, generator).length);
+        assertEquals(1, generated.get());
+
+        //legend was not written
+        assertNull(store.getLegend("key", false, (mapFile, legendFile) -> { }));
+
+        //no temporary files remain
+        for (File f : dir.listFiles()) {
+            assertFalse(f.getName(), f.getName().startsWith(HeatmapStore.TEMP_PREFIX));
+        }
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        HeatmapStore store = new HeatmapStore(dir.getPath(), 250);
+        for (int i = 0; i < 5; i++) {
+            store.getMap("key" + i, false, (mapFile, legendFile) -> Files.write(mapFile.toPath(), new byte[100]));
+            //distinct last use times
+            new File(dir, "key" + i + "_hm.png").setLastModified(System.currentTimeMillis() - (10 - i) * 10000L);
+        }
+
+        assertFalse(new File(dir, "key0_hm.png").exists());
+        assertFalse(new File(dir, "key1_hm.png").exists());
+        assertFalse(new File(dir, "key2_hm.png").exists());
+        assertTrue(new File(dir, "key3_hm.png").exists());
+        assertTrue(new File(dir, "key4_hm.png").exists());
+    }
+
+    @Test
+    public void testQuotaSkipsGeneration() throws Exception {
+        final HeatmapStore store = new HeatmapStore(dir.getPath(), 150);
+        store.getMap("old", false, (mapFile, legendFile) -> Files.write(mapFile.toPath(), new byte[100]));
+        new File(dir, "old_hm.png").setLastModified(System.currentTimeMillis() - 100000L);
+
+        //the quota runs while "new" is still being generated, the older image is removed instead
+        byte[] image = store.getMap("new", false, (mapFile, legendFile) -> {
+            Files.write(new File(dir, "new_hm.png").toPath(), new byte[100]);
+            new File(dir, "new_hm.png").setLastModified(System.currentTimeMillis() - 200000L);
+            Files.write(legendFile.toPath(), new byte[10]);
+        });
+        assertEquals(100, image.length);
+        assertFalse(new File(dir, "old_hm.png").exists());
+
+        //the legend was written with the map, so it is not generated again
+        assertEquals(10, store.getLegend("new", false, (mapFile, legendFile) -> {
+            throw new IllegalStateException("generated again");
+        }).length);
+    }
+}
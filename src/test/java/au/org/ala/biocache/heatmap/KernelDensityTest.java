@@ -0,0 +1,92 @@
+package au.org.ala.biocache.heatmap;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class KernelDensityTest {
+
+    @Test
+    public void testStamp() {
+        int[] stamp = KernelDensity.createStamp(2, 10);
+        assertEquals(25, stamp.length);
+        //centre
+        assertEquals(10, stamp[12]);
+        //distance 1
+        assertEquals(7, stamp[7]);
+        //distance 2, on the radius
+        assertEquals(0, stamp[2]);
+        //corner, outside the radius
+        assertEquals(0, stamp[0]);
+    }
+
+    @Test
+    public void testWeights() {
+        KernelDensity single = new KernelDensity(20, 20, 3, 10);
+        single.add(new int[]{10}, new int[]{10}, new int[]{5}, 1);
+
+        KernelDensity repeated = new KernelDensity(20, 20, 3, 10);
+        repeated.add(new int[]{10, 10, 10, 10, 10}, new int[]{10, 10, 10, 10, 10}, null, 5);
+
+        assertArrayEquals(repeated.getRaster(), single.getRaster());
+        assertEquals(50, single.getMax());
+    }
+
+    @Test
+    public void testBandsMatchSequential() {
+        int width = 300;
+        int height = 200;
+        int radius = 8;
+        int n = 5000;
+        Random random = new Random(1);
+        int[] x = new int[n];
+        int[] y = new int[n];
+        int[] w = new int[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = random.nextInt(width + 40) - 20;
+            y[i] = random.nextInt(height + 40) - 20;
+            w[i] = random.nextInt(100);
+        }
+
+        KernelDensity density = new KernelDensity(width, height, radius, 10);
+        density.add(x, y, w, n);
+
+        //sequential
+        int[] stamp = KernelDensity.createStamp(radius, 10);
+        int[] expected = new int[width * height];
+        for (int i = 0; i < n; i++) {
+            for (int dy = -radius; dy <= radius; dy++) {
+                for (int dx = -radius; dx <= radius; dx++) {
+                    int cx = x[i] + dx;
+                    int cy = y[i] + dy;
+                    if (cx >= 0 && cx < width && cy >= 0 && cy < height) {
+                        expected[cy * width + cx] += stamp[(dy + radius) * (2 * radius + 1) + dx + radius] * w[i];
+                    }
+                }
+            }
+        }
+
+        assertArrayEquals(expected, density.getRaster());
+    }
+
+    @Test
+    public void testColourise() {
+        KernelDensity density = new KernelDensity(10, 10, 2, 10);
+        density.add(new int[]{5}, new int[]{5}, new int[]{100}, 1);
+
+        int[] lut = new int[256];
+        for (int i = 0; i < lut.length; i++) {
+            lut[i] = 0xFF000000 | i;
+        }
+        int[] pixels = new int[100];
+        density.colourise(lut, 230, pixels);
+
+        //max value
+        assertEquals(0xFF000000, pixels[55]);
+        //no value
+        assertEquals(0, pixels[0]);
+    }
+}
@@ -0,0 +1,71 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CacheRegistryTest {
+
+    static class TestCache implements ManagedCache {
+        final String name;
+        long maxSize = 10;
+        int invalidated;
+
+        TestCache(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Map<String, Object> getStats() {
+            Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("type", "test");
+            stats.put("maxSize", maxSize);
+            stats.put("hitRate", 0.5);
+            return stats;
+        }
+
+        @Override
+        public void invalidate() {
+            invalidated++;
+        }
+
+        @Override
+        public boolean resize(long maxSize) {
+            this.maxSize = maxSize;
+            return true;
+        }
+    }
+
+    @Test
+    public void testRegistry() {
+        CacheRegistry registry = new CacheRegistry();
+        TestCache a = new TestCache("a");
+        registry.register(a);
+        registry.register(new TestCache("b"));
+
+        assertEquals(2, registry.getStats().size());
+        assertSame(a, registry.get("a"));
+
+        assertTrue(registry.invalidate("a"));
+        assertFalse(registry.invalidate("c"));
+        assertEquals(1, a.invalidated);
+
+        assertTrue(registry.resize("a", 20));
+        assertFalse(registry.resize("c", 20));
+        assertEquals(20L, registry.getStats().get("a").get("maxSize"));
+
+        String metrics = registry.getMetrics();
+        assertTrue(metrics.contains("# TYPE biocache_cache_max_size gauge\n"));
+        assertTrue(metrics.contains("biocache_cache_max_size{cache=\"a\"} 20\n"));
+        assertTrue(metrics.contains("biocache_cache_hit_rate{cache=\"b\"} 0.5\n"));
+        assertFalse(metrics.contains("type"));
+    }
+}
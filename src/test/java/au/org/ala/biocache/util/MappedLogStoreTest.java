@@ -0,0 +1,79 @@
+package au.org.ala.biocache.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MappedLogStoreTest {
+
+    File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("qid").toFile();
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        MappedLogStore store = new MappedLogStore(dir, 1 << 20, 1 << 16);
+        assertTrue(store.put("1", "one".getBytes()));
+        assertTrue(store.put("2", new byte[0]));
+        assertTrue(store.put("1", "uno".getBytes()));
+
+        assertEquals("uno", new String(store.get("1")));
+        assertEquals(0, store.get("2").length);
+        assertNull(store.get("3"));
+        assertEquals(2, store.size());
+
+        //larger than a segment
+        assertFalse(store.put("4", new byte[1 << 16]));
+        assertNull(store.get("4"));
+    }
+
+    @Test
+    public void testOldestRemoved() throws Exception {
+        //4 segments of 10 values
+        MappedLogStore store = new MappedLogStore(dir, 4 * 1000, 1000);
+        byte[] value = new byte[100 - 12 - 3];
+        for (int i = 100; i < 200; i++) {
+            value[0] = (byte) i;
+            assertTrue(store.put(String.valueOf(i), value));
+        }
+        assertTrue(store.getSize() <= 4 * 1000);
+        assertNull(store.get("100"));
+        assertNull(store.get("159"));
+        for (int i = 160; i < 200; i++) {
+            assertEquals((byte) i, store.get(String.valueOf(i))[0]);
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        MappedLogStore store = new MappedLogStore(dir, 1 << 20, 1 << 12);
+        for (int i = 0; i < 500; i++) {
+            store.put("key" + i, ("value" + i).getBytes());
+        }
+        store.put("key0", "updated".getBytes());
+
+        MappedLogStore reopened = new MappedLogStore(dir, 1 << 20, 1 << 12);
+        assertEquals(500, reopened.size());
+        assertEquals("updated", new String(reopened.get("key0")));
+        assertEquals("value499", new String(reopened.get("key499")));
+
+        //appends after the existing values
+        reopened.put("key500", "value500".getBytes());
+        assertEquals("value499", new String(reopened.get("key499")));
+        assertEquals("value500", new String(reopened.get("key500")));
+    }
+}
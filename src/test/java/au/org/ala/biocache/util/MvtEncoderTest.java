@@ -0,0 +1,153 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MvtEncoderTest {
+
+    @Test
+    public void testEmptyTile() {
+        MvtEncoder encoder = new MvtEncoder("occurrences", 4096);
+        assertEquals(0, encoder.encode().length);
+    }
+
+    @Test
+    public void testZigZag() {
+        assertEquals(0, MvtEncoder.zigZag(0));
+        assertEquals(1, MvtEncoder.zigZag(-1));
+        assertEquals(2, MvtEncoder.zigZag(1));
+        assertEquals(3, MvtEncoder.zigZag(-2));
+        assertEquals(8192, MvtEncoder.zigZag(4096));
+    }
+
+    @Test
+    public void testPointFeatures() {
+        MvtEncoder encoder = new MvtEncoder("occurrences", 4096);
+        int colour = encoder.key("colour");
+        int count = encoder.key("count");
+        int red = encoder.value("#ff0000");
+
+        encoder.addPoint(10, 20, colour, red, count, encoder.value(5));
+        encoder.addPoint(-3, 4100, colour, red, count, encoder.value(300));
+
+        Reader tile = new Reader(encoder.encode());
+        assertEquals((3 << 3) | 2, tile.varint());
+        Reader layer = tile.message();
+        assertEquals(0, tile.remaining());
+
+        List<Reader> features = new ArrayList<Reader>();
+        List<String> keys = new ArrayList<String>();
+        List<Reader> values = new ArrayList<Reader>();
+        String name = null;
+        long extent = -1, version = -1;
+        while (layer.remaining() > 0) {
+            int tag = (int) layer.varint();
+            switch (tag >> 3) {
+                case 1: name = layer.string(); break;
+                case 2: features.add(layer.message()); break;
+                case 3: keys.add(layer.string()); break;
+                case 4: values.add(layer.message()); break;
+                case 5: extent = layer.varint(); break;
+                case 15: version = layer.varint(); break;
+                default: throw new AssertionError("unexpected field " + tag);
+            }
+        }
+
+        assertEquals("occurrences", name);
+        assertEquals(4096, extent);
+        assertEquals(2, version);
+        assertEquals(2, keys.size());
+        assertEquals("colour", keys.get(0));
+        assertEquals("count", keys.get(1));
+        assertEquals(3, values.size());
+        assertEquals((1 << 3) | 2, values.get(0).varint());
+        assertEquals("#ff0000", values.get(0).string());
+        assertEquals((5 << 3), values.get(1).varint());
+        assertEquals(5, values.get(1).varint());
+        assertEquals((5 << 3), values.get(2).varint());
+        assertEquals(300, values.get(2).varint());
+
+        assertEquals(2, features.size());
+        assertFeature(features.get(0), 1, new long[]{0, 0, 1, 1}, new long[]{9, 20, 40});
+        assertFeature(features.get(1), 2, new long[]{0, 0, 1, 2}, new long[]{9, 5, 8200});
+    }
+
+    private void assertFeature(Reader feature, long id, long[] tags, long[] geometry) {
+        assertEquals((1 << 3), feature.varint());
+        assertEquals(id, feature.varint());
+        assertEquals((2 << 3) | 2, feature.varint());
+        assertArrayEquals(tags, feature.message().packed());
+        assertEquals((3 << 3), feature.varint());
+        assertEquals(1, feature.varint());
+        assertEquals((4 << 3) | 2, feature.varint());
+        assertArrayEquals(geometry, feature.message().packed());
+        assertEquals(0, feature.remaining());
+    }
+
+    /**
+     * Minimal protobuf reader for the test.
+     */
+    static class Reader {
+        final byte[] buf;
+        int pos;
+        final int end;
+
+        Reader(byte[] buf) {
+            this(buf, 0, buf.length);
+        }
+
+        Reader(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int remaining() {
+            return end - pos;
+        }
+
+        long varint() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        Reader message() {
+            int len = (int) varint();
+            Reader r = new Reader(buf, pos, pos + len);
+            pos += len;
+            return r;
+        }
+
+        String string() {
+            int len = (int) varint();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        long[] packed() {
+            List<Long> list = new ArrayList<Long>();
+            while (remaining() > 0) {
+                list.add(varint());
+            }
+            long[] a = new long[list.size()];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = list.get(i);
+            }
+            return a;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OSGridCellsTest {
+
+    @Test
+    public void testAdd() {
+        OSGridCells cells = new OSGridCells(1);
+        for (int i = 0; i < 20; i++) {
+            cells.add("C" + i, 1000, square(i * 1000, 0, 1000));
+        }
+        cells.trim();
+
+        assertEquals(20, cells.size());
+        assertEquals(20, cells.gridSizes.length);
+        assertEquals("C19", cells.getGridRef(19));
+        assertEquals(1000, cells.getGridSize(19));
+        assertArrayEquals(new double[]{19000, 0, 20000, 1000}, java.util.Arrays.copyOfRange(cells.bounds, 19 * 4, 20 * 4), 0);
+    }
+
+    @Test
+    public void testIntersects() {
+        OSGridCells cells = new OSGridCells(2);
+        cells.add("A", 1000, square(0, 0, 1000));
+        //a rotated cell, as projected cells are not aligned to the map axes
+        cells.add("B", 1000, new double[]{5000, 5000, 5100, 4000, 6100, 4100, 6000, 5100});
+
+        assertTrue(cells.intersects(0, 500, 500, 600, 600));
+        assertTrue(cells.intersects(0, -100, -100, 0, 0));
+        assertFalse(cells.intersects(0, 1001, 0, 2000, 1000));
+        assertFalse(cells.intersects(0, 0, -500, 1000, -1));
+
+        assertTrue(cells.intersects(1, 6050, 5050, 7000, 7000));
+        assertFalse(cells.intersects(1, 0, 0, 4999, 3999));
+    }
+
+    @Test
+    public void testToPixels() {
+        OSGridCells cells = new OSGridCells(1);
+        cells.add("A", 1000, square(1000, 2000, 1000));
+
+        int[] x = new int[4];
+        int[] y = new int[4];
+        // 256 pixel tile covering 0,0 to 4096,4096
+        cells.toPixels(0, 0, 0, 256 / 4096.0, 256 / 4096.0, 256, x, y);
+
+        assertArrayEquals(new int[]{62, 125, 125, 62}, x);
+        assertArrayEquals(new int[]{256 - 125, 256 - 125, 256 - 187, 256 - 187}, y);
+    }
+
+    private static double[] square(double x, double y, double size) {
+        return new double[]{x, y, x + size, y, x + size, y + size, x, y + size};
+    }
+}
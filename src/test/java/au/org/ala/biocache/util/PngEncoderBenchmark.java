@@ -0,0 +1,81 @@
+package au.org.ala.biocache.util;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares PngEncoder with ImageIO encoding 256 x 256 ARGB tiles of points, from sparse to dense.
+ *
+ * Not run by the build. Run the main method with the test classpath, optionally with the number of tiles:
+ * java -cp target/test-classes:target/classes:[dependencies] au.org.ala.biocache.util.PngEncoderBenchmark 50
+ */
+public class PngEncoderBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+
+        BufferedImage[] tiles = new BufferedImage[size];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = drawTile(256, 20 * (i + 1), i);
+        }
+
+        System.out.println(size + " tiles, best of " + RUNS + " runs after a warm up run");
+
+        long imageIO = Long.MAX_VALUE;
+        long imageIOBytes = 0;
+        long[] encoder = new long[10];
+        long[] encoderBytes = new long[10];
+        Arrays.fill(encoder, Long.MAX_VALUE);
+        for (int run = 0; run <= RUNS; run++) {
+            imageIOBytes = 0;
+            long start = System.nanoTime();
+            for (BufferedImage tile : tiles) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(tile, "png", out);
+                imageIOBytes += out.size();
+            }
+            long t = System.nanoTime() - start;
+            //the first run is a warm up
+            if (run > 0) {
+                imageIO = Math.min(imageIO, t);
+            }
+
+            for (int level = 1; level < encoder.length; level++) {
+                encoderBytes[level] = 0;
+                start = System.nanoTime();
+                for (BufferedImage tile : tiles) {
+                    encoderBytes[level] += PngEncoder.encode(tile, level).length;
+                }
+                t = System.nanoTime() - start;
+                if (run > 0) {
+                    encoder[level] = Math.min(encoder[level], t);
+                }
+            }
+        }
+
+        System.out.println("ImageIO: " + imageIO / 1000000 + "ms " + imageIOBytes + " bytes");
+        for (int level = 1; level < encoder.length; level++) {
+            System.out.println("PngEncoder level " + level + ": " + encoder[level] / 1000000 + "ms " + encoderBytes[level] + " bytes");
+        }
+    }
+
+    private static BufferedImage drawTile(int size, int points, long seed) {
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = (Graphics2D) img.getGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        Random random = new Random(seed);
+        g.setPaint(new Color(0xcc8b0000, true));
+        for (int i = 0; i < points; i++) {
+            g.fillOval(random.nextInt(size), random.nextInt(size), 8, 8);
+        }
+        g.dispose();
+        return img;
+    }
+}
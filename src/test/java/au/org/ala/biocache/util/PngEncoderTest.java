@@ -0,0 +1,91 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PngEncoderTest {
+
+    @Test
+    public void testIndexed() throws Exception {
+        //2, 4, 16 and 256 colours for each bit depth
+        for (int colours : new int[]{2, 3, 4, 16, 200, 256}) {
+            BufferedImage img = new BufferedImage(37, 19, BufferedImage.TYPE_INT_ARGB);
+            for (int i = 0; i < 37 * 19; i++) {
+                int c = i % colours;
+                img.setRGB(i % 37, i / 37, c == 0 ? 0 : ((c * 0x10305) & 0xffffff) | ((c * 7 % 256) << 24));
+            }
+            byte[] png = PngEncoder.encode(img, PngEncoder.DEFAULT_LEVEL);
+            assertEquals(3, png[25]); //colour type
+            assertSame(img, png);
+        }
+    }
+
+    @Test
+    public void testRgba() throws Exception {
+        BufferedImage img = new BufferedImage(64, 50, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(1);
+        for (int y = 0; y < 50; y++) {
+            for (int x = 0; x < 64; x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+        for (int level = 0; level <= 9; level += 3) {
+            byte[] png = PngEncoder.encode(img, level);
+            assertEquals(6, png[25]);
+            assertSame(img, png);
+        }
+    }
+
+    @Test
+    public void testTile() throws Exception {
+        BufferedImage img = drawTile(256, 500, 1);
+        assertSame(img, PngEncoder.encode(img, PngEncoder.DEFAULT_LEVEL));
+
+        //a sub image does not use the image int array directly
+        BufferedImage sub = img.getSubimage(10, 20, 100, 50);
+        assertSame(sub, PngEncoder.encode(sub, PngEncoder.DEFAULT_LEVEL));
+
+        //other image types use ImageIO
+        BufferedImage rgb = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+        rgb.setRGB(5, 5, 0xff0000);
+        assertSame(rgb, PngEncoder.encode(rgb, PngEncoder.DEFAULT_LEVEL));
+    }
+
+    private static BufferedImage drawTile(int size, int points, long seed) {
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = (Graphics2D) img.getGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        Random random = new Random(seed);
+        g.setPaint(new Color(0xcc8b0000, true));
+        for (int i = 0; i < points; i++) {
+            g.fillOval(random.nextInt(size), random.nextInt(size), 8, 8);
+        }
+        g.dispose();
+        return img;
+    }
+
+    private static void assertSame(BufferedImage expected, byte[] png) throws Exception {
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                //fully transparent pixels are written as transparent black
+                if ((e >>> 24) == 0) {
+                    assertEquals(x + "," + y, 0, a >>> 24);
+                } else {
+                    assertEquals(x + "," + y, e, a);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package au.org.ala.biocache.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares PointFacetResponseParser with decoding each "latitude,longitude" facet value with substring and
+ * Float.parseFloat.
+ *
+ * Not run by the build. Run the main method with the test classpath, optionally with the number of points:
+ * java -cp target/test-classes:target/classes:[dependencies] au.org.ala.biocache.util.PointFacetResponseParserBenchmark 1000000
+ */
+public class PointFacetResponseParserBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        Random random = new Random(1);
+        String[] values = new String[size];
+        StringBuilder json = new StringBuilder("{\"responseHeader\":{\"status\":0},\"facet_counts\":{\"facet_fields\":{\"point-0.0001\":[");
+        for (int i = 0; i < size; i++) {
+            values[i] = String.format(Locale.ROOT, "%.4f,%.4f", random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(values[i]).append("\",").append(1 + random.nextInt(100));
+        }
+        json.append("]}}}");
+        String response = json.toString();
+
+        System.out.println(size + " points, best of " + RUNS + " runs after a warm up run");
+
+        long substring = Long.MAX_VALUE;
+        long parsePoint = Long.MAX_VALUE;
+        long substringResponse = Long.MAX_VALUE;
+        long parserResponse = Long.MAX_VALUE;
+        float check = 0;
+        for (int run = 0; run <= RUNS; run++) {
+            long start = System.nanoTime();
+            for (String v : values) {
+                int p = v.indexOf(',');
+                check += Float.parseFloat(v.substring(0, p)) + Float.parseFloat(v.substring(p + 1));
+            }
+            long t1 = System.nanoTime() - start;
+
+            float[] latLng = new float[2];
+            start = System.nanoTime();
+            for (String v : values) {
+                PointFacetResponseParser.parsePoint(v, latLng);
+                check -= latLng[0] + latLng[1];
+            }
+            long t2 = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            check += parseWithSubstring(response);
+            long t3 = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            check += new PointFacetResponseParser().processResponse(new StringReader(response)).size();
+            long t4 = System.nanoTime() - start;
+
+            //the first run is a warm up
+            if (run > 0) {
+                substring = Math.min(substring, t1);
+                parsePoint = Math.min(parsePoint, t2);
+                substringResponse = Math.min(substringResponse, t3);
+                parserResponse = Math.min(parserResponse, t4);
+            }
+        }
+
+        System.out.println("values:   substring + Float.parseFloat " + substring / 1000000 + "ms, parsePoint " + parsePoint / 1000000 + "ms");
+        System.out.println("response: JSON strings + substring " + substringResponse / 1000000 + "ms, PointFacetResponseParser " + parserResponse / 1000000 + "ms");
+        System.out.println("(" + check + ")");
+    }
+
+    /**
+     * Stream the same response, creating a String for each facet value and decoding it with substring and
+     * Float.parseFloat.
+     */
+    private static float parseWithSubstring(String response) throws IOException {
+        float sum = 0;
+        try (JsonParser p = new JsonFactory().createParser(new StringReader(response))) {
+            JsonToken t;
+            while ((t = p.nextToken()) != null) {
+                if (t == JsonToken.VALUE_STRING) {
+                    String v = p.getText();
+                    int c = v.indexOf(',');
+                    if (c > 0) {
+                        sum += Float.parseFloat(v.substring(0, c)) + Float.parseFloat(v.substring(c + 1));
+                    }
+                } else if (t == JsonToken.VALUE_NUMBER_INT) {
+                    sum += p.getIntValue();
+                }
+            }
+        }
+        return sum;
+    }
+}
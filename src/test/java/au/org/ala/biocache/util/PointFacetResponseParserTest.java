@@ -0,0 +1,157 @@
+package au.org.ala.biocache.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PointFacetResponseParserTest {
+
+    @Test
+    public void testParseFloat() {
+        String[] values = {"0", "1", "-1", "0.5", "-35.1234", "149.123456", "+12.25", " 7.5 ", "180.0", "-90.00000"};
+        for (String v : values) {
+            char[] c = v.toCharArray();
+            assertEquals(v, Float.parseFloat(v), PointFacetResponseParser.parseFloat(c, 0, c.length), 0f);
+        }
+
+        // exponents are passed to Float.parseFloat
+        char[] c = "1.5E-4".toCharArray();
+        assertEquals(1.5E-4f, PointFacetResponseParser.parseFloat(c, 0, c.length), 0f);
+
+        // invalid values
+        for (String v : new String[]{"", " ", "-", ".", "abc", "1.2.3", "12a"}) {
+            c = v.toCharArray();
+            assertTrue(v, Float.isNaN(PointFacetResponseParser.parseFloat(c, 0, c.length)));
+        }
+    }
+
+    @Test
+    public void testParseFloatRandom() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            String v = String.format(Locale.ROOT, "%.6f", random.nextDouble() * 360 - 180);
+            assertEquals(v, Float.parseFloat(v), PointFacetResponseParser.parseFloat(v, 0, v.length()), 0f);
+        }
+    }
+
+    @Test
+    public void testParsePoint() {
+        float[] latLng = new float[2];
+        assertTrue(PointFacetResponseParser.parsePoint("-35.25,149.125", latLng));
+        assertArrayEquals(new float[]{-35.25f, 149.125f}, latLng, 0f);
+
+        char[] c = "x-12.5,130.75x".toCharArray();
+        assertTrue(PointFacetResponseParser.parsePoint(c, 1, c.length - 1, latLng));
+        assertArrayEquals(new float[]{-12.5f, 130.75f}, latLng, 0f);
+
+        assertFalse(PointFacetResponseParser.parsePoint((String) null, latLng));
+        assertFalse(PointFacetResponseParser.parsePoint("", latLng));
+        assertFalse(PointFacetResponseParser.parsePoint("-35.25", latLng));
+        assertFalse(PointFacetResponseParser.parsePoint("-35.25,", latLng));
+        assertFalse(PointFacetResponseParser.parsePoint("abc,149", latLng));
+    }
+
+    @Test
+    public void testFacetFields() {
+        String json = "{\"responseHeader\":{\"status\":0,\"QTime\":1},"
+                + "\"response\":{\"numFound\":6,\"start\":0,\"docs\":[]},"
+                + "\"facet_counts\":{\"facet_queries\":{},"
+                + "\"facet_fields\":{\"point-0.1\":[\"-35.3,149.1\",4,\"bad\",1,\"-12.5,130.8\",2]},"
+                + "\"facet_ranges\":{}}}";
+
+        NamedList<Object> response = new PointFacetResponseParser().processResponse(new StringReader(json));
+        NamedList<PointFacetResponseParser.Points> groups =
+                (NamedList<PointFacetResponseParser.Points>) response.get(PointFacetResponseParser.POINTS);
+
+        assertEquals(1, groups.size());
+        PointFacetResponseParser.Points points = groups.get("point-0.1");
+        assertEquals(2, points.size);
+        assertArrayEquals(new float[]{149.1f, -35.3f, 130.8f, -12.5f}, points.points, 0f);
+        assertArrayEquals(new int[]{4, 2}, points.counts);
+    }
+
+    @Test
+    public void testJsonFacets() {
+        String json = "{\"responseHeader\":{\"status\":0},"
+                + "\"response\":{\"numFound\":5,\"start\":0,\"docs\":[]},"
+                + "\"facets\":{\"count\":5,"
+                + "\"q0\":{\"count\":3,\"points\":{\"buckets\":[{\"val\":\"-35.3,149.1\",\"count\":3}]}},"
+                + "\"q1\":{\"count\":0},"
+                + "\"q2\":{\"count\":2,\"points\":{\"buckets\":[{\"count\":1,\"val\":\"10,20\"},{\"val\":\"11,21\",\"count\":1}]}}}}";
+
+        NamedList<Object> response = new PointFacetResponseParser().processResponse(new StringReader(json));
+        NamedList<PointFacetResponseParser.Points> groups =
+                (NamedList<PointFacetResponseParser.Points>) response.get(PointFacetResponseParser.POINTS);
+
+        assertEquals(3, groups.size());
+        assertArrayEquals(new float[]{149.1f, -35.3f}, groups.get("q0").points, 0f);
+        assertEquals(0, groups.get("q1").size);
+        assertArrayEquals(new float[]{20f, 10f, 21f, 11f}, groups.get("q2").points, 0f);
+        assertArrayEquals(new int[]{1, 1}, groups.get("q2").counts);
+    }
+
+    /**
+     * The response content type is not checked, it is application/json or text/plain depending on the SOLR config.
+     */
+    @Test
+    public void testHttpSolrClient() throws Exception {
+        final byte[] body = ("{\"responseHeader\":{\"status\":0,\"QTime\":1},"
+                + "\"response\":{\"numFound\":4,\"start\":0,\"docs\":[]},"
+                + "\"facet_counts\":{\"facet_fields\":{\"point-0.1\":[\"-35.3,149.1\",4]}}}").getBytes(StandardCharsets.UTF_8);
+        //a content type would be compared with the response content type by HttpSolrClient
+        assertNull(new PointFacetResponseParser().getContentType());
+
+        final AtomicReference<String> contentType = new AtomicReference<String>();
+        final AtomicReference<String> query = new AtomicReference<String>();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/solr/biocache/select", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                query.set(exchange.getRequestURI().getQuery());
+                exchange.getResponseHeaders().add("Content-Type", contentType.get());
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try (HttpSolrClient client = new HttpSolrClient.Builder(
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/solr/biocache").build()) {
+            for (String type : new String[]{"text/plain;charset=utf-8", "application/json;charset=utf-8"}) {
+                contentType.set(type);
+                QueryRequest request = new QueryRequest(new SolrQuery("*:*"));
+                request.setResponseParser(new PointFacetResponseParser());
+                NamedList<Object> response = client.request(request);
+
+                assertTrue(query.get(), query.get().contains("wt=json"));
+                NamedList<PointFacetResponseParser.Points> groups =
+                        (NamedList<PointFacetResponseParser.Points>) response.get(PointFacetResponseParser.POINTS);
+                assertArrayEquals(type, new float[]{149.1f, -35.3f}, groups.get("point-0.1").points, 0f);
+                assertArrayEquals(type, new int[]{4}, groups.get("point-0.1").counts);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class PointStampTest {
+
+    //max difference of a colour channel, premultiplied by alpha, and of alpha
+    static final int TOLERANCE = 4;
+
+    @Test
+    public void testPoints() {
+        for (int radius : new int[]{1, 2, 3, 5, 8}) {
+            for (int colour : new int[]{0xff8b0000, 0x800000ff, 0x1000ff00}) {
+                assertMatches(radius, colour, 0, 1, false);
+                assertMatches(radius, colour, 0xff000000, 1, false);
+                assertMatches(radius, colour, 0xff000000, 1, true);
+            }
+        }
+    }
+
+    @Test
+    public void testHighlight() {
+        assertMatches(8, 0, 0xffff0000, 2, false);
+        assertMatches(8, 0, 0xffff0000, 2, true);
+    }
+
+    private void assertMatches(int radius, int fill, int outline, int strokeWidth, boolean background) {
+        int width = 64;
+        int height = 48;
+        BufferedImage expected = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage actual = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        if (background) {
+            //existing translucent content
+            for (BufferedImage img : new BufferedImage[]{expected, actual}) {
+                Graphics2D g = (Graphics2D) img.getGraphics();
+                g.setPaint(new Color(0x6040a0c0, true));
+                g.fillRect(0, 0, width / 2, height);
+                g.dispose();
+            }
+        }
+
+        Graphics2D g = (Graphics2D) expected.getGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setStroke(new BasicStroke(strokeWidth));
+
+        int[] pixels = ((DataBufferInt) actual.getRaster().getDataBuffer()).getData();
+        PointStamp stamp = PointStamp.get(radius, fill, outline, strokeWidth);
+
+        //overlapping points, including points on and beyond the edges
+        Random random = new Random(radius);
+        for (int i = 0; i < 60; i++) {
+            int x = random.nextInt(width + 20) - 10;
+            int y = random.nextInt(height + 20) - 10;
+            if ((fill >>> 24) != 0) {
+                g.setPaint(new Color(fill, true));
+                g.fillOval(x - radius, y - radius, radius * 2, radius * 2);
+            }
+            if ((outline >>> 24) != 0) {
+                g.setPaint(new Color(outline, true));
+                g.drawOval(x - radius, y - radius, radius * 2, radius * 2);
+            }
+            stamp.draw(pixels, width, height, x, y);
+        }
+        g.dispose();
+
+        int maxDiff = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                int ea = e >>> 24;
+                int aa = a >>> 24;
+                maxDiff = Math.max(maxDiff, Math.abs(ea - aa));
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int ec = ((e >> shift) & 0xff) * ea / 255;
+                    int ac = ((a >> shift) & 0xff) * aa / 255;
+                    maxDiff = Math.max(maxDiff, Math.abs(ec - ac));
+                }
+            }
+        }
+        assertTrue("radius " + radius + ", fill " + Integer.toHexString(fill) + ", outline " + Integer.toHexString(outline)
+                + ": max difference " + maxDiff, maxDiff <= TOLERANCE);
+    }
+}
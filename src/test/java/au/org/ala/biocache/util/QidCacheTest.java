@@ -67,7 +67,6 @@ public class QidCacheTest {
 
         //setup
         qidCacheDao.setMaxCacheSize(10000);
-        qidCacheDao.setMinCacheSize(100);
         qidCacheDao.setLargestCacheableSize(524280);
 
         Qid qid = new Qid(null, "q", "displayString", "wkt", null,-1,null, -1, null);
@@ -142,8 +141,8 @@ public class QidCacheTest {
 
     /**
      * test cache size management
-     * 1. put more than maxcachesize causes a drop to mincachesize
-     * 2. after drop all puts are still retrievable, from disk
+     * 1. put more than maxcachesize evicts so that the size never exceeds maxcachesize
+     * 2. evicted puts are still retrievable, from disk
      */
     @Test
     public void testSizeManagement() throws QidMissingException, QidSizeException {
@@ -158,10 +157,9 @@ public class QidCacheTest {
             keys.add(qidCacheDao.put("q" + i, "displayString", "wkt", defaultbbox, null, -1, null));
             long afterSize = qidCacheDao.getSize();
 
-            if (beforeSize > afterSize) {
-                //test cache size is significantly reduced after a cacheclean
-                //cachecleaner is on a thread
-                assertTrue(afterSize <= 500);
+            //test cache size does not exceed the max size, eviction is done in the put
+            assertTrue(afterSize <= qidCacheDao.getMaxCacheSize());
+            if (beforeSize >= afterSize) {
                 cacheSizeDropCount++;
             }
 
@@ -173,7 +171,7 @@ public class QidCacheTest {
         //test size calcuations are operating
         assertTrue(putSize > 10000);
 
-        //test cache cleaner was run more than once
+        //test eviction was done more than once
         assertTrue(cacheSizeDropCount > 1);
 
         //test gets
@@ -226,7 +224,7 @@ public class QidCacheTest {
         ExecutorService executorService = Executors.newFixedThreadPool(100);
         executorService.invokeAll(tasks);
 
-        //test cache cleaner operated correctly
+        //test eviction operated correctly
         assertTrue(qidCacheDao.getSize() <= qidCacheDao.getMaxCacheSize());
 
         //test get objects match put objects
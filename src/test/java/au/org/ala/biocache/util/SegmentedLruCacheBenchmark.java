@@ -0,0 +1,141 @@
+package au.org.ala.biocache.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares SegmentedLruCache with the sort based cleaning previously in QidCacheDAOImpl, which sorted every entry by
+ * last use when the max size was reached and kept the most recently used down to the min size.
+ *
+ * Each run puts 4 x entries values of 50 to 150 chars into caches with a max size of entries x 100 chars, each put
+ * followed by a get of a random earlier key.
+ *
+ * Not run by the build. Run the main method with the test classpath, optionally with the number of entries:
+ * java -cp target/test-classes:target/classes:[dependencies] au.org.ala.biocache.util.SegmentedLruCacheBenchmark 100000
+ */
+public class SegmentedLruCacheBenchmark {
+
+    private static final int RUNS = 5;
+
+    private static final SegmentedLruCache.Weigher<String> LENGTH = new SegmentedLruCache.Weigher<String>() {
+        @Override
+        public long weigh(String value) {
+            return value.length();
+        }
+    };
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        long max = entries * 100L;
+
+        Random random = new Random(1);
+        String[] values = new String[entries * 4];
+        int[] gets = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new String(new char[50 + random.nextInt(100)]);
+            gets[i] = random.nextInt(i + 1);
+        }
+
+        System.out.println(entries + " entries, " + values.length + " puts and gets, best of " + RUNS + " runs after a warm up run");
+
+        long sortedTime = Long.MAX_VALUE;
+        long sortedPause = 0;
+        long sortedHits = 0;
+        long cacheTime = Long.MAX_VALUE;
+        long cachePause = 0;
+        long cacheHits = 0;
+        for (int run = 0; run <= RUNS; run++) {
+            long hits = 0;
+            long pause = 0;
+            long start = System.nanoTime();
+            SortedCache sorted = new SortedCache(max, max / 2);
+            for (int i = 0; i < values.length; i++) {
+                long t = System.nanoTime();
+                sorted.put(i, values[i]);
+                if (sorted.get(gets[i]) != null) {
+                    hits++;
+                }
+                pause = Math.max(pause, System.nanoTime() - t);
+            }
+            long time = System.nanoTime() - start;
+            //the first run is a warm up
+            if (run > 0) {
+                sortedTime = Math.min(sortedTime, time);
+                sortedPause = Math.max(sortedPause, pause);
+                sortedHits = hits;
+            }
+
+            hits = 0;
+            pause = 0;
+            start = System.nanoTime();
+            SegmentedLruCache<Integer, String> cache = new SegmentedLruCache<Integer, String>(max, entries, LENGTH);
+            for (int i = 0; i < values.length; i++) {
+                long t = System.nanoTime();
+                cache.put(i, values[i]);
+                if (cache.get(gets[i]) != null) {
+                    hits++;
+                }
+                pause = Math.max(pause, System.nanoTime() - t);
+            }
+            time = System.nanoTime() - start;
+            if (run > 0) {
+                cacheTime = Math.min(cacheTime, time);
+                cachePause = Math.max(cachePause, pause);
+                cacheHits = hits;
+            }
+        }
+
+        System.out.println("sorted:    " + sortedTime / 1000000 + "ms, max put + get " + sortedPause / 1000000
+                + "ms, hits " + sortedHits);
+        System.out.println("segmented: " + cacheTime / 1000000 + "ms, max put + get " + cachePause / 1000000
+                + "ms, hits " + cacheHits);
+    }
+
+    /**
+     * Keeps the most recently used down to the min size when the max size is reached.
+     */
+    private static class SortedCache {
+        final Map<Integer, Object[]> map = new ConcurrentHashMap<Integer, Object[]>();
+        final long max;
+        final long min;
+        long size;
+
+        SortedCache(long max, long min) {
+            this.max = max;
+            this.min = min;
+        }
+
+        void put(Integer key, String value) {
+            if (size + value.length() > max) {
+                List<Map.Entry<Integer, Object[]>> entries = new ArrayList<Map.Entry<Integer, Object[]>>(map.entrySet());
+                Collections.sort(entries, new Comparator<Map.Entry<Integer, Object[]>>() {
+                    @Override
+                    public int compare(Map.Entry<Integer, Object[]> o1, Map.Entry<Integer, Object[]> o2) {
+                        return Long.compare((Long) o2.getValue()[1], (Long) o1.getValue()[1]);
+                    }
+                });
+                long kept = 0;
+                for (Map.Entry<Integer, Object[]> e : entries) {
+                    int length = ((String) e.getValue()[0]).length();
+                    if (kept + length > min) {
+                        map.remove(e.getKey());
+                    } else {
+                        kept += length;
+                    }
+                }
+                size = kept;
+            }
+            map.put(key, new Object[]{value, System.nanoTime()});
+            size += value.length();
+        }
+
+        String get(Integer key) {
+            Object[] o = map.get(key);
+            if (o == null) {
+                return null;
+            }
+            o[1] = System.nanoTime();
+            return (String) o[0];
+        }
+    }
+}
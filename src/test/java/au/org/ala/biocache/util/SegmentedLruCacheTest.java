@@ -0,0 +1,101 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SegmentedLruCacheTest {
+
+    private static final SegmentedLruCache.Weigher<String> LENGTH = new SegmentedLruCache.Weigher<String>() {
+        @Override
+        public long weigh(String value) {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void testWeight() {
+        SegmentedLruCache<Integer, String> cache = new SegmentedLruCache<Integer, String>(1000, 100, LENGTH);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(cache.put(i, "0123456789"));
+            assertTrue(cache.getWeight() <= 1000);
+        }
+        assertEquals(1000, cache.getWeight());
+        assertEquals(100, cache.size());
+        assertEquals(400L, cache.getStats().get("evictions"));
+
+        //the most recent put is in the cache
+        assertEquals("0123456789", cache.get(499));
+
+        //heavier than the max weight
+        assertFalse(cache.put(1000, new String(new char[1001])));
+        assertNull(cache.get(1000));
+        assertEquals(1L, cache.getStats().get("rejections"));
+
+        cache.setMaxWeight(500);
+        assertTrue(cache.getWeight() <= 500);
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        SegmentedLruCache<Integer, String> cache = new SegmentedLruCache<Integer, String>(1000, 100, LENGTH);
+        cache.put(1, "a");
+        cache.put(1, "bb");
+        assertEquals("bb", cache.get(1));
+        assertEquals(2, cache.getWeight());
+
+        cache.remove(1);
+        assertNull(cache.get(1));
+        assertEquals(0, cache.getWeight());
+
+        cache.put(2, "c");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertTrue(cache.put(2, "c"));
+        assertEquals("c", cache.get(2));
+    }
+
+    @Test
+    public void testScanResistance() {
+        SegmentedLruCache<Integer, String> cache = new SegmentedLruCache<Integer, String>(10000, 1000, LENGTH);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, "0123456789");
+        }
+        for (int n = 0; n < 5; n++) {
+            for (int i = 0; i < 100; i++) {
+                cache.get(i);
+            }
+        }
+
+        //a burst of qids used once while the hot qids are still in use
+        for (int i = 1000; i < 20000; i++) {
+            cache.put(i, "0123456789");
+            if (i % 10 == 0) {
+                cache.get(i / 10 % 100);
+            }
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertNotNull("hot key " + i, cache.get(i));
+        }
+    }
+
+    @Test
+    public void testAdmitHeavierThanWindow() {
+        SegmentedLruCache<Integer, String> cache = new SegmentedLruCache<Integer, String>(1000, 100, LENGTH);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, "0123456789");
+            cache.get(i);
+        }
+
+        //new values heavier than the window are used once, as a new qid is after a miss
+        for (int i = 1000; i < 1010; i++) {
+            String value = new String(new char[50]);
+            assertNull(cache.get(i));
+            assertTrue(cache.put(i, value));
+            assertEquals(value, cache.get(i));
+        }
+        assertTrue(cache.getWeight() <= 1000);
+    }
+}
@@ -0,0 +1,118 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class VersionedCacheTest {
+
+    private static VersionedCache.Loader<String> loader(final String value, final AtomicInteger loads) {
+        return new VersionedCache.Loader<String>() {
+            @Override
+            public String load() {
+                loads.incrementAndGet();
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void testVersions() throws Exception {
+        VersionedCache<String, String> cache = new VersionedCache<String, String>("test", 2);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals("a", cache.get(1, "a", loader("a", loads)));
+        assertEquals("a", cache.get(1, "a", loader("x", loads)));
+        assertEquals(1, loads.get());
+
+        //new index version
+        assertEquals("a2", cache.get(2, "a", loader("a2", loads)));
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.size());
+
+        //LRU
+        cache.get(2, "b", loader("b", loads));
+        cache.get(2, "a", loader("a2", loads));
+        cache.get(2, "c", loader("c", loads));
+        assertEquals("a2", cache.get(2, "a", loader("x", loads)));
+        assertEquals("b2", cache.get(2, "b", loader("b2", loads)));
+        assertEquals(1L, cache.getStats().get("invalidations"));
+        assertEquals(2L, cache.getStats().get("evictions"));
+
+        //nulls and failures are not cached
+        assertNull(cache.get(2, "d", loader(null, loads)));
+        try {
+            cache.get(2, "e", new VersionedCache.Loader<String>() {
+                @Override
+                public String load() throws Exception {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        assertEquals("e", cache.get(2, "e", loader("e", loads)));
+        assertEquals(1L, cache.getStats().get("loadFailures"));
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        VersionedCache<String, String> cache = new VersionedCache<String, String>("test", 10, 50);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals("a", cache.get(1, "a", loader("a", loads)));
+        assertEquals("a", cache.get(1, "a", loader("a2", loads)));
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals("a2", cache.get(1, "a", loader("a2", loads)));
+        assertEquals(2, loads.get());
+        assertEquals(1L, cache.getStats().get("expirations"));
+    }
+
+    @Test
+    public void testSingleLoad() throws Exception {
+        final VersionedCache<String, String> cache = new VersionedCache<String, String>("test", 10);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return cache.get(1, "a", new VersionedCache.Loader<String>() {
+                        @Override
+                        public String load() throws Exception {
+                            loads.incrementAndGet();
+                            started.countDown();
+                            release.await();
+                            return "a";
+                        }
+                    });
+                }
+            }));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        //let the other threads reach the load
+        TimeUnit.MILLISECONDS.sleep(200);
+        release.countDown();
+        for (Future<String> f : results) {
+            assertEquals("a", f.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(1, loads.get());
+        assertEquals(1L, cache.getStats().get("loads"));
+    }
+}
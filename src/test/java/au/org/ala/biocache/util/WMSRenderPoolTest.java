@@ -0,0 +1,83 @@
+package au.org.ala.biocache.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class WMSRenderPoolTest {
+
+    WMSRenderPool pool;
+
+    @Before
+    public void setup() {
+        pool = new WMSRenderPool();
+        pool.setThreads(1);
+        pool.setQueueSize(1);
+        pool.setMaxQueueWait(100);
+    }
+
+    @After
+    public void teardown() {
+        pool.destroy();
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        assertEquals("tile", pool.render(() -> "tile"));
+
+        try {
+            pool.render(() -> {
+                throw new IllegalStateException("failed");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        Map<String, Object> queue = (Map<String, Object>) pool.getMetrics().get(WMSRenderPool.STAGE_QUEUE);
+        assertEquals(2L, queue.get("count"));
+    }
+
+    @Test
+    public void testQueueWait() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread busy = new Thread(() -> {
+            try {
+                pool.render(() -> release.await(10, TimeUnit.SECONDS));
+            } catch (Exception e) {
+            }
+        });
+        busy.start();
+        while (pool.getMetrics().get("active").equals(0)) {
+            Thread.sleep(1);
+        }
+
+        //waits longer than the budget and must not run later
+        final AtomicBoolean ran = new AtomicBoolean();
+        try {
+            pool.render(() -> {
+                ran.set(true);
+                return null;
+            });
+            fail();
+        } catch (RejectedExecutionException e) {
+        }
+        assertEquals(1L, pool.getMetrics().get("expired"));
+
+        release.countDown();
+        busy.join();
+
+        assertEquals("tile", pool.render(() -> "tile"));
+        assertFalse(ran.get());
+    }
+}
@@ -0,0 +1,52 @@
+package au.org.ala.biocache.util;
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WktGeometryCacheTest {
+
+    @Test
+    public void testGet() {
+        String wkt = "POLYGON((140 -37,151 -37,151 -26,140 -26,140 -37))";
+        WktGeometryCache.WktGeometry g = WktGeometryCache.get(wkt);
+        assertNotNull(g);
+        assertSame(g, WktGeometryCache.get(wkt));
+        assertEquals(new Envelope(140, 151, -37, -26), g.getEnvelope());
+        assertArrayEquals(new String[]{wkt}, g.getComponents());
+
+        assertNull(WktGeometryCache.get("POLYGON((140 -37"));
+    }
+
+    @Test
+    public void testComponents() {
+        String wkt = "GEOMETRYCOLLECTION(POLYGON((1 1,2 1,2 2,1 2,1 1)),POLYGON((3 3,4 3,4 4,3 4,3 3)))";
+        String[] components = WktGeometryCache.get(wkt).getComponents();
+        assertEquals(2, components.length);
+        assertEquals("POLYGON ((1 1, 2 1, 2 2, 1 2, 1 1))", components[0]);
+
+        assertEquals("(geohash:\"Intersects(" + components[0] + ")\" OR geohash:\"Intersects(" + components[1] + ")\")",
+                SpatialUtils.getWKTQuery("geohash", wkt, false));
+    }
+
+    @Test
+    public void testSimplified() {
+        StringBuilder sb = new StringBuilder("POLYGON((0 0");
+        for (int i = 1; i <= 1000; i++) {
+            sb.append(",").append(i / 1000.0).append(" ").append(i % 2 == 0 ? 0 : 0.00001);
+        }
+        sb.append(",1 1,0 1,0 0))");
+        String wkt = sb.toString();
+
+        String simplified = SpatialUtils.simplifyWkt(wkt, 100);
+        assertNotNull(simplified);
+        assertSame(simplified, SpatialUtils.simplifyWkt(wkt, 100));
+
+        //the simplified WKT is cached with its geometry
+        assertTrue(WktGeometryCache.get(simplified).getGeometry().getNumPoints() <= 100);
+
+        //no simplification needed
+        assertSame(wkt, SpatialUtils.simplifyWkt(wkt, 10000));
+    }
+}
@@ -0,0 +1,140 @@
+package au.org.ala.biocache.web;
+
+import au.org.ala.biocache.util.GridRef;
+import au.org.ala.biocache.util.GridUtil;
+import au.org.ala.biocache.util.OSGridCells;
+import scala.Option;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares rendering EPSG:3857 tiles of a synthetic 1km OS grid from cells projected once by projectGridCells with
+ * the previous rendering, which reprojected the corners of every grid reference for every tile with reprojectPoint.
+ *
+ * Not run by the build. Run the main method with the test classpath, optionally with the grid width in km:
+ * java -cp target/test-classes:target/classes:[dependencies] au.org.ala.biocache.web.OSGridRenderBenchmark 100
+ */
+public class OSGridRenderBenchmark {
+
+    private static final String TARGET_SRS = "EPSG:3857";
+
+    //tile width of zoom level 10 in EPSG:3857
+    private static final double TILE_SIZE = 39135.76;
+
+    private static final int TILE_PIXELS = 256;
+
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+        WMSOSGridController controller = new WMSOSGridController();
+
+        //n km x n km of 1km grid references, from SU 00 00
+        List<String> gridRefs = new ArrayList<String>(n * n);
+        for (int e = 0; e < n; e++) {
+            for (int north = 0; north < n; north++) {
+                gridRefs.add(controller.convertEastingNorthingToOSGrid(400000 + e * 1000, 100000 + north * 1000).getGridRef1000());
+            }
+        }
+
+        //tiles over the extent of the grid
+        double[] min = controller.reprojectPoint(400000d, 100000d, GridUtil.OSGB_CRS(), TARGET_SRS);
+        double[] max = controller.reprojectPoint(400000d + n * 1000, 100000d + n * 1000, GridUtil.OSGB_CRS(), TARGET_SRS);
+        int tilesX = (int) Math.ceil((max[0] - min[0]) / TILE_SIZE);
+        int tilesY = (int) Math.ceil((max[1] - min[1]) / TILE_SIZE);
+
+        System.out.println(gridRefs.size() + " 1km grid references, " + tilesX * tilesY + " tiles, best of " + RUNS + " runs");
+
+        long project = Long.MAX_VALUE;
+        long cached = Long.MAX_VALUE;
+        long perTile = Long.MAX_VALUE;
+        long check = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            OSGridCells cells = controller.projectGridCells(gridRefs, TARGET_SRS);
+            project = Math.min(project, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int t = 0; t < tilesX * tilesY; t++) {
+                double minx = min[0] + (t % tilesX) * TILE_SIZE;
+                double miny = min[1] + (t / tilesX) * TILE_SIZE;
+                check += renderCached(cells, minx, miny);
+            }
+            cached = Math.min(cached, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int t = 0; t < tilesX * tilesY; t++) {
+                double minx = min[0] + (t % tilesX) * TILE_SIZE;
+                double miny = min[1] + (t / tilesX) * TILE_SIZE;
+                check += renderReprojected(controller, gridRefs, minx, miny);
+            }
+            perTile = Math.min(perTile, System.nanoTime() - start);
+        }
+
+        System.out.println("projectGridCells once: " + project / 1000000 + "ms, render all tiles from cells: " + cached / 1000000 + "ms");
+        System.out.println("reproject per tile: " + perTile / 1000000 + "ms");
+        System.out.println("(" + check + ")");
+    }
+
+    /**
+     * Render a tile as WMSOSGridController does from projected cells.
+     */
+    private static int renderCached(OSGridCells cells, double minx, double miny) {
+        WMSImg wmsImg = WMSImg.create(TILE_PIXELS, TILE_PIXELS);
+        double pixelsPerUnit = TILE_PIXELS / TILE_SIZE;
+        int[] x = new int[4];
+        int[] y = new int[4];
+        int rendered = 0;
+        for (int i = 0; i < cells.size(); i++) {
+            if (cells.intersects(i, minx, miny, minx + TILE_SIZE, miny + TILE_SIZE)) {
+                cells.toPixels(i, minx, miny, pixelsPerUnit, pixelsPerUnit, TILE_PIXELS, x, y);
+                wmsImg.g.fillPolygon(x, y, 4);
+                rendered++;
+            }
+        }
+        wmsImg.g.dispose();
+        return rendered;
+    }
+
+    /**
+     * Render a tile as WMSOSGridController previously did, parsing and reprojecting the corners of each grid
+     * reference.
+     */
+    private static int renderReprojected(WMSOSGridController controller, List<String> gridRefs, double minx, double miny) {
+        WMSImg wmsImg = WMSImg.create(TILE_PIXELS, TILE_PIXELS);
+        double pixelsPerUnit = TILE_PIXELS / TILE_SIZE;
+        int[] x = new int[4];
+        int[] y = new int[4];
+        int rendered = 0;
+        for (String gridRef : gridRefs) {
+            Option<GridRef> gridRefOption = GridUtil.gridReferenceToEastingNorthing(gridRef);
+            if (gridRefOption.isEmpty()) continue;
+
+            GridRef gr = gridRefOption.get();
+            double easting = gr.easting();
+            double northing = gr.northing();
+            int gridSize = (Integer) gr.coordinateUncertainty().get();
+            double[][] polygon = {
+                    controller.reprojectPoint(easting, northing, gr.datum(), TARGET_SRS),
+                    controller.reprojectPoint(easting + gridSize, northing, gr.datum(), TARGET_SRS),
+                    controller.reprojectPoint(easting + gridSize, northing + gridSize, gr.datum(), TARGET_SRS),
+                    controller.reprojectPoint(easting, northing + gridSize, gr.datum(), TARGET_SRS)
+            };
+
+            boolean overlapping = false;
+            for (int c = 0; c < 4; c++) {
+                x[c] = (int) ((polygon[c][0] - minx) * pixelsPerUnit);
+                y[c] = TILE_PIXELS - (int) ((polygon[c][1] - miny) * pixelsPerUnit);
+                overlapping |= x[c] >= 0 && x[c] < TILE_PIXELS && y[c] >= 0 && y[c] < TILE_PIXELS;
+            }
+            if (overlapping) {
+                wmsImg.g.fillPolygon(x, y, 4);
+                rendered++;
+            }
+        }
+        wmsImg.g.dispose();
+        return rendered;
+    }
+}
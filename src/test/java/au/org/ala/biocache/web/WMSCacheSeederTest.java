@@ -0,0 +1,133 @@
+package au.org.ala.biocache.web;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WMSCacheSeederTest {
+
+    WMSCacheSeeder seeder;
+
+    @Before
+    public void setup() {
+        seeder = new WMSCacheSeeder();
+        seeder.enabled = true;
+        seeder.top = 2;
+        seeder.logSize = 4;
+        seeder.seedFile = "";
+    }
+
+    @Test
+    public void testGetLayerKey() {
+        //BBOX, WIDTH and HEIGHT are removed, in any case
+        assertEquals("LAYERS=ALA:occurrences&q=*:*",
+                WMSCacheSeeder.getLayerKey("q=*:*&BBOX=1,2,3,4&WIDTH=256&height=512&LAYERS=ALA:occurrences"));
+
+        //the order of the parameters does not matter
+        assertEquals(WMSCacheSeeder.getLayerKey("q=*:*&ENV=color%3Aff0000&fq=year:2000&BBOX=1,2,3,4"),
+                WMSCacheSeeder.getLayerKey("BBOX=5,6,7,8&fq=year:2000&q=*:*&ENV=color%3Aff0000"));
+
+        //parameters that only start with a removed name are kept
+        assertEquals("BBOXES=1&WIDTHS=2", WMSCacheSeeder.getLayerKey("WIDTHS=2&BBOXES=1&WIDTH=256"));
+    }
+
+    @Test
+    public void testParseQueryString() throws Exception {
+        Map<String, String[]> params = WMSCacheSeeder.parseQueryString(
+                "/ogc/wms/reflect?q=taxon_name%3A%22Acacia+dealbata%22&fq=year:2000&fq=state%3AVictoria&ENV=&BBOX&&SRS=EPSG%3A3857");
+
+        assertArrayEquals(new String[]{"q", "fq", "ENV", "BBOX", "SRS"}, params.keySet().toArray());
+        assertArrayEquals(new String[]{"taxon_name:\"Acacia dealbata\""}, params.get("q"));
+        assertArrayEquals(new String[]{"year:2000", "state:Victoria"}, params.get("fq"));
+        assertArrayEquals(new String[]{""}, params.get("ENV"));
+        assertArrayEquals(new String[]{""}, params.get("BBOX"));
+        assertArrayEquals(new String[]{"EPSG:3857"}, params.get("SRS"));
+
+        //without a path
+        assertArrayEquals(new String[]{"a b"}, WMSCacheSeeder.parseQueryString("q=a%20b").get("q"));
+    }
+
+    @Test
+    public void testSeedTiles() throws Exception {
+        seeder.logSize = 10;
+        record("q=a", 1);
+        record("q=b", 5);
+        record("q=c", 3);
+        record("q=d", 2);
+        record("q=e", 4);
+        //tiles of the same layer are counted together
+        record("q=b&BBOX=1,2,3,4", 1);
+        record("BBOX=5,6,7,8&q=a", 1);
+
+        //a tile of each of the top layers, most requested first
+        List<Map<String, String[]>> tiles = seeder.getSeedTiles();
+        assertEquals(2, tiles.size());
+        assertArrayEquals(new String[]{"b"}, tiles.get(0).get("q"));
+        assertArrayEquals(new String[]{"e"}, tiles.get(1).get("q"));
+        assertNull(tiles.get(0).get("BBOX"));
+
+        //the most requested half of logSize is kept, the least requested are dropped
+        assertEquals(5, seeder.getStatus().get("loggedLayers"));
+        seeder.logSize = 4;
+        seeder.getSeedTiles();
+        assertEquals(2, seeder.getStatus().get("loggedLayers"));
+
+        //the kept layers keep their counts, c is counted again from 0
+        record("q=c", 7);
+        tiles = seeder.getSeedTiles();
+        assertEquals(2, tiles.size());
+        assertArrayEquals(new String[]{"c"}, tiles.get(0).get("q"));
+        assertArrayEquals(new String[]{"b"}, tiles.get(1).get("q"));
+    }
+
+    @Test
+    public void testRecordLimit() throws Exception {
+        record("q=a", 1);
+        record("q=b", 1);
+        record("q=c", 1);
+        record("q=d", 1);
+        assertEquals(4, seeder.getStatus().get("loggedLayers"));
+
+        //new layers are not counted once logSize is reached
+        record("q=e", 10);
+        assertEquals(4, seeder.getStatus().get("loggedLayers"));
+
+        //layers that are already counted are
+        record("q=d", 2);
+        List<Map<String, String[]>> tiles = seeder.getSeedTiles();
+        assertArrayEquals(new String[]{"d"}, tiles.get(0).get("q"));
+
+        //trimming makes room for new layers
+        assertEquals(2, seeder.getStatus().get("loggedLayers"));
+        record("q=e", 10);
+        assertEquals(3, seeder.getStatus().get("loggedLayers"));
+        assertArrayEquals(new String[]{"e"}, seeder.getSeedTiles().get(0).get("q"));
+    }
+
+    @Test
+    public void testRecordDisabled() throws Exception {
+        seeder.enabled = false;
+        record("q=a", 1);
+        assertEquals(0, seeder.getStatus().get("loggedLayers"));
+
+        seeder.enabled = true;
+        seeder.top = 0;
+        record("q=a", 1);
+        assertEquals(0, seeder.getStatus().get("loggedLayers"));
+    }
+
+    private void record(String queryString, int times) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/ogc/wms/reflect");
+        request.setQueryString(queryString);
+        for (int i = 0; i < times; i++) {
+            seeder.record(request);
+        }
+    }
+}